@@ -0,0 +1,80 @@
+package programming5.net;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ *Encoding and decoding of a message with a header, numeric items and a byte array payload of the given size, in both
+ *syntaxes. Decoding with MessageView only locates the items, so the view benchmark also reads every item back.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark {
+
+    @Param({"TEXT", "BINARY"})
+    public Message.Encoding encoding;
+
+    @Param({"64", "1024", "65536", "1048576"})
+    public int size;
+
+    private Message message;
+    private byte[] encoded;
+    private ByteBuffer buffer;
+
+    @Setup
+    public void setup() throws MalformedMessageException {
+        byte[] payload = new byte[size];
+        Arrays.fill(payload, (byte) 'x');
+        message = Message.constructMessage("BENCH", 42, 123456789012L, 3.5, true, "item");
+        message.addMessageItem(payload);
+        encoded = message.getMessageBytes(encoding);
+        buffer = ByteBuffer.allocate(message.encodedSize(encoding));
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return message.getMessageBytes(encoding);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeInto() {
+        buffer.clear();
+        message.writeTo(buffer, encoding);
+        return buffer;
+    }
+
+    @Benchmark
+    public Message decode() throws MalformedMessageException {
+        return new Message(encoded);
+    }
+
+    @Benchmark
+    public void decodeView(Blackhole blackhole) throws MalformedMessageException {
+        MessageView view = new MessageView(encoded);
+        blackhole.consume(view.getHeader());
+        blackhole.consume(view.getItemAsInt(0));
+        blackhole.consume(view.getItemAsLong(1));
+        blackhole.consume(view.getItemAsDouble(2));
+        blackhole.consume(view.getItemAsBoolean(3));
+        blackhole.consume(view.getMessageItem(4));
+        blackhole.consume(view.getItemAsByteArray(5));
+    }
+
+}
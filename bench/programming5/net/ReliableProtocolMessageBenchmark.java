@@ -0,0 +1,88 @@
+package programming5.net;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ *Parsing of the packets of the reliable UDP protocol as done by ReliableUDPClient on arrival: the packet is classified by
+ *its header and the fields that the client reads for its type are decoded. Payload sizes go up to a full datagram.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReliableProtocolMessageBenchmark {
+
+    @Param({"TEXT", "BINARY"})
+    public Message.Encoding encoding;
+
+    @Param({"64", "1024", "65000"})
+    public int size;
+
+    private byte[] message;
+    private byte[] windowedMessage;
+    private byte[] acknowledge;
+    private byte[] windowAcknowledge;
+
+    @Setup
+    public void setup() {
+        byte[] payload = new byte[size];
+        Arrays.fill(payload, (byte) 'x');
+        message = new ReliableProtocolMessage(payload, 1234567890123L, 1, 1, null).getMessageBytes(encoding);
+        windowedMessage = ReliableProtocolMessage.createWindowedMessage(payload, 1234567890123L, 1, 1, -987654321L, 4096, null).getMessageBytes(encoding);
+        acknowledge = new ReliableProtocolMessage(1234567890123L, 1).getMessageBytes(encoding);
+        windowAcknowledge = ReliableProtocolMessage.createWindowAcknowledge(-987654321L, 4096, 0x5L).getMessageBytes(encoding);
+    }
+
+    @Benchmark
+    public void parseMessage(Blackhole blackhole) throws MalformedMessageException {
+        ReliableProtocolMessage rpm = new ReliableProtocolMessage(message);
+        blackhole.consume(rpm.isMessage());
+        blackhole.consume(rpm.getSequence());
+        blackhole.consume(rpm.getIndex());
+        blackhole.consume(rpm.getTotal());
+        blackhole.consume(rpm.getPayload());
+    }
+
+    @Benchmark
+    public void parseWindowedMessage(Blackhole blackhole) throws MalformedMessageException {
+        ReliableProtocolMessage rpm = new ReliableProtocolMessage(windowedMessage);
+        blackhole.consume(rpm.isWindowedMessage());
+        blackhole.consume(rpm.getSession());
+        blackhole.consume(rpm.getPacketSequence());
+        blackhole.consume(rpm.getTotal());
+        blackhole.consume(rpm.getPayload());
+    }
+
+    @Benchmark
+    public void parseAcknowledge(Blackhole blackhole) throws MalformedMessageException {
+        ReliableProtocolMessage rpm = new ReliableProtocolMessage(acknowledge);
+        blackhole.consume(rpm.isAcknowledge());
+        blackhole.consume(rpm.getSequence());
+        blackhole.consume(rpm.getIndex());
+    }
+
+    @Benchmark
+    public void parseWindowAcknowledge(Blackhole blackhole) throws MalformedMessageException {
+        ReliableProtocolMessage rpm = new ReliableProtocolMessage(windowAcknowledge);
+        blackhole.consume(rpm.isWindowAcknowledge());
+        blackhole.consume(rpm.getSession());
+        blackhole.consume(rpm.getCumulativeSequence());
+        blackhole.consume(rpm.getSelectiveAcknowledgements());
+    }
+
+}
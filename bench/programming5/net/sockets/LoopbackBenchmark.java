@@ -0,0 +1,214 @@
+package programming5.net.sockets;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import programming5.net.MessageArrivedEvent;
+import programming5.net.MessageArrivedListener;
+import programming5.net.MessagingClient;
+import programming5.net.NetworkException;
+import programming5.net.PluggableClient;
+import programming5.net.ServiceObject;
+import programming5.net.ServiceObjectFactory;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *Messaging over loopback with each transport: a client sends messages of the given size to an endpoint whose subscribers
+ *(from 1 to 16) all receive each message, the last of them echoing it back. The latency benchmark sends one message at a
+ *time and measures the round trip (run in sample mode, so that JMH reports p50 and p99); the throughput benchmark keeps up to
+ *WINDOW messages in flight. Messages lost by plain UDP are given up after TIMEOUT milliseconds and reported in the "lost"
+ *counter instead of stalling the run.
+ *<p>The benchmarks in bench/ are compiled with the sources in src/ and the JMH annotation processor, and run with the JMH
+ *runner, e.g. java -jar benchmarks.jar LoopbackBenchmark -p transport=NIO
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g"})
+public class LoopbackBenchmark {
+
+    public enum Transport {TCP, NIO, UDP, RUDP}
+
+    public static final int WINDOW = 16;
+    public static final long TIMEOUT = 5000;
+    public static final int UDP_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    @Param({"TCP", "NIO", "UDP", "RUDP"})
+    public Transport transport;
+
+    @Param({"64", "1024", "65536", "1048576"})
+    public int size;
+
+    @Param({"1", "4", "16"})
+    public int subscribers;
+
+    private byte[] payload;
+    private MessagingClient client;
+    private MessagingClient endpoint = null;
+    private TCPServerDaemon daemon = null;
+    private SelectorLoop loop = null;
+    private int outstanding = 0;
+    private final Semaphore replies = new Semaphore(0);
+
+    volatile int sink;
+
+    /**
+     *Messages given up on (only expected with plain UDP)
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Losses {
+
+        public long lost;
+
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        payload = new byte[size];
+        Arrays.fill(payload, (byte) 'x');
+        switch (transport) {
+            case TCP:
+            case NIO:
+                final CountDownLatch accepted = new CountDownLatch(1);
+                daemon = new TCPServerDaemon(new ServiceObjectFactory() {
+                    public ServiceObject getServiceObject() {
+                        return new ServiceObject() {
+                            public void newClient(PluggableClient newClient) {
+                                subscribe((MessagingClient) newClient);
+                                accepted.countDown();
+                            }
+                        };
+                    }
+                });
+                if (transport == Transport.NIO) {
+                    loop = new SelectorLoop();
+                    loop.start();
+                    daemon.setSelectorLoop(loop);
+                    client = new NIOTCPClient("127.0.0.1", daemon.getLocalPort());
+                }
+                else {
+                    client = new TCPClient("127.0.0.1", daemon.getLocalPort());
+                }
+                daemon.start();
+                client.establishConnection();
+                if (!accepted.await(TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    throw new IllegalStateException("LoopbackBenchmark: Connection not accepted");
+                }
+                break;
+            case UDP:
+                endpoint = new UDPClient();
+                client = new UDPClient("127.0.0.1", ((UDPClient) endpoint).getLocalPort());
+                // Plain UDP sends all the fragments of a message at once, which the default socket buffer cannot hold
+                ((UDPClient) endpoint).socket.setReceiveBufferSize(UDP_BUFFER_SIZE);
+                ((UDPClient) client).socket.setReceiveBufferSize(UDP_BUFFER_SIZE);
+                this.subscribe(endpoint);
+                break;
+            case RUDP:
+                endpoint = new ReliableUDPClient();
+                ((ReliableUDPClient) endpoint).setSelectiveRepeat(true);
+                client = new ReliableUDPClient("127.0.0.1", ((ReliableUDPClient) endpoint).getLocalPort());
+                ((ReliableUDPClient) client).setSelectiveRepeat(true);
+                this.subscribe(endpoint);
+                break;
+        }
+        client.addListener(new MessageArrivedListener() {
+            public <T extends MessageArrivedEvent> void signalEvent(T event) {
+                replies.release();
+            }
+        });
+    }
+
+    @TearDown(Level.Iteration)
+    public void drain() throws InterruptedException {
+        while (outstanding > 0 && replies.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS)) {
+            outstanding--;
+        }
+        outstanding = 0;
+        replies.drainPermits();
+    }
+
+    @TearDown
+    public void tearDown() {
+        client.endConnection();
+        if (endpoint != null) {
+            endpoint.endConnection();
+        }
+        if (daemon != null) {
+            daemon.end();
+        }
+        if (loop != null) {
+            loop.end();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void latency(Losses losses) throws NetworkException, InterruptedException {
+        client.send(payload);
+        if (!replies.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS)) {
+            losses.lost++;
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void throughput(Losses losses) throws NetworkException, InterruptedException {
+        if (outstanding == WINDOW) {
+            if (!replies.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS)) {
+                losses.lost++;
+            }
+            outstanding--;
+        }
+        client.send(payload);
+        outstanding++;
+    }
+
+    /**
+     *Adds the subscribers to the receiving end; the last one echoes each message to its sender
+     */
+    private void subscribe(final MessagingClient receiver) {
+        for (int i = 1; i < subscribers; i++) {
+            receiver.addListener(new MessageArrivedListener() {
+                public <T extends MessageArrivedEvent> void signalEvent(T event) {
+                    sink = event.getContentBytes().length;
+                }
+            });
+        }
+        receiver.addListener(new MessageArrivedListener() {
+            public <T extends MessageArrivedEvent> void signalEvent(T event) {
+                try {
+                    if (receiver instanceof UDPClient) {
+                        ((UDPClient) receiver).replyTo(event, event.getContentBytes());
+                    }
+                    else if (receiver instanceof ReliableUDPClient) {
+                        ((ReliableUDPClient) receiver).replyTo(event, event.getContentBytes());
+                    }
+                    else {
+                        receiver.send(event.getContentBytes());
+                    }
+                }
+                catch (NetworkException ne) {
+                    throw new RuntimeException(ne);
+                }
+            }
+        });
+    }
+
+}
@@ -0,0 +1,183 @@
+/*
+ * BoundedLongPairSet.java
+ *
+ * Copyright 2009 Andres Quiroz Hernandez
+ *
+ * This file is part of Programming5.
+ * Programming5 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Programming5 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Programming5.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package programming5.collections;
+
+import java.util.Arrays;
+
+/**
+ * A set of pairs of long values with a fixed capacity, which remembers the most recently added pairs: once full, adding a
+ * new pair evicts the oldest one (first in, first out). Pairs are kept in primitive arrays, without boxing, in a ring that
+ * records their insertion order and in an open addressing hash table (with linear probing) that indexes the ring, so that
+ * lookups, insertions, and evictions take constant time regardless of the capacity. It is useful for remembering recently
+ * seen identifiers, such as (source, sequence number) pairs for duplicate suppression.
+ * <p>This class is not synchronized.
+ * @author Andres Quiroz Hernandez
+ * @version 6.19
+ */
+public class BoundedLongPairSet {
+
+    private long[] firsts;
+    private long[] seconds;
+    private int[] table;
+    private int mask;
+    private int head = 0;
+    private int count = 0;
+
+    private static final int EMPTY = -1;
+
+    /**
+     * Creates a set that remembers up to the given number of pairs
+     */
+    public BoundedLongPairSet(int capacity) {
+        this.allocate(capacity);
+    }
+
+    /**
+     * Adds the given pair to the set, evicting the oldest pair if the set is full
+     * @return true if the pair was not in the set
+     */
+    public boolean add(long first, long second) {
+        if (this.find(first, second) != EMPTY) {
+            return false;
+        }
+        if (count == firsts.length) {
+            this.evictOldest();
+        }
+        int position = (head + count) % firsts.length;
+        firsts[position] = first;
+        seconds[position] = second;
+        count++;
+        int slot = hash(first, second) & mask;
+        while (table[slot] != EMPTY) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = position;
+        return true;
+    }
+
+    /**
+     * @return true if the given pair is in the set
+     */
+    public boolean contains(long first, long second) {
+        return this.find(first, second) != EMPTY;
+    }
+
+    /**
+     * @return the number of pairs in the set
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return the maximum number of pairs kept by the set
+     */
+    public int capacity() {
+        return firsts.length;
+    }
+
+    /**
+     * Changes the maximum number of pairs kept by the set, keeping the most recent pairs that fit
+     */
+    public void setCapacity(int capacity) {
+        long[] oldFirsts = firsts;
+        long[] oldSeconds = seconds;
+        int oldHead = head;
+        int oldCount = count;
+        this.allocate(capacity);
+        for (int i = Math.max(0, oldCount - capacity); i < oldCount; i++) {
+            int position = (oldHead + i) % oldFirsts.length;
+            this.add(oldFirsts[position], oldSeconds[position]);
+        }
+    }
+
+    /**
+     * Removes all pairs from the set
+     */
+    public void clear() {
+        Arrays.fill(table, EMPTY);
+        head = 0;
+        count = 0;
+    }
+
+    private void allocate(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("BoundedLongPairSet: Capacity must be positive");
+        }
+        firsts = new long[capacity];
+        seconds = new long[capacity];
+        int tableSize = 2;
+        while (tableSize < 2 * capacity) {
+            tableSize <<= 1;
+        }
+        table = new int[tableSize];
+        Arrays.fill(table, EMPTY);
+        mask = tableSize - 1;
+        head = 0;
+        count = 0;
+    }
+
+    /**
+     * @return the slot of the hash table that refers to the given pair, or EMPTY if the pair is not in the set
+     */
+    private int find(long first, long second) {
+        int slot = hash(first, second) & mask;
+        while (table[slot] != EMPTY) {
+            int position = table[slot];
+            if (firsts[position] == first && seconds[position] == second) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return EMPTY;
+    }
+
+    private void evictOldest() {
+        int slot = this.find(firsts[head], seconds[head]);
+        head = (head + 1) % firsts.length;
+        count--;
+        // Backward shift deletion: moves later entries of the probe sequence into the freed slot, so that lookups never
+        // stop early at it
+        int free = slot;
+        table[free] = EMPTY;
+        int next = (free + 1) & mask;
+        while (table[next] != EMPTY) {
+            int position = table[next];
+            int home = hash(firsts[position], seconds[position]) & mask;
+            if (((next - home) & mask) >= ((next - free) & mask)) {
+                table[free] = position;
+                table[next] = EMPTY;
+                free = next;
+            }
+            next = (next + 1) & mask;
+        }
+    }
+
+    private static int hash(long first, long second) {
+        long h = first * 0x9E3779B97F4A7C15L + second;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+}
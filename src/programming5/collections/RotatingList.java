@@ -70,7 +70,7 @@ public class RotatingList<T> extends ArrayList<T> {
     @Override
     public boolean add(T item) {
         if (this.size() < fixedSize) {
-            this.add(item);
+            super.add(item);
             pointer = 0;
         }
         else {
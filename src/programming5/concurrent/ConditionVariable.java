@@ -21,108 +21,89 @@
 
 package programming5.concurrent;
 
+import java.util.ArrayDeque;
 import java.util.Date;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- * Implementation of the java.util.concurrent.locks.Condition interface, with additional functionality to test 
+ * Implementation of the java.util.concurrent.locks.Condition interface, with additional functionality to test
  * the condition to which the object is associated.
+ * <p>A thread that awaits while the condition is false joins a queue of waiters and returns only when it is signaled,
+ * interrupted (if interruptible) or its timeout expires, never because of a spurious wakeup. Since the condition is checked
+ * and the waiter queued atomically with respect to the signal methods, a signal cannot be lost between the two. The signal
+ * method wakes only the waiter that has waited longest, and signalAll wakes all of them; a woken waiter spins briefly
+ * before parking, so that signals that follow shortly after the call to await are handed over without parking the thread.
+ * Wait times are measured with System.nanoTime.
  * @author Andres Quiroz Hernandez
- * @version 6.0
+ * @version 6.19
  */
 public class ConditionVariable implements Condition {
-    
-    boolean condition = false;
-    long waitTime = 0;
-    
+
+    volatile boolean condition = false;
+    volatile long waitNanos = 0;
+
+    private final ArrayDeque<Waiter> waiters = new ArrayDeque<Waiter>();
+
+    protected static final int SPINS = (Runtime.getRuntime().availableProcessors() > 1) ? 256 : 0;
+
     public ConditionVariable() {
     }
 
     /**
      *Waits on this condition until signaled or interrupted
      */
-    public synchronized void await() throws InterruptedException {
-        waitTime = 0;
-        if (!condition) {
-            long startTime = System.currentTimeMillis();
-            wait();
-            waitTime = System.currentTimeMillis() - startTime;
-        }
+    @Override
+    public void await() throws InterruptedException {
+        this.block(false, 0, true);
     }
 
     /**
-     *Waits on the conditioned until signaled, even if interrupted
+     *Waits on the conditioned until signaled, even if interrupted (the interrupt status is kept)
      */
-    public synchronized void awaitUninterruptibly() {
-        waitTime = 0;
-        boolean waiting = !condition;
-        while (waiting) {
-            long startTime = System.currentTimeMillis();
-            try {
-                wait();
-            }
-            catch (InterruptedException ie) {
-            }
-            finally {
-                waitTime += (System.currentTimeMillis() - startTime);
-                waiting = !condition;
-            }
+    @Override
+    public void awaitUninterruptibly() {
+        try {
+            this.block(false, 0, false);
+        }
+        catch (InterruptedException ie) {
+            // Not thrown when uninterruptible
         }
     }
 
     /**
-     *Waits on the condition until signaled or a timeout at the given time occurs
+     *Waits on the condition until signaled or a timeout of the given number of nanoseconds occurs
      *@return the time remaining until the given timeout
      */
-    public synchronized long awaitNanos(long timeout) throws InterruptedException {
-        long timeoutTime = timeout/1000000;
-        long time = System.currentTimeMillis();
-        waitTime = 0;
-        if (!condition) {
-            wait(timeoutTime);
-            waitTime = System.currentTimeMillis() - time;
-        }
-        return 1000000 * (timeoutTime - System.currentTimeMillis() + time);
+    @Override
+    public long awaitNanos(long timeout) throws InterruptedException {
+        long start = System.nanoTime();
+        this.block(true, timeout, true);
+        return timeout - (System.nanoTime() - start);
     }
 
     /**
      *Waits on the condition until signaled or a timeout of the given length in the given time unit occurs
      *@return true if the condition is true and false otherwise
      */
-    public synchronized boolean await(long timeout, TimeUnit timeUnit) throws InterruptedException {
-        waitTime = 0;
-        if (!condition) {
-            long startTime = System.currentTimeMillis();
-            wait(toMilliseconds(timeout, timeUnit));
-            waitTime = System.currentTimeMillis() - startTime;
-        }
+    @Override
+    public boolean await(long timeout, TimeUnit timeUnit) throws InterruptedException {
+        this.block(true, timeUnit.toNanos(timeout), true);
         return condition;
     }
 
     /**
      *Waits on the condition until signaled or a timeout of the given length in the given time unit occurs.
-     *If interrupted, will resume waiting for the remaining amount of time, or unitl signaled.
+     *If interrupted, will resume waiting for the remaining amount of time, or until signaled.
      *@return true if the condition is true and false otherwise
      */
-    public synchronized boolean awaitUninterruptibly(long timeout, TimeUnit timeUnit) {
-        long timeoutMillis = toMilliseconds(timeout, timeUnit);
-        boolean waiting = !condition;
-        waitTime = 0;
-        while (waiting) {
-            long startTime = System.currentTimeMillis();
-            try {
-                wait(timeoutMillis);
-                waitTime += (System.currentTimeMillis() - startTime);
-                waiting = false;
-            }
-            catch (InterruptedException ie) {
-                long stopTime = System.currentTimeMillis();
-                timeoutMillis -= (stopTime - startTime);
-                if (timeoutMillis <= 0) {
-                    waiting = false;
-                }
-            }
+    public boolean awaitUninterruptibly(long timeout, TimeUnit timeUnit) {
+        try {
+            this.block(true, timeUnit.toNanos(timeout), false);
+        }
+        catch (InterruptedException ie) {
+            // Not thrown when uninterruptible
         }
         return condition;
     }
@@ -131,51 +112,68 @@ public class ConditionVariable implements Condition {
      *Waits on the condition until signaled or a timeout at the given date occurs
      *@return true if the condition is true and false otherwise
      */
-    public synchronized boolean awaitUntil(Date date) throws InterruptedException {
-        long time = System.currentTimeMillis();
-        long timeoutTime = date.getTime() - time;
-        waitTime = 0;
-        if (!condition) {
-            wait(timeoutTime);
-            waitTime = System.currentTimeMillis() - time;
-        }
+    @Override
+    public boolean awaitUntil(Date date) throws InterruptedException {
+        this.block(true, TimeUnit.MILLISECONDS.toNanos(date.getTime() - System.currentTimeMillis()), true);
         return condition;
     }
 
     /**
-     *Signals an object waiting on this condition, setting the condition to true
+     *Signals the thread that has waited longest on this condition, setting the condition to true
      */
-    public synchronized void signal() {
-        condition = true;
-        notify();
+    @Override
+    public void signal() {
+        Waiter next;
+        synchronized (waiters) {
+            condition = true;
+            next = waiters.pollFirst();
+            if (next != null) {
+                next.signaled = true;
+            }
+        }
+        if (next != null) {
+            LockSupport.unpark(next.thread);
+        }
     }
 
     /**
-     *Signals all objects waiting on this condition, setting the condition to true
+     *Signals all threads waiting on this condition, setting the condition to true
      */
-    public synchronized void signalAll() {
-        condition = true;
-        notifyAll();
+    @Override
+    public void signalAll() {
+        this.evaluateCondition(true);
     }
-    
+
     /**
-     * A conditional call to signalAll that depends on the value of the given expression (will signal if the expression 
+     * A conditional call to signalAll that depends on the value of the given expression (will signal if the expression
      * evaluates to true.
      */
-    public synchronized void evaluateCondition(boolean expression) {
-        condition = expression;
-        if (condition) {
-            notifyAll();
+    public void evaluateCondition(boolean expression) {
+        Waiter[] signaled = null;
+        synchronized (waiters) {
+            condition = expression;
+            if (expression && !waiters.isEmpty()) {
+                signaled = waiters.toArray(new Waiter[waiters.size()]);
+                waiters.clear();
+                for (Waiter waiter : signaled) {
+                    waiter.signaled = true;
+                }
+            }
+        }
+        if (signaled != null) {
+            for (Waiter waiter : signaled) {
+                LockSupport.unpark(waiter.thread);
+            }
         }
     }
-    
+
     /**
      *@return the value of the condition associated with this variable
      */
     public boolean isTrue() {
         return condition;
     }
-    
+
     /**
      * Sets the condition associated with this variable to false
      */
@@ -189,29 +187,85 @@ public class ConditionVariable implements Condition {
      * @return the time in milliseconds spent waiting during the last await method call
      */
     public long getTimeWaited() {
-        return waitTime;
-    }
-
-    private long toMilliseconds(long time, TimeUnit timeUnit) {
-        long ret;
-        switch (timeUnit) {
-            case MICROSECONDS: ret = time / 1000;
-                break;
-            case MILLISECONDS: ret = time;
-                break;
-            case NANOSECONDS: ret = time / 1000000;
-                break;
-            case SECONDS: ret = time * 1000;
-                break;
-            case MINUTES: ret = time * 60000;
-                break;
-            case HOURS: ret = time * 3600000;
-                break;
-            case DAYS: ret = time * 86400000;
-                break;
-            default: ret = 0;
+        return TimeUnit.NANOSECONDS.toMillis(waitNanos);
+    }
+
+    /**
+     * @return the time in nanoseconds spent waiting during the last await method call
+     */
+    public long getNanosWaited() {
+        return waitNanos;
+    }
+
+    /**
+     * Waits, if the condition is false, until the calling thread is signaled, the given time elapses (if timed) or the
+     * thread is interrupted (if interruptible). A waiter that is interrupted after being signaled returns normally with its
+     * interrupt status set, so that the signal is not lost.
+     */
+    private void block(boolean timed, long nanos, boolean interruptible) throws InterruptedException {
+        long start = System.nanoTime();
+        waitNanos = 0;
+        if (condition) {
+            return;
+        }
+        Waiter waiter = new Waiter();
+        synchronized (waiters) {
+            if (condition) {
+                return;
+            }
+            waiters.addLast(waiter);
+        }
+        boolean interrupted = false;
+        long deadline = start + nanos;
+        int spins = SPINS;
+        try {
+            while (!waiter.signaled) {
+                long remaining = deadline - System.nanoTime();
+                if (timed && remaining <= 0) {
+                    break;
+                }
+                if (spins > 0) {
+                    spins--;
+                    Thread.onSpinWait();
+                }
+                else if (timed) {
+                    LockSupport.parkNanos(this, remaining);
+                }
+                else {
+                    LockSupport.park(this);
+                }
+                if (Thread.interrupted()) {
+                    interrupted = true;
+                    if (interruptible) {
+                        break;
+                    }
+                }
+            }
+        }
+        finally {
+            if (!waiter.signaled) {
+                synchronized (waiters) {
+                    waiters.remove(waiter);
+                }
+            }
+            waitNanos = System.nanoTime() - start;
+        }
+        if (interrupted) {
+            if (interruptible && !waiter.signaled) {
+                throw new InterruptedException("ConditionVariable: Interrupted while waiting");
+            }
+            Thread.currentThread().interrupt();
         }
-        return ret;
     }
-    
+
+    /**
+     * A thread waiting to be signaled
+     */
+    private static class Waiter {
+
+        final Thread thread = Thread.currentThread();
+        volatile boolean signaled = false;
+
+    }
+
 }
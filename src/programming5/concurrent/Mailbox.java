@@ -0,0 +1,334 @@
+/*
+ * Mailbox.java
+ *
+ * Copyright 2009 Andres Quiroz Hernandez
+ *
+ * This file is part of Programming5.
+ * Programming5 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Programming5 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Programming5.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package programming5.concurrent;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A Mailbox is a bounded queue for handing items from any number of producer threads to consumer threads, meant for the
+ * case of many producers and a single consumer. Items are kept in a circular array in which every slot carries a sequence
+ * number that tells producers and consumers whether it is free or full for their turn, so that putting and taking items
+ * only takes an atomic increment of a position and no locks (D. Vyukov's bounded queue). Consumers that find the mailbox
+ * empty park until a producer wakes them, and producers only wake consumers that are actually waiting.
+ * <p>When the mailbox is full, the put method applies the mailbox's overflow policy: dropping the new item, dropping the
+ * oldest item to make room, or blocking the producer until there is room. Dropped items are counted.
+ * @author Andres Quiroz Hernandez
+ * @version 6.19
+ */
+public class Mailbox<T> {
+
+    /**
+     * What put does when the mailbox is full
+     */
+    public enum OverflowPolicy {
+        /** The new item is dropped */
+        DROP_NEWEST,
+        /** The oldest items are dropped until the new item fits */
+        DROP_OLDEST,
+        /** The producer waits until there is room */
+        BLOCK
+    }
+
+    public static final int DEF_CAPACITY = 1024;
+
+    protected final OverflowPolicy policy;
+
+    private final AtomicReferenceArray<T> items;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong putPosition = new AtomicLong();
+    private final AtomicLong takePosition = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final ConcurrentLinkedQueue<Thread> waiters = new ConcurrentLinkedQueue<Thread>();
+
+    private static final long BLOCK_PARK_NANOS = 100000;
+
+    /**
+     * Creates a mailbox with the default capacity (1024 items) that drops new items when full
+     */
+    public Mailbox() {
+        this(DEF_CAPACITY, OverflowPolicy.DROP_NEWEST);
+    }
+
+    /**
+     * @param capacity the maximum number of items held, which is rounded up to a power of two
+     * @param myPolicy what to do when an item is put in the full mailbox
+     */
+    public Mailbox(int capacity, OverflowPolicy myPolicy) {
+        if (capacity <= 0 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Mailbox: Capacity must be between 1 and 2^30");
+        }
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        items = new AtomicReferenceArray<T>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+        policy = myPolicy;
+    }
+
+    /**
+     * Puts an item in the mailbox, applying the overflow policy if it is full
+     * @return true if the item was put in the mailbox; false if it was dropped (DROP_NEWEST policy) or the producer was
+     * interrupted while waiting for room (BLOCK policy, in which case the interrupt status is kept)
+     */
+    public boolean put(T item) {
+        while (!this.offer(item)) {
+            switch (policy) {
+                case DROP_OLDEST:
+                    if (this.poll() != null) {
+                        droppedCount.incrementAndGet();
+                    }
+                    break;
+                case BLOCK:
+                    LockSupport.parkNanos(this, BLOCK_PARK_NANOS);
+                    if (Thread.currentThread().isInterrupted()) {
+                        droppedCount.incrementAndGet();
+                        return false;
+                    }
+                    break;
+                default:
+                    droppedCount.incrementAndGet();
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Puts an item in the mailbox if there is room, regardless of the overflow policy
+     * @return true if the item was put in the mailbox
+     */
+    public boolean offer(T item) {
+        if (item == null) {
+            throw new NullPointerException("Mailbox: Items must not be null");
+        }
+        long position = putPosition.get();
+        while (true) {
+            int slot = (int) (position & mask);
+            long difference = sequences.get(slot) - position;
+            if (difference == 0) {
+                if (putPosition.compareAndSet(position, position + 1)) {
+                    items.set(slot, item);
+                    sequences.set(slot, position + 1);
+                    break;
+                }
+                position = putPosition.get();
+            }
+            else if (difference < 0) {
+                return false;
+            }
+            else {
+                position = putPosition.get();
+            }
+        }
+        Thread waiter = waiters.poll();
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+        return true;
+    }
+
+    /**
+     * @return the oldest item in the mailbox, or null if it is empty
+     */
+    public T poll() {
+        long position = takePosition.get();
+        while (true) {
+            int slot = (int) (position & mask);
+            long difference = sequences.get(slot) - (position + 1);
+            if (difference == 0) {
+                if (takePosition.compareAndSet(position, position + 1)) {
+                    T ret = items.getAndSet(slot, null);
+                    sequences.set(slot, position + mask + 1);
+                    return ret;
+                }
+                position = takePosition.get();
+            }
+            else if (difference < 0) {
+                return null;
+            }
+            else {
+                position = takePosition.get();
+            }
+        }
+    }
+
+    /**
+     * Waits for an item for up to the given time
+     * @return the oldest item in the mailbox, or null if the time elapsed with the mailbox empty
+     */
+    public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        T ret = this.poll();
+        while (ret == null) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            ret = this.await(remaining);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Waits for an item for as long as necessary
+     * @return the oldest item in the mailbox
+     */
+    public T take() throws InterruptedException {
+        T ret = this.poll();
+        while (ret == null) {
+            ret = this.await(0);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Waits for an item for as long as necessary, ignoring interrupts (the interrupt status is kept)
+     * @return the oldest item in the mailbox
+     */
+    public T takeUninterruptibly() {
+        boolean interrupted = false;
+        T ret = this.poll();
+        while (ret == null) {
+            ret = this.await(0);
+            interrupted |= Thread.interrupted();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return ret;
+    }
+
+    /**
+     * Moves up to the given number of items from the mailbox to the given collection, without waiting
+     * @return the number of items moved
+     */
+    public int drainTo(Collection<? super T> destination, int max) {
+        int ret = 0;
+        while (ret < max) {
+            T item = this.poll();
+            if (item == null) {
+                break;
+            }
+            destination.add(item);
+            ret++;
+        }
+        return ret;
+    }
+
+    /**
+     * Waits for up to the given time for at least one item, and then moves up to the given number of items from the mailbox
+     * to the given collection
+     * @return the number of items moved, which is 0 only if the time elapsed with the mailbox empty
+     */
+    public int drainTo(Collection<? super T> destination, int max, long timeout, TimeUnit unit) throws InterruptedException {
+        if (max <= 0) {
+            return 0;
+        }
+        T first = this.poll(timeout, unit);
+        if (first == null) {
+            return 0;
+        }
+        destination.add(first);
+        return 1 + this.drainTo(destination, max - 1);
+    }
+
+    /**
+     * @return the number of items in the mailbox, which may be outdated by the time it is returned
+     */
+    public int size() {
+        long size = putPosition.get() - takePosition.get();
+        return (int) Math.max(0, Math.min(size, mask + 1));
+    }
+
+    /**
+     * @return the maximum number of items held
+     */
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * @return the overflow policy applied by put
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return the number of items dropped by put since the creation of the mailbox
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Parks the current thread until a producer puts an item, the given time elapses (0 to wait indefinitely), or the thread
+     * is interrupted or spuriously woken up
+     * @return an item, or null if none was taken
+     */
+    private T await(long nanos) {
+        Thread current = Thread.currentThread();
+        waiters.add(current);
+        T ret = this.poll();
+        if (ret == null) {
+            if (nanos > 0) {
+                LockSupport.parkNanos(this, nanos);
+            }
+            else {
+                LockSupport.park(this);
+            }
+            ret = this.poll();
+        }
+        if (!waiters.remove(current)) {
+            // A producer chose this thread to wake up; if the wakeup was not used to take its item, pass it on
+            if (ret == null) {
+                ret = this.poll();
+            }
+            if (this.size() > 0) {
+                Thread next = waiters.poll();
+                if (next != null) {
+                    LockSupport.unpark(next);
+                }
+            }
+        }
+        return ret;
+    }
+
+}
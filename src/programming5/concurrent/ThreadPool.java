@@ -1,5 +1,5 @@
 /*
- * RequestVariable.java
+ * ThreadPool.java
  *
  * Copyright 2009 Andres Quiroz Hernandez
  *
@@ -21,17 +21,137 @@
 
 package programming5.concurrent;
 
+import programming5.io.Debug;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
- * Abstract class that defines utility methods for thread pool management
+ * A pool of named daemon threads with a bounded number of waiting tasks, on which the library runs its asynchronous work
+ * (event delivery, connection admission, remote calls) with a fixed footprint instead of a thread per task. The pool runs
+ * tasks in one of four modes: WORK_STEALING, where each thread has its own deque and idle threads take tasks from busy ones
+ * (suited to many short tasks, such as event deliveries); BOUNDED, where a fixed number of threads take tasks from a single
+ * queue in order (suited to tasks that may block); ELASTIC, where threads are started as tasks arrive, up to the given number,
+ * and reused while idle, and tasks never wait for a busy thread (suited to tasks that may block for as long as a connection
+ * lasts); and VIRTUAL, where each task runs in a new virtual thread, available only where the platform provides virtual
+ * threads. A task submitted while queueCapacity tasks are waiting to start (or, in ELASTIC mode, while every thread is busy)
+ * is handled according to the pool's rejection policy: ABORT throws a RejectedExecutionException, CALLER_RUNS runs the task in
+ * the submitting thread (which slows down submitters to the pool's pace), and DISCARD drops the task.
+ * <p>The pool reports the number of tasks waiting, running, completed and rejected. Runtime exceptions thrown by tasks run with
+ * execute are reported through Debug and do not end the pool's threads.
  * @author aquirozh
- * @version 6.0
+ * @version 6.19
  */
-public abstract class ThreadPool {
+public class ThreadPool extends AbstractExecutorService {
+
+    public static enum Mode {WORK_STEALING, BOUNDED, ELASTIC, VIRTUAL};
+    public static enum RejectionPolicy {ABORT, CALLER_RUNS, DISCARD};
+
+    public static final int DEF_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    public static final int DEF_QUEUE_CAPACITY = 8192;
+    public static final Mode DEF_MODE = Mode.WORK_STEALING;
+    public static final RejectionPolicy DEF_REJECTION_POLICY = RejectionPolicy.CALLER_RUNS;
+
+    protected final String name;
+    protected final Mode mode;
+    protected final int queueCapacity;
+    protected final RejectionPolicy rejectionPolicy;
+
+    private final ExecutorService pool;
+    private final AtomicInteger waitingCount = new AtomicInteger();
+    private final AtomicInteger activeCount = new AtomicInteger();
+    private final AtomicLong completedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    private static ThreadPool defaultPool = null;
+
+    /**
+     * Creates a work stealing pool with the default number of threads (the number of available processors, at least 2),
+     * queue capacity and rejection policy
+     * @param name the prefix of the names of the pool's threads
+     */
+    public ThreadPool(String name) {
+        this(name, DEF_THREADS, DEF_QUEUE_CAPACITY, DEF_MODE, DEF_REJECTION_POLICY);
+    }
+
+    /**
+     * Creates a pool with the default queue capacity and rejection policy
+     * @param name the prefix of the names of the pool's threads
+     * @param threads the number of threads of the pool (ignored in VIRTUAL mode)
+     * @param mode the way in which tasks are run
+     */
+    public ThreadPool(String name, int threads, Mode mode) {
+        this(name, threads, DEF_QUEUE_CAPACITY, mode, DEF_REJECTION_POLICY);
+    }
 
     /**
-     * Creates a new thread with the given Runnable instance. If there is not enough memory to create the thread, 
+     * @param name the prefix of the names of the pool's threads
+     * @param threads the number of threads of the pool (ignored in VIRTUAL mode)
+     * @param queueCapacity the maximum number of tasks waiting to start (in ELASTIC mode, tasks only wait for their thread to start)
+     * @param mode the way in which tasks are run
+     * @param rejectionPolicy what happens to a task submitted when queueCapacity tasks are waiting
+     * @throws UnsupportedOperationException if the mode is VIRTUAL and the platform does not support virtual threads
+     */
+    public ThreadPool(String name, int threads, int queueCapacity, Mode mode, RejectionPolicy rejectionPolicy) {
+        if (name == null || mode == null || rejectionPolicy == null) {
+            throw new IllegalArgumentException("ThreadPool: Name, mode and rejection policy must not be null");
+        }
+        if (threads <= 0 || queueCapacity <= 0) {
+            throw new IllegalArgumentException("ThreadPool: Number of threads and queue capacity must be positive");
+        }
+        this.name = name;
+        this.mode = mode;
+        this.queueCapacity = queueCapacity;
+        this.rejectionPolicy = rejectionPolicy;
+        switch (mode) {
+            case WORK_STEALING: pool = newWorkStealingPool(name, threads);
+                break;
+            case BOUNDED: pool = newBoundedPool(name, threads);
+                break;
+            case ELASTIC: pool = newElasticPool(name, threads);
+                break;
+            default: pool = newVirtualThreadPool(name);
+        }
+    }
+
+    /**
+     * @return the pool shared by the library's components that have not been given an executor for short, non-blocking tasks:
+     * a work stealing pool of DEF_THREADS threads named programming5-pool-n, which runs tasks in the caller when
+     * DEF_QUEUE_CAPACITY tasks are waiting. This pool should not be shut down.
+     * <p>Tasks that may block have bounded pools of their own, shared by all the components of a kind, so that blocked tasks
+     * cannot starve the short ones of this pool or those of a different kind: subscriber deliveries (programming5-dispatch,
+     * see programming5.net.EventDispatcher.getDefaultExecutor), remote calls (programming5-rpc), the creation of clients for
+     * accepted connections (programming5-accept), service objects, which may serve a connection for its whole life
+     * (programming5-service, ELASTIC), and blocking socket writers (programming5-writer, ELASTIC). Timeouts run on a shared
+     * timing wheel (see TimingWheel.getDefault).
+     */
+    public static synchronized ThreadPool getDefault() {
+        if (defaultPool == null) {
+            defaultPool = new ThreadPool("programming5-pool");
+        }
+        return defaultPool;
+    }
+
+    /**
+     * Creates a new thread with the given Runnable instance. If there is not enough memory to create the thread,
      * will invoke garbage collection and keep trying until the thread can be created.
+     * @deprecated Tasks should be run on a pool, such as the default pool (see getDefault), which does not create a thread
+     * per task
      */
+    @Deprecated
     public static Thread memSafeThreadStart(Runnable threadObject) {
         boolean success = false;
         Thread ret = null;
@@ -50,4 +170,223 @@ public abstract class ThreadPool {
         return ret;
     }
 
+    /**
+     * Runs the given task on the pool, or applies the rejection policy if queueCapacity tasks are waiting to start
+     * @throws RejectedExecutionException if the task is rejected with the ABORT policy, or the pool has been shut down
+     */
+    @Override
+    public void execute(Runnable task) {
+        if (task == null) {
+            throw new NullPointerException("ThreadPool: Task must not be null");
+        }
+        if (waitingCount.incrementAndGet() > queueCapacity) {
+            waitingCount.decrementAndGet();
+            this.reject(task, queueCapacity + " tasks waiting");
+            return;
+        }
+        try {
+            pool.execute(new PooledTask(task));
+        }
+        catch (RejectedExecutionException ree) {
+            // The pool was shut down or, in ELASTIC mode, all its threads are busy
+            waitingCount.decrementAndGet();
+            this.reject(task, "all threads busy");
+        }
+    }
+
+    /**
+     * @return the number of tasks waiting to start
+     */
+    public int getQueueDepth() {
+        return waitingCount.get();
+    }
+
+    /**
+     * @return the number of tasks running on the pool's threads
+     */
+    public int getActiveCount() {
+        return activeCount.get();
+    }
+
+    /**
+     * @return the number of tasks that have run on the pool's threads, normally or with an exception
+     */
+    public long getCompletedCount() {
+        return completedCount.get();
+    }
+
+    /**
+     * @return the number of tasks submitted with queueCapacity tasks waiting or, in ELASTIC mode, with every thread busy
+     * (whether run in the caller, discarded or refused), or after the pool was shut down
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * @return the number of threads currently in the pool; in VIRTUAL mode, the number of tasks running
+     */
+    public int getPoolSize() {
+        switch (mode) {
+            case WORK_STEALING: return ((ForkJoinPool) pool).getPoolSize();
+            case BOUNDED:
+            case ELASTIC: return ((ThreadPoolExecutor) pool).getPoolSize();
+            default: return activeCount.get();
+        }
+    }
+
+    /**
+     * @return the way in which the pool runs tasks
+     */
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return the maximum number of tasks waiting to start
+     */
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * @return what happens to tasks submitted when queueCapacity tasks are waiting
+     */
+    public RejectionPolicy getRejectionPolicy() {
+        return rejectionPolicy;
+    }
+
+    @Override
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * @return the tasks that were waiting to start, which will not be run
+     */
+    @Override
+    public List<Runnable> shutdownNow() {
+        List<Runnable> ret = new ArrayList<Runnable>();
+        for (Runnable waiting : pool.shutdownNow()) {
+            ret.add((waiting instanceof PooledTask) ? ((PooledTask) waiting).task : waiting);
+        }
+        return ret;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return pool.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return pool.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return pool.awaitTermination(timeout, unit);
+    }
+
+    private void reject(Runnable task, String reason) {
+        rejectedCount.incrementAndGet();
+        if (pool.isShutdown()) {
+            throw new RejectedExecutionException("ThreadPool: Pool " + name + " has been shut down");
+        }
+        switch (rejectionPolicy) {
+            case ABORT: throw new RejectedExecutionException("ThreadPool: Pool " + name + " has " + reason);
+            case CALLER_RUNS: task.run();
+                break;
+            case DISCARD: Debug.println("ThreadPool: Discarded task: Pool " + name + " has " + reason, "programming5.concurrent.ThreadPool");
+                break;
+        }
+    }
+
+    private static ExecutorService newWorkStealingPool(final String name, int threads) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        return new ForkJoinPool(threads, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                ForkJoinWorkerThread t = new ForkJoinWorkerThread(pool) {};
+                t.setName(name + "-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        }, null, true);
+    }
+
+    private static ExecutorService newBoundedPool(final String name, int threads) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        ThreadPoolExecutor ret = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + "-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        ret.allowCoreThreadTimeOut(true);
+        return ret;
+    }
+
+    /**
+     * Hands each task to an idle thread or starts a new one, up to the given number of threads, which end after a minute idle
+     */
+    private static ExecutorService newElasticPool(final String name, int threads) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        return new ThreadPoolExecutor(0, threads, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + "-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Looks up the virtual thread builder by reflection, so that the library still runs on platforms without virtual threads
+     */
+    private static ExecutorService newVirtualThreadPool(String name) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 1L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+        }
+        catch (Exception e) {
+            throw new UnsupportedOperationException("ThreadPool: Virtual threads not supported by this platform");
+        }
+    }
+
+    /**
+     * Keeps the counts of waiting and running tasks
+     */
+    private class PooledTask implements Runnable {
+
+        final Runnable task;
+
+        PooledTask(Runnable myTask) {
+            task = myTask;
+        }
+
+        @Override
+        public void run() {
+            waitingCount.decrementAndGet();
+            activeCount.incrementAndGet();
+            try {
+                task.run();
+            }
+            catch (RuntimeException re) {
+                Debug.printStackTrace(re, "programming5.concurrent.ThreadPool");
+            }
+            finally {
+                activeCount.decrementAndGet();
+                completedCount.incrementAndGet();
+            }
+        }
+
+    }
+
 }
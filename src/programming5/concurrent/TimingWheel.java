@@ -0,0 +1,380 @@
+/*
+ * TimingWheel.java
+ *
+ * Copyright 2009 Andres Quiroz Hernandez
+ *
+ * This file is part of Programming5.
+ * Programming5 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Programming5 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Programming5.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package programming5.concurrent;
+
+import programming5.io.Debug;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A TimingWheel runs tasks after a delay, for uses with very large numbers of timeouts that are usually cancelled before
+ * they expire (such as retransmissions that are cancelled by acknowledgements). Time is divided into ticks of a fixed
+ * duration, and each scheduled task is placed in the slot of a circular array (the wheel) that corresponds to its expiration
+ * tick, along with the number of turns of the wheel left before it expires. Scheduling and cancelling a task take constant
+ * time, and each tick only visits the tasks of one slot, so the cost of a tick does not depend on the total number of tasks
+ * pending as long as the wheel is large enough for the usual delays.
+ * <p>Tasks expire with a precision of one tick, and are run on the wheel's thread unless an executor is given, so they
+ * should be short. The thread is a daemon thread started with the first task scheduled. Components that need timeouts with
+ * the default tick share a single wheel (see getDefault) instead of starting a thread each.
+ * @author Andres Quiroz Hernandez
+ * @version 6.19
+ */
+public class TimingWheel {
+
+    public static final long DEF_TICK = 10;
+    public static final int DEF_WHEEL_SIZE = 512;
+
+    protected final long tickNanos;
+    protected final Executor executor;
+
+    private final Slot[] wheel;
+    private final int mask;
+    private final ConcurrentLinkedQueue<Timeout> additions = new ConcurrentLinkedQueue<Timeout>();
+    private final ConcurrentLinkedQueue<Timeout> cancellations = new ConcurrentLinkedQueue<Timeout>();
+    private final AtomicLong pendingCount = new AtomicLong();
+    private final AtomicInteger state = new AtomicInteger(CREATED);
+    private volatile long startTime;
+    private Thread worker = null;
+    private long tick = 0;
+
+    private static final int CREATED = 0;
+    private static final int STARTED = 1;
+    private static final int STOPPED = 2;
+    private static final int MAX_TRANSFERS = 100000;
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private static TimingWheel defaultWheel = null;
+
+    /**
+     * Creates a wheel with the default tick duration (10 msec) and number of slots (512), which runs tasks on its own thread
+     */
+    public TimingWheel() {
+        this(DEF_TICK, DEF_WHEEL_SIZE, null);
+    }
+
+    /**
+     * Creates a wheel that runs tasks on its own thread
+     * @param tickMillis the duration of a tick
+     * @param wheelSize the number of slots, which is rounded up to a power of two
+     */
+    public TimingWheel(long tickMillis, int wheelSize) {
+        this(tickMillis, wheelSize, null);
+    }
+
+    /**
+     * @param tickMillis the duration of a tick
+     * @param wheelSize the number of slots, which is rounded up to a power of two
+     * @param myExecutor the executor on which expired tasks are run, or null to run them on the wheel's thread
+     */
+    public TimingWheel(long tickMillis, int wheelSize, Executor myExecutor) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("TimingWheel: Tick duration must be positive");
+        }
+        if (wheelSize <= 0 || wheelSize > (1 << 30)) {
+            throw new IllegalArgumentException("TimingWheel: Wheel size must be between 1 and 2^30");
+        }
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+        wheel = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Slot();
+        }
+        mask = size - 1;
+        tickNanos = tickMillis * 1000000;
+        executor = myExecutor;
+    }
+
+    /**
+     * @return the wheel shared by the library's components, with the default tick duration and number of slots, which runs
+     * tasks on its own thread. Since the wheel outlives the components that schedule tasks on it, their tasks must check
+     * whether the component is still open when they expire. This wheel should not be stopped.
+     */
+    public static synchronized TimingWheel getDefault() {
+        if (defaultWheel == null) {
+            defaultWheel = new TimingWheel();
+        }
+        return defaultWheel;
+    }
+
+    /**
+     * Schedules the given task to run once after the given delay
+     * @return the handle with which the task can be cancelled
+     * @throws IllegalStateException if the wheel has been stopped
+     */
+    public Timeout schedule(Runnable task, long delayMillis) {
+        this.start();
+        long deadline = System.nanoTime() - startTime + Math.max(0, delayMillis) * 1000000;
+        Timeout ret = new Timeout(task, deadline);
+        pendingCount.incrementAndGet();
+        additions.add(ret);
+        return ret;
+    }
+
+    /**
+     * Stops the wheel's thread; tasks that have not expired will not be run, and no more tasks can be scheduled
+     */
+    public void stop() {
+        if (state.getAndSet(STOPPED) == STARTED) {
+            synchronized (this) {
+                if (worker != null) {
+                    worker.interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of tasks scheduled that have not expired or been cancelled
+     */
+    public long getPendingCount() {
+        return pendingCount.get();
+    }
+
+    private void start() {
+        switch (state.get()) {
+            case CREATED:
+                synchronized (this) {
+                    // The start time is assigned before STARTED is published, since schedule reads it without the lock
+                    if (state.get() == CREATED) {
+                        startTime = System.nanoTime();
+                    }
+                    if (state.compareAndSet(CREATED, STARTED)) {
+                        worker = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                work();
+                            }
+                        }, "programming5-wheel-" + threadCount.incrementAndGet());
+                        worker.setDaemon(true);
+                        worker.start();
+                    }
+                }
+                if (state.get() == STOPPED) {
+                    throw new IllegalStateException("TimingWheel: Cannot schedule task: Wheel stopped");
+                }
+                break;
+            case STARTED:
+                break;
+            default:
+                throw new IllegalStateException("TimingWheel: Cannot schedule task: Wheel stopped");
+        }
+    }
+
+    private void work() {
+        while (state.get() == STARTED) {
+            if (this.waitForNextTick()) {
+                this.processCancellations();
+                this.transferAdditions();
+                wheel[(int) (tick & mask)].expire();
+                tick++;
+            }
+        }
+        Timeout timeout = additions.poll();
+        while (timeout != null) {
+            timeout.state.set(Timeout.CANCELLED);
+            timeout = additions.poll();
+        }
+    }
+
+    /**
+     * Sleeps until the end of the current tick
+     * @return false if the wheel was stopped while sleeping
+     */
+    private boolean waitForNextTick() {
+        long deadline = tickNanos * (tick + 1);
+        while (true) {
+            long current = System.nanoTime() - startTime;
+            long sleepMillis = (deadline - current + 999999) / 1000000;
+            if (sleepMillis <= 0) {
+                return true;
+            }
+            try {
+                Thread.sleep(sleepMillis);
+            }
+            catch (InterruptedException ie) {
+                if (state.get() == STOPPED) {
+                    return false;
+                }
+            }
+        }
+    }
+
+    private void processCancellations() {
+        Timeout timeout = cancellations.poll();
+        while (timeout != null) {
+            if (timeout.slot != null) {
+                timeout.slot.remove(timeout);
+            }
+            timeout = cancellations.poll();
+        }
+    }
+
+    private void transferAdditions() {
+        for (int i = 0; i < MAX_TRANSFERS; i++) {
+            Timeout timeout = additions.poll();
+            if (timeout == null) {
+                break;
+            }
+            if (timeout.state.get() == Timeout.PENDING) {
+                long expirationTick = timeout.deadline / tickNanos;
+                timeout.remainingRounds = (expirationTick - tick) / wheel.length;
+                long slotTick = Math.max(expirationTick, tick);
+                wheel[(int) (slotTick & mask)].add(timeout);
+            }
+        }
+    }
+
+    /**
+     * Handle for a task scheduled on a TimingWheel
+     */
+    public final class Timeout {
+
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        private long remainingRounds;
+        private Slot slot = null;
+        private Timeout next = null;
+        private Timeout prev = null;
+
+        private static final int PENDING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private Timeout(Runnable myTask, long myDeadline) {
+            task = myTask;
+            deadline = myDeadline;
+        }
+
+        /**
+         * Prevents the task from running, if it has not yet expired
+         * @return true if the task was cancelled by this call
+         */
+        public boolean cancel() {
+            if (state.compareAndSet(PENDING, CANCELLED)) {
+                pendingCount.decrementAndGet();
+                cancellations.add(this);
+                return true;
+            }
+            return false;
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+
+        private void expire() {
+            if (state.compareAndSet(PENDING, EXPIRED)) {
+                pendingCount.decrementAndGet();
+                if (executor != null) {
+                    try {
+                        executor.execute(task);
+                    }
+                    catch (RejectedExecutionException ree) {
+                        Debug.printStackTrace(ree, "programming5.concurrent.TimingWheel");
+                    }
+                }
+                else {
+                    try {
+                        task.run();
+                    }
+                    catch (RuntimeException re) {
+                        Debug.printStackTrace(re, "programming5.concurrent.TimingWheel");
+                    }
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Doubly linked list of the timeouts of one slot, only accessed by the wheel's thread
+     */
+    private static final class Slot {
+
+        private Timeout head = null;
+        private Timeout tail = null;
+
+        void add(Timeout timeout) {
+            timeout.slot = this;
+            if (head == null) {
+                head = tail = timeout;
+            }
+            else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.prev != null) {
+                timeout.prev.next = timeout.next;
+            }
+            else {
+                head = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            }
+            else {
+                tail = timeout.prev;
+            }
+            timeout.slot = null;
+            timeout.next = null;
+            timeout.prev = null;
+        }
+
+        /**
+         * Runs the timeouts of the slot that are due in the current turn of the wheel
+         */
+        void expire() {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.remainingRounds <= 0) {
+                    this.remove(timeout);
+                    timeout.expire();
+                }
+                else if (timeout.isCancelled()) {
+                    this.remove(timeout);
+                }
+                else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+
+    }
+
+}
@@ -25,6 +25,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.NotSerializableException;
+import java.io.ObjectInputFilter;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
@@ -84,6 +85,19 @@ public class Serializer {
         return r;
     }
     
+    /**
+     *@return the object represented by the byte array, if the given filter accepts every class and every limit (depth, 
+     *references, array lengths) in its serialization
+     *@throws java.io.InvalidClassException if the filter rejects the serialization
+     *@see java.io.ObjectInputFilter.Config#createFilter
+     */
+    public static Object deserialize(byte[] objBytes, ObjectInputFilter filter) throws IOException, ClassNotFoundException {
+        ByteArrayInputStream in = new ByteArrayInputStream(objBytes);
+        ObjectInputStream objIn = new ObjectInputStream(in);
+        objIn.setObjectInputFilter(filter);
+        return objIn.readObject();
+    }
+    
     /**
      *@return the object represented by the given string
      */
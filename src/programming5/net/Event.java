@@ -70,6 +70,8 @@ public class Event extends Message {
         try {
             ret = eventClass.newInstance();
             ret.body = eventObject.body;
+            ret.types = eventObject.types;
+            ret.source = eventObject.source;
             if (!ret.assertFormat()) {
                 throw new ClassCastException("Event: Cannot cast to given event type: Incorrect event format");
             }
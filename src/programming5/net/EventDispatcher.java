@@ -0,0 +1,362 @@
+/*
+ * EventDispatcher.java
+ *
+ * Copyright 2004 Andres Quiroz Hernandez
+ *
+ * This file is part of Programming5.
+ * Programming5 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Programming5 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Programming5.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package programming5.net;
+
+import programming5.concurrent.ThreadPool;
+import programming5.io.Debug;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ *Delivers events published by a Publisher to its subscribers through a pluggable executor. Each subscriber is given
+ *its own queue, which is drained by at most one task at a time, so that events are delivered to a subscriber
+ *in the order in which they were fired, and a slow subscriber does not delay or reorder deliveries to other subscribers.
+ *The executor can be a bounded pool, a virtual thread executor (where available), or the caller thread (see
+ *callerThreadExecutor). Queues are unbounded by default, since the events fired by the library's clients include
+ *messages that have already been acknowledged to their senders and responses that callers wait for. A dispatcher can be
+ *given a queue capacity, in which case the configured overflow policy determines what happens to an event dispatched
+ *to a subscriber whose queue is full. Subscribers are never signaled in the firing thread unless the executor runs tasks there: if the executor
+ *rejects the task that drains a subscriber's queue, the queued events are discarded and counted as dropped.
+ *@see Publisher
+ *@author Andres Quiroz Hernandez
+ *@version 6.19
+ */
+public class EventDispatcher<E extends programming5.net.Event> {
+
+    /**
+     *Action taken when an event is dispatched to a subscriber whose queue is full: BLOCK waits in the firing thread
+     *until there is room; DROP_NEWEST discards the new event; DROP_OLDEST discards the oldest queued event to make
+     *room. Events are only discarded by a policy chosen explicitly: the default policy (BLOCK) never loses events, and
+     *with the default (unbounded) capacity it never blocks the firing thread either. Discarded events are counted (see
+     *getDropCount).
+     */
+    public static enum OverflowPolicy {BLOCK, DROP_NEWEST, DROP_OLDEST};
+
+    public static final int DEF_QUEUE_CAPACITY = Integer.MAX_VALUE;
+    public static final OverflowPolicy DEF_OVERFLOW_POLICY = OverflowPolicy.BLOCK;
+    public static final int DEF_DISPATCH_THREADS = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+    protected static final int DRAIN_BATCH = 64;
+
+    /**
+     *Marks, in the thread that is draining a queue, that the queue's resubmission was run synchronously by the executor
+     */
+    private static final ThreadLocal<Object> resubmission = new ThreadLocal<Object>();
+    private static final Object RUN_INLINE = new Object();
+
+    protected final Executor executor;
+    protected final int queueCapacity;
+    protected final OverflowPolicy overflowPolicy;
+
+    private final Map<Subscriber<E>, SubscriberQueue> queues = new ConcurrentHashMap<Subscriber<E>, SubscriberQueue>();
+    private final AtomicLong dropCount = new AtomicLong();
+
+    private static Executor defaultExecutor = null;
+
+    /**
+     *Creates a dispatcher that uses the shared default executor, with unbounded subscriber queues
+     */
+    public EventDispatcher() {
+        this(getDefaultExecutor(), DEF_QUEUE_CAPACITY, DEF_OVERFLOW_POLICY);
+    }
+
+    /**
+     *Creates a dispatcher that uses the given executor, with unbounded subscriber queues
+     */
+    public EventDispatcher(Executor executor) {
+        this(executor, DEF_QUEUE_CAPACITY, DEF_OVERFLOW_POLICY);
+    }
+
+    /**
+     *@param executor the executor on which subscriber queues are drained
+     *@param queueCapacity the maximum number of undelivered events kept for each subscriber (DEF_QUEUE_CAPACITY for no limit)
+     *@param overflowPolicy the action taken when a subscriber's queue is full
+     */
+    public EventDispatcher(Executor executor, int queueCapacity, OverflowPolicy overflowPolicy) {
+        if (executor == null || overflowPolicy == null) {
+            throw new IllegalArgumentException("EventDispatcher: Executor and overflow policy must not be null");
+        }
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("EventDispatcher: Queue capacity must be positive");
+        }
+        this.executor = executor;
+        this.queueCapacity = queueCapacity;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     *@return an executor that runs tasks in the calling thread, which makes asynchronous dispatch equivalent to
+     *synchronous delivery (preserving per subscriber order)
+     */
+    public static Executor callerThreadExecutor() {
+        return new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                task.run();
+            }
+        };
+    }
+
+    /**
+     *@return the executor shared by all dispatchers created without an explicit executor: a fixed pool of DEF_DISPATCH_THREADS
+     *daemon threads named programming5-dispatch-n, so that a subscriber that blocks holds one of its threads but cannot
+     *starve the library's work stealing pool. Since each subscriber queue is drained by at most one task at a time, the pool
+     *sets no limit on waiting tasks, and only rejects tasks if it is shut down.
+     */
+    public static synchronized Executor getDefaultExecutor() {
+        if (defaultExecutor == null) {
+            defaultExecutor = new ThreadPool("programming5-dispatch", DEF_DISPATCH_THREADS, Integer.MAX_VALUE, ThreadPool.Mode.BOUNDED, ThreadPool.RejectionPolicy.ABORT);
+        }
+        return defaultExecutor;
+    }
+
+    /**
+     *Queues the given event for delivery to the given subscriber, applying the overflow policy if the subscriber's
+     *queue is full
+     *@return true if a queue was created for the subscriber, which had none (because it had not been dispatched an event 
+     *before, or because it was released); the caller can then release the subscriber again if it is no longer subscribed
+     */
+    public boolean dispatch(Subscriber<E> subscriber, E event) {
+        boolean created = false;
+        SubscriberQueue queue = queues.get(subscriber);
+        if (queue == null) {
+            SubscriberQueue newQueue = new SubscriberQueue(subscriber);
+            queue = queues.putIfAbsent(subscriber, newQueue);
+            if (queue == null) {
+                queue = newQueue;
+                created = true;
+            }
+        }
+        queue.offer(event);
+        return created;
+    }
+
+    /**
+     *Discards the queue kept for the given subscriber, along with any events not yet delivered to it
+     */
+    public void release(Subscriber<E> subscriber) {
+        SubscriberQueue queue = queues.remove(subscriber);
+        if (queue != null) {
+            queue.clear();
+        }
+    }
+
+    /**
+     *Discards the queues of all subscribers
+     */
+    public void releaseAll() {
+        for (Subscriber<E> subscriber : queues.keySet()) {
+            release(subscriber);
+        }
+    }
+
+    /**
+     *@return the number of events waiting to be delivered to the given subscriber
+     */
+    public int getQueueDepth(Subscriber<E> subscriber) {
+        SubscriberQueue queue = queues.get(subscriber);
+        return (queue != null) ? queue.size() : 0;
+    }
+
+    /**
+     *@return the number of events discarded by the DROP_NEWEST and DROP_OLDEST overflow policies, or because the executor
+     *rejected their delivery
+     */
+    public long getDropCount() {
+        return dropCount.get();
+    }
+
+    /**
+     *@return the overflow policy of this dispatcher
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     *@return the maximum number of undelivered events kept for each subscriber
+     */
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    private void deliver(Subscriber<E> subscriber, E event) {
+        try {
+            subscriber.signalEvent(event);
+        }
+        catch (RuntimeException re) {
+            Debug.printStackTrace(re, "programming5.net.EventDispatcher");
+        }
+    }
+
+    private class SubscriberQueue implements Runnable {
+
+        final Subscriber<E> subscriber;
+        final ArrayDeque<E> events = new ArrayDeque<E>();
+        final ReentrantLock lock = new ReentrantLock();
+        final Condition notFull = lock.newCondition();
+        boolean scheduled = false;
+        boolean released = false;
+
+        SubscriberQueue(Subscriber<E> mySubscriber) {
+            subscriber = mySubscriber;
+        }
+
+        void offer(E event) {
+            boolean schedule = false;
+            lock.lock();
+            try {
+                while (events.size() >= queueCapacity && !released) {
+                    switch (overflowPolicy) {
+                        case BLOCK: notFull.awaitUninterruptibly();
+                            break;
+                        case DROP_NEWEST: dropCount.incrementAndGet();
+                            return;
+                        case DROP_OLDEST: events.pollFirst();
+                            dropCount.incrementAndGet();
+                            break;
+                    }
+                }
+                if (released) {
+                    return;
+                }
+                events.addLast(event);
+                if (!scheduled) {
+                    scheduled = true;
+                    schedule = true;
+                }
+            }
+            finally {
+                lock.unlock();
+            }
+            if (schedule) {
+                try {
+                    executor.execute(this);
+                }
+                catch (RejectedExecutionException ree) {
+                    Debug.println("EventDispatcher: Executor rejected delivery task; discarding queued events", "programming5.net.EventDispatcher");
+                    this.discard();
+                }
+            }
+        }
+
+        int size() {
+            lock.lock();
+            try {
+                return events.size();
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         *Drops the queued events of a queue whose drain task was rejected, so that the next event schedules it again
+         */
+        void discard() {
+            lock.lock();
+            try {
+                dropCount.addAndGet(events.size());
+                events.clear();
+                scheduled = false;
+                notFull.signalAll();
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        void clear() {
+            lock.lock();
+            try {
+                released = true;
+                events.clear();
+                notFull.signalAll();
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         *Delivers up to DRAIN_BATCH events at a time, resubmitting itself to the executor if more remain, so that a busy
+         *subscriber does not monopolize a pool thread. If the executor runs the resubmission in this same thread (as the
+         *caller thread executor does) or rejects it, draining continues in this loop instead of nesting calls.
+         */
+        @Override
+        public void run() {
+            if (resubmission.get() == this) {
+                resubmission.set(RUN_INLINE);
+                return;
+            }
+            boolean more = true;
+            while (more) {
+                if (!this.drainBatch()) {
+                    return;
+                }
+                resubmission.set(this);
+                try {
+                    executor.execute(this);
+                    more = (resubmission.get() == RUN_INLINE);
+                }
+                catch (RejectedExecutionException ree) {
+                    more = true;
+                }
+                finally {
+                    resubmission.remove();
+                }
+            }
+        }
+
+        /**
+         *@return true if events remain in the queue after delivering DRAIN_BATCH events; false if the queue was emptied,
+         *in which case the queue is no longer scheduled
+         */
+        private boolean drainBatch() {
+            for (int delivered = 0; delivered < DRAIN_BATCH; delivered++) {
+                E next;
+                lock.lock();
+                try {
+                    next = events.pollFirst();
+                    if (next == null) {
+                        scheduled = false;
+                        return false;
+                    }
+                    notFull.signal();
+                }
+                finally {
+                    lock.unlock();
+                }
+                deliver(subscriber, next);
+            }
+            return true;
+        }
+
+    }
+
+}
@@ -0,0 +1,233 @@
+/*
+ * FlowPublisher.java
+ *
+ * Copyright 2004 Andres Quiroz Hernandez
+ *
+ * This file is part of Programming5.
+ * Programming5 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Programming5 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Programming5.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package programming5.net;
+
+import programming5.concurrent.Mailbox;
+
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *This class exposes an event publisher (e.g. a MessagingClient) as a reactive streams publisher (java.util.concurrent.Flow),
+ *so that its events can be consumed with demand signalling. Each Flow subscriber is registered as a listener of the source
+ *publisher with its own bounded buffer, from which events are passed to it only as it requests them. When an event arrives
+ *with the buffer full, the overflow policy applies: DROP_OLDEST (the default) discards the oldest buffered event,
+ *DROP_NEWEST discards the new event, and BLOCK makes the thread delivering the event wait until the subscriber requests
+ *more. The events dropped for a subscriber are counted by its subscription (see FlowSubscription.getDroppedCount).
+ *<p>BLOCK does not by itself hold up the thread that fires events (e.g. the receiving thread of a client): with the
+ *asynchronous delivery of Publisher, the waiting thread is one of the source dispatcher's threads (shared by default with
+ *every other publisher), and further events accumulate in the subscriber's dispatcher queue. For back pressure to reach the
+ *source, it must deliver events through a dispatcher of its own that blocks, e.g. one that runs deliveries in the firing
+ *thread (see EventDispatcher.callerThreadExecutor), or one with a bounded queue and the BLOCK overflow policy.
+ *<p>Events are passed to each subscriber serially, in the order in which they were delivered to its buffer, from either the
+ *thread delivering the event or the thread requesting it. The flow completes after the buffered events when the source
+ *announces that it has no more events or terminates its subscriptions (e.g. when a client's connection ends). Cancelled and
+ *completed subscriptions ignore further events, and are removed from the source's listeners on the dispatcher's default
+ *executor, since they may end within a delivery made while the source holds a lock on its listeners (not the case for
+ *Publisher, but possible for other IPublisher implementations).
+ *@see programming5.concurrent.Mailbox
+ *@see programming5.net.FlowPullSource
+ *@author Andres Quiroz Hernandez
+ *@version 6.19
+ */
+public class FlowPublisher<E extends programming5.net.Event> implements Flow.Publisher<E> {
+
+    public static final int DEF_CAPACITY = 256;
+    public static final Mailbox.OverflowPolicy DEF_POLICY = Mailbox.OverflowPolicy.DROP_OLDEST;
+
+    protected final IPublisher<E> source;
+    protected final int capacity;
+    protected final Mailbox.OverflowPolicy policy;
+
+    /**
+     *Creates a publisher of the events of the given source, with buffers of the default capacity (256 events) that drop
+     *their oldest events when full
+     */
+    public FlowPublisher(IPublisher<E> mySource) {
+        this(mySource, DEF_CAPACITY, DEF_POLICY);
+    }
+
+    /**
+     *@param mySource the publisher whose events will be passed to subscribers
+     *@param bufferCapacity the number of events buffered for each subscriber, rounded up to a power of two
+     *@param overflowPolicy what happens to an event that arrives with a subscriber's buffer full
+     */
+    public FlowPublisher(IPublisher<E> mySource, int bufferCapacity, Mailbox.OverflowPolicy overflowPolicy) {
+        source = mySource;
+        capacity = bufferCapacity;
+        policy = overflowPolicy;
+    }
+
+    /**
+     *Implementation of the Flow.Publisher interface: registers the subscriber with the source, after passing it its
+     *subscription. Events published before the first request are buffered.
+     */
+    @Override
+    public void subscribe(Flow.Subscriber<? super E> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("FlowPublisher: Subscriber must not be null");
+        }
+        FlowSubscription subscription = new FlowSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+        if (!subscription.cancelled) {
+            source.addListener(subscription);
+            if (subscription.cancelled) {
+                subscription.detach();
+            }
+        }
+    }
+
+    /**
+     *The subscription of a Flow subscriber, which is also its listener on the source publisher. Subscribers can cast the 
+     *subscription passed to onSubscribe to this class to read the number of events dropped for them.
+     */
+    public class FlowSubscription implements Flow.Subscription, TerminationAwareSubscriber<E> {
+
+        final Flow.Subscriber<? super E> subscriber;
+        final Mailbox<E> buffer = new Mailbox<E>(capacity, policy);
+        final AtomicLong requested = new AtomicLong();
+        final AtomicInteger pending = new AtomicInteger();
+        volatile boolean cancelled = false;
+        volatile boolean done = false;
+        volatile Throwable error = null;
+
+        FlowSubscription(Flow.Subscriber<? super E> mySubscriber) {
+            subscriber = mySubscriber;
+        }
+
+        /**
+         *@return the number of events that arrived with the buffer full and were dropped
+         */
+        public long getDroppedCount() {
+            return buffer.getDroppedCount();
+        }
+
+        /**
+         *Implementation of the Flow.Subscription interface. A non-positive request cancels the subscription and is signalled
+         *to the subscriber as an error.
+         */
+        @Override
+        public void request(long n) {
+            if (cancelled) {
+                return;
+            }
+            if (n <= 0) {
+                error = new IllegalArgumentException("FlowPublisher: Non-positive request: " + n);
+                this.cancel();
+                return;
+            }
+            long current, next;
+            do {
+                current = requested.get();
+                next = current + n;
+                if (next < 0) {
+                    next = Long.MAX_VALUE;
+                }
+            } while (!requested.compareAndSet(current, next));
+            this.drain();
+        }
+
+        @Override
+        public void cancel() {
+            if (!cancelled) {
+                cancelled = true;
+                this.detach();
+                this.drain();
+            }
+        }
+
+        @Override
+        public <T extends E> void signalEvent(T event) {
+            if (!cancelled && !done) {
+                buffer.put(event);
+                this.drain();
+            }
+        }
+
+        @Override
+        public void noMoreEvents() {
+            done = true;
+            this.drain();
+        }
+
+        @Override
+        public void subscriptionTerminated() {
+            done = true;
+            this.drain();
+        }
+
+        /**
+         *Passes buffered events to the subscriber while it has demand, and completes the flow once the source is done and the
+         *buffer is empty. Only one thread drains at a time; a thread that finds another draining leaves it to check again.
+         */
+        private void drain() {
+            if (pending.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            do {
+                if (cancelled) {
+                    while (buffer.poll() != null);
+                    Throwable failure = error;
+                    if (failure != null) {
+                        error = null;
+                        subscriber.onError(failure);
+                    }
+                }
+                else {
+                    long demand = requested.get();
+                    long emitted = 0;
+                    while (emitted < demand && !cancelled) {
+                        E event = buffer.poll();
+                        if (event == null) {
+                            break;
+                        }
+                        subscriber.onNext(event);
+                        emitted++;
+                    }
+                    if (emitted > 0 && demand != Long.MAX_VALUE) {
+                        requested.addAndGet(-emitted);
+                    }
+                    if (!cancelled && done && buffer.size() == 0) {
+                        cancelled = true;
+                        this.detach();
+                        subscriber.onComplete();
+                    }
+                }
+                missed = pending.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        void detach() {
+            final FlowSubscription subscription = this;
+            EventDispatcher.getDefaultExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    source.removeListener(subscription);
+                }
+            });
+        }
+
+    }
+
+}
@@ -0,0 +1,191 @@
+/*
+ * FlowPullSource.java
+ *
+ * Copyright 2004 Andres Quiroz Hernandez
+ *
+ * This file is part of Programming5.
+ * Programming5 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Programming5 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Programming5.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package programming5.net;
+
+import programming5.concurrent.Mailbox;
+
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *This class subscribes to a reactive streams publisher (java.util.concurrent.Flow) and holds the items it publishes in a
+ *bounded buffer, from which they are pulled with the generateEvent methods. With the BLOCK policy (the default), items are
+ *requested only as there is room for them in the buffer, so a slow consumer holds back the publisher instead of blocking its
+ *thread: the capacity of the buffer is requested when subscribing, and consumed items are requested again in batches of
+ *half the capacity. With the DROP_NEWEST and DROP_OLDEST policies, all items are requested at once, and when the buffer is
+ *full the new item or the oldest buffered item is dropped, which suits consumers that only care about recent items.
+ *<p>Once the publisher completes or fails, the generate methods return the remaining buffered items and then null.
+ *@see programming5.concurrent.Mailbox
+ *@see programming5.net.FlowPublisher
+ *@author Andres Quiroz Hernandez
+ *@version 6.19
+ */
+public class FlowPullSource<E extends programming5.net.Event> implements IPullSource<E>, Flow.Subscriber<E> {
+
+    public static final int DEF_CAPACITY = 256;
+    public static final Mailbox.OverflowPolicy DEF_POLICY = Mailbox.OverflowPolicy.BLOCK;
+
+    protected final Mailbox<Object> buffer;
+    protected final Mailbox.OverflowPolicy policy;
+
+    private final int batch;
+    private final AtomicInteger consumed = new AtomicInteger();
+    private volatile Flow.Subscription subscription = null;
+    private volatile boolean done = false;
+    private volatile boolean exhausted = false;
+    private volatile Throwable error = null;
+
+    private static final Object END = new Object();
+
+    /**
+     *Subscribes to the given publisher with a buffer of the default capacity (256 items), requesting items only as there is
+     *room for them
+     */
+    public FlowPullSource(Flow.Publisher<? extends E> publisher) {
+        this(publisher, DEF_CAPACITY, DEF_POLICY);
+    }
+
+    /**
+     *@param publisher the publisher to subscribe to
+     *@param capacity the number of items buffered, rounded up to a power of two
+     *@param overflowPolicy BLOCK to request items only as there is room for them; DROP_NEWEST or DROP_OLDEST to request all
+     *items and drop new or old items when the buffer is full
+     */
+    public FlowPullSource(Flow.Publisher<? extends E> publisher, int capacity, Mailbox.OverflowPolicy overflowPolicy) {
+        policy = overflowPolicy;
+        // With demand signalling the buffer never fills unless the publisher sends more than requested, which is dropped
+        buffer = new Mailbox<Object>(capacity, (policy == Mailbox.OverflowPolicy.BLOCK) ? Mailbox.OverflowPolicy.DROP_NEWEST : policy);
+        batch = Math.max(1, buffer.capacity() / 2);
+        publisher.subscribe(this);
+    }
+
+    /**
+     *Implementation of the IPullSource interface: waits for the next item (ignoring interrupts, which are kept)
+     *@return the next item, or null if the publisher has completed or failed and all buffered items have been returned
+     */
+    @Override
+    public E generateEvent() {
+        return this.next(buffer.takeUninterruptibly());
+    }
+
+    /**
+     *Waits for the next item for up to the given time
+     *@return the next item, or null if the time elapsed or the publisher has completed or failed and all buffered items have
+     *been returned (see isExhausted)
+     */
+    public E generateEvent(long timeout) throws InterruptedException {
+        Object item = buffer.poll(timeout, TimeUnit.MILLISECONDS);
+        return (item != null) ? this.next(item) : null;
+    }
+
+    /**
+     *@return true if the publisher has completed or failed and all buffered items have been returned
+     */
+    public boolean isExhausted() {
+        return exhausted || (done && buffer.size() == 0);
+    }
+
+    /**
+     *@return the error with which the publisher failed, or null if it has not failed
+     */
+    public Throwable getError() {
+        return error;
+    }
+
+    /**
+     *@return the number of items that arrived with the buffer full and were dropped
+     */
+    public long getDroppedCount() {
+        return buffer.getDroppedCount();
+    }
+
+    /**
+     *Cancels the subscription; buffered items can still be generated
+     */
+    public void cancel() {
+        Flow.Subscription current = subscription;
+        if (current != null) {
+            current.cancel();
+        }
+        this.finish();
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription mySubscription) {
+        if (subscription != null || done) {
+            mySubscription.cancel();
+            return;
+        }
+        subscription = mySubscription;
+        mySubscription.request((policy == Mailbox.OverflowPolicy.BLOCK) ? buffer.capacity() : Long.MAX_VALUE);
+    }
+
+    @Override
+    public void onNext(E item) {
+        buffer.put(item);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        error = throwable;
+        this.finish();
+    }
+
+    @Override
+    public void onComplete() {
+        this.finish();
+    }
+
+    /**
+     *@return the given item taken from the buffer, or null for the end marker, which is put back for other consumers (and put
+     *in after the last item if it did not fit when the publisher finished); requests more items once a batch has been consumed
+     */
+    private E next(Object item) {
+        if (item == END || (done && buffer.size() == 0)) {
+            buffer.offer(END);
+            if (item == END) {
+                exhausted = true;
+                return null;
+            }
+        }
+        if (policy == Mailbox.OverflowPolicy.BLOCK && consumed.incrementAndGet() % batch == 0) {
+            Flow.Subscription current = subscription;
+            if (current != null && !done) {
+                current.request(batch);
+            }
+        }
+        // Anything in the buffer but the end marker was put in by onNext
+        @SuppressWarnings("unchecked")
+        E ret = (E) item;
+        return ret;
+    }
+
+    /**
+     *Marks the end of the items; if the buffer is full, consumers find the end when they empty it
+     */
+    private void finish() {
+        done = true;
+        buffer.offer(END);
+    }
+
+}
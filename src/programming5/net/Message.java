@@ -21,12 +21,11 @@
 
 package programming5.net;
 
-import programming5.arrays.ArrayOperations;
-import programming5.collections.NotFoundException;
-
-import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  *This class is used to store and manipulate an organized array of items in a message
@@ -44,18 +43,42 @@ import java.util.List;
  *errors when encoding byte arrays as strings. For the basic types, these arrays correspond to the byte
  *representation of the items' string representations, not their internal numeric representation. Byte array
  *accessors were added to manipulate these items directly as byte arrays, for serialized objects or raw byte
- *payloads.
+ *payloads.<p>
+ *As of version 6.19, numeric and boolean items are kept in their native representation, and converted to strings 
+ *only for the text syntax above. Messages can alternatively be encoded with a binary syntax (see Encoding.BINARY), 
+ *in which items are prefixed by their type and length instead of being separated, so that no escaping or string 
+ *conversion is needed. Binary messages start with a version byte that cannot start a text message, so the 
+ *byte array constructor decodes both syntaxes.
  *@author Andres Quiroz Hernandez
  *@version 6.19
  */
 public class Message {
+
+    /**
+     *The syntaxes in which a message can be encoded
+     */
+    public enum Encoding {
+        /** The [header]:[item{::item}] syntax, in which all items are represented as strings */
+        TEXT,
+        /** The binary syntax implemented by MessageCodec, with native numeric items */
+        BINARY
+    }
     
     protected String header = null;
     protected byte[][] body = null;
+    protected byte[] types = null;
+    protected MessageView source = null;
+
+    static final byte TEXT_ITEM = 0;
+    static final byte INT_ITEM = 1;
+    static final byte LONG_ITEM = 2;
+    static final byte DOUBLE_ITEM = 3;
+    static final byte FLOAT_ITEM = 4;
+    static final byte BOOLEAN_ITEM = 5;
 
     private static final String sepString = ":";
     private static final String sep2String = "::";
-    private static final byte sepByte = ":".getBytes()[0];
+    static final byte sepByte = ":".getBytes()[0];
     private static final byte escByte = "/".getBytes()[0];
     
     /**
@@ -78,11 +101,7 @@ public class Message {
                     header = parts[0];
                 }
                 if (!parts[1].equals("")) {
-                    parts = parts[1].split(sep2String);
-                    body = new byte[parts.length][];
-                    for (int i = 0; i < parts.length; i++) {
-                        body[i] = parts[i].getBytes();
-                    }
+                    this.setTextItems(parts[1].split(sep2String));
                 }
             } 
             else throw new MalformedMessageException("Message start not found");
@@ -106,10 +125,7 @@ public class Message {
                 }
                 parts = parts[1].split(sep2String);
                 if (parts.length == size) {
-                    body = new byte[parts.length][];
-                    for (int i = 0; i < parts.length; i++) {
-                        body[i] = parts[i].getBytes();
-                    }
+                    this.setTextItems(parts);
                 }
                 else {
                     throw new MalformedMessageException("Incorrect number of message items");
@@ -122,38 +138,23 @@ public class Message {
 
     /**
      * Constructor to create a message object decoding a byte array with an
-     * unknown number of items. The message must follow the correct syntax or an exception is
-     * thrown.
+     * unknown number of items, in either the text or the binary syntax. The message must follow the correct 
+     * syntax or an exception is thrown.
      * @param messageBytes the encoded message as a byte array
      * @throws programming5.net.MalformedMessageException
      */
     public Message(byte[] messageBytes) throws MalformedMessageException {
-        try {
-            int headerIndex = ArrayOperations.findInSequence(sepByte, messageBytes);
-            if (headerIndex > 0) {
-                header = new String(ArrayOperations.prefix(messageBytes, headerIndex));
-            }
-            List<Integer> separators = new ArrayList<Integer>();
-            int start = headerIndex + 1;
-            int separatorIndex = ArrayOperations.findInSequence(sepByte, messageBytes, start);
-            while (separatorIndex > 0 && separatorIndex < (messageBytes.length-1)) {
-                if (messageBytes[separatorIndex+1] == sepByte) {
-                    separators.add(separatorIndex);
-                }
-                start = separatorIndex + 2;
-                separatorIndex = ArrayOperations.findInSequence(sepByte, messageBytes, start);
-            }
-            body = new byte[separators.size()+1][];
-            start = headerIndex + 1;
-            for (int i = 0; i < separators.size(); i++) {
-                int separator = separators.get(i);
-                body[i] = ArrayOperations.subArray(messageBytes, start, separator);
-                start = separator + 2;
-            }
-            body[separators.size()] = ArrayOperations.subArray(messageBytes, start, messageBytes.length);
-        } catch (NotFoundException e) {
-            throw new MalformedMessageException("Message: Could not construct message: Expected " + sepString);
-        }
+        new MessageView(messageBytes).copyTo(this);
+    }
+
+    /**
+     *Constructor for subclasses to create a message backed by the given view, from which items are read until 
+     *the message is modified (at which point all items are decoded from the view)
+     *@param mySource the view over the encoded message
+     */
+    protected Message(MessageView mySource) {
+        source = mySource;
+        header = mySource.getHeader();
     }
     
     /**
@@ -198,26 +199,12 @@ public class Message {
         return ret;
     }
     
+    
     /**
      *Gets the encoded string of a message object.
      */
     public String getMessage() throws MalformedMessageException {
-        String message;
-        if (header != null) {
-            message = header + sepString;
-        }
-        else {
-            message = sepString;
-        }
-        int bodyLength = (body == null) ? 0 : body.length;
-        if (bodyLength > 0) {
-            message = message.concat(new String(body[0], StandardCharsets.UTF_8));
-            for (int i = 1; i < bodyLength; i++) {
-                message = message.concat(sep2String);
-                message = message.concat(new String(body[i]));
-            }
-        }
-        return message;
+        return new String(this.getMessageBytes());
     }
 
     /**
@@ -226,45 +213,113 @@ public class Message {
      */
     @Override
     public String toString() {
-        String message;
-        if (header != null) {
-            message = header + sepString;
+        return new String(this.getMessageBytes());
+    }
+
+    /**
+     * @return the encoded message as a byte array in the text syntax; the array obtained from this method can be used to 
+     * reconstruct a message object when decoded using the corresponding constructor
+     */
+    public byte[] getMessageBytes() {
+        return this.getMessageBytes(Encoding.TEXT);
+    }
+
+    /**
+     * @return the encoded message as a byte array in the given syntax; the array obtained from this method can be used to 
+     * reconstruct a message object when decoded using the corresponding constructor
+     */
+    public byte[] getMessageBytes(Encoding encoding) {
+        byte[] ret = new byte[this.encodedSize(encoding)];
+        this.writeTo(ByteBuffer.wrap(ret), encoding);
+        return ret;
+    }
+
+    /**
+     *@return the exact number of bytes of the message encoded in the text syntax
+     */
+    public int encodedSize() {
+        return this.encodedSize(Encoding.TEXT);
+    }
+
+    /**
+     *@return the exact number of bytes of the message encoded in the given syntax
+     */
+    public int encodedSize(Encoding encoding) {
+        if (source != null) {
+            return source.encodedSize(encoding);
         }
-        else {
-            message = sepString;
-        }
-        int bodyLength = (body == null) ? 0 : body.length;
-        if (bodyLength > 0) {
-            message = message.concat(new String(body[0]));
-            for (int i = 1; i < bodyLength; i++) {
-                message = message.concat(sep2String);
-                message = message.concat(new String(body[i]));
+        if (encoding == Encoding.BINARY) {
+            return MessageCodec.encodedSize(this);
+        }
+        int ret = ((header != null) ? header.getBytes().length : 0) + 1;
+        for (int i = 0; i < this.getMessageSize(); i++) {
+            ret += inflatedLength(this.textItem(i));
+            if (i > 0) {
+                ret += 2;
             }
         }
-        return message;
+        return ret;
     }
 
     /**
-     * @return the encoded message as a byte array; the array obtained from this method can be used to 
-     * reconstruct a message object when decoded using the corresponding constructor
+     *Encodes the message in the text syntax into the given buffer, starting at its current position
+     *@throws java.nio.BufferOverflowException if the remaining space in the buffer is less than encodedSize, in which case 
+     *nothing is written
      */
-    public byte[] getMessageBytes() {
-        byte[] message;
+    public void writeTo(ByteBuffer buffer) {
+        this.writeTo(buffer, Encoding.TEXT);
+    }
+
+    /**
+     *Encodes the message in the given syntax into the given buffer (which may be a direct buffer), starting at its current 
+     *position
+     *@throws java.nio.BufferOverflowException if the remaining space in the buffer is less than encodedSize, in which case 
+     *nothing is written
+     */
+    public void writeTo(ByteBuffer buffer, Encoding encoding) {
+        if (buffer.remaining() < this.encodedSize(encoding)) {
+            throw new BufferOverflowException();
+        }
+        try {
+            this.writeTo(new BufferOutput(buffer), encoding);
+        }
+        catch (IOException ioe) {
+            throw new IllegalStateException("Message: Unexpected exception writing to buffer: " + ioe.getMessage());
+        }
+    }
+
+    /**
+     *Encodes the message in the text syntax into the given stream, without building the encoded message in memory; the 
+     *stream is not flushed
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        this.writeTo(out, Encoding.TEXT);
+    }
+
+    /**
+     *Encodes the message in the given syntax into the given stream, without building the encoded message in memory; the 
+     *stream is not flushed
+     */
+    public void writeTo(OutputStream out, Encoding encoding) throws IOException {
+        if (source != null) {
+            source.writeTo(out, encoding);
+            return;
+        }
+        if (encoding == Encoding.BINARY) {
+            MessageCodec.write(this, out);
+            return;
+        }
         if (header != null) {
-            message = (header + sepString).getBytes();
+            out.write(header.getBytes());
         }
-        else {
-            message = sepString.getBytes();
-        }
-        int bodyLength = (body == null) ? 0 : body.length;
-        if (bodyLength > 0) {
-            message = ArrayOperations.join(message, body[0]);
-            for (int i = 1; i < bodyLength; i++) {
-                message = ArrayOperations.join(message, sep2String.getBytes());
-                message = ArrayOperations.join(message, body[i]);
+        out.write(sepByte);
+        for (int i = 0; i < this.getMessageSize(); i++) {
+            if (i > 0) {
+                out.write(sepByte);
+                out.write(sepByte);
             }
+            writeInflated(this.textItem(i), out);
         }
-        return message;
     }
     
     /**
@@ -282,12 +337,13 @@ public class Message {
      *@return the string representation of the item at the given position
      */
     public String getMessageItem(int index) throws IndexOutOfBoundsException {
-        String ret = null;
+        if (source != null) {
+            return source.getMessageItem(index);
+        }
         if (body != null) {
-            ret = new String(deflate(body[index]));
+            return new String(this.textItem(index));
         } 
         else throw new IndexOutOfBoundsException("Message: No body");
-        return ret;
     }
     
     /**
@@ -297,17 +353,18 @@ public class Message {
      *@throws MalformedMessageException if the item cannot be represented as an integer
      */
     public int getItemAsInt(int index) throws MalformedMessageException, IndexOutOfBoundsException {
-        int i;
+        if (source != null) {
+            return source.getItemAsInt(index);
+        }
+        if (this.itemType(index) == INT_ITEM) {
+            return (int) MessageCodec.readFixed(body[index], 0, 4);
+        }
         try {
-            i = Integer.parseInt(new String(deflate(body[index])));
-        } 
-        catch (NullPointerException npe) {
-            throw new IndexOutOfBoundsException("Message: No body");
+            return Integer.parseInt(this.getMessageItem(index));
         } 
         catch (NumberFormatException nf) {
-            throw new MalformedMessageException("Incorrect type for item " + index + ": Expected int, found " + deflate(body[index]));
+            throw new MalformedMessageException("Incorrect type for item " + index + ": Expected int, found " + this.getMessageItem(index));
         }
-        return i;
     }
     
     /**
@@ -317,17 +374,18 @@ public class Message {
      *@throws MalformedMessageException if the item cannot be represented as an double
      */
     public double getItemAsDouble(int index) throws MalformedMessageException, IndexOutOfBoundsException {
-        double d;
+        if (source != null) {
+            return source.getItemAsDouble(index);
+        }
+        if (this.itemType(index) == DOUBLE_ITEM) {
+            return Double.longBitsToDouble(MessageCodec.readFixed(body[index], 0, 8));
+        }
         try {
-            d = Double.parseDouble(new String(deflate(body[index])));
-        } 
-        catch (NullPointerException npe) {
-            throw new IndexOutOfBoundsException("Message: No body");
+            return Double.parseDouble(this.getMessageItem(index));
         } 
         catch (NumberFormatException nf) {
-            throw new MalformedMessageException("Incorrect type for item " + index + ": Expected double, found " + deflate(body[index]));
+            throw new MalformedMessageException("Incorrect type for item " + index + ": Expected double, found " + this.getMessageItem(index));
         }
-        return d;
     }
     
     /**
@@ -337,17 +395,18 @@ public class Message {
      *@throws MalformedMessageException if the item cannot be represented as an float
      */
     public float getItemAsFloat(int index) throws MalformedMessageException, IndexOutOfBoundsException {
-        float f;
+        if (source != null) {
+            return source.getItemAsFloat(index);
+        }
+        if (this.itemType(index) == FLOAT_ITEM) {
+            return Float.intBitsToFloat((int) MessageCodec.readFixed(body[index], 0, 4));
+        }
         try {
-            f = Float.parseFloat(new String(deflate(body[index])));
-        } 
-        catch (NullPointerException npe) {
-            throw new IndexOutOfBoundsException("Message: No body");
+            return Float.parseFloat(this.getMessageItem(index));
         } 
         catch (NumberFormatException nf) {
-            throw new MalformedMessageException("Incorrect type for item " + index + ": Expected float, found " + deflate(body[index]));
+            throw new MalformedMessageException("Incorrect type for item " + index + ": Expected float, found " + this.getMessageItem(index));
         }
-        return f;
     }
     
     /**
@@ -357,17 +416,22 @@ public class Message {
      *@throws MalformedMessageException if the item cannot be represented as a long integer
      */
     public long getItemAsLong(int index) throws MalformedMessageException, IndexOutOfBoundsException {
-        long l;
+        if (source != null) {
+            return source.getItemAsLong(index);
+        }
+        byte type = this.itemType(index);
+        if (type == LONG_ITEM) {
+            return MessageCodec.readFixed(body[index], 0, 8);
+        }
+        else if (type == INT_ITEM) {
+            return (int) MessageCodec.readFixed(body[index], 0, 4);
+        }
         try {
-            l = Long.parseLong(new String(deflate(body[index])));
-        } 
-        catch (NullPointerException npe) {
-            throw new IndexOutOfBoundsException("Message: No body");
+            return Long.parseLong(this.getMessageItem(index));
         } 
         catch (NumberFormatException nf) {
-            throw new MalformedMessageException("Incorrect type for item " + index + ": Expected long, found " + deflate(body[index]));
+            throw new MalformedMessageException("Incorrect type for item " + index + ": Expected long, found " + this.getMessageItem(index));
         }
-        return l;
     }
     
     /**
@@ -380,7 +444,7 @@ public class Message {
         String cs = this.getMessageItem(index);
         char c = cs.charAt(0);
         if (cs.length() > 1) {
-            throw new MalformedMessageException("Incorrect type for item " + index + ": Expected char, found " + deflate(body[index]));
+            throw new MalformedMessageException("Incorrect type for item " + index + ": Expected char, found " + cs);
         }
         return c;
     }
@@ -392,17 +456,13 @@ public class Message {
      *@throws MalformedMessageException if the item cannot be represented as a boolean
      */
     public boolean getItemAsBoolean(int index) throws MalformedMessageException, IndexOutOfBoundsException {
-        boolean b;
-        try {
-            b = Boolean.parseBoolean(new String(deflate(body[index])));
-        } 
-        catch (NullPointerException npe) {
-            throw new IndexOutOfBoundsException("Message: No body");
-        } 
-        catch (Exception e) {
-            throw new MalformedMessageException("Incorrect type for item " + index + ": Expected boolean, found " + deflate(body[index]));
+        if (source != null) {
+            return source.getItemAsBoolean(index);
+        }
+        if (this.itemType(index) == BOOLEAN_ITEM) {
+            return body[index][0] != 0;
         }
-        return b;
+        return Boolean.parseBoolean(this.getMessageItem(index));
     }
 
     /**
@@ -411,14 +471,15 @@ public class Message {
      * @return the byte array representation of the item at the given position
      */
     public byte[] getItemAsByteArray(int index) throws IndexOutOfBoundsException {
-        byte[] ret = null;
+        if (source != null) {
+            return source.getItemAsByteArray(index);
+        }
         if (body != null) {
-            ret = deflate(body[index]);
+            return (types[index] == TEXT_ITEM) ? body[index].clone() : this.textItem(index);
         }
         else {
             throw new IndexOutOfBoundsException("Message: Cannot get given item: No message body");
         }
-        return ret;
     }
     
     /**
@@ -426,6 +487,7 @@ public class Message {
      *@param header the header string, which must not contain the reserved character ':'
      */
     public void setHeader(String header) {
+        this.materialize();
         if (header.indexOf(sepString) < 0) {
             this.header = header;
         }
@@ -439,8 +501,7 @@ public class Message {
      * @return the position of the item in the message, with numbering starting at 0
      */
     public int addMessageItem(Object item) {
-        this.addBodyItem(inflate(item.toString().getBytes()));
-        return body.length-1;
+        return this.addBodyItem(item.toString().getBytes(), TEXT_ITEM);
     }
     
     /**
@@ -449,8 +510,7 @@ public class Message {
      *@return the position of the item in the message, with numbering starting at 0
      */
     public int addMessageItem(String item) {
-        this.addBodyItem(inflate(item.getBytes()));
-        return body.length-1;
+        return this.addBodyItem(item.getBytes(), TEXT_ITEM);
     }
     
     /**
@@ -459,8 +519,7 @@ public class Message {
      *@return the position of the item in the message, with numbering starting at 0
      */
     public int addMessageItem(int item) {
-        this.addBodyItem(inflate(Integer.toString(item).getBytes()));
-        return body.length-1;
+        return this.addBodyItem(MessageCodec.fixed(item, 4), INT_ITEM);
     }
     
     /**
@@ -469,8 +528,7 @@ public class Message {
      *@return the position of the item in the message, with numbering starting at 0
      */
     public int addMessageItem(double item) {
-        this.addBodyItem(inflate(Double.toString(item).getBytes()));
-        return body.length-1;
+        return this.addBodyItem(MessageCodec.fixed(Double.doubleToLongBits(item), 8), DOUBLE_ITEM);
     }
     
     /**
@@ -479,8 +537,7 @@ public class Message {
      *@return the position of the item in the message, with numbering starting at 0
      */
     public int addMessageItem(float item) {
-        this.addBodyItem(inflate(Float.toString(item).getBytes()));
-        return body.length-1;
+        return this.addBodyItem(MessageCodec.fixed(Float.floatToIntBits(item), 4), FLOAT_ITEM);
     }
     
     /**
@@ -489,8 +546,7 @@ public class Message {
      *@return the position of the item in the message, with numbering starting at 0
      */
     public int addMessageItem(long item) {
-        this.addBodyItem(inflate(Long.toString(item).getBytes()));
-        return body.length-1;
+        return this.addBodyItem(MessageCodec.fixed(item, 8), LONG_ITEM);
     }
     
     /**
@@ -501,7 +557,7 @@ public class Message {
     public int addMessageItem(char item) {
         byte[] b = new byte[1];
         b[0] = (byte) item;
-        return this.addMessageItem(new String(b));
+        return this.addBodyItem(b, TEXT_ITEM);
     }
     
     /**
@@ -510,8 +566,7 @@ public class Message {
      *@return the position of the item in the message, with numbering starting at 0
      */
     public int addMessageItem(boolean item) {
-        this.addBodyItem(inflate(Boolean.toString(item).getBytes()));
-        return body.length-1;
+        return this.addBodyItem(new byte[] {(byte) (item ? 1 : 0)}, BOOLEAN_ITEM);
     }
 
     /**
@@ -520,8 +575,7 @@ public class Message {
      * @return the position of the item in the message, with numbering starting at 0
      */
     public int addMessageItem(byte[] item) {
-        this.addBodyItem(inflate(item));
-        return body.length-1;
+        return this.addBodyItem(item.clone(), TEXT_ITEM);
     }
     
     /**
@@ -530,7 +584,7 @@ public class Message {
      *@param item the string representation of the item
      */
     public void editMessageItem(int index, String item) throws IndexOutOfBoundsException {
-        body[index] = inflate(item.getBytes());
+        this.setBodyItem(index, item.getBytes(), TEXT_ITEM);
     }
     
     /**
@@ -539,7 +593,7 @@ public class Message {
      *@param item the int representation of the item
      */
     public void editMessageItem(int index, int item) throws IndexOutOfBoundsException {
-        body[index] = inflate(Integer.toString(item).getBytes());
+        this.setBodyItem(index, MessageCodec.fixed(item, 4), INT_ITEM);
     }
     
     /**
@@ -548,7 +602,7 @@ public class Message {
      *@param item the double representation of the item
      */
     public void editMessageItem(int index, double item) throws IndexOutOfBoundsException {
-        body[index] = inflate(Double.toString(item).getBytes());
+        this.setBodyItem(index, MessageCodec.fixed(Double.doubleToLongBits(item), 8), DOUBLE_ITEM);
     }
     
     /**
@@ -557,7 +611,7 @@ public class Message {
      *@param item the float representation of the item
      */
     public void editMessageItem(int index, float item) throws IndexOutOfBoundsException {
-        body[index] = inflate(Float.toString(item).getBytes());
+        this.setBodyItem(index, MessageCodec.fixed(Float.floatToIntBits(item), 4), FLOAT_ITEM);
     }
     
     /**
@@ -568,7 +622,7 @@ public class Message {
     public void editMessageItem(int index, char item) throws IndexOutOfBoundsException {
         byte[] b = new byte[1];
         b[0] = (byte) item;
-        body[index] = b;
+        this.setBodyItem(index, b, TEXT_ITEM);
     }
     
     /**
@@ -577,7 +631,7 @@ public class Message {
      *@param item the boolean representation of the item
      */
     public void editMessageItem(int index, boolean item) throws IndexOutOfBoundsException {
-        body[index] = inflate(Boolean.toString(item).getBytes());
+        this.setBodyItem(index, new byte[] {(byte) (item ? 1 : 0)}, BOOLEAN_ITEM);
     }
 
     /**
@@ -586,81 +640,176 @@ public class Message {
      * @param item the byte array representation of the item
      */
     public void editMessageItem(int index, byte[] item) throws IndexOutOfBoundsException {
-        body[index] = inflate(item);
+        this.setBodyItem(index, item.clone(), TEXT_ITEM);
     }
     
     /**
      *@return the number of items in the message (excluding the header)
      */
     public int getMessageSize() {
+        if (source != null) {
+            return source.getMessageSize();
+        }
         return (body == null) ? 0 : body.length;
     }
-    
-//    /**
-//     *Adds escape characters to all existing sequences in a message item that can conflict with the special separator
-//     *sequences used by this class.
-//     */
-//    private String inflate(String item) {
-//        String ret = item.replaceAll(":/", "://");
-//        ret = ret.replaceAll("::", ":/:");
-//        return ret;
-//    }
-//
-//    /**
-//     *Reverses the result of inflate method
-//     */
-//    private String deflate(String item) {
-//        String ret = item.replaceAll(":/", ":");
-//        return ret;
-//    }
-
-    private byte[] inflate(byte[] byteItem) {
-        byte[] ret = byteItem.clone();
-        try {
-            int separatorIndex = ArrayOperations.findInSequence(sepByte, ret);
-            while (separatorIndex >= 0) { //  && separatorIndex < (ret.length-1)
-                if (separatorIndex < (ret.length - 1)) {
-                    if (ret[separatorIndex + 1] == sepByte || ret[separatorIndex + 1] == escByte) {
-                        ret = ArrayOperations.insert(escByte, ret, ++separatorIndex);
-                    }
-                    separatorIndex = ArrayOperations.findInSequence(sepByte, ret, separatorIndex + 1);
-                } else {
-                    ret = ArrayOperations.addElement(escByte, ret);
-                    separatorIndex = -1;
-                }
+
+    /**
+     *Decodes all items from the view backing this message, if any, so that they can be modified; called by all 
+     *methods that modify the message
+     */
+    protected void materialize() {
+        if (source != null) {
+            MessageView view = source;
+            source = null;
+            view.copyTo(this);
+        }
+    }
+
+    /**
+     *@return the type of the item at the given position, as stored in the message
+     */
+    private byte itemType(int index) throws IndexOutOfBoundsException {
+        if (body == null) {
+            throw new IndexOutOfBoundsException("Message: No body");
+        }
+        return types[index];
+    }
+
+    /**
+     *@return the bytes of the string representation of the item at the given position (the stored array itself for text 
+     *items, which must not be modified)
+     */
+    byte[] textItem(int index) {
+        return (types[index] == TEXT_ITEM) ? body[index] : nativeString(types[index], body[index], 0).getBytes();
+    }
+
+    /**
+     *@return the string representation of the native item of the given type at the given position
+     */
+    static String nativeString(byte type, byte[] bytes, int offset) {
+        switch (type) {
+            case INT_ITEM:
+                return Integer.toString((int) MessageCodec.readFixed(bytes, offset, 4));
+            case LONG_ITEM:
+                return Long.toString(MessageCodec.readFixed(bytes, offset, 8));
+            case DOUBLE_ITEM:
+                return Double.toString(Double.longBitsToDouble(MessageCodec.readFixed(bytes, offset, 8)));
+            case FLOAT_ITEM:
+                return Float.toString(Float.intBitsToFloat((int) MessageCodec.readFixed(bytes, offset, 4)));
+            case BOOLEAN_ITEM:
+                return Boolean.toString(bytes[offset] != 0);
+            default:
+                throw new IllegalArgumentException("Message: Unknown item type: " + type);
+        }
+    }
+
+    private void setTextItems(String[] parts) {
+        body = new byte[parts.length][];
+        types = new byte[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            byte[] part = parts[i].getBytes();
+            body[i] = deflate(part, 0, part.length);
+        }
+    }
+
+    /**
+     *@return the length of the given item once escape characters are added to all sequences that can conflict with the 
+     *separator sequences used by this class
+     */
+    private static int inflatedLength(byte[] item) {
+        int ret = item.length;
+        for (int i = 0; i < item.length; i++) {
+            if (item[i] == sepByte && (i == item.length - 1 || item[i + 1] == sepByte || item[i + 1] == escByte)) {
+                ret++;
             }
         }
-        catch (NotFoundException ignored) {}
         return ret;
     }
 
-    private byte[] deflate(byte[] byteItem) {
-        byte[] ret = byteItem.clone();
-        try {
-            int separatorIndex = ArrayOperations.findInSequence(sepByte, ret);
-            while (separatorIndex >= 0 && separatorIndex < (ret.length - 1)) {
-                if (ret[separatorIndex + 1] == escByte) {
-                    ret = ArrayOperations.delete(ret, separatorIndex + 1);
-                }
-                separatorIndex = ArrayOperations.findInSequence(sepByte, ret, separatorIndex + 1);
+    /**
+     *Writes the given item to the stream, adding escape characters to all sequences that can conflict with the separator 
+     *sequences used by this class (an escape character follows every colon that is followed by a colon or an escape 
+     *character, or that ends the item)
+     */
+    private static void writeInflated(byte[] item, OutputStream out) throws IOException {
+        int from = 0;
+        for (int i = 0; i < item.length; i++) {
+            if (item[i] == sepByte && (i == item.length - 1 || item[i + 1] == sepByte || item[i + 1] == escByte)) {
+                out.write(item, from, i + 1 - from);
+                out.write(escByte);
+                from = i + 1;
+            }
+        }
+        out.write(item, from, item.length - from);
+    }
+
+    /**
+     *Reverses the result of the writeInflated method on the given range of an encoded message
+     */
+    static byte[] deflate(byte[] encoded, int from, int until) {
+        int length = until - from;
+        for (int i = from; i < until - 1; i++) {
+            if (encoded[i] == sepByte && encoded[i + 1] == escByte) {
+                length--;
+                i++;
+            }
+        }
+        byte[] ret = new byte[length];
+        int position = 0;
+        for (int i = from; i < until; i++) {
+            ret[position++] = encoded[i];
+            if (encoded[i] == sepByte && i < until - 1 && encoded[i + 1] == escByte) {
+                i++;
             }
         }
-        catch (NotFoundException ignored) {}
         return ret;
     }
 
-    private void addBodyItem(byte[] item) {
+    private int addBodyItem(byte[] item, byte type) {
+        this.materialize();
         if (body == null) {
             body = new byte[1][];
+            types = new byte[1];
         }
         else {
-            byte[][] aux = body;
-            body = new byte[body.length+1][];
-            for (int i = 0; i < aux.length; i++) {
-                body[i] = aux[i];
-            }
+            body = Arrays.copyOf(body, body.length + 1);
+            types = Arrays.copyOf(types, types.length + 1);
         }
         body[body.length-1] = item;
+        types[types.length-1] = type;
+        return body.length-1;
+    }
+
+    private void setBodyItem(int index, byte[] item, byte type) {
+        this.materialize();
+        if (body == null) {
+            throw new IndexOutOfBoundsException("Message: No body");
+        }
+        body[index] = item;
+        types[index] = type;
+    }
+
+    /**
+     *Adapts a byte buffer to the stream interface used by the encoders
+     */
+    private static class BufferOutput extends OutputStream {
+
+        private final ByteBuffer buffer;
+
+        BufferOutput(ByteBuffer myBuffer) {
+            buffer = myBuffer;
+        }
+
+        @Override
+        public void write(int b) {
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            buffer.put(b, off, len);
+        }
+
     }
 
 }
@@ -0,0 +1,206 @@
+/*
+ * MessageCodec.java
+ *
+ * Copyright 2004 Andres Quiroz Hernandez
+ *
+ * This file is part of Programming5.
+ * Programming5 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Programming5 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Programming5.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package programming5.net;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ *This class implements the binary syntax of messages (Message.Encoding.BINARY), in which items are prefixed by
+ *their type and length, so that they can be decoded in a single pass without escaping. The syntax is:<p>
+ *version | varint(header length + 1, or 0 for no header) | header | varint(item count) | {type | item}<p>
+ *where the version byte has its two most significant bits set to 10, so that it cannot be the first byte of a
+ *text message (which is either a header character or a colon). Int and float items take 4 bytes, long and double
+ *items take 8 bytes (big endian), boolean items take 1 byte, and text items are prefixed by their length as a
+ *varint (7 bits per byte, least significant group first).
+ *@see programming5.net.Message
+ *@author Andres Quiroz Hernandez
+ *@version 6.19
+ */
+final class MessageCodec {
+
+    public static final int VERSION = 1;
+
+    private static final byte VERSION_BYTE = (byte) (0x80 | VERSION);
+
+    private MessageCodec() {
+    }
+
+    /**
+     *@return true if the given range of bytes starts with a binary version byte (of any version)
+     */
+    static boolean isBinary(byte[] bytes, int offset, int length) {
+        return length > 0 && (bytes[offset] & 0xC0) == 0x80;
+    }
+
+    /**
+     *@return the exact number of bytes of the given message encoded in the binary syntax
+     */
+    static int encodedSize(Message message) {
+        int headerLength = (message.header != null) ? message.header.getBytes().length : -1;
+        int itemCount = message.getMessageSize();
+        int ret = 1 + varintSize(headerLength + 1) + Math.max(0, headerLength) + varintSize(itemCount);
+        for (int i = 0; i < itemCount; i++) {
+            ret += 1 + message.body[i].length;
+            if (message.types[i] == Message.TEXT_ITEM) {
+                ret += varintSize(message.body[i].length);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     *Writes the given message to the stream in the binary syntax
+     */
+    static void write(Message message, OutputStream out) throws IOException {
+        out.write(VERSION_BYTE);
+        if (message.header != null) {
+            byte[] headerBytes = message.header.getBytes();
+            writeVarint(headerBytes.length + 1, out);
+            out.write(headerBytes);
+        }
+        else {
+            writeVarint(0, out);
+        }
+        int itemCount = message.getMessageSize();
+        writeVarint(itemCount, out);
+        for (int i = 0; i < itemCount; i++) {
+            out.write(message.types[i]);
+            if (message.types[i] == Message.TEXT_ITEM) {
+                writeVarint(message.body[i].length, out);
+            }
+            out.write(message.body[i]);
+        }
+    }
+
+    /**
+     *Records the bounds of the header and items of the given range of bytes, which must be a binary encoded message, in 
+     *the given view
+     *@throws MalformedMessageException if the version is not supported or the bytes do not follow the binary syntax
+     */
+    static void index(byte[] bytes, int offset, int length, MessageView target) throws MalformedMessageException {
+        int end = offset + length;
+        if (bytes[offset] != VERSION_BYTE) {
+            throw new MalformedMessageException("MessageCodec: Unsupported binary message version: " + (bytes[offset] & 0x3F));
+        }
+        int[] position = {offset + 1};
+        int headerLength = readVarint(bytes, position, end);
+        if (headerLength > 0) {
+            headerLength--;
+            checkRemaining(position[0], headerLength, end);
+            target.setHeaderBounds(position[0], position[0] + headerLength);
+            position[0] += headerLength;
+        }
+        int itemCount = readVarint(bytes, position, end);
+        checkRemaining(position[0], itemCount, end);
+        for (int i = 0; i < itemCount; i++) {
+            checkRemaining(position[0], 1, end);
+            byte type = bytes[position[0]++];
+            int itemLength = (type == Message.TEXT_ITEM) ? readVarint(bytes, position, end) : fixedSize(type);
+            checkRemaining(position[0], itemLength, end);
+            target.addItem(position[0], position[0] + itemLength, type);
+            position[0] += itemLength;
+        }
+        if (position[0] != end) {
+            throw new MalformedMessageException("MessageCodec: Unexpected bytes after last message item");
+        }
+    }
+
+    /**
+     *@return the given value as a big endian array of the given number of bytes
+     */
+    static byte[] fixed(long value, int size) {
+        byte[] ret = new byte[size];
+        for (int i = size - 1; i >= 0; i--) {
+            ret[i] = (byte) value;
+            value >>>= 8;
+        }
+        return ret;
+    }
+
+    /**
+     *@return the big endian value of the given number of bytes at the given position, sign extended from the last byte
+     */
+    static long readFixed(byte[] bytes, int offset, int size) {
+        long ret = bytes[offset];
+        for (int i = 1; i < size; i++) {
+            ret = (ret << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return ret;
+    }
+
+    private static int fixedSize(byte type) throws MalformedMessageException {
+        switch (type) {
+            case Message.INT_ITEM:
+            case Message.FLOAT_ITEM:
+                return 4;
+            case Message.LONG_ITEM:
+            case Message.DOUBLE_ITEM:
+                return 8;
+            case Message.BOOLEAN_ITEM:
+                return 1;
+            default:
+                throw new MalformedMessageException("MessageCodec: Unknown item type: " + type);
+        }
+    }
+
+    private static void checkRemaining(int position, int needed, int end) throws MalformedMessageException {
+        if (needed < 0 || end - position < needed) {
+            throw new MalformedMessageException("MessageCodec: Message truncated");
+        }
+    }
+
+    private static int varintSize(int value) {
+        int ret = 1;
+        while ((value >>>= 7) != 0) {
+            ret++;
+        }
+        return ret;
+    }
+
+    private static void writeVarint(int value, OutputStream out) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     *Reads a varint at the position given in the first element of the array, which is advanced past it
+     */
+    private static int readVarint(byte[] bytes, int[] position, int end) throws MalformedMessageException {
+        int ret = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (position[0] >= end) {
+                throw new MalformedMessageException("MessageCodec: Message truncated");
+            }
+            byte b = bytes[position[0]++];
+            ret |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return ret;
+            }
+        }
+        throw new MalformedMessageException("MessageCodec: Malformed length");
+    }
+
+}
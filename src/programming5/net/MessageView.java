@@ -0,0 +1,391 @@
+/*
+ * MessageView.java
+ *
+ * Copyright 2004 Andres Quiroz Hernandez
+ *
+ * This file is part of Programming5.
+ * Programming5 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Programming5 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Programming5.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package programming5.net;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ *This class is a read-only message over an encoded message buffer, in either the text or the binary syntax. On
+ *construction, it only records the bounds of the header and of each item in the buffer; items are decoded from the
+ *buffer when they are requested, so that a message can be routed by its header or by one of its items without
+ *decoding (or copying) the rest. Numeric items in the text syntax are parsed directly from the buffer.<p>
+ *The buffer is not copied, so it must not be modified while the view is in use. Methods that modify the message throw
+ *an UnsupportedOperationException; a modifiable copy can be obtained with toMessage.
+ *@see programming5.net.Message
+ *@author Andres Quiroz Hernandez
+ *@version 6.19
+ */
+public class MessageView extends Message {
+
+    protected final byte[] buffer;
+    protected final int offset;
+    protected final int length;
+    protected final Encoding encoding;
+
+    private int headerStart = -1;
+    private int headerEnd = -1;
+    private int[] bounds = new int[8];
+    private byte[] itemTypes = null;
+    private int size = 0;
+
+    /**
+     *Creates a view over the given encoded message
+     *@throws MalformedMessageException if the message does not follow the syntax it is encoded in
+     */
+    public MessageView(byte[] messageBytes) throws MalformedMessageException {
+        this(messageBytes, 0, messageBytes.length);
+    }
+
+    /**
+     *Creates a view over the encoded message in the given range of the buffer
+     *@throws MalformedMessageException if the message does not follow the syntax it is encoded in
+     */
+    public MessageView(byte[] myBuffer, int myOffset, int myLength) throws MalformedMessageException {
+        buffer = myBuffer;
+        offset = myOffset;
+        length = myLength;
+        if (MessageCodec.isBinary(buffer, offset, length)) {
+            encoding = Encoding.BINARY;
+            itemTypes = new byte[4];
+            MessageCodec.index(buffer, offset, length, this);
+        }
+        else {
+            encoding = Encoding.TEXT;
+            this.indexText();
+        }
+    }
+
+    /**
+     *@return the syntax in which the underlying buffer is encoded
+     */
+    public Encoding getEncoding() {
+        return encoding;
+    }
+
+    /**
+     *@return true if the message has the given header; unlike getHeader, this method does not decode the header
+     */
+    public boolean hasHeader(String myHeader) {
+        if (headerStart < 0) {
+            return myHeader == null;
+        }
+        if (myHeader == null || myHeader.length() != headerEnd - headerStart) {
+            return false;
+        }
+        for (int i = 0; i < myHeader.length(); i++) {
+            char c = myHeader.charAt(i);
+            if (c >= 0x80) {
+                return myHeader.equals(this.getHeader());
+            }
+            if (buffer[headerStart + i] != c) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     *@return a modifiable message with the same header and items as this view
+     */
+    public Message toMessage() {
+        Message ret = new Message();
+        this.copyTo(ret);
+        return ret;
+    }
+
+    @Override
+    public String getHeader() {
+        if (header == null && headerStart >= 0) {
+            header = new String(buffer, headerStart, headerEnd - headerStart);
+        }
+        return header;
+    }
+
+    /**
+     *@return the length of the underlying buffer range if the given encoding is the one of the buffer, or the size of the 
+     *message encoded in the given syntax otherwise
+     */
+    @Override
+    public int encodedSize(Encoding myEncoding) {
+        if (myEncoding == encoding) {
+            return length;
+        }
+        return this.toMessage().encodedSize(myEncoding);
+    }
+
+    /**
+     *Writes the underlying buffer range if the given encoding is the one of the buffer, or the message encoded in the given
+     *syntax otherwise
+     */
+    @Override
+    public void writeTo(OutputStream out, Encoding myEncoding) throws IOException {
+        if (myEncoding == encoding) {
+            out.write(buffer, offset, length);
+        }
+        else {
+            this.toMessage().writeTo(out, myEncoding);
+        }
+    }
+
+    @Override
+    public String getMessageItem(int index) throws IndexOutOfBoundsException {
+        byte type = this.itemType(index);
+        if (type == TEXT_ITEM) {
+            if (encoding == Encoding.TEXT) {
+                return new String(this.rawItem(index));
+            }
+            return new String(buffer, bounds[2*index], bounds[2*index+1] - bounds[2*index]);
+        }
+        return nativeString(type, buffer, bounds[2*index]);
+    }
+
+    @Override
+    public int getItemAsInt(int index) throws MalformedMessageException, IndexOutOfBoundsException {
+        byte type = this.itemType(index);
+        if (type == INT_ITEM) {
+            return (int) MessageCodec.readFixed(buffer, bounds[2*index], 4);
+        }
+        try {
+            if (type == TEXT_ITEM) {
+                long value = parseLong(buffer, bounds[2*index], bounds[2*index+1]);
+                if (value == (int) value) {
+                    return (int) value;
+                }
+                throw new NumberFormatException();
+            }
+            return Integer.parseInt(this.getMessageItem(index));
+        }
+        catch (NumberFormatException nf) {
+            throw new MalformedMessageException("Incorrect type for item " + index + ": Expected int, found " + this.getMessageItem(index));
+        }
+    }
+
+    @Override
+    public long getItemAsLong(int index) throws MalformedMessageException, IndexOutOfBoundsException {
+        byte type = this.itemType(index);
+        if (type == LONG_ITEM) {
+            return MessageCodec.readFixed(buffer, bounds[2*index], 8);
+        }
+        else if (type == INT_ITEM) {
+            return (int) MessageCodec.readFixed(buffer, bounds[2*index], 4);
+        }
+        try {
+            if (type == TEXT_ITEM) {
+                return parseLong(buffer, bounds[2*index], bounds[2*index+1]);
+            }
+            return Long.parseLong(this.getMessageItem(index));
+        }
+        catch (NumberFormatException nf) {
+            throw new MalformedMessageException("Incorrect type for item " + index + ": Expected long, found " + this.getMessageItem(index));
+        }
+    }
+
+    @Override
+    public double getItemAsDouble(int index) throws MalformedMessageException, IndexOutOfBoundsException {
+        if (this.itemType(index) == DOUBLE_ITEM) {
+            return Double.longBitsToDouble(MessageCodec.readFixed(buffer, bounds[2*index], 8));
+        }
+        try {
+            return Double.parseDouble(this.getMessageItem(index));
+        }
+        catch (NumberFormatException nf) {
+            throw new MalformedMessageException("Incorrect type for item " + index + ": Expected double, found " + this.getMessageItem(index));
+        }
+    }
+
+    @Override
+    public float getItemAsFloat(int index) throws MalformedMessageException, IndexOutOfBoundsException {
+        if (this.itemType(index) == FLOAT_ITEM) {
+            return Float.intBitsToFloat((int) MessageCodec.readFixed(buffer, bounds[2*index], 4));
+        }
+        try {
+            return Float.parseFloat(this.getMessageItem(index));
+        }
+        catch (NumberFormatException nf) {
+            throw new MalformedMessageException("Incorrect type for item " + index + ": Expected float, found " + this.getMessageItem(index));
+        }
+    }
+
+    @Override
+    public boolean getItemAsBoolean(int index) throws MalformedMessageException, IndexOutOfBoundsException {
+        if (this.itemType(index) == BOOLEAN_ITEM) {
+            return buffer[bounds[2*index]] != 0;
+        }
+        return Boolean.parseBoolean(this.getMessageItem(index));
+    }
+
+    @Override
+    public byte[] getItemAsByteArray(int index) throws IndexOutOfBoundsException {
+        byte type = this.itemType(index);
+        if (type == TEXT_ITEM) {
+            return this.rawItem(index);
+        }
+        return nativeString(type, buffer, bounds[2*index]).getBytes();
+    }
+
+    @Override
+    public int getMessageSize() {
+        return size;
+    }
+
+    /**
+     *Views cannot be modified
+     *@throws UnsupportedOperationException always
+     */
+    @Override
+    protected void materialize() {
+        throw new UnsupportedOperationException("MessageView: Cannot modify a message view");
+    }
+
+    /**
+     *Decodes all items of the view into the given message, replacing its header and items
+     */
+    void copyTo(Message target) {
+        target.header = this.getHeader();
+        if (size > 0) {
+            target.body = new byte[size][];
+            target.types = new byte[size];
+            for (int i = 0; i < size; i++) {
+                target.types[i] = this.itemType(i);
+                target.body[i] = (target.types[i] == TEXT_ITEM) ? this.rawItem(i) : Arrays.copyOfRange(buffer, bounds[2*i], bounds[2*i+1]);
+            }
+        }
+        else {
+            target.body = null;
+            target.types = null;
+        }
+    }
+
+    /**
+     *Records the bounds of the header in the buffer; called while indexing
+     */
+    void setHeaderBounds(int start, int end) {
+        headerStart = start;
+        headerEnd = end;
+    }
+
+    /**
+     *Records the bounds and type of the next item in the buffer; called while indexing
+     */
+    void addItem(int start, int end, byte type) {
+        if (2 * size == bounds.length) {
+            bounds = Arrays.copyOf(bounds, 2 * bounds.length);
+        }
+        bounds[2*size] = start;
+        bounds[2*size+1] = end;
+        if (itemTypes != null) {
+            if (size == itemTypes.length) {
+                itemTypes = Arrays.copyOf(itemTypes, 2 * itemTypes.length);
+            }
+            itemTypes[size] = type;
+        }
+        size++;
+    }
+
+    /**
+     *Finds the separators of the text syntax in the buffer, in the same way as the Message(byte[]) constructor did in
+     *versions prior to 6.19
+     */
+    private void indexText() throws MalformedMessageException {
+        int end = offset + length;
+        int headerIndex = this.nextSeparator(offset, end);
+        if (headerIndex < 0) {
+            throw new MalformedMessageException("Message: Could not construct message: Expected :");
+        }
+        if (headerIndex > offset) {
+            this.setHeaderBounds(offset, headerIndex);
+        }
+        int itemStart = headerIndex + 1;
+        int separatorIndex = this.nextSeparator(itemStart, end);
+        while (separatorIndex >= 0 && separatorIndex < end - 1) {
+            if (buffer[separatorIndex+1] == sepByte) {
+                this.addItem(itemStart, separatorIndex, TEXT_ITEM);
+                itemStart = separatorIndex + 2;
+            }
+            separatorIndex = this.nextSeparator(separatorIndex + 2, end);
+        }
+        this.addItem(itemStart, end, TEXT_ITEM);
+    }
+
+    private int nextSeparator(int from, int end) {
+        for (int i = from; i < end; i++) {
+            if (buffer[i] == sepByte) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private byte itemType(int index) throws IndexOutOfBoundsException {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("MessageView: No item " + index);
+        }
+        return (itemTypes != null) ? itemTypes[index] : TEXT_ITEM;
+    }
+
+    /**
+     *@return a copy of the bytes of the given text item, without the escape characters of the text syntax
+     */
+    private byte[] rawItem(int index) {
+        if (encoding == Encoding.TEXT) {
+            return deflate(buffer, bounds[2*index], bounds[2*index+1]);
+        }
+        return Arrays.copyOfRange(buffer, bounds[2*index], bounds[2*index+1]);
+    }
+
+    /**
+     *Parses a decimal long integer from the given range, in the same way as Long.parseLong
+     */
+    private static long parseLong(byte[] bytes, int start, int end) throws NumberFormatException {
+        if (start >= end) {
+            throw new NumberFormatException();
+        }
+        boolean negative = false;
+        long limit = -Long.MAX_VALUE;
+        int i = start;
+        if (bytes[i] == '-' || bytes[i] == '+') {
+            negative = (bytes[i] == '-');
+            if (negative) {
+                limit = Long.MIN_VALUE;
+            }
+            if (++i == end) {
+                throw new NumberFormatException();
+            }
+        }
+        long ret = 0;
+        for (; i < end; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9 || ret < limit / 10) {
+                throw new NumberFormatException();
+            }
+            ret *= 10;
+            if (ret < limit + digit) {
+                throw new NumberFormatException();
+            }
+            ret -= digit;
+        }
+        return negative ? ret : -ret;
+    }
+
+}
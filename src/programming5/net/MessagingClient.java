@@ -21,6 +21,9 @@
 
 package programming5.net;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  *This interface defines methods for a PluggableClient to send and receive messages over the network. The receive methods 
  *are meant to be blocking; to receive messages asynchronously, use an extension of ReceiverThread to complement the client 
@@ -28,7 +31,7 @@ package programming5.net;
  *@see PluggableClient
  *@see ReceivingThread
  *@author Andres Quiroz Hernandez
- *@version 6.0
+ *@version 6.19
  */
 public interface MessagingClient extends PluggableClient, IPublisher<MessageArrivedEvent> {
 	
@@ -41,4 +44,22 @@ public interface MessagingClient extends PluggableClient, IPublisher<MessageArri
         public void send(String message, String url) throws NetworkException;
         public void send(byte[] bytesMessage, String url) throws NetworkException;
         
+        /**
+         *Waits for a message for limited time, and then returns up to the given number of messages that have arrived, 
+         *without waiting further. The default implementation returns at most the message received by receiveBytes(timeout).
+         *@param max the maximum number of messages returned
+         *@param timeout wait time in milliseconds
+         *@return the message bytes, oldest first; the list is empty if no message arrives before the timeout
+         */
+        public default List<byte[]> receiveBatch(int max, long timeout) throws InterruptedException {
+            List<byte[]> ret = new ArrayList<byte[]>();
+            if (max > 0) {
+                byte[] message = this.receiveBytes(timeout);
+                if (message != null) {
+                    ret.add(message);
+                }
+            }
+            return ret;
+        }
+        
 }
@@ -21,20 +21,53 @@
 
 package programming5.net;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  *This class implements a standard notifier that subscribes listeners that expect to be signaled. 
- *The listener objects must be of type Listener. Calls the signal methods of each listener in a separate thread to avoid hang-ups to 
- *the notifying application.
+ *The listener objects must be of type Listener. Calls the signal methods of each listener asynchronously to avoid hang-ups to 
+ *the notifying application, through a signal dispatcher that runs them on a shared executor and coalesces the signals fired for a 
+ *listener that has not yet handled a previous one, so that bursts of signals result in a bounded number of calls. As in Publisher, the listeners are kept in a copy-on-write list, so that signals can be fired while 
+ *listeners are added or removed from other threads.
  *@see Listener
+ *@see SignalDispatcher
  *@author Andres Quiroz Hernandez
- *@version 6.09
+ *@version 6.19
  */
 public abstract class Notifier implements INotifier {
     
-    protected List<Listener> listeners = new ArrayList<Listener>();
+    protected List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    protected SignalDispatcher dispatcher;
+
+    /**
+     *Creates a notifier that signals listeners on the shared default executor
+     *@see EventDispatcher#getDefaultExecutor
+     */
+    public Notifier() {
+        dispatcher = new SignalDispatcher();
+    }
+
+    /**
+     *Creates a notifier that signals listeners with the given dispatcher
+     */
+    public Notifier(SignalDispatcher myDispatcher) {
+        dispatcher = myDispatcher;
+    }
+
+    /**
+     *Replaces the dispatcher used by the fireSignal method
+     */
+    public void setDispatcher(SignalDispatcher myDispatcher) {
+        dispatcher = myDispatcher;
+    }
+
+    /**
+     *@return the dispatcher used by the fireSignal method, which reports the number of coalesced signals
+     */
+    public SignalDispatcher getDispatcher() {
+        return dispatcher;
+    }
     
     @Override
     public void addListener(Listener s) {
@@ -44,18 +77,17 @@ public abstract class Notifier implements INotifier {
     @Override
     public void removeListener(Listener s) {
         listeners.remove(s);
+        dispatcher.release(s);
     }
     
+    /**
+     *Queues a signal for each listener in the dispatcher, unless one is already queued for it. Each listener is signaled after the 
+     *last call to this method, and its signal method is never called concurrently.
+     */
     @Override
     public void fireSignal() {
         for (Listener listener : listeners) {
-            final Listener auxListener = listener;
-            new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    auxListener.signal();
-                }
-            }).start();
+            dispatcher.signal(listener);
         }
     }
     
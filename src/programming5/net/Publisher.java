@@ -21,25 +21,61 @@
 
 package programming5.net;
 
-import programming5.concurrent.ThreadPool;
-
-import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 
 /**
  *This class implements a standard publisher that subscribes listeners to a given 
- *event type. The listener objects must be of type Subscriber. Calls the signalEvent methods of each subscriber in a separate thread to avoid hang-ups to 
- *the publishing application.
+ *event type. The listener objects must be of type Subscriber. Calls the signalEvent methods of each subscriber asynchronously to avoid hang-ups to 
+ *the publishing application, through an event dispatcher that runs deliveries on a shared executor and preserves the order of events for each 
+ *subscriber.
+ *<p>The subscribers are kept in a copy-on-write list, so that events are fired to a snapshot of the subscribers (an iterator 
+ *of the list) without locking, and subscribers can be added or removed (even from within their signal methods) while events 
+ *are fired. A subscriber added or removed while an event is fired may or may not receive it, but the dispatcher keeps no queue 
+ *for a subscriber once it has been removed. The listener lock only serializes changes 
+ *to the list: holding its read lock keeps the subscribers from changing, but not events from being fired.
  *@see Subscriber
+ *@see EventDispatcher
  *@author Andres Quiroz Hernandez
  *@version 6.19
  */
 public class Publisher<E extends programming5.net.Event> implements IThreadAwarePublisher<E> {
     
-    protected List<Subscriber<E>> listeners = new ArrayList<Subscriber<E>>();
+    protected List<Subscriber<E>> listeners = new CopyOnWriteArrayList<Subscriber<E>>();
     protected ReentrantReadWriteLock listenerLock = new ReentrantReadWriteLock();
+    protected EventDispatcher<E> dispatcher;
+
+    /**
+     *Creates a publisher that dispatches events on the shared default executor
+     *@see EventDispatcher#getDefaultExecutor
+     */
+    public Publisher() {
+        dispatcher = new EventDispatcher<E>();
+    }
+
+    /**
+     *Creates a publisher that dispatches events with the given dispatcher
+     */
+    public Publisher(EventDispatcher<E> myDispatcher) {
+        dispatcher = myDispatcher;
+    }
+
+    /**
+     *Replaces the dispatcher used by the fireEvent method. Events already queued in the previous dispatcher are still delivered.
+     */
+    public void setDispatcher(EventDispatcher<E> myDispatcher) {
+        dispatcher = myDispatcher;
+    }
+
+    /**
+     *@return the dispatcher used by the fireEvent method
+     */
+    public EventDispatcher<E> getDispatcher() {
+        return dispatcher;
+    }
     
     @Override
     public void addListener(Subscriber<E> s) {
@@ -61,33 +97,30 @@ public class Publisher<E extends programming5.net.Event> implements IThreadAware
         finally {
             listenerLock.writeLock().unlock();
         }
+        dispatcher.release(s);
     }
     
     /**
-     *Calls the signal event methods of all subscribers, each in a new thread.
+     *Queues the event for each subscriber in the dispatcher, which calls the signal event methods of the subscribers asynchronously. 
+     *Events are delivered to each subscriber in the order in which they are fired.
      */
     @Override
     public <T extends E> void fireEvent(T event) {
-        final T auxEvent = event;
-        listenerLock.readLock().lock();
-        try {
-            for (Subscriber<E> listener : listeners) {
-                final Subscriber<E> auxListener = listener;
-//                new Thread(new Runnable() {
-//                    public void run() {
-//                        auxListener.signalEvent(auxEvent);
-//                    }
-//                }).start();
-                ThreadPool.memSafeThreadStart(new Runnable() {
-                    public void run() {
-                        auxListener.signalEvent(auxEvent);
-                    }
-                });
+        this.dispatchEvent(listeners.iterator(), event);
+    }
+
+    /**
+     *Queues the event in the dispatcher for each remaining subscriber of the given snapshot of the listeners (an iterator of the 
+     *list), so that subclasses can act on the same set of subscribers to which the event is fired
+     */
+    protected <T extends E> void dispatchEvent(Iterator<Subscriber<E>> snapshot, T event) {
+        while (snapshot.hasNext()) {
+            Subscriber<E> subscriber = snapshot.next();
+            if (dispatcher.dispatch(subscriber, event) && !listeners.contains(subscriber)) {
+                // Removed after the snapshot was taken, so its queue was released before this event created it again
+                dispatcher.release(subscriber);
             }
         }
-        finally {
-            listenerLock.readLock().unlock();
-        }
     }
 
     /**
@@ -95,15 +128,8 @@ public class Publisher<E extends programming5.net.Event> implements IThreadAware
      */
     @Override
     public <T extends E> void synchronousFireEvent(T event) {
-        final T auxEvent = event;
-        listenerLock.readLock().lock();
-        try {
-            for (Subscriber<E> listener : listeners) {
-                listener.signalEvent(auxEvent);
-            }
-        }
-        finally {
-            listenerLock.readLock().unlock();
+        for (Subscriber<E> listener : listeners) {
+            listener.signalEvent(event);
         }
     }
     
@@ -112,17 +138,11 @@ public class Publisher<E extends programming5.net.Event> implements IThreadAware
      *@see programming5.net.TerminationAwareSubscriber
      */
     public void announceNoMoreEvents() {
-        listenerLock.readLock().lock();
-        try {
-            for (Subscriber<E> listener : listeners) {
-                if (listener instanceof TerminationAwareSubscriber) {
-                    ((TerminationAwareSubscriber) listener).noMoreEvents();
-                }
+        for (Subscriber<E> listener : listeners) {
+            if (listener instanceof TerminationAwareSubscriber) {
+                ((TerminationAwareSubscriber) listener).noMoreEvents();
             }
         }
-        finally {
-            listenerLock.readLock().unlock();
-        }
     }
     
     /**
@@ -130,23 +150,21 @@ public class Publisher<E extends programming5.net.Event> implements IThreadAware
      *@see programming5.net.TerminationAwareSubscriber
      */
     public void terminateAllSubscriptions() {
-        listenerLock.readLock().lock();
-        try {
-            for (Subscriber<E> listener : listeners) {
-                if (listener instanceof TerminationAwareSubscriber) {
-                    ((TerminationAwareSubscriber) listener).subscriptionTerminated();
-                }
-            }
-        }
-        finally {
-            listenerLock.readLock().unlock();
-        }
+        Iterator<Subscriber<E>> terminated;
         try {
             listenerLock.writeLock().lock();
-            listeners.removeAll(listeners);
+            terminated = listeners.iterator();
+            listeners.clear();
         }
         finally {
             listenerLock.writeLock().unlock();
         }
+        while (terminated.hasNext()) {
+            Subscriber<E> listener = terminated.next();
+            if (listener instanceof TerminationAwareSubscriber) {
+                ((TerminationAwareSubscriber) listener).subscriptionTerminated();
+            }
+        }
+        dispatcher.releaseAll();
     }
 }
\ No newline at end of file
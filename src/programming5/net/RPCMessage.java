@@ -0,0 +1,212 @@
+/*
+ * RPCMessage.java
+ *
+ * Copyright 2004 Andres Quiroz Hernandez
+ *
+ * This file is part of Programming5.
+ * Programming5 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Programming5 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Programming5.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package programming5.net;
+
+import programming5.io.Serializer;
+
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+
+/**
+ *This is a special message wrapper for remote procedure calls. A request carries a call identifier, the name of the
+ *invoked method and the serialization of its parameters; a response carries the identifier of the call it answers, an
+ *error flag, and the serialization of the result (or of the exception thrown by the method, if the flag is set). The
+ *call identifier allows many calls to be in flight over the same connection, with responses in any order.
+ *<p>Parameters and results are only deserialized from classes allowed by a filter: by default, those of the java.lang, 
+ *java.util, java.math and java.time packages (not their subpackages), arrays of them and of primitive types, and 
+ *NetworkException (with its superclass IOException). Applications that pass their own types must allow them with a filter made by createFilter.
+ *@see programming5.net.Message
+ *@author Andres Quiroz Hernandez
+ *@version 6.19
+ */
+public class RPCMessage extends Message {
+
+    public static String REQUEST_HEADER = "RPCQ";
+    public static String RESPONSE_HEADER = "RPCR";
+
+    public static final String DEF_ALLOWED_CLASSES = "java.lang.*;java.util.*;java.math.*;java.time.*;java.io.IOException;programming5.net.NetworkException";
+    public static final String DEF_FILTER_LIMITS = "maxdepth=64;maxrefs=1000000";
+    public static final ObjectInputFilter DEF_FILTER = createFilter();
+
+    /**
+     *Creates a remote procedure call message from the given bytes, which must follow the correct format. The message is
+     *backed by a view over the given array, so items are only decoded when requested, and the array must not be modified
+     *afterwards.
+     *@param rpc the encoded request or response
+     *@throws MalformedMessageException when the byte message does not follow the correct format
+     */
+    public RPCMessage(byte[] rpc) throws MalformedMessageException {
+        super(new MessageView(rpc));
+        if (this.header == null || (!this.header.equals(REQUEST_HEADER) && !this.header.equals(RESPONSE_HEADER))) {
+            throw new MalformedMessageException("RPCMessage: Constructor: Not a remote procedure call message");
+        }
+        if (this.getMessageSize() < (this.header.equals(REQUEST_HEADER) ? 3 : 2)) {
+            throw new MalformedMessageException("RPCMessage: Constructor: Missing items");
+        }
+    }
+
+    private RPCMessage() {
+        super();
+    }
+
+    /**
+     *Creates a request for the invocation of the given method
+     *@param callID the identifier of the call, which the response will carry
+     *@throws java.io.NotSerializableException if any of the parameters is not serializable
+     */
+    public static RPCMessage createRequest(long callID, String methodName, Object[] parameters) throws IOException {
+        RPCMessage ret = new RPCMessage();
+        ret.setHeader(REQUEST_HEADER);
+        ret.addMessageItem(callID);
+        ret.addMessageItem(methodName);
+        ret.addMessageItem(Serializer.serializeBytes((parameters != null) ? parameters : new Object[0]));
+        return ret;
+    }
+
+    /**
+     *Creates the response to a call
+     *@param callID the identifier of the answered call
+     *@param result the value returned by the method (can be null), or the exception it threw
+     *@param error true if the result is an exception thrown by the method
+     *@throws java.io.NotSerializableException if the result is not serializable
+     */
+    public static RPCMessage createResponse(long callID, Object result, boolean error) throws IOException {
+        RPCMessage ret = new RPCMessage();
+        ret.setHeader(RESPONSE_HEADER);
+        ret.addMessageItem(callID);
+        ret.addMessageItem(error);
+        if (result != null) {
+            ret.addMessageItem(Serializer.serializeBytes(result));
+        }
+        return ret;
+    }
+
+    /**
+     *@return a filter that allows the default classes (DEF_ALLOWED_CLASSES) and those matched by the given patterns, in the 
+     *syntax of ObjectInputFilter.Config.createFilter (e.g. "com.example.Point" or "com.example.model.*"), and rejects all 
+     *other classes
+     */
+    public static ObjectInputFilter createFilter(String... allowedPatterns) {
+        StringBuilder pattern = new StringBuilder(DEF_FILTER_LIMITS).append(';').append(DEF_ALLOWED_CLASSES);
+        for (String allowed : allowedPatterns) {
+            pattern.append(';').append(allowed);
+        }
+        return ObjectInputFilter.Config.createFilter(pattern.append(";!*").toString());
+    }
+
+    /**
+     *@return true if the message is a request; false if it is a response
+     */
+    public boolean isRequest() {
+        return header.equals(REQUEST_HEADER);
+    }
+
+    /**
+     *@return the identifier of the call
+     *@throws MalformedMessageException if the message was not constructed correctly
+     */
+    public long getCallID() throws MalformedMessageException {
+        return this.getItemAsLong(0);
+    }
+
+    /**
+     *@return the name of the invoked method
+     *@throws MalformedMessageException if the message is not a request
+     */
+    public String getMethodName() throws MalformedMessageException {
+        if (!this.isRequest()) {
+            throw new MalformedMessageException("RPCMessage: Can't get method name: Wrong message type");
+        }
+        return this.getMessageItem(1);
+    }
+
+    /**
+     *@return the parameters of the invoked method, deserialized with the default filter
+     *@throws MalformedMessageException if the message is not a request
+     *@throws java.io.InvalidClassException if the parameters include a class that the filter does not allow
+     */
+    public Object[] getParameters() throws MalformedMessageException, IOException, ClassNotFoundException {
+        return this.getParameters(DEF_FILTER);
+    }
+
+    /**
+     *@return the parameters of the invoked method, deserialized with the given filter
+     *@throws MalformedMessageException if the message is not a request
+     *@throws java.io.InvalidClassException if the parameters include a class that the filter does not allow
+     */
+    public Object[] getParameters(ObjectInputFilter filter) throws MalformedMessageException, IOException, ClassNotFoundException {
+        if (!this.isRequest()) {
+            throw new MalformedMessageException("RPCMessage: Can't get parameters: Wrong message type");
+        }
+        Object ret = Serializer.deserialize(this.getItemAsByteArray(2), filter);
+        if (!(ret instanceof Object[])) {
+            throw new MalformedMessageException("RPCMessage: Can't get parameters: Not a parameter array");
+        }
+        return (Object[]) ret;
+    }
+
+    /**
+     *@return true if the response carries an exception thrown by the method
+     *@throws MalformedMessageException if the message is not a response
+     */
+    public boolean isError() throws MalformedMessageException {
+        if (this.isRequest()) {
+            throw new MalformedMessageException("RPCMessage: Can't get error flag: Wrong message type");
+        }
+        return this.getItemAsBoolean(1);
+    }
+
+    /**
+     *@return the value returned by the method (null if the method returned null or is void), or the exception it threw, 
+     *deserialized with the default filter
+     *@throws MalformedMessageException if the message is not a response
+     *@throws java.io.InvalidClassException if the result includes a class that the filter does not allow
+     */
+    public Object getResult() throws MalformedMessageException, IOException, ClassNotFoundException {
+        return this.getResult(DEF_FILTER);
+    }
+
+    /**
+     *@return the value returned by the method (null if the method returned null or is void), or the exception it threw, 
+     *deserialized with the given filter
+     *@throws MalformedMessageException if the message is not a response
+     *@throws java.io.InvalidClassException if the result includes a class that the filter does not allow
+     */
+    public Object getResult(ObjectInputFilter filter) throws MalformedMessageException, IOException, ClassNotFoundException {
+        if (this.isRequest()) {
+            throw new MalformedMessageException("RPCMessage: Can't get result: Wrong message type");
+        }
+        Object ret = null;
+        if (this.getMessageSize() > 2) {
+            ret = Serializer.deserialize(this.getItemAsByteArray(2), filter);
+        }
+        return ret;
+    }
+
+    /**
+     *@return the syntax in which the message was received (TEXT for messages created locally)
+     */
+    public Encoding getEncoding() {
+        return (source != null) ? source.getEncoding() : Encoding.TEXT;
+    }
+
+}
@@ -0,0 +1,194 @@
+/*
+ * ReceiveMailbox.java
+ *
+ * Copyright 2004 Andres Quiroz Hernandez
+ *
+ * This file is part of Programming5.
+ * Programming5 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Programming5 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Programming5.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package programming5.net;
+
+import programming5.concurrent.Mailbox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *This class holds the messages arrived at a MessagingClient for its blocking receive methods. Messages are kept in a
+ *bounded lock-free mailbox, so that messages that arrive while no receive call is waiting are not lost, and each message
+ *is taken by exactly one receive call. To keep clients that are only used through listeners from holding every message
+ *they receive, messages are only held once a receive method has been called (or the mailbox configured), or while the
+ *client has no listeners; other messages are only delivered to listeners, as in previous versions. Messages held while
+ *the client had no listeners can be handed to its first listener with subscribe: a client that finds no listeners holds the 
+ *message while holding the mailbox's lock, and subscribe adds the listener and drains the held messages under the same lock, 
+ *so that each message is either held and drained, or delivered to the listener.
+ *@see programming5.concurrent.Mailbox
+ *@author Andres Quiroz Hernandez
+ *@version 6.19
+ */
+public class ReceiveMailbox {
+
+    public static final int DEF_CAPACITY = Mailbox.DEF_CAPACITY;
+    public static final Mailbox.OverflowPolicy DEF_POLICY = Mailbox.OverflowPolicy.DROP_OLDEST;
+
+    private volatile Mailbox<byte[]> mailbox = null;
+    private volatile boolean receiving = false;
+    private int capacity = DEF_CAPACITY;
+    private Mailbox.OverflowPolicy policy = DEF_POLICY;
+
+    /**
+     *Creates a mailbox of the default capacity (1024 messages) that drops the oldest messages when full
+     */
+    public ReceiveMailbox() {
+    }
+
+    /**
+     *Sets the capacity and overflow policy of the mailbox, and starts holding messages for the receive methods. It should be
+     *called before any thread waits on the receive methods; messages already held are kept, up to the new capacity.
+     */
+    public synchronized void configure(int myCapacity, Mailbox.OverflowPolicy myPolicy) {
+        Mailbox<byte[]> configured = new Mailbox<byte[]>(myCapacity, myPolicy);
+        Mailbox<byte[]> previous = mailbox;
+        capacity = myCapacity;
+        policy = myPolicy;
+        mailbox = configured;
+        receiving = true;
+        if (previous != null) {
+            transfer(previous, configured);
+        }
+    }
+
+    /**
+     *Puts the given message in the mailbox, if a receive method has been called or if the message must be held anyway
+     *@param hold true if the message cannot be consumed other than by the receive methods (no listeners are subscribed)
+     */
+    public void deliver(byte[] message, boolean hold) {
+        if (hold || receiving) {
+            Mailbox<byte[]> target = this.activate();
+            target.put(message);
+            Mailbox<byte[]> current = mailbox;
+            while (current != target) {
+                // The mailbox was replaced by configure while the message was put, possibly after its messages were moved
+                transfer(target, current);
+                target = current;
+                current = mailbox;
+            }
+        }
+    }
+
+    /**
+     *Waits for as long as necessary for a message
+     *@return the oldest message in the mailbox
+     */
+    public byte[] receive() {
+        return this.startReceiving().takeUninterruptibly();
+    }
+
+    /**
+     *Waits for a message for limited time
+     *@param timeout wait time in milliseconds
+     *@return the oldest message in the mailbox, or null if none arrived before the timeout
+     */
+    public byte[] receive(long timeout) throws InterruptedException {
+        return this.startReceiving().poll(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     *Waits for a message for limited time, and then takes up to the given number of messages from the mailbox without
+     *waiting further
+     *@param max the maximum number of messages returned
+     *@param timeout wait time in milliseconds
+     *@return the messages taken, oldest first; the list is empty if no message arrived before the timeout
+     */
+    public List<byte[]> receiveBatch(int max, long timeout) throws InterruptedException {
+        List<byte[]> ret = new ArrayList<byte[]>(Math.min(Math.max(max, 0), 64));
+        this.startReceiving().drainTo(ret, max, timeout, TimeUnit.MILLISECONDS);
+        return ret;
+    }
+
+    /**
+     *Runs the given subscription of a client's first listener, and takes the messages held until then, under the mailbox's 
+     *lock (see the class description)
+     *@return the messages taken, oldest first
+     */
+    public synchronized List<byte[]> subscribe(Runnable subscription) {
+        subscription.run();
+        return this.drainHeld();
+    }
+
+    /**
+     *Takes the messages held so far without waiting, and without starting to hold messages for the receive methods. Meant to
+     *be called once by the first listener subscribed to a client, for the messages that arrived before its subscription; 
+     *subscribe must be used instead if messages may still be arriving.
+     *@return the messages taken, oldest first
+     */
+    public List<byte[]> drainHeld() {
+        List<byte[]> ret = new ArrayList<byte[]>();
+        Mailbox<byte[]> current = mailbox;
+        if (current != null) {
+            current.drainTo(ret, current.capacity());
+        }
+        return ret;
+    }
+
+    /**
+     *@return the number of messages held by the mailbox
+     */
+    public int size() {
+        Mailbox<byte[]> current = mailbox;
+        return (current != null) ? current.size() : 0;
+    }
+
+    /**
+     *@return the number of messages dropped because the mailbox was full, since it was last configured
+     */
+    public long getDroppedCount() {
+        Mailbox<byte[]> current = mailbox;
+        return (current != null) ? current.getDroppedCount() : 0;
+    }
+
+    /**
+     *Moves the messages of a replaced mailbox to the one that replaced it; may be called by configure and by deliver at once, 
+     *as each message is taken from the replaced mailbox once
+     */
+    private static void transfer(Mailbox<byte[]> replaced, Mailbox<byte[]> current) {
+        byte[] message = replaced.poll();
+        while (message != null) {
+            current.put(message);
+            message = replaced.poll();
+        }
+    }
+
+    private Mailbox<byte[]> startReceiving() {
+        receiving = true;
+        return this.activate();
+    }
+
+    private Mailbox<byte[]> activate() {
+        Mailbox<byte[]> ret = mailbox;
+        if (ret == null) {
+            synchronized (this) {
+                if (mailbox == null) {
+                    mailbox = new Mailbox<byte[]>(capacity, policy);
+                }
+                ret = mailbox;
+            }
+        }
+        return ret;
+    }
+
+}
@@ -23,15 +23,21 @@ package programming5.net;
 
 /**
  *This is a special message wrapper for transmission in a reliable protocol. It allows the
- *distinction of acknowledge messages from actual content messages.
+ *distinction of acknowledge messages from actual content messages. Besides the per part messages
+ *and acknowledgements, it supports the windowed variant of the protocol, in which every part
+ *also carries the sender's session, a packet sequence number and the sequence below which the sender
+ *has nothing left to deliver, and acknowledgements carry the cumulative sequence received plus a bitmap
+ *of the packets received after it.
  *@see programming5.net.Message
  *@author Andres Quiroz Hernandez
- *@version 6.11
+ *@version 6.19
  */
 public class ReliableProtocolMessage extends Message {
     
     public static String MESSAGE_HEADER = "RPM";
     public static String ACK_HEADER = "ACK";
+    public static String WINDOW_HEADER = "RPW";
+    public static String WINDOW_ACK_HEADER = "RPA";
 
     protected String destination = null;
     protected int sendCount = 0;
@@ -39,13 +45,14 @@ public class ReliableProtocolMessage extends Message {
     
     /**
      *Creates a reliable protocol message from the given message string, which must follow the 
-     *correct format (otherwise a MalformedMessageException is thrown)
+     *correct format (otherwise a MalformedMessageException is thrown). The message is backed by a view over 
+     *the given array, so items are only decoded when requested, and the array must not be modified afterwards.
      *@param rpm the encoded reliable protocol message
      *@throws MalformedMessageException when the byte message does not follow the correct format
      */
     public ReliableProtocolMessage(byte[] rpm) throws MalformedMessageException {
-        super(rpm);
-        if (!this.header.equals(MESSAGE_HEADER) && !this.header.equals(ACK_HEADER)) {
+        super(new MessageView(rpm));
+        if (this.header == null || (!this.header.equals(MESSAGE_HEADER) && !this.header.equals(ACK_HEADER) && !this.header.equals(WINDOW_HEADER) && !this.header.equals(WINDOW_ACK_HEADER))) {
             throw new MalformedMessageException("ReliableProtocolMessage: Constructor: Not a reliable protocol message");
         }
     }
@@ -83,15 +90,61 @@ public class ReliableProtocolMessage extends Message {
         this.addMessageItem(index);
     }
     
+    private ReliableProtocolMessage() {
+        super();
+    }
+
+    /**
+     *Creates a message part for the windowed protocol
+     *@param msg the message to encapsulate
+     *@param sequence the sequence number associated with the message
+     *@param index the index of the message part, for multiple part messages (1 to total)
+     *@param total the total number of parts of this message
+     *@param session the identifier of the sending session, which scopes the packet sequence numbers
+     *@param packetSequence the sequence number of this packet within the session (from 1 on)
+     *@param base the packet sequence up to which every packet of the session has been acknowledged or abandoned by the sender, 
+     *so that the receiver need not wait for them
+     *@param destURL the URL of the destination where the message will be sent (not encoded in the message)
+     */
+    public static ReliableProtocolMessage createWindowedMessage(byte[] msg, long sequence, int index, int total, long session, long packetSequence, long base, String destURL) {
+        ReliableProtocolMessage ret = new ReliableProtocolMessage();
+        ret.setHeader(WINDOW_HEADER);
+        ret.addMessageItem(sequence);
+        ret.addMessageItem(index);
+        ret.addMessageItem(total);
+        ret.addMessageItem(session);
+        ret.addMessageItem(packetSequence);
+        ret.addMessageItem(base);
+        ret.addMessageItem(msg);
+        ret.destination = destURL;
+        return ret;
+    }
+
+    /**
+     *Creates an acknowledgement for the windowed protocol
+     *@param session the session of the acknowledged packets
+     *@param cumulative the packet sequence up to which all packets of the session have been received
+     *@param selective a bitmap of the packets received after the cumulative sequence: bit i is set if packet cumulative + 2 + i 
+     *has been received (packet cumulative + 1 is missing by definition)
+     */
+    public static ReliableProtocolMessage createWindowAcknowledge(long session, long cumulative, long selective) {
+        ReliableProtocolMessage ret = new ReliableProtocolMessage();
+        ret.setHeader(WINDOW_ACK_HEADER);
+        ret.addMessageItem(session);
+        ret.addMessageItem(cumulative);
+        ret.addMessageItem(selective);
+        return ret;
+    }
+
     /**
      *@return the payload, if not an acknowledgement
      *@throws MalformedMessageException if the message was not correctly constructed
      */
     public byte[] getPayload() throws MalformedMessageException {
         byte[] ret = null;
-        if (header.equals(MESSAGE_HEADER)) {
+        if (header.equals(MESSAGE_HEADER) || header.equals(WINDOW_HEADER)) {
             try {
-                ret = this.getItemAsByteArray(3);
+                ret = this.getItemAsByteArray(header.equals(WINDOW_HEADER) ? 6 : 3);
             }
             catch (IndexOutOfBoundsException iobe) {
                 throw new MalformedMessageException("ReliableProtocolMessage: No message");
@@ -129,6 +182,74 @@ public class ReliableProtocolMessage extends Message {
         return this.getItemAsInt(2);
     }
     
+    /**
+     *@return the session of a windowed message or acknowledgement
+     *@throws MalformedMessageException if the message is not part of the windowed protocol or was not constructed correctly
+     */
+    public long getSession() throws MalformedMessageException {
+        if (header.equals(WINDOW_HEADER)) {
+            return this.getWindowItem(3);
+        }
+        else if (header.equals(WINDOW_ACK_HEADER)) {
+            return this.getWindowItem(0);
+        }
+        else {
+            throw new MalformedMessageException("ReliableProtocolMessage: Can't get session: Wrong message type");
+        }
+    }
+
+    /**
+     *@return the packet sequence number of a windowed message
+     *@throws MalformedMessageException if the message is not a windowed message or was not constructed correctly
+     */
+    public long getPacketSequence() throws MalformedMessageException {
+        if (header.equals(WINDOW_HEADER)) {
+            return this.getWindowItem(4);
+        }
+        else {
+            throw new MalformedMessageException("ReliableProtocolMessage: Can't get packet sequence: Wrong message type");
+        }
+    }
+
+    /**
+     *@return the packet sequence up to which the sender of a windowed message has nothing left to deliver
+     *@throws MalformedMessageException if the message is not a windowed message or was not constructed correctly
+     */
+    public long getBaseSequence() throws MalformedMessageException {
+        if (header.equals(WINDOW_HEADER)) {
+            return this.getWindowItem(5);
+        }
+        else {
+            throw new MalformedMessageException("ReliableProtocolMessage: Can't get base sequence: Wrong message type");
+        }
+    }
+
+    /**
+     *@return the cumulative packet sequence of a windowed acknowledgement
+     *@throws MalformedMessageException if the message is not a windowed acknowledgement or was not constructed correctly
+     */
+    public long getCumulativeSequence() throws MalformedMessageException {
+        if (header.equals(WINDOW_ACK_HEADER)) {
+            return this.getWindowItem(1);
+        }
+        else {
+            throw new MalformedMessageException("ReliableProtocolMessage: Can't get cumulative sequence: Wrong message type");
+        }
+    }
+
+    /**
+     *@return the bitmap of packets received after the cumulative sequence of a windowed acknowledgement
+     *@throws MalformedMessageException if the message is not a windowed acknowledgement or was not constructed correctly
+     */
+    public long getSelectiveAcknowledgements() throws MalformedMessageException {
+        if (header.equals(WINDOW_ACK_HEADER)) {
+            return this.getWindowItem(2);
+        }
+        else {
+            throw new MalformedMessageException("ReliableProtocolMessage: Can't get selective acknowledgements: Wrong message type");
+        }
+    }
+
     /**
      *@return true if the message is an acknowledgement
      */
@@ -143,6 +264,20 @@ public class ReliableProtocolMessage extends Message {
         return header.equals(MESSAGE_HEADER);
     }
 
+    /**
+     *@return true if the message is a part of the windowed protocol that carries a message payload
+     */
+    public boolean isWindowedMessage() {
+        return header.equals(WINDOW_HEADER);
+    }
+
+    /**
+     *@return true if the message is an acknowledgement of the windowed protocol
+     */
+    public boolean isWindowAcknowledge() {
+        return header.equals(WINDOW_ACK_HEADER);
+    }
+
     /**
      * Increments an internal counter, not sent over the network, for every time the message has 
      * been sent.
@@ -180,4 +315,13 @@ public class ReliableProtocolMessage extends Message {
         return acked;
     }
 
+    private long getWindowItem(int index) throws MalformedMessageException {
+        try {
+            return this.getItemAsLong(index);
+        }
+        catch (IndexOutOfBoundsException iobe) {
+            throw new MalformedMessageException("ReliableProtocolMessage: Missing item " + index);
+        }
+    }
+
 }
@@ -0,0 +1,234 @@
+/*
+ * SignalDispatcher.java
+ *
+ * Copyright 2004 Andres Quiroz Hernandez
+ *
+ * This file is part of Programming5.
+ * Programming5 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Programming5 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Programming5.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package programming5.net;
+
+import programming5.io.Debug;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *Delivers the signals fired by a Notifier to its listeners through a pluggable executor, coalescing the signals that arrive
+ *for a listener that has not yet handled a previous one. Since a signal carries no content, a listener that has a signal
+ *queued gains nothing from a second one: for each listener, at most one signal is running and at most one is queued behind
+ *it, and any other signal fired meanwhile is absorbed by the queued one. A listener is therefore always signaled after the
+ *last signal fired for it, but a burst of signals results in at most two calls to its signal method, which are never
+ *concurrent. Releasing a listener discards its state only once no signal is running or queued for it, so that a listener that
+ *is removed and added again while it is being signaled is still never signaled concurrently. Listeners are never signaled in
+ *the firing thread unless the executor runs tasks there: a signal whose task the executor rejects is discarded.
+ *@see Notifier
+ *@see EventDispatcher
+ *@author Andres Quiroz Hernandez
+ *@version 6.19
+ */
+public class SignalDispatcher {
+
+    protected final Executor executor;
+
+    private final Map<Listener, PendingSignal> signals = new ConcurrentHashMap<Listener, PendingSignal>();
+    private final AtomicLong signalCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    private static final int IDLE = 0;
+    private static final int QUEUED = 1;
+    private static final int RUNNING = 2;
+    private static final int RUNNING_QUEUED = 3;
+    private static final int RETIRED = 4;
+
+    /**
+     *Creates a dispatcher that runs signals on the executor shared with event dispatchers
+     *@see EventDispatcher#getDefaultExecutor
+     */
+    public SignalDispatcher() {
+        this(EventDispatcher.getDefaultExecutor());
+    }
+
+    /**
+     *@param executor the executor on which listeners are signaled
+     */
+    public SignalDispatcher(Executor executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("SignalDispatcher: Executor must not be null");
+        }
+        this.executor = executor;
+    }
+
+    /**
+     *Queues a signal for the given listener, unless one is already queued for it
+     */
+    public void signal(Listener listener) {
+        signalCount.incrementAndGet();
+        while (true) {
+            PendingSignal pending = signals.get(listener);
+            if (pending == null) {
+                PendingSignal newPending = new PendingSignal(listener);
+                pending = signals.putIfAbsent(listener, newPending);
+                if (pending == null) {
+                    pending = newPending;
+                }
+            }
+            if (pending.offer()) {
+                return;
+            }
+            // Retired by a release since it was looked up
+            signals.remove(listener, pending);
+        }
+    }
+
+    /**
+     *Discards the state kept for the given listener once it is idle; a signal already queued for it is still delivered
+     */
+    public void release(Listener listener) {
+        PendingSignal pending = signals.get(listener);
+        if (pending != null) {
+            pending.release();
+        }
+    }
+
+    /**
+     *Discards the state kept for all listeners once they are idle
+     */
+    public void releaseAll() {
+        for (PendingSignal pending : signals.values()) {
+            pending.release();
+        }
+    }
+
+    /**
+     *@return the number of listeners for which state is kept
+     */
+    int getListenerCount() {
+        return signals.size();
+    }
+
+    /**
+     *@return the number of signals fired through this dispatcher
+     */
+    public long getSignalCount() {
+        return signalCount.get();
+    }
+
+    /**
+     *@return the number of signals that were absorbed by a signal already queued for the same listener, and so did not result
+     *in a call to the listener's signal method
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    private void deliver(Listener listener) {
+        try {
+            listener.signal();
+        }
+        catch (RuntimeException re) {
+            Debug.printStackTrace(re, "programming5.net.SignalDispatcher");
+        }
+    }
+
+    private class PendingSignal implements Runnable {
+
+        final Listener listener;
+        final AtomicInteger state = new AtomicInteger(IDLE);
+        volatile boolean released = false;
+
+        PendingSignal(Listener myListener) {
+            listener = myListener;
+        }
+
+        /**
+         *@return false if the signal was not taken because the state was retired
+         */
+        boolean offer() {
+            while (true) {
+                int current = state.get();
+                if (current == IDLE) {
+                    if (state.compareAndSet(IDLE, QUEUED)) {
+                        this.schedule();
+                        return true;
+                    }
+                }
+                else if (current == RUNNING) {
+                    if (state.compareAndSet(RUNNING, RUNNING_QUEUED)) {
+                        return true;
+                    }
+                }
+                else if (current == RETIRED) {
+                    return false;
+                }
+                else {
+                    coalescedCount.incrementAndGet();
+                    return true;
+                }
+            }
+        }
+
+        /**
+         *Retires the state now if it is idle, or else when it next becomes idle
+         */
+        void release() {
+            released = true;
+            this.retireIfIdle();
+        }
+
+        void retireIfIdle() {
+            if (state.compareAndSet(IDLE, RETIRED)) {
+                signals.remove(listener, this);
+            }
+        }
+
+        void schedule() {
+            try {
+                executor.execute(this);
+            }
+            catch (RejectedExecutionException ree) {
+                Debug.println("SignalDispatcher: Executor rejected signal task; discarding signal", "programming5.net.SignalDispatcher");
+                state.set(IDLE);
+                if (released) {
+                    this.retireIfIdle();
+                }
+            }
+        }
+
+        /**
+         *Signals the listener once, and reschedules itself if another signal was queued meanwhile, so that a listener with
+         *frequent signals does not monopolize a pool thread
+         */
+        @Override
+        public void run() {
+            state.set(RUNNING);
+            deliver(listener);
+            if (!state.compareAndSet(RUNNING, IDLE)) {
+                state.set(QUEUED);
+                this.schedule();
+            }
+            else if (released) {
+                this.retireIfIdle();
+            }
+        }
+
+    }
+
+}
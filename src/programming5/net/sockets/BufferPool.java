@@ -0,0 +1,100 @@
+/*
+ * BufferPool.java
+ *
+ * Copyright 2004 Andres Quiroz Hernandez
+ *
+ * This file is part of Programming5.
+ * Programming5 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Programming5 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Programming5.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package programming5.net.sockets;
+
+import java.util.ArrayDeque;
+
+/**
+ *This class keeps a bounded number of equally sized byte arrays for reuse, so that receivers can take a fresh buffer when they
+ *need to hold on to the one they have, without allocating a new array for every packet. Buffers released when the pool is full
+ *are left to the garbage collector.
+ *@see programming5.net.sockets.UDPReceiver
+ *@author Andres Quiroz Hernandez
+ *@version 6.19
+ */
+public class BufferPool {
+
+    public static final int DEF_MAX_POOLED = 16;
+
+    protected final int bufferSize;
+    protected final int maxPooled;
+    private final ArrayDeque<byte[]> pool = new ArrayDeque<byte[]>();
+    private long allocatedCount = 0;
+
+    /**
+     *Creates a pool of buffers of the given size that keeps up to DEF_MAX_POOLED free buffers
+     */
+    public BufferPool(int myBufferSize) {
+        this(myBufferSize, DEF_MAX_POOLED);
+    }
+
+    /**
+     *Creates a pool of buffers of the given size that keeps up to the given number of free buffers
+     */
+    public BufferPool(int myBufferSize, int myMaxPooled) {
+        bufferSize = myBufferSize;
+        maxPooled = myMaxPooled;
+    }
+
+    /**
+     *@return a free buffer from the pool, or a newly allocated one if the pool is empty
+     */
+    public synchronized byte[] acquire() {
+        byte[] ret = pool.pollFirst();
+        if (ret == null) {
+            ret = new byte[bufferSize];
+            allocatedCount++;
+        }
+        return ret;
+    }
+
+    /**
+     *Returns the given buffer to the pool; buffers of a different size are ignored
+     */
+    public synchronized void release(byte[] buffer) {
+        if (buffer != null && buffer.length == bufferSize && pool.size() < maxPooled) {
+            pool.addFirst(buffer);
+        }
+    }
+
+    /**
+     *@return the size of the buffers in the pool
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     *@return the number of buffers allocated by the pool since its creation
+     */
+    public synchronized long getAllocatedCount() {
+        return allocatedCount;
+    }
+
+    /**
+     *@return the number of free buffers currently held by the pool
+     */
+    public synchronized int size() {
+        return pool.size();
+    }
+
+}
@@ -0,0 +1,318 @@
+/*
+ * ConnectionAdmission.java
+ *
+ * Copyright 2004 Andres Quiroz Hernandez
+ *
+ * This file is part of Programming5.
+ * Programming5 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Programming5 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Programming5.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package programming5.net.sockets;
+
+import programming5.concurrent.ThreadPool;
+import programming5.io.Debug;
+import programming5.net.NetworkException;
+import programming5.net.PluggableClient;
+import programming5.net.ServiceObject;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *This class decides what happens to the sockets accepted by the TCP server threads. A socket is admitted only while the number
+ *of active connections is below the configured maximum (DEF_MAX_CONNECTIONS by default); otherwise it is closed immediately and counted
+ *as rejected. Admitted sockets are wrapped in a client by a task run on the configured executor: a shared fixed pool by default,
+ *a per-task virtual thread executor where the platform provides one, or any other executor. Since a service object may serve
+ *its client for the whole life of the connection, the client is then handed to the service object on the service executor,
+ *which by default runs each call in a pooled thread of its own (up to DEF_MAX_CONNECTIONS threads, beyond which the connection
+ *is closed), so that a blocked service never delays other connections. If a
+ *selector loop is set, sockets that have a channel are served by an NIOTCPClient on that loop instead of by a TCPClient with its
+ *own receiver thread, and if an SSL context is set, they are served by an NIOSSLClient over TLS. A connection stops counting as
+ *active when its client ends or loses the connection.
+ *<p>Without a selector loop, each connection keeps a receiver thread (and a service thread while the service object's newClient
+ *method runs), so the number of threads is bounded by the maximum number of connections, which is why there is a finite
+ *limit by default; a server whose connections are served on a selector loop can raise it, or remove it (UNLIMITED).
+ *@see programming5.net.sockets.TCPServerDaemon
+ *@see programming5.net.sockets.TCPServerAcceptThread
+ *@author Andres Quiroz Hernandez
+ *@version 6.19
+ */
+public class ConnectionAdmission {
+
+    public static final int UNLIMITED = 0;
+    public static final int DEF_MAX_CONNECTIONS = 1024;
+    public static final int DEF_WORKERS = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+
+    protected Executor executor;
+    protected SelectorLoop loop = null;
+    protected int maxConnections = DEF_MAX_CONNECTIONS;
+    protected SSLContext sslContext = null;
+    protected final HandshakeMetrics handshakeMetrics = new HandshakeMetrics();
+    protected final TransportMetrics transportMetrics = new TransportMetrics();
+
+    private final AtomicLong acceptedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicInteger activeCount = new AtomicInteger();
+
+    protected Executor serviceExecutor;
+
+    private static Executor defaultExecutor = null;
+    private static Executor defaultServiceExecutor = null;
+
+    /**
+     *Creates an admission policy with the default connection limit that uses the default executors
+     */
+    public ConnectionAdmission() {
+        executor = getDefaultExecutor();
+        serviceExecutor = getDefaultServiceExecutor();
+        transportMetrics.addGauge("activeConnections", new TransportMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return activeCount.get();
+            }
+        });
+    }
+
+    /**
+     *@return the executor shared by all servers that have not been given one: a fixed pool of DEF_WORKERS daemon threads
+     */
+    public static synchronized Executor getDefaultExecutor() {
+        if (defaultExecutor == null) {
+            defaultExecutor = newFixedPool(DEF_WORKERS);
+        }
+        return defaultExecutor;
+    }
+
+    /**
+     *@return the service executor shared by all servers that have not been given one, which runs each task in an idle pooled
+     *daemon thread or, if there is none, in a new one, up to DEF_MAX_CONNECTIONS threads; with every thread busy, it refuses
+     *the task, and the client is ended
+     *@see programming5.concurrent.ThreadPool.Mode#ELASTIC
+     */
+    public static synchronized Executor getDefaultServiceExecutor() {
+        if (defaultServiceExecutor == null) {
+            defaultServiceExecutor = new ThreadPool("programming5-service", DEF_MAX_CONNECTIONS, ThreadPool.DEF_QUEUE_CAPACITY, ThreadPool.Mode.ELASTIC, ThreadPool.RejectionPolicy.ABORT);
+        }
+        return defaultServiceExecutor;
+    }
+
+    /**
+     *@return a new executor with the given number of daemon threads, which refuses tasks when too many are waiting (so that the
+     *accepting thread closes the connection instead of waiting)
+     *@see programming5.concurrent.ThreadPool
+     */
+    public static Executor newFixedPool(int threads) {
+        return new ThreadPool("programming5-accept", threads, ThreadPool.DEF_QUEUE_CAPACITY, ThreadPool.Mode.BOUNDED, ThreadPool.RejectionPolicy.ABORT);
+    }
+
+    /**
+     *@return an executor that runs each task in a new virtual thread
+     *@throws UnsupportedOperationException if the platform does not support virtual threads
+     */
+    public static Executor virtualThreadExecutor() {
+        return new ThreadPool("programming5-accept", 1, ThreadPool.Mode.VIRTUAL);
+    }
+
+    /**
+     *Sets the executor on which new clients are created
+     */
+    public void setExecutor(Executor myExecutor) {
+        executor = myExecutor;
+    }
+
+    /**
+     *Sets the executor on which new clients are handed to the service object. Since the service object's newClient method may not
+     *return until the connection ends, the executor must not queue a call behind another one that has not returned (e.g. a fixed
+     *pool), unless the service object is known to return promptly.
+     */
+    public void setServiceExecutor(Executor myExecutor) {
+        serviceExecutor = myExecutor;
+    }
+
+    /**
+     *Sets the selector loop that will serve accepted connections; if null (the default), each connection is served by a
+     *TCPClient with its own receiver thread
+     */
+    public void setSelectorLoop(SelectorLoop myLoop) {
+        loop = myLoop;
+    }
+
+    /**
+     *Sets the SSL context with which accepted connections are served over TLS by NIOSSLClient objects, on the selector loop if
+     *one is set or on a shared loop otherwise; if null (the default), connections are not encrypted
+     */
+    public void setSSLContext(SSLContext context) {
+        sslContext = context;
+    }
+
+    /**
+     *@return the metrics of the TLS handshakes of all accepted connections
+     */
+    public HandshakeMetrics getHandshakeMetrics() {
+        return handshakeMetrics;
+    }
+
+    /**
+     *@return the metrics of the messages sent and received on all accepted connections, which are shared by their clients
+     */
+    public TransportMetrics getTransportMetrics() {
+        return transportMetrics;
+    }
+
+    /**
+     *Sets the maximum number of connections that can be active at once; UNLIMITED (0) for no limit
+     */
+    public void setMaxConnections(int max) {
+        maxConnections = max;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     *@return the number of connections admitted since creation
+     */
+    public long getAcceptedCount() {
+        return acceptedCount.get();
+    }
+
+    /**
+     *@return the number of connections closed on arrival since creation, because of the connection limit or because the
+     *executor did not accept the task
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     *@return the number of admitted connections that have not ended
+     */
+    public int getActiveCount() {
+        return activeCount.get();
+    }
+
+    /**
+     *Admits or rejects the given socket. If admitted, a client for it is created on the executor and passed to the given service
+     *object on the service executor.
+     *@return true if the socket was admitted
+     */
+    public boolean admit(final Socket socket, final ServiceObject target) {
+        if (!this.reserve()) {
+            this.reject(socket, "Connection limit reached");
+            return false;
+        }
+        acceptedCount.incrementAndGet();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final PluggableClient client;
+                    try {
+                        client = createClient(socket);
+                    }
+                    catch (NetworkException ne) {
+                        activeCount.decrementAndGet();
+                        System.err.println("ConnectionAdmission: Couldn't create client: " + ne.getMessage());
+                        return;
+                    }
+                    try {
+                        serviceExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                target.newClient(client);
+                            }
+                        });
+                    }
+                    catch (RejectedExecutionException ree) {
+                        Debug.println("ConnectionAdmission: Service executor rejected connection; ending client", "programming5.net.sockets.ConnectionAdmission");
+                        client.endConnection();
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException ree) {
+            activeCount.decrementAndGet();
+            this.reject(socket, "Executor rejected connection");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     *Creates the client that will serve the given socket, which stops counting as active when the client ends
+     */
+    protected PluggableClient createClient(Socket socket) throws NetworkException {
+        Runnable release = new Runnable() {
+            @Override
+            public void run() {
+                activeCount.decrementAndGet();
+            }
+        };
+        if (sslContext != null) {
+            if (socket.getChannel() == null) {
+                throw new NetworkException("ConnectionAdmission: TLS requires a socket with a channel");
+            }
+            try {
+                NIOSSLClient client = new NIOSSLClient(socket.getChannel(), sslContext, (loop != null) ? loop : SelectorLoop.shared(), handshakeMetrics);
+                client.setTransportMetrics(transportMetrics);
+                client.onClose(release);
+                return client;
+            }
+            catch (IOException ioe) {
+                throw new NetworkException("ConnectionAdmission: Could not create selector loop: " + ioe.getMessage());
+            }
+        }
+        else if (loop != null && socket.getChannel() != null) {
+            NIOTCPClient client = new NIOTCPClient(socket.getChannel(), loop);
+            client.setTransportMetrics(transportMetrics);
+            client.onClose(release);
+            return client;
+        }
+        else {
+            TCPClient client = new TCPClient(socket);
+            client.setTransportMetrics(transportMetrics);
+            client.onClose(release);
+            return client;
+        }
+    }
+
+    private boolean reserve() {
+        while (true) {
+            int active = activeCount.get();
+            if (maxConnections != UNLIMITED && active >= maxConnections) {
+                return false;
+            }
+            if (activeCount.compareAndSet(active, active + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void reject(Socket socket, String reason) {
+        rejectedCount.incrementAndGet();
+        Debug.println("ConnectionAdmission: " + reason + "; closing connection from " + socket.getRemoteSocketAddress(), "programming5.net.sockets.ConnectionAdmission");
+        try {
+            socket.close();
+        }
+        catch (IOException ignored) {}
+    }
+
+}
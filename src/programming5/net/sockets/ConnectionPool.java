@@ -0,0 +1,338 @@
+/*
+ * ConnectionPool.java
+ *
+ * Copyright 2004 Andres Quiroz Hernandez
+ *
+ * This file is part of Programming5.
+ * Programming5 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Programming5 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Programming5.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package programming5.net.sockets;
+
+import programming5.concurrent.TimingWheel;
+import programming5.io.Debug;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *This class keeps open connections to many destinations, so that messages sent to a destination reuse a connection instead of
+ *opening a new one each time, without keeping connections to destinations that are no longer used. Connections are checked out
+ *for each use and released when the use is complete; they are shared (the pool does not assume that a connection can only
+ *serve one use at a time), but a checkout prefers the connection of the destination with the fewest uses in progress, and a new
+ *connection is opened when all the connections of the destination are in use, up to a maximum number per destination. The pool
+ *is thread safe: checkouts to different destinations do not contend, and checkouts to the same destination only contend
+ *briefly, unless a connection has to be opened.
+ *<p>Connections that fail their health check are discarded at checkout, and connections that have not been used for longer than
+ *the idle timeout are closed by a periodic sweep, which also discards failed connections.
+ *@see programming5.net.sockets.TCPClient
+ *@author Andres Quiroz Hernandez
+ *@version 6.19
+ */
+public class ConnectionPool<C extends ConnectionPool.Connection> {
+
+    /**
+     *A connection managed by the pool
+     */
+    public interface Connection {
+
+        /**
+         *@return false if the connection can no longer be used
+         */
+        public boolean isHealthy();
+
+        /**
+         *Closes the connection; called by the pool when the connection is evicted or the pool is closed
+         */
+        public void close();
+
+    }
+
+    /**
+     *Opens the connections of the pool
+     */
+    public interface Connector<C> {
+
+        /**
+         *@return a new connection to the given destination
+         */
+        public C connect(String destination) throws IOException;
+
+    }
+
+    public static final int DEF_MAX_PER_HOST = 1;
+    public static final long DEF_IDLE_TIMEOUT = 60000;  // msecs
+    protected static final long SWEEP_TICK = 100;  // msecs
+
+    protected final Connector<C> connector;
+    protected int maxPerHost = DEF_MAX_PER_HOST;
+    protected long idleTimeout = DEF_IDLE_TIMEOUT;
+
+    private final ConcurrentHashMap<String, List<Entry<C>>> hosts = new ConcurrentHashMap<String, List<Entry<C>>>();
+    private TimingWheel.Timeout sweep = null;
+    private long openedCount = 0;
+    private long evictedCount = 0;
+
+    /**
+     *Creates a pool that opens connections with the given connector, with one connection per destination and an idle timeout of
+     *one minute
+     */
+    public ConnectionPool(Connector<C> myConnector) {
+        connector = myConnector;
+    }
+
+    /**
+     *Sets the maximum number of connections open to a single destination (1 by default). With more than one connection, messages
+     *sent to the same destination can be written over different connections, so they may arrive out of order.
+     */
+    public void setMaxPerHost(int max) {
+        if (max < 1) {
+            throw new IllegalArgumentException("ConnectionPool: The maximum number of connections per host must be positive");
+        }
+        maxPerHost = max;
+    }
+
+    /**
+     *Sets the time after which a connection that has not been used is closed (one minute by default)
+     */
+    public synchronized void setIdleTimeout(long millis) {
+        idleTimeout = millis;
+        if (sweep != null) {
+            sweep.cancel();
+            sweep = null;
+            this.scheduleSweep();
+        }
+    }
+
+    /**
+     *@return a healthy connection to the given destination, which must be released after use; opens a new connection if the
+     *destination has none, or if all its connections are in use and there are fewer than the maximum
+     *@throws IOException if a new connection is needed and cannot be opened
+     */
+    public C checkout(String destination) throws IOException {
+        while (true) {
+            List<Entry<C>> entries = hosts.get(destination);
+            if (entries == null) {
+                entries = new ArrayList<Entry<C>>(maxPerHost);
+                List<Entry<C>> existing = hosts.putIfAbsent(destination, entries);
+                if (existing != null) {
+                    entries = existing;
+                }
+            }
+            synchronized (entries) {
+                // The list is dropped from the pool by the sweep when it becomes empty
+                if (hosts.get(destination) == entries) {
+                    return this.checkout(destination, entries);
+                }
+            }
+        }
+    }
+
+    /**
+     *Signals that a use of the given connection, checked out for the given destination, is complete
+     */
+    public void release(String destination, C connection) {
+        List<Entry<C>> entries = hosts.get(destination);
+        if (entries != null) {
+            synchronized (entries) {
+                for (Entry<C> entry : entries) {
+                    if (entry.connection == connection) {
+                        entry.inUse--;
+                        entry.lastUsed = System.currentTimeMillis();
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     *Removes the given connection from the pool without closing it (for example, because it has been closed by the remote end)
+     */
+    public void remove(String destination, C connection) {
+        List<Entry<C>> entries = hosts.get(destination);
+        if (entries != null) {
+            synchronized (entries) {
+                Iterator<Entry<C>> iterator = entries.iterator();
+                while (iterator.hasNext()) {
+                    if (iterator.next().connection == connection) {
+                        iterator.remove();
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     *Closes the connections that have not been used for longer than the idle timeout and discards the connections that fail their
+     *health check; called periodically while the pool has connections
+     *@return the number of connections closed or discarded
+     */
+    public int evictIdle() {
+        int ret = 0;
+        long limit = System.currentTimeMillis() - idleTimeout;
+        for (Map.Entry<String, List<Entry<C>>> host : hosts.entrySet()) {
+            List<Entry<C>> entries = host.getValue();
+            synchronized (entries) {
+                Iterator<Entry<C>> iterator = entries.iterator();
+                while (iterator.hasNext()) {
+                    Entry<C> entry = iterator.next();
+                    if (!entry.connection.isHealthy() || (entry.inUse <= 0 && entry.lastUsed < limit)) {
+                        iterator.remove();
+                        entry.connection.close();
+                        ret++;
+                    }
+                }
+                if (entries.isEmpty()) {
+                    hosts.remove(host.getKey(), entries);
+                }
+            }
+        }
+        synchronized (this) {
+            evictedCount += ret;
+        }
+        return ret;
+    }
+
+    /**
+     *Closes all the connections of the pool, which can still be used afterwards
+     */
+    public void closeAll() {
+        for (String destination : hosts.keySet()) {
+            List<Entry<C>> entries = hosts.remove(destination);
+            if (entries != null) {
+                synchronized (entries) {
+                    for (Entry<C> entry : entries) {
+                        entry.connection.close();
+                    }
+                    entries.clear();
+                }
+            }
+        }
+        synchronized (this) {
+            if (sweep != null) {
+                sweep.cancel();
+                sweep = null;
+            }
+        }
+    }
+
+    /**
+     *@return the number of open connections in the pool
+     */
+    public int size() {
+        int ret = 0;
+        for (List<Entry<C>> entries : hosts.values()) {
+            synchronized (entries) {
+                ret += entries.size();
+            }
+        }
+        return ret;
+    }
+
+    /**
+     *@return the number of connections opened by the pool since its creation
+     */
+    public synchronized long getOpenedCount() {
+        return openedCount;
+    }
+
+    /**
+     *@return the number of connections closed by the pool because they were idle or failed their health check
+     */
+    public synchronized long getEvictedCount() {
+        return evictedCount;
+    }
+
+    /**
+     *Must be called with the pool's lock held; schedules the next sweep if none is pending
+     */
+    private void scheduleSweep() {
+        if (sweep == null) {
+            sweep = TimingWheel.getDefault().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        evictIdle();
+                    }
+                    catch (RuntimeException re) {
+                        Debug.printStackTrace(re, "programming5.net.sockets.ConnectionPool");
+                    }
+                    synchronized (ConnectionPool.this) {
+                        sweep = null;
+                        if (!hosts.isEmpty()) {
+                            scheduleSweep();
+                        }
+                    }
+                }
+            }, Math.max(SWEEP_TICK, idleTimeout / 2));
+        }
+    }
+
+    /**
+     *Must be called with the lock of the given list of the destination's connections held
+     */
+    private C checkout(String destination, List<Entry<C>> entries) throws IOException {
+        Entry<C> best = null;
+        Iterator<Entry<C>> iterator = entries.iterator();
+        while (iterator.hasNext()) {
+            Entry<C> entry = iterator.next();
+            if (!entry.connection.isHealthy()) {
+                iterator.remove();
+                entry.connection.close();
+            }
+            else if (best == null || entry.inUse < best.inUse) {
+                best = entry;
+            }
+        }
+        if (best == null || (best.inUse > 0 && entries.size() < maxPerHost)) {
+            try {
+                best = new Entry<C>(connector.connect(destination));
+            }
+            catch (IOException ioe) {
+                if (entries.isEmpty()) {
+                    hosts.remove(destination, entries);
+                }
+                throw ioe;
+            }
+            entries.add(best);
+            synchronized (this) {
+                openedCount++;
+                this.scheduleSweep();
+            }
+        }
+        best.inUse++;
+        best.lastUsed = System.currentTimeMillis();
+        return best.connection;
+    }
+
+    private static class Entry<C> {
+
+        final C connection;
+        int inUse = 0;
+        long lastUsed = System.currentTimeMillis();
+
+        Entry(C myConnection) {
+            connection = myConnection;
+        }
+
+    }
+
+}
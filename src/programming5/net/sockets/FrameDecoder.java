@@ -0,0 +1,290 @@
+/*
+ * FrameDecoder.java
+ *
+ * Copyright 2004 Andres Quiroz Hernandez
+ *
+ * This file is part of Programming5.
+ * Programming5 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Programming5 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Programming5.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package programming5.net.sockets;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ *This class reassembles length prefixed frames from a TCP stream. Bytes are read straight into a single reusable buffer, which
+ *grows only when a frame larger than its capacity arrives; frame headers are parsed in place, and each complete payload is
+ *copied exactly once, into the array handed to the frame handler. Two framings are supported: the ASCII framing used by
+ *TCPClient since its first version ("length:payload", where a negative length signals the end of the stream), and a binary
+ *framing with a 4 byte big endian length prefix (where a negative length has the same meaning), intended for new deployments.
+ *Both ends of a connection must use the same framing.
+ *<p>A corrupt header (or one announcing a frame longer than the maximum frame length) leaves no way to find where the next
+ *frame starts, so it makes the decoder fail: the call that finds it throws an IOException, as do any later calls, and the
+ *connection must be closed.
+ *@see programming5.net.sockets.TCPClient
+ *@author Andres Quiroz Hernandez
+ *@version 6.19
+ */
+public class FrameDecoder {
+
+    public static enum Framing {ASCII, BINARY};
+
+    /**
+     *Receives the frames extracted by a decoder
+     */
+    public static interface FrameHandler {
+
+        /**
+         *Called for every complete frame, in stream order
+         */
+        public void frameDecoded(byte[] payload);
+
+        /**
+         *Called when a termination frame (negative length) is found; no more frames are decoded after this call
+         */
+        public void terminationReceived();
+
+    }
+
+    public static final int DEF_BUFFER_SIZE = 65536;
+    public static final int DEF_MAX_FRAME_LENGTH = 8 * 1024 * 1024;
+    protected static final byte SEPARATOR = ':';
+    protected static final byte MINUS = '-';
+    protected static final int BINARY_HEADER_SIZE = 4;
+    private static final int MAX_ASCII_HEADER_SIZE = 11;
+
+    protected final Framing framing;
+    protected final FrameHandler handler;
+    protected ByteBuffer buffer;
+    protected int maxFrameLength = DEF_MAX_FRAME_LENGTH;
+
+    private boolean terminated = false;
+    private String corruption = null;
+
+    /**
+     *Creates a decoder for the ASCII framing
+     */
+    public FrameDecoder(FrameHandler myHandler) {
+        this(Framing.ASCII, myHandler);
+    }
+
+    /**
+     *Creates a decoder for the given framing
+     */
+    public FrameDecoder(Framing myFraming, FrameHandler myHandler) {
+        framing = myFraming;
+        handler = myHandler;
+        buffer = ByteBuffer.allocate(DEF_BUFFER_SIZE);
+    }
+
+    /**
+     *@return the header that precedes a payload of the given length in the given framing; a negative length produces the header
+     *of a termination frame
+     */
+    public static byte[] encodeHeader(Framing framing, int length) {
+        byte[] ret;
+        if (framing == Framing.BINARY) {
+            ret = new byte[BINARY_HEADER_SIZE];
+            ret[0] = (byte) (length >>> 24);
+            ret[1] = (byte) (length >>> 16);
+            ret[2] = (byte) (length >>> 8);
+            ret[3] = (byte) length;
+        }
+        else {
+            ret = (Integer.toString(length) + ":").getBytes();
+        }
+        return ret;
+    }
+
+    /**
+     *Frames larger than the given length (8 MB by default) are treated as corrupt input, so that a header from a faulty or
+     *malicious peer cannot make the decoder allocate an arbitrarily large buffer; the decoder fails when it finds one
+     */
+    public void setMaxFrameLength(int length) {
+        maxFrameLength = length;
+    }
+
+    /**
+     *Reads the bytes available from the given stream (blocking if none are) and decodes all the frames completed by them
+     *@return the number of bytes read, or -1 if the end of the stream has been reached
+     *@throws IOException if reading fails or a corrupt header is found
+     */
+    public int readFrom(InputStream in) throws IOException {
+        int bytesRead = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        if (bytesRead > 0) {
+            buffer.position(buffer.position() + bytesRead);
+            this.decode();
+        }
+        return bytesRead;
+    }
+
+    /**
+     *Reads the bytes available from the given channel and decodes all the frames completed by them
+     *@return the number of bytes read, or -1 if the end of the stream has been reached
+     *@throws IOException if reading fails or a corrupt header is found
+     */
+    public int readFrom(ReadableByteChannel channel) throws IOException {
+        int bytesRead = channel.read(buffer);
+        if (bytesRead > 0) {
+            this.decode();
+        }
+        return bytesRead;
+    }
+
+    /**
+     *Appends the given bytes to the stream being decoded and decodes all the frames completed by them
+     *@throws IOException if a corrupt header is found
+     */
+    public void append(ByteBuffer data) throws IOException {
+        while (data.hasRemaining() && !terminated) {
+            if (!buffer.hasRemaining()) {
+                this.grow(buffer.capacity() * 2);
+            }
+            int count = Math.min(data.remaining(), buffer.remaining());
+            ByteBuffer slice = data.duplicate();
+            slice.limit(slice.position() + count);
+            buffer.put(slice);
+            data.position(data.position() + count);
+            this.decode();
+        }
+    }
+
+    /**
+     *@return true if a termination frame has been received
+     */
+    public boolean isTerminated() {
+        return terminated;
+    }
+
+    /**
+     *@return true if a corrupt header has been found, after which no more frames are decoded
+     */
+    public boolean isCorrupt() {
+        return corruption != null;
+    }
+
+    /**
+     *@return the number of bytes received but not yet decoded as part of a frame
+     */
+    public int getBufferedBytes() {
+        return buffer.position();
+    }
+
+    /**
+     *Extracts every complete frame from the buffer, leaving any partial frame at the start of the buffer ready for more input
+     *@throws IOException if a corrupt header is found, now or by a previous call
+     */
+    protected void decode() throws IOException {
+        if (corruption != null) {
+            buffer.clear();
+            throw new IOException("FrameDecoder: " + corruption);
+        }
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining() && !terminated) {
+                int start = buffer.position();
+                int limit = buffer.limit();
+                int headerEnd;
+                long length;
+                if (framing == Framing.BINARY) {
+                    if (limit - start < BINARY_HEADER_SIZE) {
+                        break;
+                    }
+                    length = buffer.getInt(start);
+                    headerEnd = start + BINARY_HEADER_SIZE;
+                }
+                else {
+                    headerEnd = -1;
+                    length = 0;
+                    boolean negative = false;
+                    int digits = 0;
+                    int pos = start;
+                    while (pos < limit && headerEnd < 0) {
+                        byte b = buffer.get(pos++);
+                        if (b == SEPARATOR && digits > 0) {
+                            headerEnd = pos;
+                        }
+                        else if (b >= '0' && b <= '9' && pos - start <= MAX_ASCII_HEADER_SIZE) {
+                            length = 10 * length + (b - '0');
+                            digits++;
+                        }
+                        else if (b == MINUS && pos == start + 1) {
+                            negative = true;
+                        }
+                        else {
+                            this.fail("Bad message header received");
+                        }
+                    }
+                    if (headerEnd < 0) {
+                        break;
+                    }
+                    if (negative) {
+                        length = -length;
+                    }
+                }
+                if (length < 0) {
+                    terminated = true;
+                    buffer.position(limit);
+                    handler.terminationReceived();
+                }
+                else if (length > maxFrameLength) {
+                    this.fail("Frame length " + length + " exceeds limit of " + maxFrameLength + " bytes");
+                }
+                else if (limit - headerEnd < length) {
+                    int needed = (int) ((headerEnd - start) + length);
+                    if (needed > buffer.capacity()) {
+                        buffer.position(start);
+                        buffer.compact();
+                        this.grow(needed);
+                        buffer.flip();
+                    }
+                    break;
+                }
+                else {
+                    byte[] payload = new byte[(int) length];
+                    buffer.position(headerEnd);
+                    buffer.get(payload);
+                    handler.frameDecoded(payload);
+                }
+            }
+        }
+        finally {
+            buffer.compact();
+        }
+    }
+
+    /**
+     *Replaces the buffer (in write mode) with a larger one holding the same content
+     */
+    private void grow(int capacity) {
+        ByteBuffer larger = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        larger.put(buffer);
+        buffer = larger;
+    }
+
+    /**
+     *Drops the buffered input and marks the stream as corrupt
+     */
+    private void fail(String reason) throws IOException {
+        corruption = reason;
+        buffer.position(buffer.limit());
+        throw new IOException("FrameDecoder: " + reason);
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * HandshakeMetrics.java
+ *
+ * Copyright 2004 Andres Quiroz Hernandez
+ *
+ * This file is part of Programming5.
+ * Programming5 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Programming5 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Programming5.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package programming5.net.sockets;
+
+/**
+ *This class accumulates the latency of TLS handshakes, measured from the start of the handshake to its completion, separately
+ *for full handshakes and for abbreviated handshakes that resume a cached session. An instance can be shared by many clients
+ *(e.g. by all the connections accepted by a server), and is thread safe.
+ *@see programming5.net.sockets.NIOSSLClient
+ *@author Andres Quiroz Hernandez
+ *@version 6.19
+ */
+public class HandshakeMetrics {
+
+    private long fullCount = 0;
+    private long resumedCount = 0;
+    private long failedCount = 0;
+    private long fullNanos = 0;
+    private long resumedNanos = 0;
+    private long maxNanos = 0;
+
+    /**
+     *Records a completed handshake
+     *@param nanos the duration of the handshake in nanoseconds
+     *@param resumed true if the handshake resumed a cached session
+     */
+    public synchronized void recordHandshake(long nanos, boolean resumed) {
+        if (resumed) {
+            resumedCount++;
+            resumedNanos += nanos;
+        }
+        else {
+            fullCount++;
+            fullNanos += nanos;
+        }
+        if (nanos > maxNanos) {
+            maxNanos = nanos;
+        }
+    }
+
+    /**
+     *Records a handshake that failed or was interrupted by the loss of the connection
+     */
+    public synchronized void recordFailure() {
+        failedCount++;
+    }
+
+    /**
+     *@return the number of completed handshakes, full and abbreviated
+     */
+    public synchronized long getHandshakeCount() {
+        return fullCount + resumedCount;
+    }
+
+    /**
+     *@return the number of completed handshakes that resumed a cached session
+     */
+    public synchronized long getResumedCount() {
+        return resumedCount;
+    }
+
+    /**
+     *@return the number of handshakes that failed
+     */
+    public synchronized long getFailedCount() {
+        return failedCount;
+    }
+
+    /**
+     *@return the mean duration of full handshakes in milliseconds, or 0 if there have been none
+     */
+    public synchronized double getMeanFullLatency() {
+        return (fullCount > 0) ? fullNanos / (fullCount * 1e6) : 0;
+    }
+
+    /**
+     *@return the mean duration of abbreviated handshakes in milliseconds, or 0 if there have been none
+     */
+    public synchronized double getMeanResumedLatency() {
+        return (resumedCount > 0) ? resumedNanos / (resumedCount * 1e6) : 0;
+    }
+
+    /**
+     *@return the duration of the longest handshake in milliseconds
+     */
+    public synchronized double getMaxLatency() {
+        return maxNanos / 1e6;
+    }
+
+    /**
+     *Sets all counts back to zero
+     */
+    public synchronized void reset() {
+        fullCount = 0;
+        resumedCount = 0;
+        failedCount = 0;
+        fullNanos = 0;
+        resumedNanos = 0;
+        maxNanos = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "handshakes=" + this.getHandshakeCount() + " resumed=" + resumedCount + " failed=" + failedCount + " meanFull=" + String.format("%.2f", this.getMeanFullLatency()) + "ms meanResumed=" + String.format("%.2f", this.getMeanResumedLatency()) + "ms max=" + String.format("%.2f", this.getMaxLatency()) + "ms";
+    }
+
+}
@@ -0,0 +1,153 @@
+/*
+ * MetricsSnapshot.java
+ *
+ * Copyright 2004 Andres Quiroz Hernandez
+ *
+ * This file is part of Programming5.
+ * Programming5 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Programming5 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Programming5.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package programming5.net.sockets;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ *An immutable copy of transport metrics, either the aggregate of a client or server (in which case it also holds the copies
+ *of the metrics of each peer and the values of the gauges) or those of a single peer. Latencies are in microseconds.
+ *@see programming5.net.sockets.TransportMetrics#snapshot
+ *@author Andres Quiroz Hernandez
+ *@version 6.19
+ */
+public class MetricsSnapshot {
+
+    protected final String peer;
+    protected final long timestamp;
+    protected final long messagesSent;
+    protected final long bytesSent;
+    protected final long messagesReceived;
+    protected final long bytesReceived;
+    protected final long retransmits;
+    protected final long duplicatesDropped;
+    protected final long reassemblyEvictions;
+    protected final LatencyHistogram.Snapshot sendToAck;
+    protected final LatencyHistogram.Snapshot receiveToDispatch;
+    protected final Map<String, Long> gauges;
+    protected final Map<String, MetricsSnapshot> peers;
+
+    MetricsSnapshot(String myPeer, long[] counters, LatencyHistogram.Snapshot mySendToAck, LatencyHistogram.Snapshot myReceiveToDispatch, Map<String, Long> myGauges, Map<String, MetricsSnapshot> myPeers) {
+        peer = myPeer;
+        timestamp = System.currentTimeMillis();
+        messagesSent = counters[0];
+        bytesSent = counters[1];
+        messagesReceived = counters[2];
+        bytesReceived = counters[3];
+        retransmits = counters[4];
+        duplicatesDropped = counters[5];
+        reassemblyEvictions = counters[6];
+        sendToAck = mySendToAck;
+        receiveToDispatch = myReceiveToDispatch;
+        gauges = Collections.unmodifiableMap(myGauges);
+        peers = Collections.unmodifiableMap(myPeers);
+    }
+
+    /**
+     *@return the url of the peer, or null for aggregate metrics
+     */
+    public String getPeer() {
+        return peer;
+    }
+
+    /**
+     *@return the time at which the snapshot was taken
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public long getMessagesSent() {
+        return messagesSent;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public long getMessagesReceived() {
+        return messagesReceived;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public long getRetransmits() {
+        return retransmits;
+    }
+
+    public long getDuplicatesDropped() {
+        return duplicatesDropped;
+    }
+
+    public long getReassemblyEvictions() {
+        return reassemblyEvictions;
+    }
+
+    /**
+     *@return the distribution of the time from the first transmission of a packet to its acknowledgement, for packets
+     *acknowledged without retransmission
+     */
+    public LatencyHistogram.Snapshot getSendToAck() {
+        return sendToAck;
+    }
+
+    /**
+     *@return the distribution of the time from the arrival of a complete message to the return of its delivery to subscribers
+     *and to the receive methods
+     */
+    public LatencyHistogram.Snapshot getReceiveToDispatch() {
+        return receiveToDispatch;
+    }
+
+    /**
+     *@return the values of the gauges (empty for the metrics of a peer)
+     */
+    public Map<String, Long> getGauges() {
+        return gauges;
+    }
+
+    /**
+     *@return the metrics of each peer, by url (empty for the metrics of a peer)
+     */
+    public Map<String, MetricsSnapshot> getPeers() {
+        return peers;
+    }
+
+    @Override
+    public String toString() {
+        String ret = ((peer != null) ? peer : "total") + ": sent=" + messagesSent + "/" + bytesSent + "B received=" + messagesReceived + "/" + bytesReceived + "B retransmits=" + retransmits + " duplicates=" + duplicatesDropped + " evictions=" + reassemblyEvictions;
+        if (sendToAck.getCount() > 0) {
+            ret += " sendToAck[" + sendToAck + "]";
+        }
+        if (receiveToDispatch.getCount() > 0) {
+            ret += " receiveToDispatch[" + receiveToDispatch + "]";
+        }
+        if (!gauges.isEmpty()) {
+            ret += " " + gauges;
+        }
+        return ret;
+    }
+
+}
@@ -0,0 +1,553 @@
+/*
+ * NIOSSLClient.java
+ *
+ * Copyright 2004 Andres Quiroz Hernandez
+ *
+ * This file is part of Programming5.
+ * Programming5 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Programming5 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Programming5.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package programming5.net.sockets;
+
+import programming5.concurrent.ThreadPool;
+import programming5.io.Debug;
+import programming5.net.NetworkException;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ *This class is a TLS version of NIOTCPClient: each connection is a non-blocking socket channel serviced by a selector loop, with
+ *an SSLEngine that encrypts the frames written to it and decrypts the bytes read from it, so that TLS connections need no
+ *thread of their own. The handshake is driven by the selector loop; frames sent before it completes are queued and written as
+ *soon as it does.
+ *<p>Client connections are created with the address of the remote end, so that the client session cache of the SSL context
+ *can be used: a reconnection to an address for which a session is cached (by this or any other client that uses the same
+ *context) resumes the session with an abbreviated handshake. The duration of each handshake is recorded in the client's
+ *handshake metrics, separately for full and abbreviated handshakes.
+ *<p>The delegated tasks of the engine (e.g. certificate validation and key exchange computations) are run on an executor, so
+ *that they do not hold up the other channels of the selector loop; the handshake resumes in the loop when they complete.
+ *<p>By default, client connections do not verify that the certificate of the remote end matches the host name to which
+ *they connect (e.g. to allow self-signed certificates issued to a name other than the address used), so only the chain of
+ *trust of the certificate is checked; setEndpointIdentificationAlgorithm("HTTPS") enables the verification.
+ *@see programming5.net.sockets.NIOTCPClient
+ *@see programming5.net.sockets.HandshakeMetrics
+ *@author Andres Quiroz Hernandez
+ *@version 6.19
+ */
+public class NIOSSLClient extends NIOTCPClient {
+
+    protected final SSLContext context;
+    protected final boolean clientMode;
+    protected HandshakeMetrics metrics = new HandshakeMetrics();
+    protected Executor taskExecutor = null;
+    protected String endpointIdentificationAlgorithm = null;
+
+    private static final ByteBuffer[] NO_DATA = new ByteBuffer[] {ByteBuffer.allocate(0)};
+
+    /**
+     *Creates an empty client that uses the given SSL context, which will connect to hosts as messages are sent to them
+     */
+    public NIOSSLClient(SSLContext myContext) {
+        super();
+        context = myContext;
+        clientMode = true;
+    }
+
+    /**
+     *Creates a client that uses the given SSL context for the specified host address at the specified port
+     */
+    public NIOSSLClient(SSLContext myContext, String address, int remotePort) {
+        super(address, remotePort);
+        context = myContext;
+        clientMode = true;
+    }
+
+    /**
+     *Creates a client that uses the default SSL context for the specified host address at the specified port
+     */
+    public NIOSSLClient(String address, int remotePort) throws NetworkException {
+        this(getDefaultContext(), address, remotePort);
+    }
+
+    /**
+     *Creates the server end of a connection from an already connected channel (e.g. one accepted by a server), which is
+     *immediately registered with the given selector loop; the handshake starts when the remote end sends its first message
+     *@param metrics the metrics in which the handshake is recorded, which can be shared by all the connections of a server
+     */
+    public NIOSSLClient(SocketChannel channel, SSLContext myContext, SelectorLoop myLoop, HandshakeMetrics myMetrics) throws NetworkException {
+        super();
+        context = myContext;
+        clientMode = false;
+        loop = myLoop;
+        metrics = myMetrics;
+        try {
+            this.addConnection(urlFor(channel), channel);
+        }
+        catch (IOException ioe) {
+            throw new NetworkException("NIOSSLClient: Could not initialize client: " + ioe.getMessage());
+        }
+    }
+
+    /**
+     *@return the default SSL context of the platform
+     */
+    public static SSLContext getDefaultContext() throws NetworkException {
+        try {
+            return SSLContext.getDefault();
+        }
+        catch (NoSuchAlgorithmException nsae) {
+            throw new NetworkException("NIOSSLClient: No default SSL context: " + nsae.getMessage());
+        }
+    }
+
+    /**
+     *Sets the metrics in which the handshakes of connections opened after this call are recorded
+     */
+    public void setHandshakeMetrics(HandshakeMetrics myMetrics) {
+        metrics = myMetrics;
+    }
+
+    /**
+     *@return the metrics in which the handshakes of the client's connections are recorded
+     */
+    public HandshakeMetrics getHandshakeMetrics() {
+        return metrics;
+    }
+
+    /**
+     *Sets the executor on which the delegated tasks of the SSL engines of connections opened after this call are run
+     *@param executor the executor, or null for the default pool of the library
+     *@see programming5.concurrent.ThreadPool#getDefault
+     */
+    public void setTaskExecutor(Executor executor) {
+        taskExecutor = executor;
+    }
+
+    /**
+     *Sets the algorithm with which client connections opened after this call verify the identity of the remote end, given by
+     *the host of the address to which they connect (see SSLParameters.setEndpointIdentificationAlgorithm)
+     *@param algorithm the name of the algorithm (e.g. "HTTPS"), or null to not verify the host name (the default)
+     */
+    public void setEndpointIdentificationAlgorithm(String algorithm) {
+        endpointIdentificationAlgorithm = algorithm;
+    }
+
+    /**
+     *Sets the maximum number of sessions kept in the client session cache of the SSL context, which is shared by all the
+     *clients that use the context; 0 for no limit
+     */
+    public void setSessionCacheSize(int size) {
+        context.getClientSessionContext().setSessionCacheSize(size);
+    }
+
+    /**
+     *Sets the time in seconds after which sessions in the client session cache of the SSL context can no longer be resumed,
+     *which applies to all the clients that use the context; 0 for no limit
+     */
+    public void setSessionTimeout(int seconds) {
+        context.getClientSessionContext().setSessionTimeout(seconds);
+    }
+
+    /**
+     *@return the client session cache of the SSL context
+     */
+    public SSLSessionContext getSessionCache() {
+        return context.getClientSessionContext();
+    }
+
+    /**
+     *Overrides method in NIOTCPClient to create connections that encrypt their traffic
+     */
+    @Override
+    protected Connection newConnection(String url, SocketChannel channel, SelectorLoop selectorLoop) {
+        SSLEngine engine;
+        if (clientMode) {
+            engine = this.createClientEngine(url);
+        }
+        else {
+            engine = context.createSSLEngine();
+            engine.setUseClientMode(false);
+        }
+        Executor executor = (taskExecutor != null) ? taskExecutor : ThreadPool.getDefault();
+        return new TLSConnection(url, channel, selectorLoop, engine, executor);
+    }
+
+    /**
+     *@return an engine for a client connection to the given address, which identifies the session to resume, if any
+     */
+    private SSLEngine createClientEngine(String url) {
+        SSLEngine ret;
+        try {
+            URI hostUrl = new URI(url);
+            ret = context.createSSLEngine(hostUrl.getHost(), hostUrl.getPort());
+        }
+        catch (URISyntaxException use) {
+            Debug.println("NIOSSLClient: Cannot resume sessions for " + url + ": " + use.getMessage(), "programming5.net.sockets.NIOSSLClient");
+            ret = context.createSSLEngine();
+        }
+        ret.setUseClientMode(true);
+        if (endpointIdentificationAlgorithm != null) {
+            SSLParameters parameters = ret.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm(endpointIdentificationAlgorithm);
+            ret.setSSLParameters(parameters);
+        }
+        return ret;
+    }
+
+    private static ByteBuffer enlarge(ByteBuffer buffer, int size) {
+        ByteBuffer ret = ByteBuffer.allocate(Math.max(size, buffer.capacity() * 2));
+        buffer.flip();
+        ret.put(buffer);
+        return ret;
+    }
+
+    /**
+     *State of a TLS channel. All use of the engine happens in the loop thread: reads and handshake steps are driven by selection
+     *events, and writes by the flush task, which wraps queued frames into the network buffer through a channel adapter. The
+     *exception are the delegated tasks of the engine, which run on the task executor while the channel is not serviced.
+     */
+    protected class TLSConnection extends Connection {
+
+        final SSLEngine engine;
+        final Executor executor;
+        ByteBuffer netIn;
+        ByteBuffer netOut;
+        ByteBuffer appIn;
+        boolean handshaking = true;
+        long handshakeStart;
+        long handshakeStartMillis;
+        boolean runningTasks = false;
+
+        /**
+         *Writes frames through the engine; like a non-blocking channel, writes 0 bytes when the channel cannot take the previous
+         *record (so that the write queue waits for it to become writable)
+         */
+        final GatheringByteChannel engineChannel = new GatheringByteChannel() {
+
+            @Override
+            public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+                return Math.max(0, wrap(srcs, offset, length));
+            }
+
+            @Override
+            public long write(ByteBuffer[] srcs) throws IOException {
+                return this.write(srcs, 0, srcs.length);
+            }
+
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                return (int) this.write(new ByteBuffer[] {src}, 0, 1);
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+
+        };
+
+        TLSConnection(String myUrl, SocketChannel myChannel, SelectorLoop selectorLoop, SSLEngine myEngine, Executor myExecutor) {
+            super(myUrl, myChannel, selectorLoop);
+            engine = myEngine;
+            executor = myExecutor;
+            netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+            netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+            netOut.flip();
+            appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+        }
+
+        /**
+         *Starts the handshake once the channel is registered; on the client side, this sends the first handshake message. Frames
+         *queued before the registration are written when the handshake completes.
+         */
+        @Override
+        public void registered(SelectionKey myKey) {
+            key = myKey;
+            handshakeStart = System.nanoTime();
+            handshakeStartMillis = System.currentTimeMillis();
+            try {
+                engine.beginHandshake();
+                this.pump();
+            }
+            catch (IOException ioe) {
+                this.handleError(myKey, ioe);
+            }
+        }
+
+        @Override
+        public void handleError(SelectionKey myKey, IOException cause) {
+            if (handshaking) {
+                handshaking = false;
+                metrics.recordFailure();
+            }
+            super.handleError(myKey, cause);
+        }
+
+        /**
+         *Writes pending network bytes, continues the handshake if it is in progress, and then wraps queued frames
+         */
+        @Override
+        void flush() throws IOException {
+            if (key == null) {
+                return;
+            }
+            if (!this.flushNetwork()) {
+                myLoop.setInterestOps(key, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+            else if (handshaking) {
+                this.pump();
+            }
+            else if (writeQueue.writeTo(engineChannel) && this.flushNetwork()) {
+                if (closing) {
+                    this.close();
+                }
+                else {
+                    myLoop.setInterestOps(key, SelectionKey.OP_READ);
+                }
+            }
+            else {
+                myLoop.setInterestOps(key, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+
+        @Override
+        void read() throws IOException {
+            int bytesRead = channel.read(netIn);
+            if (bytesRead < 0) {
+                try {
+                    engine.closeInbound();
+                }
+                catch (SSLException ssle) {
+                    Debug.println("NIOSSLClient: " + ssle.getMessage(), "programming5.net.sockets.NIOSSLClient");
+                }
+                throw new IOException("End of stream");
+            }
+            this.pump();
+        }
+
+        /**
+         *Sends the TLS close message, if possible without blocking, and closes the channel; runs in the loop thread
+         */
+        @Override
+        void close() {
+            if (!myLoop.inLoop()) {
+                myLoop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        close();
+                    }
+                });
+                return;
+            }
+            if (channel.isOpen() && !engine.isOutboundDone()) {
+                engine.closeOutbound();
+                try {
+                    if (this.flushNetwork()) {
+                        this.wrap(NO_DATA, 0, 1);
+                    }
+                }
+                catch (IOException ioe) {
+                    Debug.println("NIOSSLClient: Could not send close message: " + ioe.getMessage(), "programming5.net.sockets.NIOSSLClient");
+                }
+            }
+            super.close();
+        }
+
+        /**
+         *Runs the engine as far as it can go with the bytes read so far: performs handshake steps, decrypts the received records
+         *and passes their contents to the frame decoder. When the handshake completes, records its duration and writes the frames
+         *queued while it was in progress. Stops while delegated tasks are running (see runDelegatedTasks).
+         */
+        void pump() throws IOException {
+            while (channel.isOpen() && !runningTasks) {
+                SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+                if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    this.runDelegatedTasks();
+                }
+                else if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                    if (this.wrap(NO_DATA, 0, 1) < 0) {
+                        myLoop.setInterestOps(key, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    if (engine.isOutboundDone()) {
+                        throw new IOException("Connection closed by the remote end");
+                    }
+                }
+                else {
+                    if (handshaking && status == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+                        this.handshakeCompleted();
+                    }
+                    if (!this.unwrap()) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        /**
+         *Runs the delegated tasks of the engine on the executor, with the channel removed from the selection until they complete;
+         *the handshake is then resumed in the loop thread
+         */
+        private void runDelegatedTasks() throws IOException {
+            runningTasks = true;
+            myLoop.setInterestOps(key, 0);
+            final Runnable resume = new Runnable() {
+                @Override
+                public void run() {
+                    runningTasks = false;
+                    if (channel.isOpen()) {
+                        myLoop.setInterestOps(key, netOut.hasRemaining() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+                        try {
+                            pump();
+                        }
+                        catch (IOException ioe) {
+                            handleError(key, ioe);
+                        }
+                    }
+                }
+            };
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            Runnable task;
+                            while ((task = engine.getDelegatedTask()) != null) {
+                                task.run();
+                            }
+                        }
+                        finally {
+                            myLoop.execute(resume);
+                        }
+                    }
+                });
+            }
+            catch (RejectedExecutionException ree) {
+                runningTasks = false;
+                throw new IOException("Could not run handshake tasks: " + ree.getMessage());
+            }
+        }
+
+        /**
+         *Decrypts the next record in the network input buffer, if complete
+         *@return false if no progress was made (more bytes need to be read)
+         */
+        private boolean unwrap() throws IOException {
+            netIn.flip();
+            SSLEngineResult result;
+            try {
+                result = engine.unwrap(netIn, appIn);
+            }
+            finally {
+                netIn.compact();
+            }
+            if (appIn.position() > 0) {
+                appIn.flip();
+                decoder.append(appIn);
+                appIn.clear();
+            }
+            switch (result.getStatus()) {
+                case BUFFER_OVERFLOW:
+                    appIn = ByteBuffer.allocate(Math.max(engine.getSession().getApplicationBufferSize(), appIn.capacity() * 2));
+                    return true;
+                case BUFFER_UNDERFLOW:
+                    if (!netIn.hasRemaining()) {
+                        netIn = enlarge(netIn, engine.getSession().getPacketBufferSize());
+                    }
+                    return false;
+                case CLOSED:
+                    throw new IOException("Connection closed by the remote end");
+                default:
+                    return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+            }
+        }
+
+        /**
+         *Encrypts bytes from the given buffers into the network output buffer, once the bytes of the previous record have been
+         *written to the channel, and writes as much of the new record as the channel accepts
+         *@return the number of bytes consumed from the buffers, or -1 if the previous record could not be written completely
+         */
+        private long wrap(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            if (!this.flushNetwork()) {
+                return -1;
+            }
+            SSLEngineResult result;
+            while (true) {
+                netOut.clear();
+                try {
+                    result = engine.wrap(srcs, offset, length, netOut);
+                }
+                finally {
+                    netOut.flip();
+                }
+                if (result.getStatus() != SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    break;
+                }
+                netOut = ByteBuffer.allocate(Math.max(engine.getSession().getPacketBufferSize(), netOut.capacity() * 2));
+                netOut.flip();
+            }
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED && result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                throw new IOException("Connection closed");
+            }
+            this.flushNetwork();
+            return result.bytesConsumed();
+        }
+
+        /**
+         *@return true if all the encrypted bytes have been written to the channel
+         */
+        private boolean flushNetwork() throws IOException {
+            while (netOut.hasRemaining()) {
+                if (channel.write(netOut) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void handshakeCompleted() throws IOException {
+            handshaking = false;
+            // A cached session keeps the creation time of the handshake that established it
+            boolean resumed = engine.getSession().getCreationTime() < handshakeStartMillis;
+            metrics.recordHandshake(System.nanoTime() - handshakeStart, resumed);
+            Debug.println("NIOSSLClient: Handshake completed with " + url + " using " + engine.getSession().getProtocol() + (resumed ? " (resumed)" : ""), "programming5.net.sockets.NIOSSLClient");
+            if (!writeQueue.isEmpty()) {
+                this.flush();
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,730 @@
+/*
+ * NIOTCPClient.java
+ *
+ * Copyright 2004 Andres Quiroz Hernandez
+ *
+ * This file is part of Programming5.
+ * Programming5 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Programming5 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Programming5.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package programming5.net.sockets;
+
+import programming5.collections.MultiList;
+import programming5.concurrent.Mailbox;
+import programming5.io.Debug;
+import programming5.net.MessageArrivedEvent;
+import programming5.net.MessagingClient;
+import programming5.net.NetworkException;
+import programming5.net.Publisher;
+import programming5.net.ReceiveMailbox;
+import programming5.net.Subscriber;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ *This class is a selector based implementation of a TCP MessagingClient, with the same API and message arrived event semantics
+ *as TCPClient, and wire compatible with it. Instead of a receiver thread per connection, all connections are non-blocking socket
+ *channels serviced by a selector loop (one of the shared loops by default), so that a client can talk to many thousands of peers
+ *with a small, fixed number of I/O threads. Received messages are published to subscribers through the publisher's dispatcher,
+ *so that subscriber code never runs in the I/O thread. Since every connection on a loop would stall while the loop thread waits,
+ *the dispatcher should not use the BLOCK overflow policy or the caller thread executor (the default dispatcher uses neither).
+ *@see programming5.net.sockets.TCPClient
+ *@see programming5.net.sockets.SelectorLoop
+ *@author Andres Quiroz Hernandez
+ *@version 6.19
+ */
+public class NIOTCPClient extends Publisher<MessageArrivedEvent> implements MessagingClient {
+
+    protected final List<String> pendingConnections = new ArrayList<String>();
+    protected final Map<String, Connection> connections = new ConcurrentHashMap<String, Connection>();
+    protected final ReceiveMailbox mailbox = new ReceiveMailbox();
+    protected SelectorLoop loop = null;
+    protected volatile TransportMetrics transportMetrics = this.createTransportMetrics();
+
+    private boolean useSeparator = true;
+    private int highWaterMark = OutboundQueue.DEF_HIGH_WATER_MARK;
+    private Runnable closeAction = null;
+    private boolean closed = false;
+    private final Object connectLock = new Object();
+    protected FrameDecoder.Framing framing = FrameDecoder.Framing.ASCII;
+    protected int maxFrameLength = FrameDecoder.DEF_MAX_FRAME_LENGTH;
+
+    protected static final int BUFFER_SIZE = 65536;
+
+    /**
+     *Creates an empty client, which will connect to hosts as messages are sent to them
+     */
+    public NIOTCPClient() {
+    }
+
+    /**
+     *Creates a client for the specified host address at the specified port
+     */
+    public NIOTCPClient(String address, int remotePort) {
+        pendingConnections.add("//" + address + ":" + Integer.toString(remotePort));
+    }
+
+    /**
+     *Creates a client that can be used to communicate with all the hosts addressed by the given urls
+     */
+    public NIOTCPClient(Collection<String> hostUrls) {
+        pendingConnections.addAll(hostUrls);
+    }
+
+    /**
+     *Creates a client from an already connected channel (e.g. one accepted by a server) and immediately registers it with a
+     *shared selector loop
+     */
+    public NIOTCPClient(SocketChannel channel) throws NetworkException {
+        this(channel, false);
+    }
+
+    /**
+     *Creates a client from an already connected channel and immediately registers it with a shared selector loop
+     *@param channel the connected channel
+     *@param compatible if true, starts the client in compatible mode, which allows it to communicate with non-programming5 clients by
+     *disabling the message separator signals in the send/receive stream
+     */
+    public NIOTCPClient(SocketChannel channel, boolean compatible) throws NetworkException {
+        useSeparator = !compatible;
+        try {
+            this.addConnection(urlFor(channel), channel);
+        }
+        catch (IOException ioe) {
+            throw new NetworkException("NIOTCPClient: Could not initialize client: " + ioe.getMessage());
+        }
+    }
+
+    /**
+     *Creates a client from an already connected channel and immediately registers it with the given selector loop
+     */
+    public NIOTCPClient(SocketChannel channel, SelectorLoop myLoop) throws NetworkException {
+        loop = myLoop;
+        try {
+            this.addConnection(urlFor(channel), channel);
+        }
+        catch (IOException ioe) {
+            throw new NetworkException("NIOTCPClient: Could not initialize client: " + ioe.getMessage());
+        }
+    }
+
+    /**
+     *Creates a client from an already connected channel that uses the given message framing, and immediately registers it with
+     *a shared selector loop
+     *@see programming5.net.sockets.FrameDecoder
+     */
+    public NIOTCPClient(SocketChannel channel, FrameDecoder.Framing myFraming) throws NetworkException {
+        framing = myFraming;
+        try {
+            this.addConnection(urlFor(channel), channel);
+        }
+        catch (IOException ioe) {
+            throw new NetworkException("NIOTCPClient: Could not initialize client: " + ioe.getMessage());
+        }
+    }
+
+    /**
+     *Sets the framing of messages for the connections created after this call (ASCII length headers by default); must match
+     *the framing used by the remote ends
+     *@see programming5.net.sockets.FrameDecoder
+     */
+    public void setFraming(FrameDecoder.Framing myFraming) {
+        framing = myFraming;
+    }
+
+    /**
+     *Sets the size of the largest message accepted from the remote ends (8 MB by default); a larger message is treated as corrupt
+     *input, and closes the connection on which it arrives. Applies to connections opened after this call.
+     *@see programming5.net.sockets.FrameDecoder#setMaxFrameLength
+     */
+    public void setMaxMessageSize(int bytes) {
+        maxFrameLength = bytes;
+    }
+
+    /**
+     *Sets the selector loop that will service the connections created after this call (a shared loop is used by default)
+     */
+    public void setSelectorLoop(SelectorLoop myLoop) {
+        loop = myLoop;
+    }
+
+    /**
+     *Implementation of the PluggableClient interface. Opens a channel to each of the host addresses with which the client
+     *has been created and registers them with the selector loop.
+     */
+    @Override
+    public void establishConnection() throws NetworkException {
+        MultiList<String, String> failedConnections = new MultiList<String, String>();
+        synchronized (pendingConnections) {
+            for (String host : pendingConnections) {
+                try {
+                    if (!connections.containsKey(host)) {
+                        this.connect(host);
+                    }
+                }
+                catch (Exception e) {
+                    failedConnections.add(host, e.getMessage());
+                }
+            }
+            pendingConnections.clear();
+        }
+        if (failedConnections.size() > 0) {
+            String message = "NIOTCPClient: The following connections could not be established:\n";
+            for (String connection : failedConnections.first()) {
+                message = message + connection + ": " + failedConnections.getInSecond(connection) + "\n";
+            }
+            throw new NetworkException(message);
+        }
+    }
+
+    /**
+     *Implementation of the MessagingClient interface. The message is queued for every open connection, and the method returns
+     *when all the writes have completed.
+     *@param bytesMessage the packet of bytes to send to all the hosts to which channels have been opened
+     */
+    @Override
+    public void send(byte[] bytesMessage) throws NetworkException {
+        Map<String, CompletableFuture<Void>> sends = new HashMap<String, CompletableFuture<Void>>();
+        for (Map.Entry<String, Connection> entry : connections.entrySet()) {
+            sends.put(entry.getKey(), entry.getValue().write(this.header(bytesMessage.length), ByteBuffer.wrap(bytesMessage)));
+        }
+        MultiList<String, String> failedSend = new MultiList<String, String>();
+        for (Map.Entry<String, CompletableFuture<Void>> send : sends.entrySet()) {
+            try {
+                send.getValue().get();
+            }
+            catch (ExecutionException ee) {
+                failedSend.add(send.getKey(), ee.getCause().getMessage());
+            }
+            catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                failedSend.add(send.getKey(), "Interrupted");
+            }
+        }
+        if (failedSend.size() > 0) {
+            String errorMessage = "NIOTCPClient: Could not send to the following connections:\n";
+            for (String send : failedSend.first()) {
+                errorMessage = errorMessage + send + ": " + failedSend.getInSecond(send) + "\n";
+            }
+            throw new NetworkException(errorMessage);
+        }
+    }
+
+    /**
+     *Queues the message for every open connection and returns without waiting for it to be written. If a connection's queue is
+     *above the high water mark, blocks until it drains. The message array must not be modified until the returned future completes.
+     *@param bytesMessage the packet of bytes to send to all the hosts to which channels have been opened
+     *@return a future that completes when the message has been written to all connections, or exceptionally if any write fails
+     */
+    public CompletableFuture<Void> sendAsync(byte[] bytesMessage) {
+        List<CompletableFuture<Void>> sends = new ArrayList<CompletableFuture<Void>>();
+        for (Connection connection : connections.values()) {
+            sends.add(connection.write(this.header(bytesMessage.length), ByteBuffer.wrap(bytesMessage)));
+        }
+        return CompletableFuture.allOf(sends.toArray(new CompletableFuture<?>[sends.size()]));
+    }
+
+    /**
+     *Implementation of the MessagingClient interface
+     *@param msg the message string to send to all the hosts to which channels have been opened
+     */
+    @Override
+    public void send(String msg) throws NetworkException {
+        this.send(msg.getBytes());
+    }
+
+    /**
+     *Implementation of the MessagingClient interface
+     *@param bytesMessage the message to send to the given host
+     *@param url the address the message will be sent to; if a channel hasn't been opened to this address, it will be created
+     */
+    @Override
+    public void send(byte[] bytesMessage, String url) throws NetworkException {
+        try {
+            this.sendAsync(bytesMessage, url).get();
+        }
+        catch (ExecutionException ee) {
+            throw new NetworkException("NIOTCPClient: Could not send message to " + url + ": " + ee.getCause().getMessage());
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new NetworkException("NIOTCPClient: Could not send message to " + url + ": Interrupted");
+        }
+    }
+
+    /**
+     *Queues the message for the given host and returns without waiting for it to be written. The message array must not be
+     *modified until the returned future completes.
+     *@param bytesMessage the message to send to the given host
+     *@param url the address the message will be sent to; if a channel hasn't been opened to this address, it will be created
+     *@return a future that completes when the message has been written, or exceptionally if the write fails
+     *@throws NetworkException if a connection to the given address cannot be opened
+     */
+    public CompletableFuture<Void> sendAsync(byte[] bytesMessage, String url) throws NetworkException {
+        Connection connection = connections.get(url);
+        if (connection == null) {
+            try {
+                connection = this.connect(url);
+            }
+            catch (IOException ioe) {
+                throw new NetworkException("NIOTCPClient: Could not send message to " + url + ": " + ioe.getMessage());
+            }
+        }
+        return connection.write(this.header(bytesMessage.length), ByteBuffer.wrap(bytesMessage));
+    }
+
+    /**
+     *Sets the number of bytes that can be queued for a connection before senders to that connection block (4 MB by default).
+     *Applies to connections opened after this call.
+     */
+    public void setHighWaterMark(int bytes) {
+        highWaterMark = bytes;
+    }
+
+    /**
+     *Implementation of the MessagingClient interface
+     *@param message the message string to send to the given host
+     *@param url the address the message will be sent to; if a channel hasn't been opened to this address, it will be created
+     */
+    @Override
+    public void send(String message, String url) throws NetworkException {
+        this.send(message.getBytes(), url);
+    }
+
+    /**
+     *Implementation of the MessagingClient interface. Blocking receive until a message arrives from any of the open connections.
+     *@return the packet of bytes
+     */
+    @Override
+    public byte[] receiveBytes() {
+        return mailbox.receive();
+    }
+
+    /**
+     *Implementation of the MessagingClient interface. Blocking receive until a message arrives from any of the open connections.
+     *@return the message string
+     */
+    @Override
+    public String receive() {
+        return new String(this.receiveBytes());
+    }
+
+    /**
+     *Implementation of the MessagingClient interface. Blocking receive until a message arrives from any of the open connections
+     *or the timeout occurs.
+     *@return the packet of bytes
+     */
+    @Override
+    public byte[] receiveBytes(long timeout) throws InterruptedException {
+        return mailbox.receive(timeout);
+    }
+
+    /**
+     *Implementation of the MessagingClient interface. Blocking receive until a message arrives from any of the open connections
+     *or the timeout occurs.
+     *@return the message string, or null if no message arrived before the timeout
+     */
+    @Override
+    public String receive(long timeout) throws InterruptedException {
+        byte[] ret = this.receiveBytes(timeout);
+        return (ret != null) ? new String(ret) : null;
+    }
+
+    /**
+     *Implementation of the MessagingClient interface. Waits for a message for limited time, and then returns up to the given
+     *number of messages that have arrived, without waiting further.
+     *@param max the maximum number of messages returned
+     *@param timeout wait time in milliseconds
+     *@return the message bytes, oldest first; the list is empty if no message arrives before the timeout
+     */
+    @Override
+    public List<byte[]> receiveBatch(int max, long timeout) throws InterruptedException {
+        return mailbox.receiveBatch(max, timeout);
+    }
+
+    /**
+     *Sets the capacity of the mailbox that holds arrived messages for the receive methods, and what to do with messages that 
+     *arrive when it is full (by default, it holds 1024 messages and drops the oldest ones). Messages are held once a receive 
+     *method or this method has been called; this method should be called before any thread waits on the receive methods.
+     */
+    public void setReceiveMailbox(int capacity, Mailbox.OverflowPolicy policy) {
+        mailbox.configure(capacity, policy);
+    }
+
+    /**
+     *@return the number of messages dropped because the receive mailbox was full (with the DROP_OLDEST and DROP_NEWEST 
+     *policies), since the mailbox was last configured
+     */
+    public long getDroppedCount() {
+        return mailbox.getDroppedCount();
+    }
+
+    /**
+     *Implementation of the PluggableClient interface. Sends the termination message on all connections and closes their channels.
+     */
+    @Override
+    public void endConnection() {
+        for (Connection connection : connections.values()) {
+            if (useSeparator) {
+                connection.write(this.header(-1), ByteBuffer.wrap("EOF".getBytes()));
+            }
+            connection.closeAfterWrite();
+        }
+        connections.clear();
+        this.signalClosed();
+    }
+
+    /**
+     *Overrides method in Publisher to include the response to the receive methods. The message is delivered to a single 
+     *snapshot of the listeners; a message that arrives before the first listener is held under the mailbox's lock, so that a 
+     *listener subscribed with ReceiveMailbox.subscribe either drains it or is given it.
+     */
+    @Override
+    public void fireEvent(MessageArrivedEvent event) {
+        Iterator<Subscriber<MessageArrivedEvent>> snapshot = listeners.iterator();
+        if (!snapshot.hasNext()) {
+            synchronized (mailbox) {
+                snapshot = listeners.iterator();
+                if (!snapshot.hasNext()) {
+                    mailbox.deliver(event.getContentBytes(), true);
+                    return;
+                }
+            }
+        }
+        this.dispatchEvent(snapshot, event);
+        mailbox.deliver(event.getContentBytes(), false);
+    }
+
+    /**
+     *@return the number of open connections
+     */
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    /**
+     *@return the metrics of the messages sent and received by the client
+     */
+    public TransportMetrics getTransportMetrics() {
+        return transportMetrics;
+    }
+
+    /**
+     *Sets the metrics in which the messages sent and received after this call are recorded, which can be shared by many clients 
+     *(e.g. by all the connections accepted by a server). The gauges of the client (bytes queued for writing, messages held for 
+     *the receive methods) are only available in the client's own metrics.
+     */
+    public void setTransportMetrics(TransportMetrics metrics) {
+        transportMetrics = metrics;
+    }
+
+    /**
+     *Opens a channel to the given url, unless another thread has done so already, in which case the existing connection is
+     *returned; concurrent connects are serialized so that a connection already handed to a sender is never replaced
+     */
+    protected Connection connect(String url) throws IOException {
+        synchronized (connectLock) {
+            Connection existing = connections.get(url);
+            if (existing != null) {
+                return existing;
+            }
+            try {
+                URI hostUrl = new URI(url);
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress(hostUrl.getHost(), hostUrl.getPort()));
+                return this.addConnection(url, channel);
+            }
+            catch (java.net.URISyntaxException use) {
+                throw new NetworkException("NIOTCPClient: Bad host url: " + use.getMessage());
+            }
+        }
+    }
+
+    protected Connection addConnection(String url, SocketChannel channel) throws IOException {
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        SelectorLoop myLoop = (loop != null) ? loop : SelectorLoop.shared();
+        Connection connection = this.newConnection(url, channel, myLoop);
+        synchronized (connectLock) {
+            Connection previous = connections.put(url, connection);
+            if (previous != null) {
+                previous.close();
+            }
+        }
+        myLoop.register(channel, SelectionKey.OP_READ, connection);
+        return connection;
+    }
+
+    /**
+     *Creates the state of a new channel; subclasses override it to change how bytes are read from and written to the channel
+     */
+    protected Connection newConnection(String url, SocketChannel channel, SelectorLoop selectorLoop) {
+        return new Connection(url, channel, selectorLoop);
+    }
+
+    /**
+     *@return the header for a message of the given length, or null in compatible mode
+     */
+    protected ByteBuffer header(int length) {
+        return (useSeparator) ? ByteBuffer.wrap(FrameDecoder.encodeHeader(framing, length)) : null;
+    }
+
+    private void signalConnectionError(Connection connection) {
+        Debug.println("Ending connection to " + connection.url, "programming5.net.sockets.NIOTCPClient");
+        connections.remove(connection.url, connection);
+        connection.close();
+        transportMetrics.removePeer(connection.url);
+        this.terminateAllSubscriptions();
+        if (connections.isEmpty()) {
+            this.signalClosed();
+        }
+    }
+
+    /**
+     *Sets an action to run once, when the client is ended or its last connection is lost; runs the action immediately if that
+     *has already happened. Used by servers to track active connections.
+     */
+    synchronized void onClose(Runnable action) {
+        if (closed) {
+            action.run();
+        }
+        else {
+            closeAction = action;
+        }
+    }
+
+    private synchronized void signalClosed() {
+        if (!closed) {
+            closed = true;
+            if (closeAction != null) {
+                closeAction.run();
+                closeAction = null;
+            }
+        }
+    }
+
+    /**
+     *Publishes a message received on the given connection and records its arrival and the time taken to dispatch it
+     */
+    private void dispatch(Connection connection, byte[] bytesMessage) {
+        TransportMetrics metrics = transportMetrics;
+        metrics.recordReceived(connection.url, bytesMessage.length);
+        long arrival = System.nanoTime();
+        this.fireEvent(new MessageArrivedEvent(bytesMessage));
+        metrics.recordReceiveToDispatch((System.nanoTime() - arrival) / 1000);
+    }
+
+    /**
+     *@return the client's own metrics, with its gauges
+     */
+    private TransportMetrics createTransportMetrics() {
+        TransportMetrics ret = new TransportMetrics();
+        ret.addGauge("outboundBytes", new TransportMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                long bytes = 0;
+                for (Connection connection : connections.values()) {
+                    bytes += connection.writeQueue.getPendingBytes();
+                }
+                return bytes;
+            }
+        });
+        ret.addGauge("heldMessages", new TransportMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mailbox.size();
+            }
+        });
+        return ret;
+    }
+
+    protected static String urlFor(SocketChannel channel) throws IOException {
+        InetSocketAddress remote = (InetSocketAddress) channel.getRemoteAddress();
+        return "//" + remote.getAddress().toString() + ":" + Integer.toString(remote.getPort());
+    }
+
+    /**
+     *State of a single channel: the decoder in which frames are reassembled and the queue of pending writes
+     */
+    protected class Connection implements SelectorLoop.ChannelHandler, FrameDecoder.FrameHandler {
+
+        final String url;
+        final SocketChannel channel;
+        final SelectorLoop myLoop;
+        final OutboundQueue writeQueue = new OutboundQueue(highWaterMark);
+        final FrameDecoder decoder;
+        ByteBuffer rawBuffer = null;
+        SelectionKey key = null;
+        volatile boolean closing = false;
+
+        final Runnable flushTask = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flush();
+                }
+                catch (IOException ioe) {
+                    handleError(key, ioe);
+                }
+            }
+        };
+
+        Connection(String myUrl, SocketChannel myChannel, SelectorLoop selectorLoop) {
+            url = myUrl;
+            channel = myChannel;
+            myLoop = selectorLoop;
+            decoder = new FrameDecoder(framing, this);
+            decoder.setMaxFrameLength(maxFrameLength);
+        }
+
+        /**
+         *Flushes frames queued before the registration completed (see flush)
+         */
+        @Override
+        public void registered(SelectionKey myKey) {
+            key = myKey;
+            if (!writeQueue.isEmpty()) {
+                flushTask.run();
+            }
+        }
+
+        @Override
+        public void handle(SelectionKey myKey) throws IOException {
+            if (myKey.isWritable()) {
+                this.flush();
+            }
+            if (myKey.isValid() && myKey.isReadable()) {
+                this.read();
+            }
+        }
+
+        @Override
+        public void handleError(SelectionKey myKey, IOException cause) {
+            Debug.println("NIOTCPClient: Exception on connection: " + cause.getMessage(), "programming5.net.sockets.NIOTCPClient");
+            signalConnectionError(this);
+        }
+
+        /**
+         *Queues the given frame; if no flush is pending, schedules one in the loop thread, which is the only writer of the channel
+         */
+        CompletableFuture<Void> write(ByteBuffer header, ByteBuffer body) {
+            if (closing || !channel.isOpen()) {
+                CompletableFuture<Void> ret = new CompletableFuture<Void>();
+                ret.completeExceptionally(new IOException("Connection closed"));
+                return ret;
+            }
+            transportMetrics.recordSent(url, body.remaining());
+            CompletableFuture<Void> ret = writeQueue.enqueue(header, body, !myLoop.inLoop());
+            if (writeQueue.claimDrain()) {
+                myLoop.execute(flushTask);
+            }
+            return ret;
+        }
+
+        /**
+         *Writes queued frames with gathering writes until the queue is empty or the channel is full, in which case the loop is
+         *asked to call back when the channel is writable. If the channel is not registered yet (the connection is published before
+         *the loop registers it), the frames stay queued and are flushed once it is. Called from the loop thread only.
+         */
+        void flush() throws IOException {
+            if (key == null) {
+                return;
+            }
+            if (writeQueue.writeTo(channel)) {
+                if (closing) {
+                    this.close();
+                }
+                else {
+                    myLoop.setInterestOps(key, SelectionKey.OP_READ);
+                }
+            }
+            else {
+                myLoop.setInterestOps(key, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+
+        void read() throws IOException {
+            int bytesRead;
+            if (useSeparator) {
+                bytesRead = decoder.readFrom(channel);
+            }
+            else {
+                if (rawBuffer == null) {
+                    rawBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+                }
+                bytesRead = channel.read(rawBuffer);
+                if (bytesRead > 0) {
+                    rawBuffer.flip();
+                    byte[] bytesMsg = new byte[rawBuffer.remaining()];
+                    rawBuffer.get(bytesMsg);
+                    rawBuffer.clear();
+                    dispatch(this, bytesMsg);
+                }
+            }
+            if (bytesRead < 0) {
+                throw new IOException("End of stream");
+            }
+        }
+
+        /**
+         *Implementation of the FrameHandler interface: publishes each complete message
+         */
+        @Override
+        public void frameDecoded(byte[] payload) {
+            dispatch(this, payload);
+        }
+
+        /**
+         *Implementation of the FrameHandler interface: handles the termination message sent by the remote end
+         */
+        @Override
+        public void terminationReceived() {
+            Debug.println("Termination message received at " + url, "programming5.net.sockets.NIOTCPClient");
+            signalConnectionError(this);
+        }
+
+        void closeAfterWrite() {
+            closing = true;
+            if (writeQueue.isEmpty()) {
+                this.close();
+            }
+        }
+
+        void close() {
+            writeQueue.fail(new IOException("Connection closed"));
+            try {
+                channel.close();
+            }
+            catch (IOException ioe) {
+                Debug.printStackTrace(ioe, "programming5.net.sockets.NIOTCPClient");
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,437 @@
+/*
+ * OutboundQueue.java
+ *
+ * Copyright 2004 Andres Quiroz Hernandez
+ *
+ * This file is part of Programming5.
+ * Programming5 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Programming5 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Programming5.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package programming5.net.sockets;
+
+import programming5.concurrent.ThreadPool;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ *This class holds the frames waiting to be written to a single connection. Frames are queued as separate header and body buffers
+ *(so that they never need to be joined), and a single writer drains them in batches, with one gathering write per batch. Plain
+ *streams cannot gather, so small buffers of a batch are coalesced into one write and large ones are written from their own
+ *arrays. Each queued frame has a future that completes when the frame has been handed to the socket, so that callers can
+ *pipeline sends. The number of queued bytes is bounded by a high water mark: a sender that finds the queue above the mark blocks
+ *until the writer has drained it, which keeps a slow peer from accumulating unbounded memory. Senders that the writer depends
+ *on (the writer itself, e.g. in a future callback, or a caller that passes mayBlock as false) are never blocked, and may take
+ *the queue past the mark.
+ *<p>Only one writer should drain the queue at a time; claimDrain is used to elect it, and the writeTo methods release the claim
+ *when the queue becomes empty.
+ *@see programming5.net.sockets.TCPClient
+ *@see programming5.net.sockets.NIOTCPClient
+ *@author Andres Quiroz Hernandez
+ *@version 6.19
+ */
+public class OutboundQueue {
+
+    public static final int DEF_HIGH_WATER_MARK = 4 * 1024 * 1024;
+    public static final int DEF_WRITER_THREADS = 256;
+    protected static final int MAX_BATCH = 64;
+    protected static final int COALESCE_LIMIT = 8192;
+
+    private final ArrayDeque<Frame> frames = new ArrayDeque<Frame>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition belowMark = lock.newCondition();
+    private long pendingBytes = 0;
+    private int highWaterMark;
+    private boolean draining = false;
+    private Thread writer = null;
+    private IOException failure = null;
+    private byte[] coalesceBuffer = null;
+
+    private static Executor writerExecutor = null;
+
+    /**
+     *Creates a queue with the default high water mark
+     */
+    public OutboundQueue() {
+        this(DEF_HIGH_WATER_MARK);
+    }
+
+    /**
+     *@param myHighWaterMark the number of queued bytes above which senders block
+     */
+    public OutboundQueue(int myHighWaterMark) {
+        highWaterMark = myHighWaterMark;
+    }
+
+    /**
+     *@return the executor used to run blocking writers, whose daemon threads only exist while some connection has frames to 
+     *write: up to DEF_WRITER_THREADS threads, each reused while idle. A writer submitted with every thread busy (e.g. blocked on 
+     *peers that do not read) runs in the thread that queued the frame instead, which then writes at the pace of its peer.
+     *@see programming5.concurrent.ThreadPool.Mode#ELASTIC
+     */
+    public static synchronized Executor getWriterExecutor() {
+        if (writerExecutor == null) {
+            writerExecutor = new ThreadPool("programming5-writer", DEF_WRITER_THREADS, ThreadPool.DEF_QUEUE_CAPACITY, ThreadPool.Mode.ELASTIC, ThreadPool.RejectionPolicy.CALLER_RUNS);
+        }
+        return writerExecutor;
+    }
+
+    /**
+     *Sets the number of queued bytes above which senders block
+     */
+    public void setHighWaterMark(int bytes) {
+        lock.lock();
+        try {
+            highWaterMark = bytes;
+            belowMark.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     *Queues a frame, blocking first if the queue is above its high water mark (unless called from the thread that is draining the
+     *queue). The buffers must not be modified until the returned future completes.
+     *@param header the frame header, or null for unframed messages
+     *@param body the frame body
+     *@return a future that completes when the frame has been written, or exceptionally if the connection fails first
+     */
+    public CompletableFuture<Void> enqueue(ByteBuffer header, ByteBuffer body) {
+        return this.enqueue(header, body, true);
+    }
+
+    /**
+     *Queues a frame. The buffers must not be modified until the returned future completes.
+     *@param header the frame header, or null for unframed messages
+     *@param body the frame body
+     *@param mayBlock whether the caller can wait for the queue to drain below its high water mark; must be false if the caller is
+     *a thread on which the writer depends (e.g. the selector loop that writes the queue). The thread draining the queue never blocks.
+     *@return a future that completes when the frame has been written, or exceptionally if the connection fails first
+     */
+    public CompletableFuture<Void> enqueue(ByteBuffer header, ByteBuffer body, boolean mayBlock) {
+        CompletableFuture<Void> ret = new CompletableFuture<Void>();
+        lock.lock();
+        try {
+            while (mayBlock && pendingBytes >= highWaterMark && failure == null && writer != Thread.currentThread()) {
+                belowMark.await();
+            }
+            if (failure != null) {
+                ret.completeExceptionally(failure);
+            }
+            else {
+                Frame frame = new Frame(header, body, ret);
+                frames.addLast(frame);
+                pendingBytes += frame.size;
+            }
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            ret.completeExceptionally(new InterruptedIOException("OutboundQueue: Interrupted while waiting for queue to drain"));
+        }
+        finally {
+            lock.unlock();
+        }
+        return ret;
+    }
+
+    /**
+     *Elects the caller as the writer of this queue
+     *@return true if there are frames to write and no other writer was active, in which case the caller must drain the queue
+     */
+    public boolean claimDrain() {
+        lock.lock();
+        try {
+            if (!draining && !frames.isEmpty()) {
+                draining = true;
+                return true;
+            }
+            return false;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     *Writes queued frames to the given channel in batches, with one gathering write per batch. With a non-blocking channel, stops
+     *when the channel does not accept more bytes.
+     *@return true if the queue was emptied (and the writer claim released), false if frames remain to be written
+     *@throws IOException if the write fails, in which case all queued frames are failed
+     */
+    public boolean writeTo(GatheringByteChannel channel) throws IOException {
+        this.enterWriter();
+        try {
+            while (true) {
+                ByteBuffer[] buffers;
+                lock.lock();
+                try {
+                    if (frames.isEmpty()) {
+                        draining = false;
+                        return true;
+                    }
+                    buffers = this.batchBuffers();
+                }
+                finally {
+                    lock.unlock();
+                }
+                long written = (buffers.length > 0) ? channel.write(buffers) : 0;
+                this.completeWritten();
+                if (written == 0 && buffers.length > 0 && buffers[buffers.length - 1].hasRemaining()) {
+                    return false;
+                }
+            }
+        }
+        catch (IOException ioe) {
+            this.fail(ioe);
+            throw ioe;
+        }
+        finally {
+            this.exitWriter();
+        }
+    }
+
+    /**
+     *Writes all queued frames to the given blocking stream and releases the writer claim. Consecutive buffers smaller than
+     *COALESCE_LIMIT are copied into one array and written together; larger buffers are written straight from their own arrays,
+     *so the stream should not be buffered.
+     *@throws IOException if the write fails, in which case all queued frames are failed
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        this.enterWriter();
+        try {
+            if (coalesceBuffer == null) {
+                coalesceBuffer = new byte[2 * COALESCE_LIMIT];
+            }
+            while (true) {
+                ByteBuffer[] buffers;
+                lock.lock();
+                try {
+                    if (frames.isEmpty()) {
+                        draining = false;
+                        return;
+                    }
+                    buffers = this.batchBuffers();
+                }
+                finally {
+                    lock.unlock();
+                }
+                int coalesced = 0;
+                for (ByteBuffer buffer : buffers) {
+                    int length = buffer.remaining();
+                    if (length >= COALESCE_LIMIT || coalesced + length > coalesceBuffer.length) {
+                        if (coalesced > 0) {
+                            out.write(coalesceBuffer, 0, coalesced);
+                            coalesced = 0;
+                        }
+                    }
+                    if (length >= COALESCE_LIMIT) {
+                        out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+                    }
+                    else {
+                        buffer.duplicate().get(coalesceBuffer, coalesced, length);
+                        coalesced += length;
+                    }
+                    buffer.position(buffer.limit());
+                }
+                if (coalesced > 0) {
+                    out.write(coalesceBuffer, 0, coalesced);
+                }
+                out.flush();
+                this.completeWritten();
+            }
+        }
+        catch (IOException ioe) {
+            this.fail(ioe);
+            throw ioe;
+        }
+        finally {
+            this.exitWriter();
+        }
+    }
+
+    /**
+     *Fails all queued frames and any frames queued later with the given exception
+     */
+    public void fail(IOException cause) {
+        List<Frame> failed;
+        lock.lock();
+        try {
+            failure = cause;
+            failed = new ArrayList<Frame>(frames);
+            frames.clear();
+            pendingBytes = 0;
+            draining = false;
+            belowMark.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+        for (Frame frame : failed) {
+            frame.future.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     *@return true if the queue has been failed, so that no more frames can be written
+     */
+    public boolean isFailed() {
+        lock.lock();
+        try {
+            return failure != null;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     *@return the number of bytes queued and not yet written
+     */
+    public long getPendingBytes() {
+        lock.lock();
+        try {
+            return pendingBytes;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     *@return the number of frames queued and not yet completely written
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return frames.size();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     *@return true if no frames are waiting to be written
+     */
+    public boolean isEmpty() {
+        return this.size() == 0;
+    }
+
+    /**
+     *Records the calling thread as the one draining the queue, which is never blocked by the high water mark (see enqueue)
+     */
+    private void enterWriter() {
+        lock.lock();
+        try {
+            writer = Thread.currentThread();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     *Clears the record of enterWriter, unless another writer has been elected since the claim was released
+     */
+    private void exitWriter() {
+        lock.lock();
+        try {
+            if (writer == Thread.currentThread()) {
+                writer = null;
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     *Must be called with the lock held; collects the remaining buffers of up to MAX_BATCH frames from the head of the queue
+     */
+    private ByteBuffer[] batchBuffers() {
+        List<ByteBuffer> buffers = new ArrayList<ByteBuffer>(2 * MAX_BATCH);
+        int count = 0;
+        for (Frame frame : frames) {
+            if (count++ == MAX_BATCH) {
+                break;
+            }
+            if (frame.header != null && frame.header.hasRemaining()) {
+                buffers.add(frame.header);
+            }
+            if (frame.body.hasRemaining()) {
+                buffers.add(frame.body);
+            }
+        }
+        return buffers.toArray(new ByteBuffer[buffers.size()]);
+    }
+
+    /**
+     *Removes the frames that have been completely written and completes their futures
+     */
+    private void completeWritten() {
+        List<Frame> completed = new ArrayList<Frame>();
+        lock.lock();
+        try {
+            Frame head = frames.peekFirst();
+            while (head != null && head.isWritten()) {
+                frames.pollFirst();
+                pendingBytes -= head.size;
+                completed.add(head);
+                head = frames.peekFirst();
+            }
+            if (pendingBytes < highWaterMark) {
+                belowMark.signalAll();
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+        for (Frame frame : completed) {
+            frame.future.complete(null);
+        }
+    }
+
+    private static class Frame {
+
+        final ByteBuffer header;
+        final ByteBuffer body;
+        final CompletableFuture<Void> future;
+        final int size;
+
+        Frame(ByteBuffer myHeader, ByteBuffer myBody, CompletableFuture<Void> myFuture) {
+            header = myHeader;
+            body = myBody;
+            future = myFuture;
+            size = ((header != null) ? header.remaining() : 0) + body.remaining();
+        }
+
+        boolean isWritten() {
+            return (header == null || !header.hasRemaining()) && !body.hasRemaining();
+        }
+
+    }
+
+}
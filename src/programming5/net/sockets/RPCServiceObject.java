@@ -0,0 +1,311 @@
+/*
+ * RPCServiceObject.java
+ *
+ * Copyright 2004 Andres Quiroz Hernandez
+ *
+ * This file is part of Programming5.
+ * Programming5 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Programming5 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Programming5.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package programming5.net.sockets;
+
+import programming5.concurrent.ThreadPool;
+import programming5.io.Debug;
+import programming5.net.MalformedMessageException;
+import programming5.net.MessageArrivedEvent;
+import programming5.net.MessageArrivedListener;
+import programming5.net.MessagingClient;
+import programming5.net.NetworkException;
+import programming5.net.PluggableClient;
+import programming5.net.RPCMessage;
+import programming5.net.ReceiveMailbox;
+import programming5.net.ServiceObject;
+
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ *This class is the server side of TCPRPCClient: a service object that serves remote procedure calls on the exported methods
+ *of a target object, which are the methods of the types given on creation or, if none are given, the public methods declared 
+ *by the target's own class (not those it inherits). Requests are read from each client connection as they arrive and executed by a pool of worker
+ *threads, so that many calls from the same connection can be in progress at once; each response carries the identifier of
+ *its call, so it is sent as soon as its call completes, regardless of the order of the requests. A single instance can
+ *serve all the clients of a TCPServerDaemon (by returning it from the service object factory), in which case the target
+ *object must be thread safe. Parameters are deserialized with RPCMessage.DEF_FILTER unless another filter is set.
+ *@see programming5.net.sockets.TCPRPCClient
+ *@see programming5.net.RPCMessage
+ *@author Andres Quiroz Hernandez
+ *@version 6.19
+ */
+public class RPCServiceObject implements ServiceObject {
+
+    public static final int DEF_WORKERS = ConnectionAdmission.DEF_WORKERS;
+
+    protected final Object target;
+    protected final Executor executor;
+    private final Map<String, List<Method>> methods = new HashMap<String, List<Method>>();
+    private volatile ObjectInputFilter filter = RPCMessage.DEF_FILTER;
+
+    private static Executor defaultExecutor = null;
+
+    private static final Map<Class<?>, Class<?>> WRAPPERS = new HashMap<Class<?>, Class<?>>();
+    static {
+        WRAPPERS.put(boolean.class, Boolean.class);
+        WRAPPERS.put(byte.class, Byte.class);
+        WRAPPERS.put(char.class, Character.class);
+        WRAPPERS.put(short.class, Short.class);
+        WRAPPERS.put(int.class, Integer.class);
+        WRAPPERS.put(long.class, Long.class);
+        WRAPPERS.put(float.class, Float.class);
+        WRAPPERS.put(double.class, Double.class);
+    }
+
+    /**
+     *Creates a service object that invokes the public methods declared by the class of the given object on the default 
+     *worker pool
+     */
+    public RPCServiceObject(Object myTarget) {
+        this(myTarget, getDefaultExecutor());
+    }
+
+    /**
+     *Creates a service object that invokes the public methods declared by the class of the given object on the given 
+     *executor; the class must be public for its methods to be invoked
+     */
+    public RPCServiceObject(Object myTarget, Executor myExecutor) {
+        target = myTarget;
+        executor = myExecutor;
+        for (Method method : target.getClass().getDeclaredMethods()) {
+            int modifiers = method.getModifiers();
+            if (Modifier.isPublic(modifiers) && !Modifier.isStatic(modifiers) && !method.isSynthetic()) {
+                this.export(method);
+            }
+        }
+    }
+
+    /**
+     *Creates a service object that invokes the methods of the given types (usually interfaces) on the given object, using 
+     *the given executor
+     *@throws IllegalArgumentException if the object is not an instance of every given type
+     */
+    public RPCServiceObject(Object myTarget, Executor myExecutor, Class<?>... exportedTypes) {
+        target = myTarget;
+        executor = myExecutor;
+        for (Class<?> type : exportedTypes) {
+            if (!type.isInstance(target)) {
+                throw new IllegalArgumentException("RPCServiceObject: Target is not an instance of " + type.getName());
+            }
+            for (Method method : type.getMethods()) {
+                if (method.getDeclaringClass() != Object.class && !Modifier.isStatic(method.getModifiers())) {
+                    this.export(method);
+                }
+            }
+        }
+    }
+
+    /**
+     *Sets the filter with which the parameters of requests are deserialized (RPCMessage.DEF_FILTER by default), which must 
+     *allow every type passed by clients; requests with parameters it rejects fail with a NetworkException
+     *@see programming5.net.RPCMessage#createFilter
+     */
+    public void setDeserializationFilter(ObjectInputFilter myFilter) {
+        filter = myFilter;
+    }
+
+    /**
+     *@return the executor shared by all service objects that have not been given one: a fixed pool of DEF_WORKERS daemon
+     *threads
+     */
+    public static synchronized Executor getDefaultExecutor() {
+        if (defaultExecutor == null) {
+            defaultExecutor = new ThreadPool("programming5-rpc", DEF_WORKERS, ThreadPool.Mode.BOUNDED);
+        }
+        return defaultExecutor;
+    }
+
+    /**
+     *Implementation of the ServiceObject interface. Starts serving the requests that arrive through the given client,
+     *including those that arrived before this call.
+     *@throws IllegalArgumentException if the client is not a MessagingClient
+     */
+    @Override
+    public void newClient(PluggableClient client) {
+        if (!(client instanceof MessagingClient)) {
+            throw new IllegalArgumentException("RPCServiceObject: Client must be a MessagingClient");
+        }
+        final MessagingClient messaging = (MessagingClient) client;
+        Runnable subscription = new Runnable() {
+            @Override
+            public void run() {
+                messaging.addListener(new MessageArrivedListener() {
+                    @Override
+                    public <T extends MessageArrivedEvent> void signalEvent(T event) {
+                        serve(messaging, event.getContentBytes());
+                    }
+                });
+            }
+        };
+        ReceiveMailbox held = null;
+        if (client instanceof TCPClient) {
+            held = ((TCPClient) client).mailbox;
+        }
+        else if (client instanceof NIOTCPClient) {
+            held = ((NIOTCPClient) client).mailbox;
+        }
+        if (held != null) {
+            for (byte[] request : held.subscribe(subscription)) {
+                this.serve(messaging, request);
+            }
+        }
+        else {
+            subscription.run();
+        }
+    }
+
+    /**
+     *Invokes the method with the given name on the target object, choosing among methods with the same name the first one
+     *whose parameter types accept the given parameters
+     *@return the value returned by the method
+     *@throws NoSuchMethodException if the target object has no exported method that accepts the given parameters
+     *@throws Exception the exception thrown by the method
+     */
+    protected Object dispatch(String methodName, Object[] parameters) throws Exception {
+        List<Method> overloads = methods.get(methodName);
+        if (overloads != null) {
+            for (Method method : overloads) {
+                if (accepts(method.getParameterTypes(), parameters)) {
+                    try {
+                        return method.invoke(target, parameters);
+                    }
+                    catch (InvocationTargetException ite) {
+                        Throwable cause = ite.getCause();
+                        if (cause instanceof Exception) {
+                            throw (Exception) cause;
+                        }
+                        throw ite;
+                    }
+                }
+            }
+        }
+        throw new NoSuchMethodException("RPCServiceObject: No method " + methodName + " for the given parameters");
+    }
+
+    /**
+     *Executes the given request on a worker thread and sends the response through the given client
+     */
+    private void serve(final MessagingClient client, final byte[] requestBytes) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                RPCMessage request;
+                long callID;
+                try {
+                    request = new RPCMessage(requestBytes);
+                    if (!request.isRequest()) {
+                        throw new MalformedMessageException("RPCServiceObject: Not a request");
+                    }
+                    callID = request.getCallID();
+                }
+                catch (MalformedMessageException mme) {
+                    Debug.println("RPCServiceObject: Discarding message: " + mme.getMessage(), "programming5.net.sockets.RPCServiceObject");
+                    return;
+                }
+                Object result;
+                boolean error = false;
+                try {
+                    result = dispatch(request.getMethodName(), readParameters(request));
+                }
+                catch (Exception e) {
+                    result = e;
+                    error = true;
+                }
+                RPCMessage response;
+                try {
+                    response = RPCMessage.createResponse(callID, result, error);
+                }
+                catch (IOException ioe) {
+                    try {
+                        response = RPCMessage.createResponse(callID, new NetworkException("RPCServiceObject: Could not serialize result: " + ioe.getMessage()), true);
+                    }
+                    catch (IOException unexpected) {
+                        Debug.printStackTrace(unexpected, "programming5.net.sockets.RPCServiceObject");
+                        return;
+                    }
+                }
+                try {
+                    client.send(response.getMessageBytes(request.getEncoding()));
+                }
+                catch (NetworkException ne) {
+                    Debug.println("RPCServiceObject: Could not send response: " + ne.getMessage(), "programming5.net.sockets.RPCServiceObject");
+                }
+            }
+        });
+    }
+
+    /**
+     *@return the parameters of the given request, deserialized with the service's filter
+     *@throws NetworkException if the parameters cannot be read or the filter rejects them (reported as a NetworkException, 
+     *which the default filter of clients allows, unlike most exceptions of java.io)
+     */
+    private Object[] readParameters(RPCMessage request) throws MalformedMessageException, NetworkException {
+        try {
+            return request.getParameters(filter);
+        }
+        catch (IOException ioe) {
+            throw new NetworkException("RPCServiceObject: Could not read parameters: " + ioe);
+        }
+        catch (ClassNotFoundException cnfe) {
+            throw new NetworkException("RPCServiceObject: Could not read parameters: " + cnfe);
+        }
+    }
+
+    private void export(Method method) {
+        List<Method> overloads = methods.get(method.getName());
+        if (overloads == null) {
+            overloads = new ArrayList<Method>();
+            methods.put(method.getName(), overloads);
+        }
+        overloads.add(method);
+    }
+
+    private static boolean accepts(Class<?>[] types, Object[] parameters) {
+        if (types.length != parameters.length) {
+            return false;
+        }
+        for (int i = 0; i < types.length; i++) {
+            if (parameters[i] == null) {
+                if (types[i].isPrimitive()) {
+                    return false;
+                }
+            }
+            else {
+                Class<?> type = types[i].isPrimitive() ? WRAPPERS.get(types[i]) : types[i];
+                if (!type.isInstance(parameters[i])) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,121 @@
+/*
+ * RTTEstimator.java
+ *
+ * Copyright 2004 Andres Quiroz Hernandez
+ *
+ * This file is part of Programming5.
+ * Programming5 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Programming5 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Programming5.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package programming5.net.sockets;
+
+/**
+ *This class estimates the round trip time to a peer and derives the retransmission timeout from it, following the algorithm of
+ *RFC 6298: the smoothed round trip time and its variation are updated with gains of 1/8 and 1/4 from every sample, and the
+ *timeout is the smoothed time plus four times the variation, bounded by configurable minimum and maximum values. The timeout
+ *is doubled on every retransmission (exponential backoff) until a new sample is taken. Samples must not be taken from
+ *retransmitted packets (Karn's algorithm), which is the responsibility of the caller.
+ *@see programming5.net.sockets.ReliableUDPClient
+ *@author Andres Quiroz Hernandez
+ *@version 6.19
+ */
+public class RTTEstimator {
+
+    public static final long DEF_INITIAL_RTO = 1000;
+    public static final long DEF_MIN_RTO = 50;
+    public static final long DEF_MAX_RTO = 60000;
+
+    protected double srtt = -1;
+    protected double rttvar = 0;
+    protected long rto;
+    protected long minRTO;
+    protected long maxRTO;
+
+    /**
+     *Creates an estimator with the default initial, minimum, and maximum timeouts
+     */
+    public RTTEstimator() {
+        this(DEF_INITIAL_RTO, DEF_MIN_RTO, DEF_MAX_RTO);
+    }
+
+    /**
+     *Creates an estimator with the given timeouts, in milliseconds
+     *@param initialRTO the timeout used before the first sample is taken
+     *@param myMinRTO the lower bound of the timeout
+     *@param myMaxRTO the upper bound of the timeout
+     */
+    public RTTEstimator(long initialRTO, long myMinRTO, long myMaxRTO) {
+        minRTO = myMinRTO;
+        maxRTO = myMaxRTO;
+        rto = this.bound(initialRTO);
+    }
+
+    /**
+     *Updates the estimate with a new round trip time measurement
+     *@param sample the measured round trip time, in milliseconds
+     */
+    public synchronized void sample(long sample) {
+        if (srtt < 0) {
+            srtt = sample;
+            rttvar = sample / 2.0;
+        }
+        else {
+            rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - sample);
+            srtt = 0.875 * srtt + 0.125 * sample;
+        }
+        rto = this.bound((long) Math.ceil(srtt + Math.max(1, 4 * rttvar)));
+    }
+
+    /**
+     *Doubles the retransmission timeout, up to the maximum
+     */
+    public synchronized void backoff() {
+        rto = this.bound(2 * rto);
+    }
+
+    /**
+     *@return the current retransmission timeout, in milliseconds
+     */
+    public synchronized long getRTO() {
+        return rto;
+    }
+
+    /**
+     *@return the smoothed round trip time, in milliseconds, or -1 if no samples have been taken
+     */
+    public synchronized double getSmoothedRTT() {
+        return srtt;
+    }
+
+    /**
+     *@return the round trip time variation, in milliseconds
+     */
+    public synchronized double getRTTVariation() {
+        return rttvar;
+    }
+
+    /**
+     *Sets the lower bound of the timeout, in milliseconds
+     */
+    public synchronized void setMinRTO(long millis) {
+        minRTO = millis;
+        rto = this.bound(rto);
+    }
+
+    private long bound(long value) {
+        return Math.max(minRTO, Math.min(maxRTO, value));
+    }
+
+}
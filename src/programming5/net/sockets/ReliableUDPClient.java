@@ -22,29 +22,33 @@
 package programming5.net.sockets;
 
 import programming5.arrays.ArrayOperations;
-import programming5.collections.RotatingList;
+import programming5.collections.BoundedLongPairSet;
+import programming5.concurrent.Mailbox;
+import programming5.concurrent.TimingWheel;
 import programming5.io.Debug;
 import programming5.net.AsynchMessageArrivedEvent;
 import programming5.net.MalformedMessageException;
+import programming5.net.Message;
 import programming5.net.MessageArrivedEvent;
 import programming5.net.MessageArrivedListener;
 import programming5.net.MessagingClient;
 import programming5.net.NetworkException;
 import programming5.net.Publisher;
-import programming5.net.ReceiveRequest;
+import programming5.net.ReceiveMailbox;
 import programming5.net.ReliableMessageArrivedListener;
 import programming5.net.ReliableProtocolMessage;
 import programming5.net.Subscriber;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.TimeUnit;
+import java.util.TreeMap;
 
 
 /**
@@ -69,6 +73,16 @@ import java.util.concurrent.TimeUnit;
  *<p>The use of this class is not recommended for larger message streams. As the sizes of the streams
  *increase, the receive memory size (default 1000 messages) should also be increased, but the correct
  *settings have not been tested.
+ *<p>For larger streams, the selective repeat mode (see setSelectiveRepeat) replaces the fixed resend
+ *cycle with a sliding window per destination: every packet gets a sequence number within a session
+ *of the sender, acknowledgements carry the cumulative sequence received plus a bitmap of the packets
+ *received after it (sent once for every few packets received, see setAckCoalescing), only packets 
+ *that are not acknowledged within a retransmission timeout estimated
+ *from the measured round trip time (RFC 6298) are resent, and the number of packets in flight is
+ *governed by a congestion window that grows additively with acknowledgements and is halved on loss.
+ *Receivers handle both modes regardless of their own setting. The state kept for the sources of windowed packets is bounded 
+ *like the memory of received messages (see setReceiveMemory), evicting the least recently active source first, and the state 
+ *kept for a destination is discarded once it has had nothing to send for a while (see setSenderIdleTimeout).
  *@see programming5.net.sockets.UDPClient
  *@see programming5.net.ReliableProtocolMessage
  *@see programming5.net.ReliableMessageArrivedListener
@@ -78,21 +92,55 @@ import java.util.concurrent.TimeUnit;
 public class ReliableUDPClient extends Publisher<MessageArrivedEvent> implements MessagingClient, MessageArrivedListener {
     
     protected UDPClient client;
-    protected final Map<Long, ReliableProtocolMessage[]> messageTable = new HashMap<Long, ReliableProtocolMessage[]>();
-    protected final List<ReceiveRequest> receiveRequests = new ArrayList<ReceiveRequest>();
-    protected final Map<String, byte[][]> assembly = new HashMap<String, byte[][]>();
-    protected final Map<String, boolean[]> assemblyCounter = new HashMap<String, boolean[]>();
-    protected final RotatingList<String> receivedMessages = new RotatingList<String>(DEF_RCV_MEMORY);
+    protected final Map<Long, PendingMessage> messageTable = new HashMap<Long, PendingMessage>();
+    protected final ReceiveMailbox mailbox = new ReceiveMailbox();
+    protected volatile TransportMetrics transportMetrics = this.createTransportMetrics();
+    protected final Map<String, Reassembly> assembly = new LinkedHashMap<String, Reassembly>();
+    protected final BoundedLongPairSet receivedMessages = new BoundedLongPairSet(DEF_RCV_MEMORY);
+    protected final Map<String, Long> peerIDs = new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+    protected final Map<String, WindowSender> windowSenders = new LinkedHashMap<String, WindowSender>(16, 0.75f, true);
+    protected final Map<Long, WindowSender> sessions = new HashMap<Long, WindowSender>();
+    protected final Map<String, WindowReceiver> windowReceivers = new LinkedHashMap<String, WindowReceiver>(16, 0.75f, true);
 
     private long timeout = DEF_TIMEOUT;
     private int maxResend = DEF_RESEND;
+    private int fragmentSize = MAX_SIZE;
+    private boolean selectiveRepeat = false;
+    private int maxWindow = DEF_MAX_WINDOW;
+    private long minRTO = RTTEstimator.DEF_MIN_RTO;
+    private Message.Encoding encoding = Message.Encoding.TEXT;
+    private long ackDelay = DEF_ACK_DELAY;
+    private int ackEvery = DEF_ACK_EVERY;
+    private int maxPendingMessages = DEF_MAX_PENDING_MESSAGES;
+    private long reassemblyTimeout = DEF_REASSEMBLY_TIMEOUT;
+    private volatile long senderIdleTimeout = DEF_SENDER_IDLE_TIMEOUT;
+    private int maxFragments = DEF_MAX_FRAGMENTS;
+    private long reassemblyDropCount = 0;
+    private volatile int peerMemory = DEF_RCV_MEMORY;
+    private long nextPeerID = FIRST_MAPPED_PEER;
     private Random random = new Random(System.currentTimeMillis());
-    private Timer timer = new Timer();
+    private final TimingWheel wheel = TimingWheel.getDefault();
+    private volatile boolean closed = false;
     
     public static final long DEF_TIMEOUT = 50;
     public static final int DEF_RESEND = 50;
     public static final int DEF_RCV_MEMORY = 1000;
+    public static final int DEF_MAX_WINDOW = 1024;
+    public static final int DEF_INITIAL_WINDOW = 4;
+    public static final long TIMER_TICK = TimingWheel.DEF_TICK;
+    public static final long DEF_ACK_DELAY = TIMER_TICK;
+    public static final int DEF_ACK_EVERY = 16;
+    public static final int DEF_MAX_PENDING_MESSAGES = 256;
+    public static final long DEF_REASSEMBLY_TIMEOUT = 5000;
+    public static final long DEF_SENDER_IDLE_TIMEOUT = 30000;
+    public static final int DEF_MAX_FRAGMENTS = 4096;
     protected static final int MAX_SIZE = 65400;
+    protected static final int RECEIVE_WINDOW = 4096; // Must be a power of two
+    protected static final int SACK_BITS = 64;
+    protected static final int DUPLICATE_THRESHOLD = 3;
+    protected static final int RETIRED_SESSIONS = 8;
+    protected static final long FIRST_MAPPED_PEER = 1L << 48;
     protected static final String SEPARATOR = ":";
     protected static final String SLASH = "/";
 
@@ -105,7 +153,6 @@ public class ReliableUDPClient extends Publisher<MessageArrivedEvent> implements
     public ReliableUDPClient() throws NetworkException {
         client = new UDPClient();
         client.addListener(this);
-        timer.scheduleAtFixedRate(new ReliableProtocolEnforceTask(), timeout, timeout);
     }
     
     /**
@@ -118,7 +165,6 @@ public class ReliableUDPClient extends Publisher<MessageArrivedEvent> implements
     public ReliableUDPClient(int localPort) throws NetworkException {
         client = new UDPClient(localPort);
         client.addListener(this);
-        timer.scheduleAtFixedRate(new ReliableProtocolEnforceTask(), timeout, timeout);
     }
     
     /**
@@ -134,7 +180,6 @@ public class ReliableUDPClient extends Publisher<MessageArrivedEvent> implements
     public ReliableUDPClient(String address, int remotePort) throws NetworkException {
         client = new UDPClient(address, remotePort);
         client.addListener(this);
-        timer.scheduleAtFixedRate(new ReliableProtocolEnforceTask(), timeout, timeout);
     }
     
     /**
@@ -150,7 +195,6 @@ public class ReliableUDPClient extends Publisher<MessageArrivedEvent> implements
     public ReliableUDPClient(String address, int remotePort, int localPort) throws NetworkException {
         client = new UDPClient(address, remotePort, localPort);
         client.addListener(this);
-        timer.scheduleAtFixedRate(new ReliableProtocolEnforceTask(), timeout, timeout);
     }
     
     /**
@@ -169,7 +213,6 @@ public class ReliableUDPClient extends Publisher<MessageArrivedEvent> implements
     public ReliableUDPClient(String address, int remotePort, boolean useConnectMsg) throws NetworkException {
         client = new UDPClient(address, remotePort, useConnectMsg);
         client.addListener(this);
-        timer.scheduleAtFixedRate(new ReliableProtocolEnforceTask(), timeout, timeout);
     }
     
     /**
@@ -188,7 +231,6 @@ public class ReliableUDPClient extends Publisher<MessageArrivedEvent> implements
     public ReliableUDPClient(String address, int remotePort, int localPort, boolean useConnectMsg) throws NetworkException {
         client = new UDPClient(address, remotePort, localPort, useConnectMsg);
         client.addListener(this);
-        timer.scheduleAtFixedRate(new ReliableProtocolEnforceTask(), timeout, timeout);
     }
     
     /**
@@ -197,9 +239,64 @@ public class ReliableUDPClient extends Publisher<MessageArrivedEvent> implements
      */
     public void setTimeout(long timeMillis) {
         timeout = timeMillis;
-        timer.cancel();
-        timer = new Timer();
-        timer.scheduleAtFixedRate(new ReliableProtocolEnforceTask(), timeout, timeout);
+    }
+
+    /**
+     *Enables or disables the selective repeat mode for messages sent after this call. In this mode, the timeout set with 
+     *setTimeout is not used for resending; instead, the retransmission timeout is estimated for each destination, with the 
+     *value given to setMinRTO as its lower bound.
+     */
+    public void setSelectiveRepeat(boolean enable) {
+        selectiveRepeat = enable;
+    }
+
+    /**
+     *Sets the maximum number of unacknowledged packets in flight to a destination in selective repeat mode (up to 
+     *RECEIVE_WINDOW); the congestion window never grows beyond it
+     */
+    public void setMaxWindow(int packets) {
+        maxWindow = Math.max(1, Math.min(RECEIVE_WINDOW, packets));
+    }
+
+    /**
+     *Sets the lower bound of the retransmission timeout in selective repeat mode, for destinations first used after this call
+     */
+    public void setMinRTO(long millis) {
+        minRTO = millis;
+    }
+
+    /**
+     *Sets the largest number of message bytes carried by each reliable packet (MAX_SIZE by default). Smaller packets (e.g. 
+     *UDPClient.ETHERNET_FRAGMENT_SIZE) avoid IP fragmentation and make selective repeat more effective, as only the packets 
+     *lost are resent.
+     */
+    public void setFragmentSize(int bytes) {
+        if (bytes <= 0 || bytes > MAX_SIZE) {
+            throw new IllegalArgumentException("ReliableUDPClient: Fragment size must be between 1 and " + MAX_SIZE);
+        }
+        fragmentSize = bytes;
+    }
+
+    /**
+     *Sets the syntax in which the reliable protocol messages and acknowledgements sent after this call are encoded (TEXT by 
+     *default). Received messages are decoded in either syntax, but peers running versions prior to 6.19 only decode TEXT. The 
+     *BINARY syntax avoids escaping the payload and converting sequence numbers to strings.
+     */
+    public void setMessageEncoding(Message.Encoding myEncoding) {
+        encoding = myEncoding;
+        client.setMessageEncoding(myEncoding);
+    }
+
+    /**
+     *Sets how acknowledgements are coalesced in selective repeat mode: a receiver acknowledges the packets of a source once the 
+     *given number of them are unacknowledged, or the given delay after the first of them arrived, whichever comes first (by 
+     *default, 16 packets or 10 msec). Packets that arrive out of order or duplicated are acknowledged without delay, so that 
+     *the sender can detect losses quickly. Acknowledgements are sent from the shared timer thread, so those sent without 
+     *delay go out at its next tick (TIMER_TICK), along with any other packets received in the meantime.
+     */
+    public void setAckCoalescing(long delayMillis, int maxPackets) {
+        ackDelay = Math.max(0, delayMillis);
+        ackEvery = Math.max(1, maxPackets);
     }
 
     /**
@@ -213,11 +310,74 @@ public class ReliableUDPClient extends Publisher<MessageArrivedEvent> implements
     /**
      * When a message that has already been acknowledged is received again (possibly due to a lost 
      * ack), it should not be delivered to this application again. This parameter controls the 
-     * number of received messages kept in memory in order to accomplish this.
+     * number of received messages kept in memory in order to accomplish this. It also bounds the number of sources and
+     * destinations for which state is kept.
      * @param value the number of messages to keep in memory in case of duplicate reception
      */
     public void setReceiveMemory(int value) {
-        receivedMessages.setSize(value);
+        synchronized (receivedMessages) {
+            receivedMessages.setCapacity(value);
+        }
+        synchronized (peerIDs) {
+            peerMemory = Math.max(1, value);
+        }
+    }
+
+    /**
+     *Sets the maximum number of partially received messages that are kept at once; when a new message starts with the table 
+     *full, the oldest partial message is dropped
+     */
+    public void setMaxPendingMessages(int max) {
+        synchronized (assembly) {
+            maxPendingMessages = Math.max(1, max);
+        }
+    }
+
+    /**
+     *Sets the time (in milliseconds) after which a partially received message is dropped, as happens to the rest of a message 
+     *whose sender has given up on one of its packets
+     */
+    public void setReassemblyTimeout(long millis) {
+        synchronized (assembly) {
+            reassemblyTimeout = millis;
+        }
+    }
+
+    /**
+     *Sets the time (in milliseconds) after which the state kept for a destination of the selective repeat mode that has had 
+     *nothing to send is discarded; the next message to the destination starts a new session
+     */
+    public void setSenderIdleTimeout(long millis) {
+        senderIdleTimeout = millis;
+    }
+
+    /**
+     *Sets the largest number of packets of a message that will be reassembled; packets of messages announced with more parts 
+     *are dropped before any state is allocated for them
+     */
+    public void setMaxFragments(int max) {
+        synchronized (assembly) {
+            maxFragments = Math.max(1, max);
+        }
+    }
+
+    /**
+     *@return the number of packets and partially received messages dropped because they expired, the reassembly table was 
+     *full, or their part numbers were inconsistent
+     */
+    public long getReassemblyDropCount() {
+        synchronized (assembly) {
+            return reassemblyDropCount;
+        }
+    }
+
+    /**
+     *@return the number of messages currently being reassembled
+     */
+    public int getPendingMessageCount() {
+        synchronized (assembly) {
+            return assembly.size();
+        }
     }
     
     /**
@@ -238,10 +398,7 @@ public class ReliableUDPClient extends Publisher<MessageArrivedEvent> implements
     public void send(String msg) throws NetworkException {
         if (client.fixedHost) {
             String destURL = "//" + client.getHostAddress() + ":" + Integer.toString(client.getHostPort());
-            ReliableProtocolMessage[] rmsgs = this.createMessage(msg.getBytes(), destURL);
-            for (ReliableProtocolMessage rmsg : rmsgs) {
-                client.send(rmsg.getMessageBytes());
-            }
+            this.transmit(msg.getBytes(), destURL, true);
         }
         else throw new NetworkException("ReliableUDPClient: Could not send message: No remote host specified");
     }
@@ -254,10 +411,7 @@ public class ReliableUDPClient extends Publisher<MessageArrivedEvent> implements
     public void send(byte[] msgBytes) throws NetworkException {
         if (client.fixedHost) {
             String destURL = "//" + client.getHostAddress() + ":" + Integer.toString(client.getHostPort());
-            ReliableProtocolMessage[] rmsgs = this.createMessage(msgBytes, destURL);
-            for (ReliableProtocolMessage rmsg : rmsgs) {
-                client.send(rmsg.getMessageBytes());
-            }
+            this.transmit(msgBytes, destURL, true);
         }
         else throw new NetworkException("ReliableUDPClient: Could not send message: No remote host specified");
     }
@@ -269,12 +423,7 @@ public class ReliableUDPClient extends Publisher<MessageArrivedEvent> implements
      */
     @Override
     public void send(String message, String uri) throws NetworkException {
-        ReliableProtocolMessage[] rmsgs = this.createMessage(message.getBytes(), uri);
-        Debug.println("Sending " + rmsgs.length + " reliable messages", "programming5.net.sockets.ReliableUDPClient");
-        for (ReliableProtocolMessage rmsg : rmsgs) {
-            client.send(rmsg.getMessageBytes(), uri);
-            Debug.println("RUDP message length " + rmsg.getMessageBytes().length, "programming5.net.sockets.ReliableUDPClient");
-        }
+        this.transmit(message.getBytes(), uri, false);
     }
 
     /**
@@ -291,11 +440,7 @@ public class ReliableUDPClient extends Publisher<MessageArrivedEvent> implements
             throw new NetworkException("ReliableUDPClient: Cannot send message: No message to send");
         }
         else {
-            ReliableProtocolMessage[] rmsgs = this.createMessage(bytesMessage, uri);
-            Debug.println("Sending " + rmsgs.length + " reliable messages", "programming5.net.sockets.ReliableUDPClient");
-            for (ReliableProtocolMessage rmsg : rmsgs) {
-                client.send(rmsg.getMessageBytes(), uri);
-            }
+            this.transmit(bytesMessage, uri, false);
         }
     }
 
@@ -339,16 +484,7 @@ public class ReliableUDPClient extends Publisher<MessageArrivedEvent> implements
      */
     @Override
     public byte[] receiveBytes() {
-        byte[] ret = null;
-        ReceiveRequest myRequest = new ReceiveRequest();
-        synchronized (receiveRequests) {
-            receiveRequests.add(myRequest);
-        }
-        myRequest.awaitUninterruptibly();
-        if (myRequest.isDone()) {
-            ret = myRequest.getMessage();
-        }
-        return ret;
+        return mailbox.receive();
     }
 
     /**
@@ -367,26 +503,47 @@ public class ReliableUDPClient extends Publisher<MessageArrivedEvent> implements
      */
     @Override
     public byte[] receiveBytes(long timeout) throws InterruptedException {
-        byte[] ret = null;
-        ReceiveRequest myRequest = new ReceiveRequest();
-        synchronized (receiveRequests) {
-            receiveRequests.add(myRequest);
-        }
-        myRequest.await(timeout, TimeUnit.MILLISECONDS);
-        if (myRequest.isDone()) {
-            ret = myRequest.getMessage();
-        }
-        return ret;
+        return mailbox.receive(timeout);
     }
 
     /**
      *Implementation of the MessagingClient interface. Waits for an incoming message for limited time.
      *@param timeout wait time in milliseconds
-     *@return the message string
+     *@return the message string, or null if no message arrived before the timeout
      */
     @Override
     public String receive(long timeout) throws InterruptedException {
-        return new String(this.receiveBytes(timeout));
+        byte[] ret = this.receiveBytes(timeout);
+        return (ret != null) ? new String(ret) : null;
+    }
+
+    /**
+     *Implementation of the MessagingClient interface. Waits for a message for limited time, and then returns up to the given
+     *number of messages that have arrived, without waiting further.
+     *@param max the maximum number of messages returned
+     *@param timeout wait time in milliseconds
+     *@return the message bytes, oldest first; the list is empty if no message arrives before the timeout
+     */
+    @Override
+    public List<byte[]> receiveBatch(int max, long timeout) throws InterruptedException {
+        return mailbox.receiveBatch(max, timeout);
+    }
+
+    /**
+     *Sets the capacity of the mailbox that holds arrived messages for the receive methods, and what to do with messages that 
+     *arrive when it is full (by default, it holds 1024 messages and drops the oldest ones). Messages are held once a receive 
+     *method or this method has been called; this method should be called before any thread waits on the receive methods.
+     */
+    public void setReceiveMailbox(int capacity, Mailbox.OverflowPolicy policy) {
+        mailbox.configure(capacity, policy);
+    }
+
+    /**
+     *@return the number of messages dropped because the receive mailbox was full (with the DROP_OLDEST and DROP_NEWEST 
+     *policies), since the mailbox was last configured
+     */
+    public long getDroppedCount() {
+        return mailbox.getDroppedCount();
     }
 
     /**
@@ -396,15 +553,62 @@ public class ReliableUDPClient extends Publisher<MessageArrivedEvent> implements
      */
     @Override
     public void signalEvent(MessageArrivedEvent protocolEvent) {
-        if (protocolEvent != null) {
+        if (protocolEvent != null && !closed) {
             try {
                 ReliableProtocolMessage rcvdMsg = new ReliableProtocolMessage(protocolEvent.getContentBytes());
-                if (rcvdMsg.isAcknowledge()) {
+                if (rcvdMsg.isWindowAcknowledge()) {
+                    WindowSender sender;
+                    synchronized (windowSenders) {
+                        sender = sessions.get(rcvdMsg.getSession());
+                    }
+                    if (sender != null) {
+                        sender.sendAll(sender.acknowledge(rcvdMsg.getCumulativeSequence(), rcvdMsg.getSelectiveAcknowledgements(), System.currentTimeMillis()));
+                    }
+                }
+                else if (rcvdMsg.isWindowedMessage()) {
+                    String sourceURL = ((AsynchMessageArrivedEvent) protocolEvent).getSourceURL();
+                    WindowReceiver receiver;
+                    synchronized (windowReceivers) {
+                        receiver = windowReceivers.get(sourceURL);
+                        if (receiver == null) {
+                            while (windowReceivers.size() >= peerMemory) {
+                                Iterator<WindowReceiver> eldest = windowReceivers.values().iterator();
+                                eldest.next();
+                                eldest.remove();
+                            }
+                            receiver = new WindowReceiver();
+                            windowReceivers.put(sourceURL, receiver);
+                        }
+                    }
+                    boolean isNew;
+                    synchronized (receiver) {
+                        isNew = receiver.receive(rcvdMsg.getSession(), rcvdMsg.getPacketSequence(), rcvdMsg.getBaseSequence());
+                        receiver.unacked++;
+                        boolean urgent = !isNew || receiver.getSelectiveAcknowledgements() != 0 || receiver.unacked >= ackEvery || ackDelay == 0;
+                        if (receiver.ackTimeout == null || (urgent && !receiver.ackUrgent)) {
+                            if (receiver.ackTimeout != null) {
+                                receiver.ackTimeout.cancel();
+                            }
+                            receiver.ackUrgent = urgent;
+                            receiver.ackTimeout = wheel.schedule(new AckTask(receiver, sourceURL), urgent ? 0 : ackDelay);
+                        }
+                    }
+                    if (isNew) {
+                        byte[][] toAssemble = depacketize(rcvdMsg, sourceURL);
+                        if (toAssemble != null) {
+                            this.deliver(assemble(toAssemble), sourceURL);
+                        }
+                    }
+                    else {
+                        transportMetrics.recordDuplicate(sourceURL);
+                    }
+                }
+                else if (rcvdMsg.isAcknowledge()) {
                     Debug.println("RUDP Ack received for " + rcvdMsg.getSequence() + " at " + rcvdMsg.getIndex(), "programming5.net.sockets.ReliableUDPClient");
                     synchronized (messageTable) {
-                        ReliableProtocolMessage[] sentSequence = messageTable.get(rcvdMsg.getSequence());
+                        PendingMessage sentSequence = messageTable.get(rcvdMsg.getSequence());
                         if (sentSequence != null) {
-                            sentSequence[rcvdMsg.getIndex()-1].signalAcked();
+                            sentSequence.acknowledge(rcvdMsg.getIndex()-1);
                         }
                     }
                 }
@@ -412,27 +616,35 @@ public class ReliableUDPClient extends Publisher<MessageArrivedEvent> implements
                     long sequence = rcvdMsg.getSequence();
                     ReliableProtocolMessage ack = new ReliableProtocolMessage(sequence, rcvdMsg.getIndex());
                     try {
-                        client.replyTo(protocolEvent, ack.getMessageBytes());
+                        client.replyTo(protocolEvent, ack);
                     }
                     catch (NetworkException ne) {
                         Debug.printStackTrace(ne);
                     }
-                    String streamID = ((AsynchMessageArrivedEvent) protocolEvent).getSourceURL() + "/" + Long.toString(rcvdMsg.getSequence());
-                    if (!receivedMessages.contains(streamID)) {
-                        byte[][] toAssemble = depacketize(rcvdMsg, streamID);
+                    String sourceURL = ((AsynchMessageArrivedEvent) protocolEvent).getSourceURL();
+                    long source = this.peerID(sourceURL);
+                    boolean duplicate;
+                    synchronized (receivedMessages) {
+                        duplicate = receivedMessages.contains(source, sequence);
+                    }
+                    if (!duplicate) {
+                        byte[][] toAssemble = depacketize(rcvdMsg, sourceURL);
                         if (toAssemble != null) {
-                            receivedMessages.add(streamID);
-                            byte[] bytesMessage = assemble(toAssemble);
-                            AsynchMessageArrivedEvent messageEvent = new AsynchMessageArrivedEvent(bytesMessage, ((AsynchMessageArrivedEvent) protocolEvent).getSourceURL());
-                            this.fireEvent(messageEvent);
-                            synchronized (receiveRequests) {
-                                for (ReceiveRequest request : receiveRequests) {
-                                    request.setMessage(messageEvent.getContentBytes());
-                                }
-                                receiveRequests.clear();
+                            boolean isNew;
+                            synchronized (receivedMessages) {
+                                isNew = receivedMessages.add(source, sequence);
+                            }
+                            if (isNew) {
+                                this.deliver(assemble(toAssemble), sourceURL);
+                            }
+                            else {
+                                transportMetrics.recordDuplicate(sourceURL);
                             }
                         }
                     }
+                    else {
+                        transportMetrics.recordDuplicate(sourceURL);
+                    }
                 }
             }
             catch (MalformedMessageException mme) {
@@ -443,13 +655,39 @@ public class ReliableUDPClient extends Publisher<MessageArrivedEvent> implements
     }
     
     /**
-     *Implementation of the PluggableClient interface. Stops the receiver thread and
-     *closes the socket and cancels the resend timer.
+     *Implementation of the PluggableClient interface. Sends the acknowledgements that are being delayed, stops the receiver 
+     *thread and closes the socket. Packets received afterwards are ignored, messages can no longer be sent, and the timeouts 
+     *left on the shared timing wheel do nothing when they expire.
      */
     @Override
     public void endConnection() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        this.flushAcknowledgements();
         client.endConnection();
-        timer.cancel();
+    }
+
+    /**
+     *Sends, in the calling thread, the acknowledgements scheduled for the sources of the selective repeat mode
+     */
+    private void flushAcknowledgements() {
+        List<AckTask> pending = new ArrayList<AckTask>();
+        synchronized (windowReceivers) {
+            for (Map.Entry<String, WindowReceiver> entry : windowReceivers.entrySet()) {
+                WindowReceiver receiver = entry.getValue();
+                synchronized (receiver) {
+                    if (receiver.ackTimeout != null) {
+                        receiver.ackTimeout.cancel();
+                        pending.add(new AckTask(receiver, entry.getKey()));
+                    }
+                }
+            }
+        }
+        for (AckTask task : pending) {
+            task.run();
+        }
     }
     
     /**
@@ -481,6 +719,23 @@ public class ReliableUDPClient extends Publisher<MessageArrivedEvent> implements
         return client.getLocalPort();
     }
 
+    /**
+     *@return the metrics of the messages sent and received by the client (the metrics of the datagrams of the protocol, 
+     *including acknowledgements and retransmissions, are kept by the underlying UDPClient)
+     */
+    public TransportMetrics getTransportMetrics() {
+        return transportMetrics;
+    }
+
+    /**
+     *Sets the metrics in which the messages sent and received after this call are recorded, which can be shared by many clients. 
+     *The gauges of the client (messages held for the receive methods, messages and packets waiting for acknowledgement) are only 
+     *available in the client's own metrics.
+     */
+    public void setTransportMetrics(TransportMetrics metrics) {
+        transportMetrics = metrics;
+    }
+
     protected void signalFail(String destURL) {
         for (Subscriber<MessageArrivedEvent> listener : this.listeners) {
             if (listener instanceof ReliableMessageArrivedListener) {
@@ -489,12 +744,186 @@ public class ReliableUDPClient extends Publisher<MessageArrivedEvent> implements
         }
     }
 
+    /**
+     *@return the number that identifies the given source in the set of received messages. An IPv4 source is identified by its 
+     *address and port, read straight from the url; other sources are given numbers from FIRST_MAPPED_PEER on, which are never 
+     *reused, in a map that keeps as many of the most recently seen sources as messages are kept in the set
+     */
+    private long peerID(String sourceURL) {
+        long ret = ipv4PeerID(sourceURL);
+        if (ret < 0) {
+            synchronized (peerIDs) {
+                Long mapped = peerIDs.get(sourceURL);
+                if (mapped == null) {
+                    while (peerIDs.size() >= peerMemory) {
+                        Iterator<Long> eldest = peerIDs.values().iterator();
+                        eldest.next();
+                        eldest.remove();
+                    }
+                    mapped = nextPeerID++;
+                    peerIDs.put(sourceURL, mapped);
+                }
+                ret = mapped;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     *@return the address of an url of the form //a.b.c.d:port in the upper bits and the port in the lower 16 bits, or -1 if 
+     *the url is not of that form
+     */
+    static long ipv4PeerID(String url) {
+        int length = url.length();
+        if (length < 11 || url.charAt(0) != '/' || url.charAt(1) != '/') {
+            return -1;
+        }
+        long address = 0;
+        int position = 2;
+        for (int octet = 0; octet < 4; octet++) {
+            int value = 0;
+            int digits = 0;
+            char c;
+            while (position < length && (c = url.charAt(position)) >= '0' && c <= '9' && digits < 3) {
+                value = 10 * value + (c - '0');
+                digits++;
+                position++;
+            }
+            char expected = (octet < 3) ? '.' : ':';
+            if (digits == 0 || value > 255 || position >= length || url.charAt(position) != expected) {
+                return -1;
+            }
+            address = (address << 8) | value;
+            position++;
+        }
+        int port = 0;
+        int digits = 0;
+        while (position < length && digits < 5) {
+            char c = url.charAt(position++);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            port = 10 * port + (c - '0');
+            digits++;
+        }
+        if (digits == 0 || position != length || port > 0xFFFF) {
+            return -1;
+        }
+        return (address << 16) | port;
+    }
+
+    private void deliver(byte[] bytesMessage, String sourceURL) {
+        TransportMetrics metrics = transportMetrics;
+        metrics.recordReceived(sourceURL, bytesMessage.length);
+        long arrival = System.nanoTime();
+        AsynchMessageArrivedEvent messageEvent = new AsynchMessageArrivedEvent(bytesMessage, sourceURL);
+        Iterator<Subscriber<MessageArrivedEvent>> snapshot = listeners.iterator();
+        boolean hold = !snapshot.hasNext();
+        this.dispatchEvent(snapshot, messageEvent);
+        mailbox.deliver(messageEvent.getContentBytes(), hold);
+        metrics.recordReceiveToDispatch((System.nanoTime() - arrival) / 1000);
+    }
+
+    /**
+     *@return the client's own metrics, with its gauges
+     */
+    private TransportMetrics createTransportMetrics() {
+        TransportMetrics ret = new TransportMetrics();
+        ret.addGauge("heldMessages", new TransportMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mailbox.size();
+            }
+        });
+        ret.addGauge("unacknowledgedMessages", new TransportMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                synchronized (messageTable) {
+                    return messageTable.size();
+                }
+            }
+        });
+        ret.addGauge("packetsInFlight", new TransportMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                List<WindowSender> senders;
+                synchronized (windowSenders) {
+                    senders = new ArrayList<WindowSender>(windowSenders.values());
+                }
+                long packets = 0;
+                for (WindowSender sender : senders) {
+                    packets += sender.getInFlightCount();
+                }
+                return packets;
+            }
+        });
+        return ret;
+    }
+
+    /**
+     *Sends the message with the protocol currently configured
+     *@param fixedHost if true, uses the client's default destination in the fixed resend mode
+     */
+    private void transmit(byte[] msgBytes, String destURL, boolean fixedHost) throws NetworkException {
+        if (closed) {
+            throw new NetworkException("ReliableUDPClient: Cannot send message: Connection ended");
+        }
+        transportMetrics.recordSent(destURL, msgBytes.length);
+        if (selectiveRepeat) {
+            byte[][] parts = packetize(msgBytes);
+            long messageSequence = random.nextLong();
+            List<WindowPacket> toSend = null;
+            WindowSender sender = null;
+            while (toSend == null) {
+                synchronized (windowSenders) {
+                    sender = windowSenders.get(destURL);
+                    if (sender == null) {
+                        this.evictIdleSenders();
+                        sender = new WindowSender(destURL);
+                        windowSenders.put(destURL, sender);
+                        sessions.put(sender.session, sender);
+                    }
+                }
+                // Null if the sender was retired after it was looked up, in which case a new one is created
+                toSend = sender.enqueue(parts, messageSequence, System.currentTimeMillis());
+            }
+            sender.sendAll(toSend);
+        }
+        else {
+            ReliableProtocolMessage[] rmsgs = this.createMessage(msgBytes, destURL);
+            Debug.println("Sending " + rmsgs.length + " reliable messages", "programming5.net.sockets.ReliableUDPClient");
+            for (ReliableProtocolMessage rmsg : rmsgs) {
+                if (fixedHost) {
+                    client.send(rmsg.getMessageBytes(encoding));
+                }
+                else {
+                    client.send(rmsg, destURL);
+                }
+            }
+        }
+    }
+
+    /**
+     *Must be called with the lock of the senders held; discards the least recently used senders that have nothing to send 
+     *while there are as many senders as the receive memory
+     */
+    private void evictIdleSenders() {
+        Iterator<WindowSender> senders = windowSenders.values().iterator();
+        while (windowSenders.size() >= peerMemory && senders.hasNext()) {
+            WindowSender sender = senders.next();
+            if (sender.retire()) {
+                senders.remove();
+                sessions.remove(sender.session);
+            }
+        }
+    }
+
     private ReliableProtocolMessage[] createMessage(byte[] msgBytes, String destURL) {
         byte[][] packetization = packetize(msgBytes);
         ReliableProtocolMessage[] ret = new ReliableProtocolMessage[packetization.length];
         long sendSequence = random.nextLong();
         synchronized (messageTable) {
-            ReliableProtocolMessage[] collision = messageTable.get(sendSequence);
+            PendingMessage collision = messageTable.get(sendSequence);
             while (collision != null) {
                 sendSequence = random.nextLong();
                 collision = messageTable.get(sendSequence);
@@ -502,66 +931,97 @@ public class ReliableUDPClient extends Publisher<MessageArrivedEvent> implements
             for (int i = 0; i < packetization.length; i++) {
                 ret[i] = new ReliableProtocolMessage(packetization[i], sendSequence, (i+1), packetization.length, destURL);
             }
-            messageTable.put(sendSequence, ret);
+            PendingMessage pending = new PendingMessage(sendSequence, ret);
+            messageTable.put(sendSequence, pending);
+            for (int i = 0; i < ret.length; i++) {
+                pending.timeouts[i] = wheel.schedule(new ResendTask(pending, i), timeout);
+            }
         }
         return ret;
     }
 
     private byte[][] packetize(byte[] bytesMsg) {
         int msgSize = bytesMsg.length;
-        int numPackets = (int) (msgSize / MAX_SIZE);
-        if (msgSize % MAX_SIZE != 0) {
+        int numPackets = (int) (msgSize / fragmentSize);
+        if (msgSize % fragmentSize != 0) {
             numPackets++;
         }
         byte[][] ret = new byte[numPackets][];
         for (int i = 0; i < numPackets - 1; i++) {
-            ret[i] = ArrayOperations.subArray(bytesMsg, i*MAX_SIZE, (i+1)*MAX_SIZE);
+            ret[i] = ArrayOperations.subArray(bytesMsg, i*fragmentSize, (i+1)*fragmentSize);
             Debug.println(new String(ret[i]), "programming5.net.sockets.ReliableUDPClient#packetize");
         }
-        ret[numPackets-1] = ArrayOperations.suffix(bytesMsg, (numPackets-1)*MAX_SIZE);
+        ret[numPackets-1] = ArrayOperations.suffix(bytesMsg, (numPackets-1)*fragmentSize);
         Debug.println(new String(ret[numPackets-1]), "programming5.net.sockets.ReliableUDPClient#packetize");
         return ret;
     }
 
-    private byte[][] depacketize(ReliableProtocolMessage rpm, String streamID) throws MalformedMessageException {
+    /**
+     *@return the parts of the message to which the packet belongs, if this packet completes it, or null otherwise; packets 
+     *whose part numbers are out of range or inconsistent with earlier packets of the message are dropped
+     */
+    private byte[][] depacketize(ReliableProtocolMessage rpm, String sourceURL) throws MalformedMessageException {
+        int total = rpm.getTotal();
+        int index = rpm.getIndex();
+        if (total == 1 && index == 1) {
+            return new byte[][] {rpm.getPayload()};
+        }
+        String streamID = sourceURL + SLASH + Long.toString(rpm.getSequence());
         byte[][] ret = null;
-        byte[][] parts;
         synchronized (assembly) {
-            parts = assembly.get(streamID);
+            this.evictExpired(System.currentTimeMillis());
+            if (total < 1 || total > maxFragments || index < 1 || index > total) {
+                reassemblyDropCount++;
+                Debug.println("ReliableUDPClient: Part " + index + " of " + total + " out of range; dropping packet of " + streamID, "programming5.net.sockets.ReliableUDPClient");
+                return null;
+            }
+            Reassembly parts = assembly.get(streamID);
             if (parts == null) {
-                int total = rpm.getTotal();
-                parts = new byte[total][];
+                if (assembly.size() >= maxPendingMessages) {
+                    Iterator<Map.Entry<String, Reassembly>> entries = assembly.entrySet().iterator();
+                    this.discard(entries.next().getKey(), "Reassembly table full");
+                    entries.remove();
+                }
+                parts = new Reassembly(total, System.currentTimeMillis());
                 assembly.put(streamID, parts);
-                boolean[] counter = new boolean[total];
-                Arrays.fill(counter, false);
-                assemblyCounter.put(streamID, counter);
             }
-            int index = rpm.getIndex();
-            parts[index-1] = rpm.getPayload();
-            boolean[] progress = assemblyCounter.get(streamID);
-            if (progress != null) {
-                progress[index-1] = true;
+            if (parts.parts.length != total) {
+                assembly.remove(streamID);
+                this.discard(streamID, "Inconsistent part count");
             }
-            else {
-                progress = new boolean[parts.length];
-                for (int i = 0; i < parts.length; i++) {
-                    if (parts[i] != null) {
-                        progress[i] = true;
-                    }
-                    else {
-                        progress[i] = false;
-                    }
+            else if (parts.parts[index-1] == null) {
+                parts.parts[index-1] = rpm.getPayload();
+                if (++parts.receivedCount == total) {
+                    assembly.remove(streamID);
+                    ret = parts.parts;
                 }
             }
-            if (ArrayOperations.tautology(progress)) {
-                ret = parts;
-                assembly.remove(streamID);
-                assemblyCounter.remove(streamID);
-            }
         }
         return ret;
     }
 
+    /**
+     *Must be called with the assembly lock held; drops the partial messages older than the reassembly timeout, which are the 
+     *first ones in the table
+     */
+    private void evictExpired(long now) {
+        Iterator<Map.Entry<String, Reassembly>> entries = assembly.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, Reassembly> entry = entries.next();
+            if (now - entry.getValue().created < reassemblyTimeout) {
+                break;
+            }
+            entries.remove();
+            this.discard(entry.getKey(), "Reassembly timed out");
+        }
+    }
+
+    private void discard(String streamID, String reason) {
+        reassemblyDropCount++;
+        transportMetrics.recordReassemblyEviction();
+        Debug.println("ReliableUDPClient: " + reason + "; dropping message " + streamID, "programming5.net.sockets.ReliableUDPClient");
+    }
+
     private byte[] assemble(byte[][] parts) {
         int size = 0;
         for (byte[] part : parts) {
@@ -577,56 +1037,578 @@ public class ReliableUDPClient extends Publisher<MessageArrivedEvent> implements
         return ret;
     }
 
-    private class ReliableProtocolEnforceTask extends TimerTask {
+    /**
+     *The parts of a message received so far, and the time at which its first part arrived
+     */
+    protected static class Reassembly {
+
+        final byte[][] parts;
+        final long created;
+        int receivedCount = 0;
+
+        Reassembly(int total, long now) {
+            parts = new byte[total][];
+            created = now;
+        }
+
+    }
+
+    /**
+     *A message sent in the fixed resend mode, with the timeouts of the resends of its parts
+     */
+    protected class PendingMessage {
+
+        final long sequence;
+        final ReliableProtocolMessage[] parts;
+        final TimingWheel.Timeout[] timeouts;
+        final long createdAt = System.nanoTime();
+        int unacked;
+
+        PendingMessage(long mySequence, ReliableProtocolMessage[] myParts) {
+            sequence = mySequence;
+            parts = myParts;
+            timeouts = new TimingWheel.Timeout[parts.length];
+            unacked = parts.length;
+        }
+
+        /**
+         *Must be called with the message table lock held; cancels the resend of the given part, and removes the message from 
+         *the table when all of its parts have been acknowledged
+         */
+        void acknowledge(int index) {
+            if (!parts[index].isAcked()) {
+                parts[index].signalAcked();
+                if (parts[index].getSendCount() == 0) {
+                    transportMetrics.recordSendToAck(parts[index].getDestination(), (System.nanoTime() - createdAt) / 1000);
+                }
+                if (timeouts[index] != null) {
+                    timeouts[index].cancel();
+                }
+                if (--unacked == 0) {
+                    messageTable.remove(sequence);
+                }
+            }
+        }
+
+        /**
+         *Must be called with the message table lock held; removes the message from the table and cancels all of its resends
+         */
+        void abandon() {
+            messageTable.remove(sequence);
+            for (TimingWheel.Timeout resend : timeouts) {
+                if (resend != null) {
+                    resend.cancel();
+                }
+            }
+        }
+
+    }
+
+    /**
+     *Resends a part of a message in the fixed resend mode if it has not been acknowledged when its timeout expires, and 
+     *schedules itself again, up to the resend limit
+     */
+    private class ResendTask implements Runnable {
+
+        final PendingMessage message;
+        final int index;
+
+        ResendTask(PendingMessage myMessage, int myIndex) {
+            message = myMessage;
+            index = myIndex;
+        }
 
         @Override
         public void run() {
-            List<ReliableProtocolMessage[]> unackedMessages;
+            if (closed) {
+                return;
+            }
+            ReliableProtocolMessage messagePart = message.parts[index];
+            boolean resend = false;
+            boolean fail = false;
             synchronized (messageTable) {
-                unackedMessages = new ArrayList<ReliableProtocolMessage[]>(messageTable.values());
-            }
-            for (ReliableProtocolMessage[] message : unackedMessages) {
-                boolean allAcked = true;
-                for (ReliableProtocolMessage messagePart : message) {
-                    if (!messagePart.isAcked()) {
-                        allAcked = false;
-                        try {
-                            Debug.println("Resending unacked message from sequence " + messagePart.getSequence() + " at index " + messagePart.getIndex(), "programming5.net.sockets.ReliableUDPClient");
-                            if (messagePart.getSendCount() < maxResend) {
-                                messagePart.signalSent();
-                                try {
-                                    client.send(messagePart.getMessageBytes(), messagePart.getDestination());
-                                }
-                                catch (NetworkException ne) {
-                                    Debug.printStackTrace(ne);
-                                }
-                            }
-                            else {
-                                synchronized (messageTable) {
-                                    messageTable.remove(messagePart.getSequence());
-                                }
-                                signalFail(messagePart.getDestination());
+                if (messageTable.get(message.sequence) == message && !messagePart.isAcked()) {
+                    if (messagePart.getSendCount() < maxResend) {
+                        messagePart.signalSent();
+                        message.timeouts[index] = wheel.schedule(this, timeout);
+                        resend = true;
+                    }
+                    else {
+                        message.abandon();
+                        fail = true;
+                    }
+                }
+            }
+            if (resend) {
+                transportMetrics.recordRetransmit(messagePart.getDestination());
+                Debug.println("Resending unacked message from sequence " + message.sequence + " at index " + (index+1), "programming5.net.sockets.ReliableUDPClient");
+                try {
+                    client.send(messagePart, messagePart.getDestination());
+                }
+                catch (NetworkException ne) {
+                    Debug.printStackTrace(ne);
+                }
+            }
+            else if (fail) {
+                signalFail(messagePart.getDestination());
+            }
+        }
+
+    }
+
+    /**
+     *Sends the acknowledgement of the packets received from a source in selective repeat mode, if any are unacknowledged. Runs 
+     *on the timing wheel, so that the receiving thread never sends acknowledgements itself.
+     */
+    protected class AckTask implements Runnable {
+
+        final WindowReceiver receiver;
+        final String sourceURL;
+
+        AckTask(WindowReceiver myReceiver, String mySourceURL) {
+            receiver = myReceiver;
+            sourceURL = mySourceURL;
+        }
+
+        @Override
+        public void run() {
+            ReliableProtocolMessage ack;
+            synchronized (receiver) {
+                receiver.ackTimeout = null;
+                if (receiver.unacked == 0) {
+                    return;
+                }
+                receiver.unacked = 0;
+                ack = ReliableProtocolMessage.createWindowAcknowledge(receiver.session, receiver.cumulative, receiver.getSelectiveAcknowledgements());
+            }
+            try {
+                client.send(ack, sourceURL);
+            }
+            catch (NetworkException ne) {
+                Debug.printStackTrace(ne, "programming5.net.sockets.ReliableUDPClient");
+            }
+        }
+
+    }
+
+    /**
+     *A packet of the selective repeat mode, with its transmission state. The packet is encoded each time it is sent, since it 
+     *carries the sender's base sequence at that time.
+     */
+    protected static class WindowPacket {
+
+        final long packetSequence;
+        final long messageSequence;
+        final byte[] part;
+        final int index;
+        final int total;
+        byte[] bytes = null;
+        long sentAt;
+        int sendCount = 0;
+        boolean fastRetransmitted = false;
+        TimingWheel.Timeout timeout = null;
+
+        WindowPacket(long myPacketSequence, long myMessageSequence, byte[] myPart, int myIndex, int myTotal) {
+            packetSequence = myPacketSequence;
+            messageSequence = myMessageSequence;
+            part = myPart;
+            index = myIndex;
+            total = myTotal;
+        }
+
+    }
+
+    /**
+     *Sending state of the selective repeat mode for a single destination: the packets waiting for room in the window, the 
+     *packets in flight (ordered by packet sequence), the round trip time estimate, and the congestion window. Every packet in 
+     *flight has a retransmission timeout on the shared timing wheel, which is cancelled when the packet is acknowledged. 
+     *The synchronized methods return the packets that must be (re)sent, which the caller sends with sendAll outside of the 
+     *sender's lock.
+     *<p>Every packet carries the base sequence of the sender: the sequence before its first packet still in flight or queued, 
+     *up to which all packets have been acknowledged or abandoned (as part of a message dropped at the resend limit). The 
+     *receiver moves its cumulative sequence up to the base, so that a gap left by a dropped message, or a receiver that 
+     *starts over (e.g. restarted on the same port) in the middle of the session, does not hold up the packets after it.
+     */
+    protected class WindowSender {
+
+        final String destination;
+        final long session;
+        final RTTEstimator rtt = new RTTEstimator(RTTEstimator.DEF_INITIAL_RTO, minRTO, RTTEstimator.DEF_MAX_RTO);
+        final ArrayDeque<WindowPacket> queued = new ArrayDeque<WindowPacket>();
+        final TreeMap<Long, WindowPacket> inFlight = new TreeMap<Long, WindowPacket>();
+        long nextSequence = 1;
+        double cwnd = DEF_INITIAL_WINDOW;
+        double ssthresh = RECEIVE_WINDOW;
+        long recoveryPoint = 0;
+        long nextBackoff = 0;
+        long lastActivity = System.currentTimeMillis();
+        boolean retired = false;
+        TimingWheel.Timeout idleTimeout = null;
+
+        WindowSender(String myDestination) {
+            destination = myDestination;
+            long mySession = random.nextLong();
+            while (sessions.containsKey(mySession)) {
+                mySession = random.nextLong();
+            }
+            session = mySession;
+        }
+
+        /**
+         *Queues the parts of a message and fills the window
+         *@return the packets to send, or null if the sender has been retired and can no longer send
+         */
+        synchronized List<WindowPacket> enqueue(byte[][] parts, long messageSequence, long now) {
+            if (retired) {
+                return null;
+            }
+            for (int i = 0; i < parts.length; i++) {
+                queued.addLast(new WindowPacket(nextSequence++, messageSequence, parts[i], (i+1), parts.length));
+            }
+            return this.fill(now, new ArrayList<WindowPacket>());
+        }
+
+        /**
+         *Processes an acknowledgement: releases the packets acknowledged, samples the round trip time from packets sent only 
+         *once, grows the congestion window, resends the packets that have been passed by DUPLICATE_THRESHOLD acknowledged packets, 
+         *and fills the window
+         */
+        synchronized List<WindowPacket> acknowledge(long cumulative, long selective, long now) {
+            List<WindowPacket> ret = new ArrayList<WindowPacket>();
+            int acked = 0;
+            Iterator<WindowPacket> cumulativeAcked = inFlight.headMap(cumulative, true).values().iterator();
+            while (cumulativeAcked.hasNext()) {
+                this.acked(cumulativeAcked.next(), now);
+                cumulativeAcked.remove();
+                acked++;
+            }
+            long highestAcked = cumulative;
+            for (int i = 0; i < SACK_BITS; i++) {
+                if ((selective & (1L << i)) != 0) {
+                    long sequence = cumulative + 2 + i;
+                    WindowPacket packet = inFlight.remove(sequence);
+                    if (packet != null) {
+                        this.acked(packet, now);
+                        acked++;
+                    }
+                    highestAcked = sequence;
+                }
+            }
+            for (int i = 0; i < acked; i++) {
+                cwnd += (cwnd < ssthresh) ? 1 : 1 / cwnd;
+            }
+            cwnd = Math.min(cwnd, maxWindow);
+            boolean lossDetected = false;
+            for (WindowPacket packet : inFlight.headMap(highestAcked - DUPLICATE_THRESHOLD, true).values()) {
+                if (!packet.fastRetransmitted) {
+                    packet.fastRetransmitted = true;
+                    this.sent(packet, now);
+                    transportMetrics.recordRetransmit(destination);
+                    ret.add(packet);
+                    lossDetected |= packet.packetSequence >= recoveryPoint;
+                }
+            }
+            if (lossDetected) {
+                this.reduceWindow();
+            }
+            return this.fill(now, ret);
+        }
+
+        /**
+         *Called when the retransmission timeout of the given packet expires: resends the packet, backing off the timeout (at 
+         *most once per timeout period) and halving the congestion window (once per window of data); a packet that reaches the 
+         *resend limit causes its whole message to be dropped
+         */
+        void expired(WindowPacket packet) {
+            if (closed) {
+                return;
+            }
+            List<WindowPacket> toSend = new ArrayList<WindowPacket>();
+            boolean failed = false;
+            synchronized (this) {
+                if (inFlight.get(packet.packetSequence) != packet) {
+                    return;
+                }
+                long now = System.currentTimeMillis();
+                if (packet.sendCount >= maxResend) {
+                    this.drop(packet.messageSequence);
+                    failed = true;
+                }
+                else {
+                    if (now >= nextBackoff) {
+                        rtt.backoff();
+                        nextBackoff = now + rtt.getRTO();
+                    }
+                    if (packet.packetSequence >= recoveryPoint) {
+                        this.reduceWindow();
+                    }
+                    this.sent(packet, now);
+                    transportMetrics.recordRetransmit(destination);
+                    toSend.add(packet);
+                }
+                this.fill(now, toSend);
+            }
+            this.sendAll(toSend);
+            if (failed) {
+                signalFail(destination);
+            }
+        }
+
+        /**
+         *Sends the given packets to the destination
+         */
+        void sendAll(List<WindowPacket> packets) {
+            for (WindowPacket packet : packets) {
+                try {
+                    client.send(packet.bytes, destination);
+                }
+                catch (NetworkException ne) {
+                    Debug.printStackTrace(ne, "programming5.net.sockets.ReliableUDPClient");
+                }
+            }
+        }
+
+        /**
+         *@return the number of packets sent and not yet acknowledged
+         */
+        synchronized int getInFlightCount() {
+            return inFlight.size();
+        }
+
+        /**
+         *@return the current size of the congestion window, in packets
+         */
+        synchronized double getCongestionWindow() {
+            return cwnd;
+        }
+
+        private List<WindowPacket> fill(long now, List<WindowPacket> ret) {
+            while (!queued.isEmpty() && inFlight.size() < (int) Math.min(cwnd, maxWindow)) {
+                WindowPacket packet = queued.pollFirst();
+                inFlight.put(packet.packetSequence, packet);
+                this.sent(packet, now);
+                ret.add(packet);
+            }
+            lastActivity = now;
+            if (inFlight.isEmpty() && idleTimeout == null) {
+                idleTimeout = wheel.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        retireIfIdle();
+                    }
+                }, senderIdleTimeout);
+            }
+            return ret;
+        }
+
+        /**
+         *Marks the sender as retired if it has nothing to send, after which it sends no more messages
+         *@return true if the sender was retired
+         */
+        synchronized boolean retire() {
+            if (inFlight.isEmpty() && queued.isEmpty()) {
+                retired = true;
+            }
+            return retired;
+        }
+
+        /**
+         *Discards the sender if it has had nothing to send for the sender idle timeout, or checks again when it will have
+         */
+        private void retireIfIdle() {
+            synchronized (windowSenders) {
+                synchronized (this) {
+                    idleTimeout = null;
+                    if (closed || retired || !inFlight.isEmpty()) {
+                        return;
+                    }
+                    long idle = System.currentTimeMillis() - lastActivity;
+                    if (idle < senderIdleTimeout) {
+                        idleTimeout = wheel.schedule(new Runnable() {
+                            @Override
+                            public void run() {
+                                retireIfIdle();
                             }
-                        }
-                        catch (MalformedMessageException mme) {
-                            Debug.printStackTrace(mme);
-                        }
+                        }, senderIdleTimeout - idle);
+                        return;
                     }
+                    retired = true;
                 }
-                if (allAcked) {
-                    synchronized (messageTable) {
-                        try {
-                            messageTable.remove(message[0].getSequence());
-                        }
-                        catch (MalformedMessageException mme) {
-                            Debug.printStackTrace(mme, "programming5.net.sockets.ReliableUDPClient");
-                        }
-                        catch (NullPointerException npe) {
-                            Debug.printStackTrace(npe, "programming5.net.sockets.ReliableUDPClient");
+                windowSenders.remove(destination, this);
+                sessions.remove(session, this);
+            }
+        }
+
+        /**
+         *@return the sequence up to which all packets have been acknowledged or abandoned
+         */
+        private long getBase() {
+            long ret = nextSequence;
+            if (!inFlight.isEmpty()) {
+                ret = inFlight.firstKey();
+            }
+            if (!queued.isEmpty()) {
+                ret = Math.min(ret, queued.peekFirst().packetSequence);
+            }
+            return ret - 1;
+        }
+
+        private void sent(final WindowPacket packet, long now) {
+            ReliableProtocolMessage rpm = ReliableProtocolMessage.createWindowedMessage(packet.part, packet.messageSequence, packet.index, packet.total, session, packet.packetSequence, this.getBase(), destination);
+            packet.bytes = rpm.getMessageBytes(encoding);
+            packet.sendCount++;
+            packet.sentAt = now;
+            if (packet.timeout != null) {
+                packet.timeout.cancel();
+            }
+            packet.timeout = wheel.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    expired(packet);
+                }
+            }, rtt.getRTO());
+        }
+
+        private void acked(WindowPacket packet, long now) {
+            packet.timeout.cancel();
+            if (packet.sendCount == 1) {
+                rtt.sample(now - packet.sentAt);
+                transportMetrics.recordSendToAck(destination, (now - packet.sentAt) * 1000);
+            }
+        }
+
+        /**
+         *Halves the congestion window, at most once per window of data (packets sent before the reduction do not cause another)
+         */
+        private void reduceWindow() {
+            ssthresh = Math.max(cwnd / 2, 1);
+            cwnd = ssthresh;
+            recoveryPoint = nextSequence;
+        }
+
+        private void drop(long messageSequence) {
+            Iterator<WindowPacket> packets = inFlight.values().iterator();
+            while (packets.hasNext()) {
+                WindowPacket packet = packets.next();
+                if (packet.messageSequence == messageSequence) {
+                    packet.timeout.cancel();
+                    packets.remove();
+                }
+            }
+            packets = queued.iterator();
+            while (packets.hasNext()) {
+                if (packets.next().messageSequence == messageSequence) {
+                    packets.remove();
+                }
+            }
+        }
+
+    }
+
+    /**
+     *Receiving state of the selective repeat mode for a single source: the packet sequence up to which all packets of the 
+     *source's current session have been received (or abandoned by the source), and a circular bitmap of the packets received beyond it (in the manner 
+     *of the IPsec anti-replay window, but anchored at the cumulative sequence instead of the highest sequence received), 
+     *along with the number of packets received since the last acknowledgement and the pending acknowledgement task. The last 
+     *RETIRED_SESSIONS sessions replaced by a new one are remembered, so that packets of an earlier session delayed in the 
+     *network do not start it over.
+     */
+    protected static class WindowReceiver {
+
+        long session;
+        boolean started = false;
+        long cumulative = 0;
+        final long[] received = new long[RECEIVE_WINDOW / Long.SIZE];
+        final long[] retired = new long[RETIRED_SESSIONS];
+        int retiredCount = 0;
+        int nextRetired = 0;
+        int unacked = 0;
+        boolean ackUrgent = false;
+        TimingWheel.Timeout ackTimeout = null;
+
+        /**
+         *Records the reception of a packet, starting over if the packet belongs to a new session of the source, and first moving 
+         *the cumulative sequence up to the given base sequence of the source
+         *@return true if the packet had not been received before; false for duplicates, for packets beyond the window, and for 
+         *packets of retired sessions
+         */
+        boolean receive(long mySession, long sequence, long base) {
+            if (!started || mySession != session) {
+                if (started) {
+                    for (int i = 0; i < retiredCount; i++) {
+                        if (retired[i] == mySession) {
+                            return false;
                         }
                     }
+                    retired[nextRetired] = session;
+                    nextRetired = (nextRetired + 1) % RETIRED_SESSIONS;
+                    retiredCount = Math.min(retiredCount + 1, RETIRED_SESSIONS);
                 }
+                session = mySession;
+                started = true;
+                cumulative = 0;
+                Arrays.fill(received, 0);
+            }
+            if (base > cumulative) {
+                this.advance(base);
+            }
+            if (sequence <= cumulative || sequence > cumulative + RECEIVE_WINDOW) {
+                return false;
+            }
+            int slot = (int) (sequence & (RECEIVE_WINDOW - 1));
+            long bit = 1L << (slot & (Long.SIZE - 1));
+            if ((received[slot / Long.SIZE] & bit) != 0) {
+                return false;
+            }
+            received[slot / Long.SIZE] |= bit;
+            this.absorb();
+            return true;
+        }
+
+        /**
+         *Moves the cumulative sequence up to the given base, forgetting the packets received up to it
+         */
+        private void advance(long base) {
+            if (base - cumulative >= RECEIVE_WINDOW) {
+                Arrays.fill(received, 0);
+                cumulative = base;
+            }
+            else {
+                while (cumulative < base) {
+                    int slot = (int) ((cumulative + 1) & (RECEIVE_WINDOW - 1));
+                    received[slot / Long.SIZE] &= ~(1L << (slot & (Long.SIZE - 1)));
+                    cumulative++;
+                }
+            }
+            this.absorb();
+        }
+
+        /**
+         *Moves the cumulative sequence over the packets received right after it
+         */
+        private void absorb() {
+            int slot = (int) ((cumulative + 1) & (RECEIVE_WINDOW - 1));
+            long bit = 1L << (slot & (Long.SIZE - 1));
+            while ((received[slot / Long.SIZE] & bit) != 0) {
+                received[slot / Long.SIZE] &= ~bit;
+                cumulative++;
+                slot = (int) ((cumulative + 1) & (RECEIVE_WINDOW - 1));
+                bit = 1L << (slot & (Long.SIZE - 1));
+            }
+        }
+
+        /**
+         *@return the bitmap of packets received after the cumulative sequence, as described in ReliableProtocolMessage
+         */
+        long getSelectiveAcknowledgements() {
+            int start = (int) ((cumulative + 2) & (RECEIVE_WINDOW - 1));
+            int word = start / Long.SIZE;
+            int offset = start & (Long.SIZE - 1);
+            long ret = received[word] >>> offset;
+            if (offset != 0) {
+                ret |= received[(word + 1) % received.length] << (Long.SIZE - offset);
             }
+            return ret;
         }
 
     }
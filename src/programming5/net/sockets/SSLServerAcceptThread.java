@@ -21,6 +21,7 @@ import java.net.Socket;
 public class SSLServerAcceptThread extends ServerAcceptThread {
 
     protected ServerSocket accepter;
+    protected final ConnectionAdmission admission = new ConnectionAdmission();
     private boolean listening = true;
 
     private int acceptFailCount = 0;
@@ -70,18 +71,9 @@ public class SSLServerAcceptThread extends ServerAcceptThread {
     public void run() {
         while (listening) {
             try {
-                final Socket socket = accepter.accept();
+                Socket socket = accepter.accept();
                 acceptFailReset();
-                new Thread(new Runnable() {
-                    public void run() {
-                        try {
-                            serverRef.newClient(new TCPClient(socket));
-                        }
-                        catch (NetworkException ne) {
-                            System.err.println("TCPServerAcceptThread: Couldn't create TCPClient: " + ne.getMessage());
-                        }
-                    }
-                }).start();
+                admission.admit(socket, serverRef);
             }
             catch (IOException ioe) {
                 if (listening) {
@@ -0,0 +1,250 @@
+/*
+ * SelectorLoop.java
+ *
+ * Copyright 2004 Andres Quiroz Hernandez
+ *
+ * This file is part of Programming5.
+ * Programming5 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Programming5 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Programming5.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package programming5.net.sockets;
+
+import programming5.io.Debug;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *This class is an I/O thread that services any number of non-blocking channels through a single selector. Channels are
+ *registered with a ChannelHandler, which is called from the loop thread whenever the channel is ready for the operations
+ *of interest. Registration and interest changes requested from other threads are queued and applied by the loop thread.
+ *A small group of shared loops, started on first use, is available through the shared method, so that many clients can
+ *multiplex their connections over a fixed number of threads.
+ *@see programming5.net.sockets.NIOTCPClient
+ *@author Andres Quiroz Hernandez
+ *@version 6.19
+ */
+public class SelectorLoop extends Thread {
+
+    /**
+     *Callback interface for channels registered with a selector loop. All methods are called from the loop thread.
+     */
+    public static interface ChannelHandler {
+
+        /**
+         *Called once the channel has been registered, with the key that identifies the registration
+         */
+        public void registered(SelectionKey key);
+
+        /**
+         *Called when the channel is ready for (some of) the operations of interest
+         */
+        public void handle(SelectionKey key) throws IOException;
+
+        /**
+         *Called when the handle method throws an exception (a runtime exception is passed wrapped in an IOException) or the
+         *key is found to be cancelled; the handler is expected to close the channel
+         */
+        public void handleError(SelectionKey key, IOException cause);
+
+    }
+
+    public static final int DEF_SHARED_LOOPS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+
+    protected final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private volatile boolean running = true;
+
+    private static SelectorLoop[] sharedLoops = null;
+    private static final AtomicInteger nextShared = new AtomicInteger();
+    private static final AtomicInteger loopCount = new AtomicInteger();
+
+    /**
+     *Creates a selector loop as a daemon thread; the loop must be started before channels are serviced
+     */
+    public SelectorLoop() throws IOException {
+        super("programming5-selector-" + loopCount.incrementAndGet());
+        selector = Selector.open();
+        this.setDaemon(true);
+    }
+
+    /**
+     *@return one of the shared selector loops, chosen in round robin order
+     */
+    public static SelectorLoop shared() throws IOException {
+        synchronized (SelectorLoop.class) {
+            if (sharedLoops == null) {
+                SelectorLoop[] loops = new SelectorLoop[DEF_SHARED_LOOPS];
+                for (int i = 0; i < loops.length; i++) {
+                    loops[i] = new SelectorLoop();
+                    loops[i].start();
+                }
+                sharedLoops = loops;
+            }
+        }
+        return sharedLoops[Math.abs(nextShared.getAndIncrement() % sharedLoops.length)];
+    }
+
+    /**
+     *Registers the given channel for the given operations; the handler's registered method is called from the loop
+     *thread once the registration is complete. The channel must be in non-blocking mode.
+     */
+    public void register(final SelectableChannel channel, final int ops, final ChannelHandler handler) {
+        this.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    SelectionKey key = channel.register(selector, ops, handler);
+                    handler.registered(key);
+                }
+                catch (ClosedChannelException cce) {
+                    handler.handleError(null, cce);
+                }
+            }
+        });
+    }
+
+    /**
+     *Changes the operations of interest of the given key from the loop thread
+     */
+    public void setInterestOps(final SelectionKey key, final int ops) {
+        if (this.inLoop()) {
+            if (key.isValid()) {
+                key.interestOps(ops);
+            }
+        }
+        else {
+            this.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (key.isValid()) {
+                        key.interestOps(ops);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     *Runs the given task in the loop thread; if called from the loop thread, the task is run on the next iteration
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (!this.inLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     *@return true if called from this loop's thread
+     */
+    public boolean inLoop() {
+        return Thread.currentThread() == this;
+    }
+
+    /**
+     *@return the number of channels currently registered with this loop
+     */
+    public int getChannelCount() {
+        return selector.keys().size();
+    }
+
+    /**
+     *Services registered channels until the loop is ended
+     */
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                if (tasks.isEmpty()) {
+                    selector.select();
+                }
+                else {
+                    selector.selectNow();
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    }
+                    catch (RuntimeException re) {
+                        Debug.printStackTrace(re, "programming5.net.sockets.SelectorLoop");
+                    }
+                }
+                Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                while (selected.hasNext()) {
+                    SelectionKey key = selected.next();
+                    selected.remove();
+                    ChannelHandler handler = (ChannelHandler) key.attachment();
+                    try {
+                        handler.handle(key);
+                    }
+                    catch (IOException ioe) {
+                        this.fail(key, handler, ioe);
+                    }
+                    catch (CancelledKeyException cke) {
+                        this.fail(key, handler, new IOException("Channel closed"));
+                    }
+                    catch (RuntimeException re) {
+                        Debug.printStackTrace(re, "programming5.net.sockets.SelectorLoop");
+                        this.fail(key, handler, new IOException("Channel handler failed: " + re, re));
+                    }
+                }
+            }
+            catch (IOException ioe) {
+                Debug.println("SelectorLoop: Error while selecting: " + ioe.getMessage(), "programming5.net.sockets.SelectorLoop");
+            }
+        }
+        try {
+            selector.close();
+        }
+        catch (IOException ignored) {}
+    }
+
+    /**
+     *Lets the handler close the channel of a failed key; if the handler itself fails, the channel is closed here, so that an
+     *error on one channel never ends the loop that services the others
+     */
+    private void fail(SelectionKey key, ChannelHandler handler, IOException cause) {
+        try {
+            handler.handleError(key, cause);
+        }
+        catch (RuntimeException re) {
+            Debug.printStackTrace(re, "programming5.net.sockets.SelectorLoop");
+            key.cancel();
+            try {
+                key.channel().close();
+            }
+            catch (IOException ignored) {}
+        }
+    }
+
+    /**
+     *Stops the loop and closes its selector; channels registered with the loop are not closed
+     */
+    public void end() {
+        running = false;
+        selector.wakeup();
+    }
+
+}
@@ -23,12 +23,15 @@ package programming5.net.sockets;
 
 import programming5.arrays.ArrayOperations;
 import programming5.collections.MultiList;
+import programming5.concurrent.Mailbox;
 import programming5.io.Debug;
+import programming5.net.Message;
 import programming5.net.MessageArrivedEvent;
 import programming5.net.MessagingClient;
 import programming5.net.NetworkException;
 import programming5.net.Publisher;
-import programming5.net.ReceiveRequest;
+import programming5.net.ReceiveMailbox;
+import programming5.net.Subscriber;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -36,35 +39,59 @@ import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
 /**
  *This class is the TCP socket implementation of a MessagingClient. Can be used to handle several TCP connections. Messages will be sent 
- *to all open connections if no address is specified (messages sent to a specific address will create connections that remain open until 
- *the object is terminated and all connections are closed), and will be received from any connection indistinguishably. If incoming 
- *messages need to be distinguished by origin, separate TCPClient objects should be used for each one.
+ *to all the connections with which the client was created if no address is specified, and will be received from any connection 
+ *indistinguishably. If incoming messages need to be distinguished by origin, separate TCPClient objects should be used for each one. 
+ *Messages sent to other addresses go through a pool of connections, which are reused by later messages to the same address and 
+ *closed when they have been idle for some time (see setIdleTimeout).
  *@see programming5.net.MessagingClient
  *@see programming5.net.PluggableClient
+ *@see programming5.net.sockets.ConnectionPool
  *@see java.net.Socket
  *@author Andres Quiroz Hernandez
- *@version 6.09
+ *@version 6.19
  */
 public class TCPClient extends Publisher<MessageArrivedEvent> implements MessagingClient {
     
     protected List<String> pendingConnections = new ArrayList<String>();
-    protected Map<String, Socket> connections = new HashMap<String, Socket>();
-    protected Map<String, OutputStream> outStreams = new HashMap<String, OutputStream>();
+    protected Map<String, Socket> connections = new ConcurrentHashMap<String, Socket>();
+    protected Map<String, OutputStream> outStreams = new ConcurrentHashMap<String, OutputStream>();
     protected Map<String, Integer> localPorts = new HashMap<String, Integer>();
     protected Map<String, TCPReceiver> receivers = new HashMap<String, TCPReceiver>();
-    protected final List<ReceiveRequest> receiveRequests = new ArrayList<ReceiveRequest>();
+    protected final Map<String, OutboundQueue> outQueues = new HashMap<String, OutboundQueue>();
+    protected final ReceiveMailbox mailbox = new ReceiveMailbox();
+    protected final ConnectionPool<PooledConnection> pool = new ConnectionPool<PooledConnection>(new ConnectionPool.Connector<PooledConnection>() {
+        @Override
+        public PooledConnection connect(String url) throws IOException {
+            return new PooledConnection(url);
+        }
+    });
+    protected volatile TransportMetrics transportMetrics = this.createTransportMetrics();
     
     private static final int ANYPORT = -1;
+    private static final long TERMINATION_TIMEOUT = 1000;
+    private int highWaterMark = OutboundQueue.DEF_HIGH_WATER_MARK;
     private boolean useSeparator = true;
+    private Runnable closeAction = null;
+    private boolean closed = false;
+    protected FrameDecoder.Framing framing = FrameDecoder.Framing.ASCII;
+    protected int maxFrameLength = FrameDecoder.DEF_MAX_FRAME_LENGTH;
+    protected Message.Encoding messageEncoding = Message.Encoding.TEXT;
     protected static final byte[] SEPARATOR = ":".getBytes();
     
     /**
@@ -137,6 +164,28 @@ public class TCPClient extends Publisher<MessageArrivedEvent> implements Messagi
         }
     }
     
+    /**
+     *Creates a TCP client from an already open socket that uses the given message framing, and immediately creates and starts 
+     *the receiver thread
+     *@param socket the client socket
+     *@param myFraming the framing of messages in the send/receive stream, which must match that of the remote end
+     *@see programming5.net.sockets.FrameDecoder
+     */
+    public TCPClient(Socket socket, FrameDecoder.Framing myFraming) throws NetworkException {
+        framing = myFraming;
+        try {
+            String urlString = "//" + socket.getInetAddress().toString() + ":" + Integer.toString(socket.getPort());
+            connections.put(urlString, socket);
+            outStreams.put(urlString, socket.getOutputStream());
+            TCPReceiver receiver = new TCPReceiver(socket, urlString);
+            receivers.put(urlString, receiver);
+            receiver.start();
+        } 
+        catch (IOException e) {
+            throw new NetworkException("TCPClient: Could not initialize client: " + e.getMessage());
+        }
+    }
+    
     /**
      *Creates a TCPClient that can be used to communicate with all the hosts addressed by the given urls.
      */
@@ -158,6 +207,32 @@ public class TCPClient extends Publisher<MessageArrivedEvent> implements Messagi
         }
     }
     
+    /**
+     *Sets the framing of messages in the send/receive stream (ASCII length headers by default). Must be called before 
+     *establishConnection or the first send, and must match the framing used by the remote ends.
+     *@see programming5.net.sockets.FrameDecoder
+     */
+    public void setFraming(FrameDecoder.Framing myFraming) {
+        framing = myFraming;
+    }
+
+    /**
+     *Sets the size of the largest message accepted from the remote ends (8 MB by default); a larger message is treated as corrupt
+     *input, and closes the connection on which it arrives. Applies to connections opened after this call.
+     *@see programming5.net.sockets.FrameDecoder#setMaxFrameLength
+     */
+    public void setMaxMessageSize(int bytes) {
+        maxFrameLength = bytes;
+    }
+
+    /**
+     *Sets the syntax in which messages given as Message objects are encoded (TEXT by default)
+     *@see programming5.net.Message.Encoding
+     */
+    public void setMessageEncoding(Message.Encoding myEncoding) {
+        messageEncoding = myEncoding;
+    }
+    
     /**
      *Implementation of the PluggableClient interface. Opens a socket to each of the host
      *addresses with which the client has been created, gets their output streams, and starts their receiver
@@ -202,27 +277,26 @@ public class TCPClient extends Publisher<MessageArrivedEvent> implements Messagi
     }
     
     /**
-     *Implementation of the MessagingClient interface
+     *Implementation of the MessagingClient interface. The message is queued for every open connection and written to them 
+     *concurrently; the method returns when all the writes have completed, so a slow connection does not delay the others.
      *@param bytesMessage the packet of bytes to send to the hosts for which sockets have been opened
      */
     public void send(byte[] bytesMessage) throws NetworkException {
-        if (useSeparator) {
-            byte[] header = ArrayOperations.join(Integer.toString(bytesMessage.length).getBytes(), SEPARATOR);
-            bytesMessage = ArrayOperations.join(header, bytesMessage);
+        Map<String, CompletableFuture<Void>> sends = new HashMap<String, CompletableFuture<Void>>();
+        for (String host : new ArrayList<String>(connections.keySet())) {
+            sends.put(host, this.enqueue(host, bytesMessage, bytesMessage.length));
         }
         MultiList<String, String> failedSend = new MultiList<String, String>();
-        for (String host : connections.keySet()) {
+        for (String host : sends.keySet()) {
             try {
-                OutputStream out = outStreams.get(host);
-                if (out != null) {
-                    synchronized (out) {
-                        out.write(bytesMessage);
-                        out.flush();
-                    }
-                }
+                sends.get(host).get();
             }
-            catch (Exception e) {
-                failedSend.add(host, e.getMessage());
+            catch (ExecutionException ee) {
+                failedSend.add(host, ee.getCause().getMessage());
+            }
+            catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                failedSend.add(host, "Interrupted");
             }
         } 
         if (failedSend.size() > 0) {
@@ -234,6 +308,22 @@ public class TCPClient extends Publisher<MessageArrivedEvent> implements Messagi
         }
     }
 
+    /**
+     *Queues the message for every open connection and returns without waiting for it to be written, so that callers can 
+     *pipeline sends. If a connection's queue is above the high water mark, blocks until it drains.
+     *The message array must not be modified until the returned future completes.
+     *@param bytesMessage the packet of bytes to send to the hosts for which sockets have been opened
+     *@return a future that completes when the message has been written to all connections, or exceptionally if any write fails
+     *@see #setHighWaterMark
+     */
+    public CompletableFuture<Void> sendAsync(byte[] bytesMessage) {
+        List<CompletableFuture<Void>> sends = new ArrayList<CompletableFuture<Void>>();
+        for (String host : new ArrayList<String>(connections.keySet())) {
+            sends.add(this.enqueue(host, bytesMessage, bytesMessage.length));
+        }
+        return CompletableFuture.allOf(sends.toArray(new CompletableFuture<?>[sends.size()]));
+    }
+
     /**
      *Implementation of the MessagingClient interface
      *@param msg the message string to send to the hosts for which sockets have been opened
@@ -245,43 +335,138 @@ public class TCPClient extends Publisher<MessageArrivedEvent> implements Messagi
     /**
      *Implementation of the MessagingClient interface
      *@param bytesMessage the message to send to the given host
-     *@param url the address the message will be sent to; if a socket hasn't been opened to this address, it will be created and started 
+     *@param url the address the message will be sent to; if it is not one of the addresses with which the client was created, the 
+     *message is sent over a pooled connection
      */
     public void send(byte[] bytesMessage, String url) throws NetworkException {
-        if (useSeparator) {
-            byte[] header = ArrayOperations.join(Integer.toString(bytesMessage.length).getBytes(), SEPARATOR);
-            bytesMessage = ArrayOperations.join(header, bytesMessage);
+        try {
+            this.sendAsync(bytesMessage, url).get();
+        }
+        catch (ExecutionException ee) {
+            throw new NetworkException("TCPClient: Could not send message to " + url + ": " + ee.getCause().getMessage());
         }
-        OutputStream out = outStreams.get(url);
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new NetworkException("TCPClient: Could not send message to " + url + ": Interrupted");
+        }
+    }
+
+    /**
+     *Queues the message for the given host and returns without waiting for it to be written. If the connection's queue is above 
+     *the high water mark, blocks until it drains. The message array must not be modified until the returned future completes.
+     *@param bytesMessage the message to send to the given host
+     *@param url the address the message will be sent to; if it is not one of the addresses with which the client was created, the 
+     *message is sent over a pooled connection
+     *@return a future that completes when the message has been written, or exceptionally if the write fails
+     *@throws NetworkException if a connection to the given address cannot be opened
+     */
+    public CompletableFuture<Void> sendAsync(byte[] bytesMessage, String url) throws NetworkException {
+        if (this.open(url)) {
+            return this.enqueue(url, bytesMessage, bytesMessage.length);
+        }
+        ByteBuffer header = (useSeparator) ? ByteBuffer.wrap(FrameDecoder.encodeHeader(framing, bytesMessage.length)) : null;
+        return this.sendPooled(url, header, ByteBuffer.wrap(bytesMessage));
+    }
+
+    /**
+     *Sends the given message to the given host
+     *@param message the message to send, encoded with the syntax given to setMessageEncoding
+     *@param url the address the message will be sent to; if it is not one of the addresses with which the client was created, the 
+     *message is sent over a pooled connection
+     *@see #sendAsync(Message, String)
+     */
+    public void send(Message message, String url) throws NetworkException {
         try {
-            if (out == null) {
-                URI hostUrl = new URI(url);
-                Socket socket = new Socket(InetAddress.getByName(hostUrl.getHost()), hostUrl.getPort());
-                connections.put(url, socket);
-                out = socket.getOutputStream();
-                outStreams.put(url, out);
-                TCPReceiver receiver = new TCPReceiver(socket, url);
-                receivers.put(url, receiver);
-                receiver.start();
-            }
-            synchronized (out) {
-                out.write(bytesMessage);
-                out.flush();
-            }
+            this.sendAsync(message, url).get();
         }
-        catch (Exception e) {
-            throw new NetworkException("TCPClient: Could not send message to " + url + ": " + e.getMessage());
+        catch (ExecutionException ee) {
+            throw new NetworkException("TCPClient: Could not send message to " + url + ": " + ee.getCause().getMessage());
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new NetworkException("TCPClient: Could not send message to " + url + ": Interrupted");
+        }
+    }
+
+    /**
+     *Queues the message for the given host and returns without waiting for it to be written. The message is encoded along with 
+     *its frame header into a single buffer of the exact frame size, without building the encoded message first, so it can be 
+     *modified as soon as this method returns.
+     *@param message the message to send, encoded with the syntax given to setMessageEncoding
+     *@param url the address the message will be sent to; if it is not one of the addresses with which the client was created, the 
+     *message is sent over a pooled connection
+     *@return a future that completes when the message has been written, or exceptionally if the write fails
+     *@throws NetworkException if a connection to the given address cannot be opened
+     */
+    public CompletableFuture<Void> sendAsync(Message message, String url) throws NetworkException {
+        boolean established = this.open(url);
+        int size = message.encodedSize(messageEncoding);
+        byte[] header = (useSeparator) ? FrameDecoder.encodeHeader(framing, size) : new byte[0];
+        ByteBuffer frame = ByteBuffer.allocate(header.length + size);
+        frame.put(header);
+        message.writeTo(frame, messageEncoding);
+        frame.flip();
+        if (established) {
+            return this.enqueue(url, null, frame);
         }
+        return this.sendPooled(url, null, frame);
     }
     
     /**
      *Implementation of the MessagingClient interface
      *@param message the message string to send to the given host
-     *@param url the address the message will be sent to; if a socket hasn't been opened to this address, it will be created and started 
+     *@param url the address the message will be sent to; if it is not one of the addresses with which the client was created, the 
+     *message is sent over a pooled connection
      */
     public void send(String message, String url) throws NetworkException {
         this.send(message.getBytes(), url);
     }
+
+    /**
+     *Sets the number of bytes that can be queued for a connection before senders to that connection block (4 MB by default). 
+     *Applies to connections opened after this call.
+     */
+    public void setHighWaterMark(int bytes) {
+        highWaterMark = bytes;
+    }
+
+    /**
+     *Sets the maximum number of pooled connections open to a single address to which messages are sent (1 by default). With more 
+     *than one connection, concurrent messages to the same address can be written in parallel, but may arrive out of order.
+     */
+    public void setMaxConnectionsPerHost(int max) {
+        pool.setMaxPerHost(max);
+    }
+
+    /**
+     *Sets the time after which a pooled connection that has not been used is closed (one minute by default)
+     */
+    public void setIdleTimeout(long millis) {
+        pool.setIdleTimeout(millis);
+    }
+
+    /**
+     *@return the number of pooled connections currently open
+     */
+    public int getPooledConnectionCount() {
+        return pool.size();
+    }
+
+    /**
+     *@return the metrics of the messages sent and received by the client
+     */
+    public TransportMetrics getTransportMetrics() {
+        return transportMetrics;
+    }
+
+    /**
+     *Sets the metrics in which the messages sent and received after this call are recorded, which can be shared by many clients 
+     *(e.g. by all the connections accepted by a server). The gauges of the client (bytes queued for writing, messages held for 
+     *the receive methods) are only available in the client's own metrics.
+     */
+    public void setTransportMetrics(TransportMetrics metrics) {
+        transportMetrics = metrics;
+    }
     
     /**
      *Implementation of the MessagingClient interface. Blocking receive until packet
@@ -289,16 +474,7 @@ public class TCPClient extends Publisher<MessageArrivedEvent> implements Messagi
      *@return the packet of bytes
      */
     public byte[] receiveBytes() {
-        byte[] ret = null;
-        ReceiveRequest myRequest = new ReceiveRequest();
-        synchronized (receiveRequests) {
-            receiveRequests.add(myRequest);
-        }
-        myRequest.awaitUninterruptibly();
-        if (myRequest.isDone()) {
-            ret = myRequest.getMessage();
-        }
-        return ret;
+        return mailbox.receive();
     }
 
     /**
@@ -316,30 +492,50 @@ public class TCPClient extends Publisher<MessageArrivedEvent> implements Messagi
      *@return the packetof bytes
      */
     public byte[] receiveBytes(long timeout) throws InterruptedException {
-        byte[] ret = null;
-        ReceiveRequest myRequest = new ReceiveRequest();
-        synchronized (receiveRequests) {
-            receiveRequests.add(myRequest);
-        }
-        myRequest.await(timeout, TimeUnit.MILLISECONDS);
-        if (myRequest.isDone()) {
-            ret = myRequest.getMessage();
-        }
-        return ret;
+        return mailbox.receive(timeout);
     }
     
     /**
      *Implementation of the MessagingClient interface. Blocking receive until message
      *arrives from any of the open connections or timeout occurs.
-     *@return the message string
+     *@return the message string, or null if no message arrived before the timeout
      */
     public String receive(long timeout) throws InterruptedException {
-        return new String(this.receiveBytes(timeout));
+        byte[] ret = this.receiveBytes(timeout);
+        return (ret != null) ? new String(ret) : null;
+    }
+    
+    /**
+     *Implementation of the MessagingClient interface. Waits for a message for limited time, and then returns up to the given
+     *number of messages that have arrived, without waiting further.
+     *@param max the maximum number of messages returned
+     *@param timeout wait time in milliseconds
+     *@return the message bytes, oldest first; the list is empty if no message arrives before the timeout
+     */
+    public List<byte[]> receiveBatch(int max, long timeout) throws InterruptedException {
+        return mailbox.receiveBatch(max, timeout);
+    }
+    
+    /**
+     *Sets the capacity of the mailbox that holds arrived messages for the receive methods, and what to do with messages that 
+     *arrive when it is full (by default, it holds 1024 messages and drops the oldest ones). Messages are held once a receive 
+     *method or this method has been called; this method should be called before any thread waits on the receive methods.
+     */
+    public void setReceiveMailbox(int capacity, Mailbox.OverflowPolicy policy) {
+        mailbox.configure(capacity, policy);
+    }
+    
+    /**
+     *@return the number of messages dropped because the receive mailbox was full (with the DROP_OLDEST and DROP_NEWEST 
+     *policies), since the mailbox was last configured
+     */
+    public long getDroppedCount() {
+        return mailbox.getDroppedCount();
     }
     
     /**
      *Implementation of the PluggableClient interface. Stops the receiver threads and
-     *closes open sockets.
+     *closes open sockets, including pooled connections.
      */
     public synchronized void endConnection() {
         for (String host : outStreams.keySet()) {
@@ -348,48 +544,230 @@ public class TCPClient extends Publisher<MessageArrivedEvent> implements Messagi
         for (String host : receivers.keySet()) {
             receivers.get(host).end();
         } 
+        pool.closeAll();
+        this.signalClosed();
     }
     
     /**
-     *Overrides method in Publisher to include the response to the receive methods
+     *Overrides method in Publisher to include the response to the receive methods. The message is delivered to a single 
+     *snapshot of the listeners; a message that arrives before the first listener is held under the mailbox's lock, so that a 
+     *listener subscribed with ReceiveMailbox.subscribe either drains it or is given it.
      */
     @Override
     public void fireEvent(MessageArrivedEvent event) {
-        super.fireEvent(event);
-        synchronized (receiveRequests) {
-            for (ReceiveRequest request : receiveRequests) {
-                request.setMessage(event.getContentBytes());
+        Iterator<Subscriber<MessageArrivedEvent>> snapshot = listeners.iterator();
+        if (!snapshot.hasNext()) {
+            synchronized (mailbox) {
+                snapshot = listeners.iterator();
+                if (!snapshot.hasNext()) {
+                    mailbox.deliver(event.getContentBytes(), true);
+                    return;
+                }
             }
-            receiveRequests.clear();
         }
+        this.dispatchEvent(snapshot, event);
+        mailbox.deliver(event.getContentBytes(), false);
     }
     
     private synchronized void signalConnectionError(String host) {
         Debug.println("Ending connections", "programming5.net.sockets.TCPClient");
         try {outStreams.remove(host)/*.close()*/;} catch (Exception e) {e.printStackTrace();}
+        synchronized (outQueues) {
+            OutboundQueue queue = outQueues.remove(host);
+            if (queue != null) {
+                queue.fail(new IOException("Connection closed"));
+            }
+        }
         try {connections.remove(host)/*.close()*/;} catch (Exception e) {e.printStackTrace();}
+        transportMetrics.removePeer(host);
         this.terminateAllSubscriptions();
+        if (connections.isEmpty()) {
+            this.signalClosed();
+        }
+    }
+
+    /**
+     *Sets an action to run once, when the client is ended or its last connection is lost; runs the action immediately if that
+     *has already happened. Used by servers to track active connections.
+     */
+    synchronized void onClose(Runnable action) {
+        if (closed) {
+            action.run();
+        }
+        else {
+            closeAction = action;
+        }
+    }
+
+    private synchronized void signalClosed() {
+        if (!closed) {
+            closed = true;
+            if (closeAction != null) {
+                closeAction.run();
+                closeAction = null;
+            }
+        }
     }
     
     private void sendTerminationMessage(String host) {
-        byte[] bytesMessage = "EOF".getBytes();
-        if (useSeparator) {
-            byte[] header = ArrayOperations.join(Integer.toString(-1).getBytes(), SEPARATOR);
-            bytesMessage = ArrayOperations.join(header, bytesMessage);
-        }
-        OutputStream out = outStreams.get(host);
-        if (out != null) {
+        if (outStreams.get(host) != null) {
             try {
-                synchronized (out) {
-                    out.write(bytesMessage);
-                    out.flush();
-                }
+                this.enqueue(host, "EOF".getBytes(), -1).get(TERMINATION_TIMEOUT, TimeUnit.MILLISECONDS);
+            }
+            catch (Exception e) {
+                Debug.println("TCPClient: Could not send termination message to " + host, "programming5.net.sockets.TCPClient");
+            }
+        }
+    }
+
+    /**
+     *Opens a socket to the given address and starts its receiver, if the address is one of those with which the client was 
+     *created and it hasn't been opened yet; synchronized so that concurrent senders to the address open a single connection
+     *@return true if the address has an established connection, or false if messages to it go through the pool
+     */
+    private synchronized boolean open(String url) throws NetworkException {
+        if (outStreams.get(url) != null) {
+            return true;
+        }
+        if (!pendingConnections.contains(url)) {
+            return false;
+        }
+        try {
+            URI hostUrl = new URI(url);
+            Socket socket = new Socket(InetAddress.getByName(hostUrl.getHost()), hostUrl.getPort());
+            connections.put(url, socket);
+            outStreams.put(url, socket.getOutputStream());
+            TCPReceiver receiver = new TCPReceiver(socket, url);
+            receivers.put(url, receiver);
+            receiver.start();
+            return true;
+        }
+        catch (Exception e) {
+            throw new NetworkException("TCPClient: Could not send message to " + url + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     *Queues the given frame on a pooled connection to the given address, which is released when the frame has been written
+     */
+    private CompletableFuture<Void> sendPooled(final String url, ByteBuffer header, ByteBuffer body) throws NetworkException {
+        final PooledConnection connection;
+        try {
+            connection = pool.checkout(url);
+        }
+        catch (IOException ioe) {
+            throw new NetworkException("TCPClient: Could not send message to " + url + ": " + ioe.getMessage());
+        }
+        CompletableFuture<Void> ret = this.enqueue(connection.queue, connection.socket, connection.out, url, header, body);
+        ret.whenComplete(new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(Void result, Throwable error) {
+                pool.release(url, connection);
+            }
+        });
+        return ret;
+    }
+
+    /**
+     *Queues a frame with the given length header (or no header in compatible mode) and, if no writer is active for the 
+     *connection, starts one
+     */
+    private CompletableFuture<Void> enqueue(String host, byte[] bytesMessage, int length) {
+        ByteBuffer header = (useSeparator) ? ByteBuffer.wrap(FrameDecoder.encodeHeader(framing, length)) : null;
+        return this.enqueue(host, header, ByteBuffer.wrap(bytesMessage));
+    }
+
+    private CompletableFuture<Void> enqueue(final String host, ByteBuffer header, ByteBuffer body) {
+        final OutboundQueue queue;
+        synchronized (outQueues) {
+            OutboundQueue existing = outQueues.get(host);
+            if (existing == null) {
+                existing = new OutboundQueue(highWaterMark);
+                outQueues.put(host, existing);
             }
-            catch (IOException ioe) {}
+            queue = existing;
+        }
+        return this.enqueue(queue, null, null, host, header, body);
+    }
+
+    /**
+     *Queues a frame on the given queue and, if no writer is active for it, starts one that writes to the given socket; if no 
+     *socket is given, the writer uses the current socket of the given host, read from the concurrent connection maps since it 
+     *runs on a writer thread
+     */
+    private CompletableFuture<Void> enqueue(final OutboundQueue queue, final Socket mySocket, final OutputStream myOut, final String host, ByteBuffer header, ByteBuffer body) {
+        transportMetrics.recordSent(host, body.remaining());
+        CompletableFuture<Void> ret = queue.enqueue(header, body);
+        if (queue.claimDrain()) {
+            OutboundQueue.getWriterExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    Socket socket = (mySocket != null) ? mySocket : connections.get(host);
+                    OutputStream out = (mySocket != null) ? myOut : outStreams.get(host);
+                    try {
+                        if (socket != null && socket.getChannel() != null) {
+                            queue.writeTo(socket.getChannel());
+                        }
+                        else if (out != null) {
+                            queue.writeTo(out);
+                        }
+                        else {
+                            queue.fail(new IOException("Connection closed"));
+                        }
+                    }
+                    catch (IOException ioe) {
+                        Debug.println("TCPClient: Could not write to " + host + ": " + ioe.getMessage(), "programming5.net.sockets.TCPClient");
+                    }
+                }
+            });
         }
+        return ret;
+    }
+    
+    /**
+     *Publishes a message received from the given host and records its arrival and the time taken to dispatch it
+     */
+    private void dispatch(String host, byte[] bytesMessage) {
+        TransportMetrics metrics = transportMetrics;
+        metrics.recordReceived(host, bytesMessage.length);
+        long arrival = System.nanoTime();
+        this.fireEvent(new MessageArrivedEvent(bytesMessage));
+        metrics.recordReceiveToDispatch((System.nanoTime() - arrival) / 1000);
+    }
+
+    /**
+     *@return the client's own metrics, with its gauges
+     */
+    private TransportMetrics createTransportMetrics() {
+        TransportMetrics ret = new TransportMetrics();
+        ret.addGauge("outboundBytes", new TransportMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                long bytes = 0;
+                synchronized (outQueues) {
+                    for (OutboundQueue queue : outQueues.values()) {
+                        bytes += queue.getPendingBytes();
+                    }
+                }
+                return bytes;
+            }
+        });
+        ret.addGauge("heldMessages", new TransportMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mailbox.size();
+            }
+        });
+        ret.addGauge("pooledConnections", new TransportMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return pool.size();
+            }
+        });
+        return ret;
     }
     
-    protected class TCPReceiver extends Thread {
+    protected class TCPReceiver extends Thread implements FrameDecoder.FrameHandler {
         
         Socket socketRef;
         InputStream in;
@@ -411,83 +789,48 @@ public class TCPClient extends Publisher<MessageArrivedEvent> implements Messagi
         
         @Override
         public void run() {
-            byte[] fromServer = new byte[BUFFER_SIZE];
-            byte[] bytesMsg = null; // = new byte[0];
-            int bytesRead, headerPos, msgStart, msgLength, msgEnd;
+            FrameDecoder decoder = new FrameDecoder(framing, this);
+            decoder.setMaxFrameLength(maxFrameLength);
             try {
-                while (listening) {
-                    msgStart = 0;
-                    msgLength = -1;
-                    msgEnd = -1;
-                    headerPos = -1;
-                    bytesRead = in.read(fromServer);
-                    if (bytesRead > 0) {
-                        bytesMsg = ArrayOperations.prefix(fromServer, bytesRead);
-                    }
-                    while (bytesRead > 0) {
-                        try {
-                            headerPos = ArrayOperations.findInSequence(TCPClient.SEPARATOR[0], bytesMsg, msgStart);
-                            while (headerPos <= msgStart) {
-                                bytesRead += in.read(fromServer);
-                                if (bytesRead > 0) {
-                                    bytesMsg = ArrayOperations.join(bytesMsg, ArrayOperations.prefix(fromServer, bytesRead));
-                                }
-                                headerPos = ArrayOperations.findInSequence(TCPClient.SEPARATOR[0], bytesMsg, msgStart);
-                            }
-                            bytesRead -= (headerPos - msgStart + 1);
-                            msgLength = Integer.parseInt(new String(ArrayOperations.subArray(bytesMsg, msgStart, headerPos)));
-                            if (msgLength >= 0) {
-                                while (msgLength > bytesRead) {
-                                    int moreBytesRead = in.read(fromServer);
-                                    bytesRead += moreBytesRead;
-                                    if (moreBytesRead > 0) {
-                                        bytesMsg = ArrayOperations.join(bytesMsg, ArrayOperations.prefix(fromServer, moreBytesRead));
-                                    }
-                                }
-                                msgStart = headerPos + 1;
-                                msgEnd = msgStart + msgLength;
-                                try {
-                                    fireEvent(new MessageArrivedEvent(ArrayOperations.subArray(bytesMsg, msgStart, msgEnd)));
-                                    bytesRead -= msgLength;
-                                    msgStart = msgEnd;
-                                }
-                                catch (ArrayIndexOutOfBoundsException iobe) {
-                                    Debug.println("TCPReceiver: Bad message received");
-                                    bytesRead = -1;
-                                }
-                                catch (Exception e) {
-                                }
-                            }
-                            else {
-                                listening = false;
-                                bytesRead = 0;
-                                Debug.println("Termination message received at " + hostname, "programming5.net.sockets.TCPClient");
-                                signalConnectionError(hostname);
-                            }
-                        }
-                        catch (OutOfMemoryError oome) {
-                            Runtime.getRuntime().gc();
-                            Debug.println("Out of memory after reading:");
-                            Debug.println("Bytes msg length: " + bytesMsg.length);
-                            Debug.println("Bytes read: " + bytesRead);
-                            Debug.println("Header pos: " + headerPos);
-                            Debug.println("Msg start: " + msgStart);
-                            Debug.println("Msg length: " + msgLength);
-                            Debug.println("Msg end: " + msgEnd);
-                        }
-                        catch (Exception e) {
-                            Debug.println("TCPReceiver: Bad message received");
-                            bytesRead = -1;
-                        }
+                while (listening && !decoder.isTerminated()) {
+                    if (decoder.readFrom(in) < 0) {
+                        throw new IOException("End of stream");
                     }
                 }
                 end();
             } 
             catch (IOException io) {
                 Debug.println("TCPReceiver: Exception while receiving: " + io.getMessage());
-                signalConnectionError(hostname);
+                // The stream may be corrupt, in which case no more messages can be read from it
+                end();
+                connectionLost();
             }
         }
+
+        /**
+         *Implementation of the FrameHandler interface: publishes each complete message
+         */
+        @Override
+        public void frameDecoded(byte[] payload) {
+            dispatch(hostname, payload);
+        }
+
+        /**
+         *Implementation of the FrameHandler interface: handles the termination message sent by the remote end
+         */
+        @Override
+        public void terminationReceived() {
+            listening = false;
+            Debug.println("Termination message received at " + hostname, "programming5.net.sockets.TCPClient");
+            connectionLost();
+        }
+
+        /**
+         *Called when the connection is closed by the remote end or fails
+         */
+        protected void connectionLost() {
+            signalConnectionError(hostname);
+        }
         
         public void end() {
             try {
@@ -501,6 +844,76 @@ public class TCPClient extends Publisher<MessageArrivedEvent> implements Messagi
         
     }
     
+    /**
+     *A connection of the pool, used for messages sent to addresses other than those with which the client was created. Messages 
+     *received over it are published like those of the other connections, but its loss only removes it from the pool.
+     */
+    protected class PooledConnection implements ConnectionPool.Connection {
+
+        final String url;
+        final Socket socket;
+        final OutputStream out;
+        final OutboundQueue queue;
+        final TCPReceiver receiver;
+
+        PooledConnection(String myURL) throws IOException {
+            url = myURL;
+            URI hostUrl;
+            try {
+                hostUrl = new URI(url);
+            }
+            catch (URISyntaxException use) {
+                throw new IOException("Bad address: " + use.getMessage());
+            }
+            socket = new Socket(InetAddress.getByName(hostUrl.getHost()), hostUrl.getPort());
+            out = socket.getOutputStream();
+            queue = new OutboundQueue(highWaterMark);
+            try {
+                receiver = new TCPReceiver(socket, url) {
+                    @Override
+                    protected void connectionLost() {
+                        pool.remove(url, PooledConnection.this);
+                        queue.fail(new IOException("Connection closed"));
+                        end();
+                    }
+                };
+            }
+            catch (NetworkException ne) {
+                socket.close();
+                throw new IOException(ne.getMessage());
+            }
+            receiver.start();
+        }
+
+        /**
+         *Implementation of the Connection interface
+         */
+        @Override
+        public boolean isHealthy() {
+            return !socket.isClosed() && receiver.isAlive() && !queue.isFailed();
+        }
+
+        /**
+         *Implementation of the Connection interface. Sends the termination message and closes the socket once it has been written.
+         */
+        @Override
+        public void close() {
+            if (useSeparator) {
+                ByteBuffer header = ByteBuffer.wrap(FrameDecoder.encodeHeader(framing, -1));
+                enqueue(queue, socket, out, url, header, ByteBuffer.wrap("EOF".getBytes())).whenComplete(new BiConsumer<Void, Throwable>() {
+                    @Override
+                    public void accept(Void result, Throwable error) {
+                        receiver.end();
+                    }
+                });
+            }
+            else {
+                receiver.end();
+            }
+        }
+
+    }
+    
     protected class CompatibleTCPReceiver extends TCPReceiver {
         
         public CompatibleTCPReceiver(Socket mySocket, String myHost) throws NetworkException {
@@ -517,14 +930,14 @@ public class TCPClient extends Publisher<MessageArrivedEvent> implements Messagi
                     bytesRead = in.read(fromServer);
                     if (bytesRead > 0) {
                         bytesMsg = ArrayOperations.prefix(fromServer, bytesRead);
-                        fireEvent(new MessageArrivedEvent(bytesMsg));
+                        dispatch(hostname, bytesMsg);
                     }
                 }
                 end();
             } 
             catch (IOException io) {
                 Debug.println("TCPReceiver: Exception while receiving: " + io.getMessage());
-                signalConnectionError(hostname);
+                connectionLost();
             }
         }
     }
@@ -0,0 +1,346 @@
+/*
+ * TCPRPCClient.java
+ *
+ * Copyright 2004 Andres Quiroz Hernandez
+ *
+ * This file is part of Programming5.
+ * Programming5 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Programming5 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Programming5.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package programming5.net.sockets;
+
+import programming5.concurrent.TimingWheel;
+import programming5.io.Debug;
+import programming5.net.CallbackEvent;
+import programming5.net.MalformedMessageException;
+import programming5.net.Message;
+import programming5.net.MessageArrivedEvent;
+import programming5.net.MessageView;
+import programming5.net.NetworkException;
+import programming5.net.Publisher;
+import programming5.net.RPCClient;
+import programming5.net.RPCMessage;
+import programming5.net.TerminationAwareSubscriber;
+
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ *This class implements the RPCClient interface over a single TCP connection to an RPCServiceObject. Calls are pipelined:
+ *each request carries a call identifier and is sent as soon as it is made, without waiting for the responses to previous
+ *calls, and responses are matched to their calls by identifier in whatever order they arrive. Results are returned as
+ *CompletableFuture objects by the call methods, which also allow a timeout per call; the invoke method waits for the result,
+ *and the asyncInvoke method publishes it as a CallbackEvent. Callback events sent by the server are also published to the
+ *client's listeners.
+ *<p>Parameters and results must be serializable. If the remote method throws an exception, the result future completes
+ *exceptionally with that exception; if no response arrives within the call's timeout, it completes with a TimeoutException;
+ *and if the connection is lost, all pending calls complete with a NetworkException, as do all later calls. Results are 
+ *deserialized with RPCMessage.DEF_FILTER unless another filter is set.
+ *@see programming5.net.sockets.RPCServiceObject
+ *@see programming5.net.RPCMessage
+ *@author Andres Quiroz Hernandez
+ *@version 6.19
+ */
+public class TCPRPCClient extends Publisher<CallbackEvent> implements RPCClient {
+
+    public static final long DEF_TIMEOUT = 30000;   // msecs
+
+    protected final TCPClient client;
+    protected final String serverURL;
+    protected long defaultTimeout = DEF_TIMEOUT;
+
+    private final AtomicLong callIDs = new AtomicLong();
+    private final Map<Long, PendingCall> pendingCalls = new ConcurrentHashMap<Long, PendingCall>();
+    private final TimingWheel wheel = TimingWheel.getDefault();
+    private volatile boolean ended = false;
+    private volatile ObjectInputFilter filter = RPCMessage.DEF_FILTER;
+
+    /**
+     *Creates an RPC client for the service at the given host address and port. The connection is opened by
+     *establishConnection or by the first call.
+     */
+    public TCPRPCClient(String address, int remotePort) {
+        serverURL = "//" + address + ":" + Integer.toString(remotePort);
+        client = new TCPClient(address, remotePort);
+        client.setMessageEncoding(Message.Encoding.BINARY);
+        client.addListener(new ResponseListener());
+    }
+
+    /**
+     *Sets the encoding of requests (binary by default); the server responds in the encoding of each request
+     */
+    public void setMessageEncoding(Message.Encoding myEncoding) {
+        client.setMessageEncoding(myEncoding);
+    }
+
+    /**
+     *Sets the timeout of calls made without one (30 seconds by default); 0 for no timeout
+     */
+    public void setDefaultTimeout(long millis) {
+        defaultTimeout = millis;
+    }
+
+    /**
+     *@return the timeout of calls made without one
+     */
+    public long getDefaultTimeout() {
+        return defaultTimeout;
+    }
+
+    /**
+     *Sets the filter with which results are deserialized (RPCMessage.DEF_FILTER by default), which must allow every type 
+     *returned or thrown by the remote methods; calls whose results it rejects fail with a NetworkException
+     *@see programming5.net.RPCMessage#createFilter
+     */
+    public void setDeserializationFilter(ObjectInputFilter myFilter) {
+        filter = myFilter;
+    }
+
+    /**
+     *@return the number of calls waiting for their results
+     */
+    public int getPendingCount() {
+        return pendingCalls.size();
+    }
+
+    /**
+     *Implementation of the PluggableClient interface. Opens the connection to the server.
+     */
+    @Override
+    public void establishConnection() throws NetworkException {
+        client.establishConnection();
+    }
+
+    /**
+     *Implementation of the PluggableClient interface. Closes the connection to the server; pending calls complete with a
+     *NetworkException, and no more calls can be made.
+     */
+    @Override
+    public void endConnection() {
+        ended = true;
+        client.endConnection();
+        this.failAll(new NetworkException("TCPRPCClient: Connection ended"));
+    }
+
+    /**
+     *Invokes the given method on the server with the default timeout, without waiting for the result
+     *@return the future result of the invocation
+     */
+    public CompletableFuture<Object> call(String methodName, Object... parameters) {
+        return this.call(defaultTimeout, methodName, parameters);
+    }
+
+    /**
+     *Invokes the given method on the server without waiting for the result
+     *@param timeout the time in milliseconds after which the call fails with a TimeoutException if no response has arrived
+     *(0 for no timeout)
+     *@return the future result of the invocation
+     */
+    public CompletableFuture<Object> call(long timeout, final String methodName, Object... parameters) {
+        CompletableFuture<Object> ret = new CompletableFuture<Object>();
+        if (ended) {
+            ret.completeExceptionally(new NetworkException("TCPRPCClient: Cannot invoke " + methodName + ": Connection ended"));
+            return ret;
+        }
+        final long callID = callIDs.incrementAndGet();
+        RPCMessage request;
+        try {
+            request = RPCMessage.createRequest(callID, methodName, parameters);
+        }
+        catch (IOException ioe) {
+            ret.completeExceptionally(new NetworkException("TCPRPCClient: Cannot invoke " + methodName + ": Could not serialize parameters: " + ioe.getMessage()));
+            return ret;
+        }
+        PendingCall call = new PendingCall(ret);
+        pendingCalls.put(callID, call);
+        if (ended) {
+            // The connection ended after the first check, and failAll may have run before the call was added
+            this.fail(callID, new NetworkException("TCPRPCClient: Cannot invoke " + methodName + ": Connection ended"));
+            return ret;
+        }
+        if (timeout > 0) {
+            call.timeout = wheel.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    fail(callID, new TimeoutException("TCPRPCClient: Call to " + methodName + " timed out"));
+                }
+            }, timeout);
+        }
+        try {
+            client.sendAsync(request, serverURL).whenComplete(new BiConsumer<Void, Throwable>() {
+                @Override
+                public void accept(Void result, Throwable error) {
+                    if (error != null) {
+                        fail(callID, new NetworkException("TCPRPCClient: Could not send call to " + methodName + ": " + error.getMessage()));
+                    }
+                }
+            });
+        }
+        catch (NetworkException ne) {
+            this.fail(callID, ne);
+        }
+        return ret;
+    }
+
+    /**
+     *Implementation of the RPCClient interface. Invokes the given method on the server and waits for the result, for up to
+     *the default timeout.
+     *@return the value returned by the remote method
+     *@throws NetworkException if the call fails, times out, or the remote method throws an exception (which is the cause of
+     *the NetworkException)
+     */
+    @Override
+    public Object invoke(String methodName, Object... parameters) throws NetworkException {
+        try {
+            return this.call(methodName, parameters).get();
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new NetworkException("TCPRPCClient: Interrupted while waiting for " + methodName);
+        }
+        catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof NetworkException) {
+                throw (NetworkException) cause;
+            }
+            NetworkException ne = new NetworkException("TCPRPCClient: Invocation of " + methodName + " failed: " + cause);
+            ne.initCause(cause);
+            throw ne;
+        }
+    }
+
+    /**
+     *Implementation of the RPCClient interface. Invokes the given method on the server with the default timeout; the result
+     *(or the exception that made the call fail) is published as a CallbackEvent qualified with the method name.
+     */
+    @Override
+    public void asyncInvoke(final String methodName, Object... parameters) throws NetworkException {
+        this.call(methodName, parameters).whenComplete(new BiConsumer<Object, Throwable>() {
+            @Override
+            public void accept(Object result, Throwable error) {
+                try {
+                    fireEvent(new CallbackEvent(methodName, (error != null) ? error : result));
+                }
+                catch (RuntimeException re) {
+                    Debug.println("TCPRPCClient: Could not publish result of " + methodName + ": " + re.getMessage(), "programming5.net.sockets.TCPRPCClient");
+                }
+            }
+        });
+    }
+
+    private void complete(RPCMessage response) throws MalformedMessageException {
+        PendingCall call = pendingCalls.remove(response.getCallID());
+        if (call == null) {
+            Debug.println("TCPRPCClient: Discarding response to unknown or expired call " + response.getCallID(), "programming5.net.sockets.TCPRPCClient");
+            return;
+        }
+        if (call.timeout != null) {
+            call.timeout.cancel();
+        }
+        try {
+            Object result = response.getResult(filter);
+            if (!response.isError()) {
+                call.result.complete(result);
+            }
+            else if (result instanceof Throwable) {
+                call.result.completeExceptionally((Throwable) result);
+            }
+            else {
+                call.result.completeExceptionally(new NetworkException("TCPRPCClient: Remote invocation failed"));
+            }
+        }
+        catch (IOException ioe) {
+            call.result.completeExceptionally(new NetworkException("TCPRPCClient: Could not read result: " + ioe.getMessage()));
+        }
+        catch (ClassNotFoundException cnfe) {
+            call.result.completeExceptionally(new NetworkException("TCPRPCClient: Could not read result: " + cnfe.getMessage()));
+        }
+    }
+
+    private void fail(long callID, Throwable error) {
+        PendingCall call = pendingCalls.remove(callID);
+        if (call != null) {
+            if (call.timeout != null) {
+                call.timeout.cancel();
+            }
+            call.result.completeExceptionally(error);
+        }
+    }
+
+    private void failAll(Throwable error) {
+        for (Long callID : pendingCalls.keySet()) {
+            this.fail(callID, error);
+        }
+    }
+
+    private static class PendingCall {
+
+        final CompletableFuture<Object> result;
+        volatile TimingWheel.Timeout timeout = null;
+
+        PendingCall(CompletableFuture<Object> myResult) {
+            result = myResult;
+        }
+
+    }
+
+    /**
+     *Matches responses to pending calls and publishes callback events sent by the server
+     */
+    private class ResponseListener implements TerminationAwareSubscriber<MessageArrivedEvent> {
+
+        @Override
+        public <T extends MessageArrivedEvent> void signalEvent(T event) {
+            byte[] bytes = event.getContentBytes();
+            try {
+                if (new MessageView(bytes).hasHeader(CallbackEvent.TYPE_STRING)) {
+                    fireEvent(new CallbackEvent(bytes));
+                }
+                else {
+                    complete(new RPCMessage(bytes));
+                }
+            }
+            catch (MalformedMessageException mme) {
+                Debug.println("TCPRPCClient: Discarding message: " + mme.getMessage(), "programming5.net.sockets.TCPRPCClient");
+            }
+            catch (IllegalArgumentException iae) {
+                Debug.println("TCPRPCClient: Discarding message: " + iae.getMessage(), "programming5.net.sockets.TCPRPCClient");
+            }
+        }
+
+        @Override
+        public void noMoreEvents() {
+            this.subscriptionTerminated();
+        }
+
+        /**
+         *Called when the connection is lost, after which the client cannot be used
+         */
+        @Override
+        public void subscriptionTerminated() {
+            ended = true;
+            failAll(new NetworkException("TCPRPCClient: Connection lost"));
+        }
+
+    }
+
+}
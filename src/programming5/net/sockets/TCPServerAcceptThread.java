@@ -25,50 +25,62 @@ import programming5.net.NetworkException;
 import programming5.net.ServerAcceptThread;
 import programming5.net.ServiceObject;
 
+import javax.net.ssl.SSLContext;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.Executor;
 
 /**
  *This class implements a ServerAcceptThread that accepts TCP connections. It listens to the subscription port and passes each 
- *new client to the given service object.
+ *new client to the given service object. New clients are created by a bounded executor and handed off on a service executor, 
+ *and connections beyond a limit on concurrent connections (1024 by default) are closed on arrival, which also bounds the 
+ *number of threads that serve them.
  *@see programming5.net.ServerAcceptThread
  *@see programming5.net.ServiceObject
+ *@see programming5.net.sockets.ConnectionAdmission
  *@author Andres Quiroz Hernandez
- *@version 6.0
+ *@version 6.19
  */
 public class TCPServerAcceptThread extends ServerAcceptThread {
     
     protected ServerSocket accepter;
+    protected final ConnectionAdmission admission = new ConnectionAdmission();
     private boolean listening = true;
 
     private int acceptFailCount = 0;
     private static final int ACCEPT_FAIL_LIMIT = 10;
+    public static final int DEF_BACKLOG = 50;
     
     /**
      *Creates an accept thread that listens on an available port (which can be retrieved with the getLocalPort method).
      *@see #getLocalPort
      */
     public TCPServerAcceptThread(ServiceObject myServer) throws NetworkException {
-        super(myServer);
-        try {
-            accepter = new ServerSocket(0);
-        }
-	catch (IOException ioe) {
-            throw new NetworkException("TCPServerAcceptThread: Couldn't create server socket: " + ioe.getMessage());
-        }
+        this(myServer, 0, DEF_BACKLOG);
     }
     
     /**
      *Creates an accept thread that listens on the given port.
      */
     public TCPServerAcceptThread(ServiceObject myServer, int port) throws NetworkException {
+        this(myServer, port, DEF_BACKLOG);
+    }
+    
+    /**
+     *Creates an accept thread that listens on the given port, with the given maximum number of pending connections in the accept 
+     *queue.
+     */
+    public TCPServerAcceptThread(ServiceObject myServer, int port, int backlog) throws NetworkException {
         super(myServer);
         try {
             if (port < 0) {
                 port = 0;
             }
-            accepter = new ServerSocket(port);
+            accepter = ServerSocketChannel.open().socket();
+            accepter.bind(new InetSocketAddress(port), backlog);
         }
 	catch (IOException ioe) {
             throw new NetworkException("TCPServerAcceptThread: Couldn't create server socket: " + ioe.getMessage());
@@ -82,6 +94,81 @@ public class TCPServerAcceptThread extends ServerAcceptThread {
         return accepter.getLocalPort();
     }
     
+    /**
+     *Sets the executor that creates new clients (a shared fixed pool by default)
+     *@see programming5.net.sockets.ConnectionAdmission#virtualThreadExecutor
+     */
+    public void setExecutor(Executor executor) {
+        admission.setExecutor(executor);
+    }
+
+    /**
+     *Sets the executor that hands new clients to the service object (by default, each call runs in a pooled thread of its own)
+     *@see programming5.net.sockets.ConnectionAdmission#setServiceExecutor
+     */
+    public void setServiceExecutor(Executor executor) {
+        admission.setServiceExecutor(executor);
+    }
+
+    /**
+     *Serves new connections with NIOTCPClient objects on the given selector loop instead of TCPClient objects, so that no 
+     *thread is dedicated to any connection; the service object must not depend on the client being a TCPClient
+     */
+    public void setSelectorLoop(SelectorLoop loop) {
+        admission.setSelectorLoop(loop);
+    }
+
+    /**
+     *Serves new connections over TLS with the given SSL context, using NIOSSLClient objects on the selector loop if one is set, 
+     *or on a shared loop otherwise
+     */
+    public void setSSLContext(SSLContext context) {
+        admission.setSSLContext(context);
+    }
+
+    /**
+     *@return the metrics of the TLS handshakes of the accepted connections
+     */
+    public HandshakeMetrics getHandshakeMetrics() {
+        return admission.getHandshakeMetrics();
+    }
+
+    /**
+     *@return the metrics of the messages sent and received on the accepted connections
+     */
+    public TransportMetrics getTransportMetrics() {
+        return admission.getTransportMetrics();
+    }
+
+    /**
+     *Sets the maximum number of connections that can be active at once, above which new connections are closed on arrival 
+     *(ConnectionAdmission.DEF_MAX_CONNECTIONS by default); ConnectionAdmission.UNLIMITED for no limit
+     */
+    public void setMaxConnections(int max) {
+        admission.setMaxConnections(max);
+    }
+
+    /**
+     *@return the number of connections accepted since the thread was created
+     */
+    public long getAcceptedCount() {
+        return admission.getAcceptedCount();
+    }
+
+    /**
+     *@return the number of connections rejected since the thread was created
+     */
+    public long getRejectedCount() {
+        return admission.getRejectedCount();
+    }
+
+    /**
+     *@return the number of accepted connections that are still open
+     */
+    public int getActiveCount() {
+        return admission.getActiveCount();
+    }
+    
     /**
      *Accepts new clients until the thread is stopped
      */
@@ -89,18 +176,9 @@ public class TCPServerAcceptThread extends ServerAcceptThread {
     public void run() {
         while (listening) {
             try {
-                final Socket socket = accepter.accept();
+                Socket socket = accepter.accept();
                 acceptFailReset();
-                new Thread(new Runnable() {
-                    public void run() {
-                        try {
-                            serverRef.newClient(new TCPClient(socket));
-                        }
-                        catch (NetworkException ne) {
-                            System.err.println("TCPServerAcceptThread: Couldn't create TCPClient: " + ne.getMessage());
-                        }
-                    }
-                }).start();
+                admission.admit(socket, serverRef);
             }
             catch (IOException ioe) {
                 if (listening) {
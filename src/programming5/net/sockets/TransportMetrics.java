@@ -0,0 +1,386 @@
+/*
+ * TransportMetrics.java
+ *
+ * Copyright 2004 Andres Quiroz Hernandez
+ *
+ * This file is part of Programming5.
+ * Programming5 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Programming5 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Programming5.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package programming5.net.sockets;
+
+import programming5.io.Debug;
+import programming5.net.NetworkException;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *This class collects the transport metrics of a client or server: counts of messages and bytes sent and received,
+ *retransmissions, duplicates dropped and partially received messages evicted, and histograms of the time from sending a packet
+ *to its acknowledgement and from the arrival of a message to the end of its dispatch. Counts and send-to-acknowledgement
+ *latencies are kept both in aggregate and for each peer (up to a maximum number of peers, beyond which new peers are only
+ *counted in the aggregate); gauges, such as queue depths, are read when a snapshot is taken.
+ *<p>Recording is meant to stay on in production: counters are striped (LongAdder), histograms are updated with atomic
+ *increments, and nothing is allocated on the recording path except the state of a peer the first time it is seen. The
+ *metrics are read as a MetricsSnapshot, or exported via JMX with the register method.
+ *@see programming5.net.sockets.MetricsSnapshot
+ *@see programming5.net.sockets.LatencyHistogram
+ *@author Andres Quiroz Hernandez
+ *@version 6.19
+ */
+public class TransportMetrics implements TransportMetricsMBean {
+
+    /**
+     *A value read when a snapshot is taken
+     */
+    public interface Gauge {
+
+        public long getValue();
+
+    }
+
+    public static final int DEF_MAX_PEERS = 1024;
+    public static final String JMX_DOMAIN = "programming5.net.sockets";
+
+    protected final Counters total = new Counters(true);
+    protected int maxPeers = DEF_MAX_PEERS;
+
+    private final ConcurrentHashMap<String, Counters> peers = new ConcurrentHashMap<String, Counters>();
+    private final Map<String, Gauge> gauges = new LinkedHashMap<String, Gauge>();
+    private ObjectName registeredName = null;
+
+    /**
+     *Sets the maximum number of peers for which separate metrics are kept (1024 by default)
+     */
+    public void setMaxPeers(int max) {
+        maxPeers = max;
+    }
+
+    /**
+     *Records a message sent to the given peer (null if the peer is not known, in which case it is only counted in the aggregate)
+     */
+    public void recordSent(String peer, int bytes) {
+        total.messagesSent.increment();
+        total.bytesSent.add(bytes);
+        Counters counters = this.peer(peer);
+        if (counters != null) {
+            counters.messagesSent.increment();
+            counters.bytesSent.add(bytes);
+        }
+    }
+
+    /**
+     *Records a message received from the given peer (null if the peer is not known)
+     */
+    public void recordReceived(String peer, int bytes) {
+        total.messagesReceived.increment();
+        total.bytesReceived.add(bytes);
+        Counters counters = this.peer(peer);
+        if (counters != null) {
+            counters.messagesReceived.increment();
+            counters.bytesReceived.add(bytes);
+        }
+    }
+
+    /**
+     *Records the retransmission of a packet to the given peer
+     */
+    public void recordRetransmit(String peer) {
+        total.retransmits.increment();
+        Counters counters = this.peer(peer);
+        if (counters != null) {
+            counters.retransmits.increment();
+        }
+    }
+
+    /**
+     *Records a duplicate packet received from the given peer and dropped
+     */
+    public void recordDuplicate(String peer) {
+        total.duplicatesDropped.increment();
+        Counters counters = this.peer(peer);
+        if (counters != null) {
+            counters.duplicatesDropped.increment();
+        }
+    }
+
+    /**
+     *Records a partially received message evicted from reassembly (because it expired or the reassembly table was full)
+     */
+    public void recordReassemblyEviction() {
+        total.reassemblyEvictions.increment();
+    }
+
+    /**
+     *Records the time between the first transmission of a packet to the given peer and its acknowledgement
+     */
+    public void recordSendToAck(String peer, long micros) {
+        total.sendToAck.record(micros);
+        Counters counters = this.peer(peer);
+        if (counters != null) {
+            counters.sendToAck.record(micros);
+        }
+    }
+
+    /**
+     *Records the time between the arrival of a complete message and the end of its dispatch to subscribers
+     */
+    public void recordReceiveToDispatch(long micros) {
+        total.receiveToDispatch.record(micros);
+    }
+
+    /**
+     *Adds a gauge with the given name, replacing any gauge with the same name
+     */
+    public void addGauge(String name, Gauge gauge) {
+        synchronized (gauges) {
+            gauges.put(name, gauge);
+        }
+    }
+
+    public void removeGauge(String name) {
+        synchronized (gauges) {
+            gauges.remove(name);
+        }
+    }
+
+    /**
+     *Stops keeping separate metrics for the given peer (e.g. when its connection is closed); its counts remain in the aggregate
+     */
+    public void removePeer(String peer) {
+        peers.remove(peer);
+    }
+
+    /**
+     *@return a copy of the aggregate metrics, including the metrics of each peer and the values of the gauges
+     */
+    public MetricsSnapshot snapshot() {
+        Map<String, MetricsSnapshot> peerSnapshots = new HashMap<String, MetricsSnapshot>();
+        for (Map.Entry<String, Counters> peer : peers.entrySet()) {
+            peerSnapshots.put(peer.getKey(), peer.getValue().snapshot(peer.getKey(), new HashMap<String, Long>(), new HashMap<String, MetricsSnapshot>()));
+        }
+        return total.snapshot(null, this.getGauges(), peerSnapshots);
+    }
+
+    /**
+     *@return a copy of the metrics of the given peer, or null if none are kept for it
+     */
+    public MetricsSnapshot snapshot(String peer) {
+        Counters counters = peers.get(peer);
+        return (counters != null) ? counters.snapshot(peer, new HashMap<String, Long>(), new HashMap<String, MetricsSnapshot>()) : null;
+    }
+
+    /**
+     *Exports the aggregate metrics via JMX on the platform MBean server, with an object name of the form
+     *programming5.net.sockets:type=TransportMetrics,name=[the given name]
+     *@throws NetworkException if the metrics are already registered or the name is taken
+     */
+    public synchronized void register(String name) throws NetworkException {
+        if (registeredName != null) {
+            throw new NetworkException("TransportMetrics: Already registered as " + registeredName);
+        }
+        try {
+            ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=TransportMetrics,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            registeredName = objectName;
+        }
+        catch (JMException jme) {
+            throw new NetworkException("TransportMetrics: Could not register " + name + ": " + jme.getMessage());
+        }
+    }
+
+    /**
+     *Removes the metrics from the platform MBean server, if registered
+     */
+    public synchronized void unregister() {
+        if (registeredName != null) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            try {
+                server.unregisterMBean(registeredName);
+            }
+            catch (JMException jme) {
+                Debug.println("TransportMetrics: Could not unregister " + registeredName + ": " + jme.getMessage(), "programming5.net.sockets.TransportMetrics");
+            }
+            registeredName = null;
+        }
+    }
+
+    @Override
+    public long getMessagesSent() {
+        return total.messagesSent.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return total.bytesSent.sum();
+    }
+
+    @Override
+    public long getMessagesReceived() {
+        return total.messagesReceived.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return total.bytesReceived.sum();
+    }
+
+    @Override
+    public long getRetransmits() {
+        return total.retransmits.sum();
+    }
+
+    @Override
+    public long getDuplicatesDropped() {
+        return total.duplicatesDropped.sum();
+    }
+
+    @Override
+    public long getReassemblyEvictions() {
+        return total.reassemblyEvictions.sum();
+    }
+
+    @Override
+    public int getPeerCount() {
+        return peers.size();
+    }
+
+    @Override
+    public double getSendToAckMean() {
+        return total.sendToAck.snapshot().getMean();
+    }
+
+    @Override
+    public long getSendToAckP99() {
+        return total.sendToAck.snapshot().getPercentile(99);
+    }
+
+    @Override
+    public long getSendToAckMax() {
+        return total.sendToAck.snapshot().getMax();
+    }
+
+    @Override
+    public double getReceiveToDispatchMean() {
+        return total.receiveToDispatch.snapshot().getMean();
+    }
+
+    @Override
+    public long getReceiveToDispatchP99() {
+        return total.receiveToDispatch.snapshot().getPercentile(99);
+    }
+
+    @Override
+    public long getReceiveToDispatchMax() {
+        return total.receiveToDispatch.snapshot().getMax();
+    }
+
+    @Override
+    public Map<String, Long> getGauges() {
+        Map<String, Long> ret = new LinkedHashMap<String, Long>();
+        synchronized (gauges) {
+            for (Map.Entry<String, Gauge> gauge : gauges.entrySet()) {
+                try {
+                    ret.put(gauge.getKey(), gauge.getValue().getValue());
+                }
+                catch (RuntimeException re) {
+                    Debug.println("TransportMetrics: Could not read gauge " + gauge.getKey() + ": " + re.getMessage(), "programming5.net.sockets.TransportMetrics");
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     *Sets all counters and histograms back to zero and forgets all peers
+     */
+    @Override
+    public void reset() {
+        total.reset();
+        peers.clear();
+    }
+
+    /**
+     *@return the counters of the given peer, creating them if there is room for another peer; null if there is not, or if the
+     *peer is null
+     */
+    private Counters peer(String peer) {
+        if (peer == null) {
+            return null;
+        }
+        Counters ret = peers.get(peer);
+        if (ret == null && peers.size() < maxPeers) {
+            Counters created = new Counters(false);
+            ret = peers.putIfAbsent(peer, created);
+            if (ret == null) {
+                ret = created;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     *The counters and histograms of a peer or of the aggregate
+     */
+    protected static class Counters {
+
+        final LongAdder messagesSent = new LongAdder();
+        final LongAdder bytesSent = new LongAdder();
+        final LongAdder messagesReceived = new LongAdder();
+        final LongAdder bytesReceived = new LongAdder();
+        final LongAdder retransmits = new LongAdder();
+        final LongAdder duplicatesDropped = new LongAdder();
+        final LongAdder reassemblyEvictions = new LongAdder();
+        final LatencyHistogram sendToAck = new LatencyHistogram();
+        final LatencyHistogram receiveToDispatch;
+
+        /**
+         *@param aggregate true for the aggregate counters, which are the only ones with a receive-to-dispatch histogram
+         */
+        Counters(boolean aggregate) {
+            receiveToDispatch = (aggregate) ? new LatencyHistogram() : null;
+        }
+
+        MetricsSnapshot snapshot(String peer, Map<String, Long> gaugeValues, Map<String, MetricsSnapshot> peerSnapshots) {
+            long[] counters = new long[] {messagesSent.sum(), bytesSent.sum(), messagesReceived.sum(), bytesReceived.sum(), retransmits.sum(), duplicatesDropped.sum(), reassemblyEvictions.sum()};
+            LatencyHistogram.Snapshot dispatch = (receiveToDispatch != null) ? receiveToDispatch.snapshot() : new LatencyHistogram().snapshot();
+            return new MetricsSnapshot(peer, counters, sendToAck.snapshot(), dispatch, gaugeValues, peerSnapshots);
+        }
+
+        void reset() {
+            messagesSent.reset();
+            bytesSent.reset();
+            messagesReceived.reset();
+            bytesReceived.reset();
+            retransmits.reset();
+            duplicatesDropped.reset();
+            reassemblyEvictions.reset();
+            sendToAck.reset();
+            if (receiveToDispatch != null) {
+                receiveToDispatch.reset();
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,73 @@
+/*
+ * TransportMetricsMBean.java
+ *
+ * Copyright 2004 Andres Quiroz Hernandez
+ *
+ * This file is part of Programming5.
+ * Programming5 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Programming5 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Programming5.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package programming5.net.sockets;
+
+import java.util.Map;
+
+/**
+ *Management interface through which the aggregate transport metrics of a client or server are exported via JMX. Latencies
+ *are in microseconds.
+ *@see programming5.net.sockets.TransportMetrics#register
+ *@author Andres Quiroz Hernandez
+ *@version 6.19
+ */
+public interface TransportMetricsMBean {
+
+    public long getMessagesSent();
+
+    public long getBytesSent();
+
+    public long getMessagesReceived();
+
+    public long getBytesReceived();
+
+    public long getRetransmits();
+
+    public long getDuplicatesDropped();
+
+    public long getReassemblyEvictions();
+
+    public int getPeerCount();
+
+    public double getSendToAckMean();
+
+    public long getSendToAckP99();
+
+    public long getSendToAckMax();
+
+    public double getReceiveToDispatchMean();
+
+    public long getReceiveToDispatchP99();
+
+    public long getReceiveToDispatchMax();
+
+    /**
+     *@return the current values of the gauges (e.g. queue depths)
+     */
+    public Map<String, Long> getGauges();
+
+    /**
+     *Sets all counters and histograms back to zero
+     */
+    public void reset();
+
+}
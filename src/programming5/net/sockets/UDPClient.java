@@ -22,13 +22,16 @@
 package programming5.net.sockets;
 
 import programming5.arrays.ArrayOperations;
+import programming5.concurrent.Mailbox;
 import programming5.io.Debug;
 import programming5.net.AsynchMessageArrivedEvent;
+import programming5.net.Message;
 import programming5.net.MessageArrivedEvent;
 import programming5.net.MessagingClient;
 import programming5.net.NetworkException;
 import programming5.net.Publisher;
-import programming5.net.ReceiveRequest;
+import programming5.net.ReceiveMailbox;
+import programming5.net.Subscriber;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
@@ -38,10 +41,10 @@ import java.net.SocketException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.UnknownHostException;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
-import java.util.concurrent.TimeUnit;
 
 /**
  *This class is the UDP socket implementation of the MessagingClient. It can be instantiated as a 
@@ -57,19 +60,36 @@ import java.util.concurrent.TimeUnit;
  */
 public class UDPClient extends Publisher<MessageArrivedEvent> implements MessagingClient {
     
+    /**
+     *Format of the headers of the datagrams into which messages are split (see setFragmentHeader)
+     */
+    public static enum FragmentHeader {ASCII, BINARY};
+
     protected DatagramSocket socket;
     protected InetAddress hostAddress = null;
     protected int hostPort, localPort;
     protected UDPReceiver receiver;
     protected boolean listening = false;
     protected boolean fixedHost, connect;
-    protected final List<ReceiveRequest> receiveRequests = new ArrayList<ReceiveRequest>();
+    protected final ReceiveMailbox mailbox = new ReceiveMailbox();
+    protected volatile TransportMetrics transportMetrics = this.createTransportMetrics();
 
     protected static final int MAX_SIZE = 65450;
     protected static final String SEPARATOR = ":";
     protected static final String SLASH = "/";
     protected static final String CONNECT_MSG = "CON";
 
+    public static final int ETHERNET_FRAGMENT_SIZE = 1400;
+    protected static final byte FRAGMENT_MAGIC = (byte) 0xF5;
+    protected static final byte FRAGMENT_VERSION = 1;
+    protected static final int BINARY_HEADER_SIZE = 26;
+    protected static final int MAX_ASCII_HEADER_SIZE = 48;
+
+    protected int fragmentSize = MAX_SIZE;
+    protected FragmentHeader fragmentHeader = FragmentHeader.ASCII;
+    protected Message.Encoding messageEncoding = Message.Encoding.TEXT;
+    protected final BufferPool sendBuffers = new BufferPool(MAX_SIZE + MAX_ASCII_HEADER_SIZE);
+
     private Random random = new Random(System.currentTimeMillis());
     
     /**
@@ -83,6 +103,7 @@ public class UDPClient extends Publisher<MessageArrivedEvent> implements Messagi
             localPort = socket.getLocalPort();
             fixedHost = false;
             receiver = new UDPReceiver(this, socket);
+            receiver.setTransportMetrics(transportMetrics);
             receiver.start();
         }
         catch (SocketException se) {
@@ -102,6 +123,7 @@ public class UDPClient extends Publisher<MessageArrivedEvent> implements Messagi
             socket = new DatagramSocket(localPort);
             fixedHost = false;
             receiver = new UDPReceiver(this, socket);
+            receiver.setTransportMetrics(transportMetrics);
             receiver.start();
         }
         catch (SocketException se) {
@@ -133,6 +155,7 @@ public class UDPClient extends Publisher<MessageArrivedEvent> implements Messagi
             }
             connect = false;
             receiver = new UDPReceiver(this, socket);
+            receiver.setTransportMetrics(transportMetrics);
             receiver.start();
         }
         catch (SocketException se) {
@@ -165,6 +188,7 @@ public class UDPClient extends Publisher<MessageArrivedEvent> implements Messagi
             }
             connect = false;
             receiver = new UDPReceiver(this, socket);
+            receiver.setTransportMetrics(transportMetrics);
             receiver.start();
         }
         catch (SocketException se) {
@@ -201,6 +225,7 @@ public class UDPClient extends Publisher<MessageArrivedEvent> implements Messagi
                 connect = false;
             }
             receiver = new UDPReceiver(this, socket);
+            receiver.setTransportMetrics(transportMetrics);
             receiver.start();
         }
         catch (SocketException se) {
@@ -236,6 +261,7 @@ public class UDPClient extends Publisher<MessageArrivedEvent> implements Messagi
                 connect = false;
             }
             receiver = new UDPReceiver(this, socket);
+            receiver.setTransportMetrics(transportMetrics);
             receiver.start();
         }
         catch (SocketException se) {
@@ -272,6 +298,36 @@ public class UDPClient extends Publisher<MessageArrivedEvent> implements Messagi
         }
     }
     
+    /**
+     *Sets the largest number of message bytes carried by a single datagram (MAX_SIZE by default); larger messages are split 
+     *into fragments. Fragments that fit in the path MTU (e.g. ETHERNET_FRAGMENT_SIZE) avoid IP fragmentation, where losing any 
+     *IP fragment loses the whole datagram.
+     */
+    public void setFragmentSize(int bytes) {
+        if (bytes <= 0 || bytes > MAX_SIZE) {
+            throw new IllegalArgumentException("UDPClient: Fragment size must be between 1 and " + MAX_SIZE);
+        }
+        fragmentSize = bytes;
+    }
+
+    /**
+     *Sets the format of the fragment headers of sent messages: ASCII (the default) uses the id/index/total: header understood by 
+     *all versions of this class, while BINARY uses a fixed size binary header, which is cheaper to build and parse and allows the 
+     *receiver to preallocate the complete message; it is understood by receivers of version 6.19 and later. Receivers accept 
+     *both formats regardless of this setting.
+     */
+    public void setFragmentHeader(FragmentHeader myHeader) {
+        fragmentHeader = myHeader;
+    }
+
+    /**
+     *Sets the syntax in which messages given as Message objects are encoded (TEXT by default)
+     *@see programming5.net.Message.Encoding
+     */
+    public void setMessageEncoding(Message.Encoding myEncoding) {
+        messageEncoding = myEncoding;
+    }
+
     /**
      *Implementation of the MessagingClient interface
      *@param msg the message string to send to the host
@@ -279,16 +335,7 @@ public class UDPClient extends Publisher<MessageArrivedEvent> implements Messagi
     @Override
     public void send(String msg) throws NetworkException {
         if (fixedHost) {
-            byte[][] packets = packetize(msg.getBytes());
-            for (byte[] packet : packets) {
-                DatagramPacket p = new DatagramPacket(packet, packet.length, hostAddress, hostPort);
-                try {
-                    socket.send(p);
-                }
-                catch (IOException e) {
-                    throw new NetworkException("UDPClient: Could not send message: " + e.getMessage());
-                }
-            }
+            this.sendPackets(msg.getBytes(), hostAddress, hostPort);
         }
         else throw new NetworkException("UDPClient: Could not send message: No remote host specified");
     }
@@ -321,16 +368,7 @@ public class UDPClient extends Publisher<MessageArrivedEvent> implements Messagi
         InetAddress dest = null;
         try {
             dest = InetAddress.getByName(address);
-            byte[][] packets = packetize(msg.getBytes());
-            for (byte[] packet : packets) {
-                DatagramPacket p = new DatagramPacket(packet, packet.length, dest, port);
-                try {
-                    socket.send(p);
-                }
-                catch (IOException e) {
-                    throw new NetworkException("UDPClient: Could not send message: " + e.getMessage());
-                }
-            }
+            this.sendPackets(msg.getBytes(), dest, port);
         } 
         catch (UnknownHostException e) {
             throw new NetworkException("UDPClient: Cannot send message: Unknown host");
@@ -344,16 +382,7 @@ public class UDPClient extends Publisher<MessageArrivedEvent> implements Messagi
     @Override
     public void send(byte[] bytesMessage) throws NetworkException {
         if (fixedHost) {
-            byte[][] packets = packetize(bytesMessage);
-            for (byte[] packet : packets) {
-                DatagramPacket p = new DatagramPacket(packet, packet.length, hostAddress, hostPort);
-                try {
-                    socket.send(p);
-                }
-                catch (IOException e) {
-                    throw new NetworkException("UDPClient: Could not send message: " + e.getMessage());
-                }
-            }
+            this.sendPackets(bytesMessage, hostAddress, hostPort);
         }
         else throw new NetworkException("UDPClient: Could not send message: No remote host specified");
     }
@@ -386,18 +415,7 @@ public class UDPClient extends Publisher<MessageArrivedEvent> implements Messagi
         InetAddress dest = null;
         try {
             dest = InetAddress.getByName(address);
-            byte[][] packets = packetize(bytesMessage);
-            Debug.println("Sending " + packets.length + " UDP packets", "programming5.net.sockets.UDPClient");
-            for (byte[] packet : packets) {
-                DatagramPacket p = new DatagramPacket(packet, packet.length, dest, port);
-                Debug.println("UDP packet length: " + Integer.toString(packet.length), "programming5.net.sockets.UDPClient");
-                try {
-                    socket.send(p);
-                }
-                catch (IOException e) {
-                    throw new NetworkException("UDPClient: Could not send message: " + e.getMessage());
-                }
-            }
+            this.sendPackets(bytesMessage, dest, port);
         } 
         catch (UnknownHostException e) {
             throw new NetworkException("UDPClient: Cannot send message: Unknown host");
@@ -436,22 +454,51 @@ public class UDPClient extends Publisher<MessageArrivedEvent> implements Messagi
         }
     }
     
+    /**
+     *Sends the given message to the given uri. Messages that fit in a single datagram are encoded directly into a pooled 
+     *datagram buffer, after the fragment header, without building the encoded message first. (Particular to the UDPClient)
+     *@param message the message to send, encoded with the syntax given to setMessageEncoding
+     *@param uri the destination uri, which must be in the format [protocol:]//host:port[/...]
+     */
+    public void send(Message message, String uri) throws NetworkException {
+        try {
+            URI urlObj = new URI(uri);
+            this.sendMessage(message, InetAddress.getByName(urlObj.getHost()), urlObj.getPort());
+        }
+        catch (URISyntaxException use) {
+            throw new NetworkException("UDPClient: Cannot send message: " + use.getMessage());
+        }
+        catch (UnknownHostException e) {
+            throw new NetworkException("UDPClient: Cannot send message: Unknown host");
+        }
+    }
+
+    /**
+     * Allows a client to send the message to the host from which the given message was received.
+     * This method is particular to UDPClient (not a MessagingClient method)
+     * @param event the event containing the origin of the message, to which the reply will be
+     * sent
+     * @param msg the message to send to the host
+     * @see #send(Message, String)
+     */
+    public void replyTo(MessageArrivedEvent event, Message msg) throws NetworkException {
+        if (event instanceof AsynchMessageArrivedEvent) {
+            String destAddress = ((AsynchMessageArrivedEvent) event).getSourceURL();
+            if (destAddress != null) {
+                send(msg, destAddress);
+            }
+            else throw new NetworkException("UDPClient: Cannot send reply: Return address not set");
+        }
+        else throw new NetworkException("UDPClient: Cannot send reply: Arrived event does not contain return address");
+    }
+    
     /**
      *Implementation of the MessagingClient interface. Blocking receive until message arrives.
      *@return the message bytes
      */
     @Override
     public byte[] receiveBytes() {
-        byte[] ret = null;
-        ReceiveRequest myRequest = new ReceiveRequest();
-        synchronized (receiveRequests) {
-            receiveRequests.add(myRequest);
-        }
-        myRequest.awaitUninterruptibly();
-        if (myRequest.isDone()) {
-            ret = myRequest.getMessage();
-        }
-        return ret;
+        return mailbox.receive();
     }
     
     /**
@@ -470,26 +517,47 @@ public class UDPClient extends Publisher<MessageArrivedEvent> implements Messagi
      */
     @Override
     public byte[] receiveBytes(long timeout) throws InterruptedException {
-        byte[] ret = null;
-        ReceiveRequest myRequest = new ReceiveRequest();
-        synchronized (receiveRequests) {
-            receiveRequests.add(myRequest);
-        }
-        myRequest.await(timeout, TimeUnit.MILLISECONDS);
-        if (myRequest.isDone()) {
-            ret = myRequest.getMessage();
-        }
-        return ret;
+        return mailbox.receive(timeout);
     }
     
     /**
      *Implementation of the MessagingClient interface. Waits for an incoming message for limited time.
      *@param timeout wait time in milliseconds
-     *@return the message string
+     *@return the message string, or null if no message arrived before the timeout
      */
     @Override
     public String receive(long timeout) throws InterruptedException {
-        return new String(this.receiveBytes(timeout));
+        byte[] ret = this.receiveBytes(timeout);
+        return (ret != null) ? new String(ret) : null;
+    }
+    
+    /**
+     *Implementation of the MessagingClient interface. Waits for a message for limited time, and then returns up to the given
+     *number of messages that have arrived, without waiting further.
+     *@param max the maximum number of messages returned
+     *@param timeout wait time in milliseconds
+     *@return the message bytes, oldest first; the list is empty if no message arrives before the timeout
+     */
+    @Override
+    public List<byte[]> receiveBatch(int max, long timeout) throws InterruptedException {
+        return mailbox.receiveBatch(max, timeout);
+    }
+    
+    /**
+     *Sets the capacity of the mailbox that holds arrived messages for the receive methods, and what to do with messages that 
+     *arrive when it is full (by default, it holds 1024 messages and drops the oldest ones). Messages are held once a receive 
+     *method or this method has been called; this method should be called before any thread waits on the receive methods.
+     */
+    public void setReceiveMailbox(int capacity, Mailbox.OverflowPolicy policy) {
+        mailbox.configure(capacity, policy);
+    }
+    
+    /**
+     *@return the number of messages dropped because the receive mailbox was full (with the DROP_OLDEST and DROP_NEWEST 
+     *policies), since the mailbox was last configured
+     */
+    public long getDroppedCount() {
+        return mailbox.getDroppedCount();
     }
     
     /**
@@ -508,21 +576,41 @@ public class UDPClient extends Publisher<MessageArrivedEvent> implements Messagi
     @Override
     public void fireEvent(MessageArrivedEvent event) {
         if (event != null) {
+            TransportMetrics metrics = transportMetrics;
+            String source = (event instanceof AsynchMessageArrivedEvent) ? ((AsynchMessageArrivedEvent) event).getSourceURL() : null;
+            metrics.recordReceived(source, event.getContentBytes().length);
+            long arrival = System.nanoTime();
+            Iterator<Subscriber<MessageArrivedEvent>> snapshot = listeners.iterator();
+            boolean hold = !snapshot.hasNext();
             if (!connect) {
-                super.fireEvent(event);
+                this.dispatchEvent(snapshot, event);
             }
             else {
                 connect = false;
             }
-            synchronized (receiveRequests) {
-                for (ReceiveRequest request : receiveRequests) {
-                    request.setMessage(event.getContentBytes());
-                }
-                receiveRequests.clear();
-            }
+            mailbox.deliver(event.getContentBytes(), hold);
+            metrics.recordReceiveToDispatch((System.nanoTime() - arrival) / 1000);
         }
     }
     
+    /**
+     *@return the metrics of the messages sent and received by the client. Messages sent to an address and port are only 
+     *counted in the aggregate; messages received are also counted for the url from which they were sent.
+     */
+    public TransportMetrics getTransportMetrics() {
+        return transportMetrics;
+    }
+
+    /**
+     *Sets the metrics in which the messages sent and received after this call are recorded, which can be shared by many clients. 
+     *The gauges of the client (messages held for the receive methods, messages being reassembled) are only available in the 
+     *client's own metrics.
+     */
+    public void setTransportMetrics(TransportMetrics metrics) {
+        transportMetrics = metrics;
+        receiver.setTransportMetrics(metrics);
+    }
+
     /**
      *@return the local host address
      */
@@ -562,21 +650,108 @@ public class UDPClient extends Publisher<MessageArrivedEvent> implements Messagi
         socket.send(packet);
     }
     
+    private void sendPackets(byte[] bytesMessage, InetAddress dest, int port) throws NetworkException {
+        transportMetrics.recordSent(null, bytesMessage.length);
+        try {
+            if (fragmentHeader == FragmentHeader.BINARY) {
+                this.sendFragments(bytesMessage, dest, port);
+            }
+            else {
+                byte[][] packets = packetize(bytesMessage);
+                Debug.println("Sending " + packets.length + " UDP packets", "programming5.net.sockets.UDPClient");
+                for (byte[] packet : packets) {
+                    socket.send(new DatagramPacket(packet, packet.length, dest, port));
+                }
+            }
+        }
+        catch (IOException e) {
+            throw new NetworkException("UDPClient: Could not send message: " + e.getMessage());
+        }
+    }
+
+    private void sendMessage(Message message, InetAddress dest, int port) throws NetworkException {
+        int msgSize = message.encodedSize(messageEncoding);
+        if (msgSize >= fragmentSize) {
+            this.sendPackets(message.getMessageBytes(messageEncoding), dest, port);
+            return;
+        }
+        transportMetrics.recordSent(null, msgSize);
+        byte[] packet = sendBuffers.acquire();
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(packet);
+            if (fragmentHeader == FragmentHeader.BINARY) {
+                buffer.put(FRAGMENT_MAGIC).put(FRAGMENT_VERSION).putLong(random.nextLong()).putInt(1).putInt(1).putInt(0).putInt(msgSize);
+            }
+            else {
+                buffer.put((Long.toString(random.nextLong()) + SLASH + "1" + SLASH + "1" + SEPARATOR).getBytes());
+            }
+            message.writeTo(buffer, messageEncoding);
+            socket.send(new DatagramPacket(packet, buffer.position(), dest, port));
+        }
+        catch (IOException e) {
+            throw new NetworkException("UDPClient: Could not send message: " + e.getMessage());
+        }
+        finally {
+            sendBuffers.release(packet);
+        }
+    }
+
+    /**
+     *Sends the message in fragments with binary headers, reusing a single datagram buffer for all of them
+     */
+    private void sendFragments(byte[] bytesMsg, InetAddress dest, int port) throws IOException {
+        int msgSize = bytesMsg.length;
+        int total = Math.max(1, (msgSize + fragmentSize - 1) / fragmentSize);
+        long messageID = random.nextLong();
+        byte[] packet = new byte[BINARY_HEADER_SIZE + Math.min(fragmentSize, msgSize)];
+        ByteBuffer header = ByteBuffer.wrap(packet);
+        DatagramPacket p = new DatagramPacket(packet, packet.length, dest, port);
+        for (int i = 0; i < total; i++) {
+            int offset = i * fragmentSize;
+            int length = Math.min(fragmentSize, msgSize - offset);
+            header.clear();
+            header.put(FRAGMENT_MAGIC).put(FRAGMENT_VERSION).putLong(messageID).putInt(i+1).putInt(total).putInt(offset).putInt(msgSize);
+            System.arraycopy(bytesMsg, offset, packet, BINARY_HEADER_SIZE, length);
+            p.setData(packet, 0, BINARY_HEADER_SIZE + length);
+            socket.send(p);
+        }
+    }
+    
+    /**
+     *@return the client's own metrics, with its gauges
+     */
+    private TransportMetrics createTransportMetrics() {
+        TransportMetrics ret = new TransportMetrics();
+        ret.addGauge("heldMessages", new TransportMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mailbox.size();
+            }
+        });
+        ret.addGauge("reassemblingMessages", new TransportMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return (receiver != null) ? receiver.getPendingMessageCount() : 0;
+            }
+        });
+        return ret;
+    }
+    
     private byte[][] packetize(byte[] bytesMsg) {
         int msgSize = bytesMsg.length;
-        int numPackets = (int) (msgSize / MAX_SIZE) + 1;
+        int numPackets = (int) (msgSize / fragmentSize) + 1;
         String npString = Integer.toString(numPackets);
         String messageID = Long.toString(random.nextLong());
         byte[][] ret = new byte[numPackets][];
         for (int i = 0; i < numPackets - 1; i++) {
             String index = Integer.toString(i+1);
             byte[] header = (messageID + SLASH + index + SLASH + npString + SEPARATOR).getBytes();
-            byte[] packet = ArrayOperations.subArray(bytesMsg, i*MAX_SIZE, (i+1)*MAX_SIZE);
+            byte[] packet = ArrayOperations.subArray(bytesMsg, i*fragmentSize, (i+1)*fragmentSize);
             ret[i] = ArrayOperations.join(header, packet);
             Debug.println(new String(ret[i]), "programming5.net.sockets.UDPClient#packetize");
         }
         byte[] header = (messageID + SLASH + npString + SLASH + npString + SEPARATOR).getBytes();
-        byte[] packet = ArrayOperations.suffix(bytesMsg, (numPackets-1)*MAX_SIZE);
+        byte[] packet = ArrayOperations.suffix(bytesMsg, (numPackets-1)*fragmentSize);
         ret[numPackets-1] = ArrayOperations.join(header, packet);
         Debug.println(new String(ret[numPackets-1]), "programming5.net.sockets.UDPClient#packetize");
         return ret;
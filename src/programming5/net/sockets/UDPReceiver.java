@@ -21,8 +21,6 @@
 
 package programming5.net.sockets;
 
-import programming5.arrays.ArrayOperations;
-import programming5.collections.NotFoundException;
 import programming5.io.Debug;
 import programming5.net.AsynchMessageArrivedEvent;
 import programming5.net.MessageArrivedEvent;
@@ -35,12 +33,18 @@ import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 /**
- *This class complements the UDPClient class as a constant listener to the socket
+ *This class complements the UDPClient class as a constant listener to the socket. Datagrams are received into buffers taken from 
+ *a buffer pool, and the fragments of multi-packet messages are copied straight into their place in a single preallocated array. 
+ *Partially received messages are kept in a reassembly table bounded both in size and in time: when a fragment is lost, the 
+ *incomplete message is evicted once it expires or once the table is full, and counted as a drop. Both the ASCII fragment 
+ *headers and the binary fragment headers produced by UDPClient are accepted.
  *@see programming5.net.sockets.UDPClient
  *@author Andres Quiroz Hernandez
  *@version 6.19
@@ -53,10 +57,22 @@ public class UDPReceiver extends ReceivingThread {
     private final int PACKET_SIZE = 65536;
     private boolean listening = true;
 
-    private Map<String, byte[][]> assembly = new HashMap<String, byte[][]>();
-    private Map<String, boolean[]> assemblyCounter = new HashMap<String, boolean[]>();
+    private final BufferPool bufferPool = new BufferPool(PACKET_SIZE);
+    private byte[] buffer = bufferPool.acquire();
+    private final Map<String, Reassembly> assembly = new LinkedHashMap<String, Reassembly>();
+    private int maxPendingMessages = DEF_MAX_PENDING_MESSAGES;
+    private long reassemblyTimeout = DEF_REASSEMBLY_TIMEOUT;
+    private int maxMessageSize = DEF_MAX_MESSAGE_SIZE;
+    private long dropCount = 0;
+    private volatile TransportMetrics transportMetrics = null;
     
     public static final int NO_PORT = -1;
+    public static final int DEF_MAX_PENDING_MESSAGES = 256;
+    public static final long DEF_REASSEMBLY_TIMEOUT = 5000;
+    public static final int DEF_MAX_MESSAGE_SIZE = 64 * 1024 * 1024;
+    private static final int MAX_HEADER_SIZE = 64;
+    private static final byte SEPARATOR = (byte) UDPClient.SEPARATOR.charAt(0);
+    private static final byte SLASH = (byte) UDPClient.SLASH.charAt(0);
     
     public UDPReceiver(Publisher<MessageArrivedEvent> myReference, DatagramSocket mySocket) {
         super(myReference);
@@ -65,25 +81,17 @@ public class UDPReceiver extends ReceivingThread {
     
     @Override
     public void run() {
-        byte[] buf = new byte[PACKET_SIZE];
-        byte[] bytesMessage;
-        DatagramPacket p = null;
+        DatagramPacket p = new DatagramPacket(buffer, buffer.length);
         while (listening) {
-            p = new DatagramPacket(buf, buf.length);
-            bytesMessage = null;
             try {
+                p.setData(buffer);
                 socket.receive(p);
-                String streamID = depacketize(p);
-                if (streamID != null) {    // Message is completely received (all packets)
+                byte[] bytesMessage = depacketize(p);
+                if (bytesMessage != null) {    // Message is completely received (all packets)
                     lastAddress = p.getAddress();
                     lastPort = p.getPort();
-                    Debug.println("Received streamID: " + streamID, "programming5.net.sockets.UDPClient");
-                    byte[][] toAssemble = assembly.get(streamID);
-                    assembly.remove(streamID);
-                    bytesMessage = assemble(toAssemble);
                     ref.fireEvent(new AsynchMessageArrivedEvent(bytesMessage, "//" + lastAddress.getHostAddress() + ":" + Integer.toString(lastPort)));
                 }
-                buf = new byte[PACKET_SIZE];
             }
             catch (IOException io) {
                 if (listening) {
@@ -94,6 +102,50 @@ public class UDPReceiver extends ReceivingThread {
         }
     }
 
+    /**
+     *Sets the maximum number of partially received messages that are kept at once; when a new message starts with the table 
+     *full, the oldest partial message is dropped
+     */
+    public synchronized void setMaxPendingMessages(int max) {
+        maxPendingMessages = max;
+    }
+
+    /**
+     *Sets the time (in milliseconds) after which a partially received message is dropped
+     */
+    public synchronized void setReassemblyTimeout(long millis) {
+        reassemblyTimeout = millis;
+    }
+
+    /**
+     *Sets the size of the largest multi-packet message that will be reassembled; fragments of larger messages are dropped
+     */
+    public synchronized void setMaxMessageSize(int bytes) {
+        maxMessageSize = bytes;
+    }
+
+    /**
+     *@return the number of partially received messages dropped because they expired or the reassembly table was full, or 
+     *because their fragments were inconsistent
+     */
+    public synchronized long getDropCount() {
+        return dropCount;
+    }
+
+    /**
+     *@return the number of messages currently being reassembled
+     */
+    public synchronized int getPendingMessageCount() {
+        return assembly.size();
+    }
+
+    /**
+     *Sets the metrics in which the partially received messages evicted from the reassembly table are counted
+     */
+    public void setTransportMetrics(TransportMetrics metrics) {
+        transportMetrics = metrics;
+    }
+
     /**
      * @return the last address from which a message was received
      */
@@ -127,67 +179,310 @@ public class UDPReceiver extends ReceivingThread {
         listening = false;
     }
 
-    private String depacketize(DatagramPacket packet) {
+    /**
+     *@return the complete message to which the packet belongs, if this packet completes it, or null otherwise
+     */
+    private synchronized byte[] depacketize(DatagramPacket packet) {
         int packetSize = packet.getLength();
-        byte[] bytesMessage;
-        String ret = null;
+        byte[] ret = null;
         if (packetSize > 0) {
-            InetAddress host = packet.getAddress();
-            bytesMessage = packet.getData();
-            bytesMessage = ArrayOperations.prefix(bytesMessage, packetSize);
-            int separatorIndex;
-            try {
-                separatorIndex = ArrayOperations.findInSequence(UDPClient.SEPARATOR.getBytes()[0], bytesMessage);
-            }
-            catch (NotFoundException nfe) {
-                separatorIndex = -1;
-            }
-            if (separatorIndex > 0) {
-                String sequenceString = new String(ArrayOperations.subArray(bytesMessage, 0, separatorIndex));
-                String[] numbers = sequenceString.split("/");
-                String streamID = host.getHostAddress() + "/" + numbers[0];
-                byte[][] parts = assembly.get(streamID);
-                if (parts == null) {
-                    int total = Integer.parseInt(numbers[2]);
-                    parts = new byte[total][];
-                    assembly.put(streamID, parts);
-                    boolean[] counter = new boolean[total];
-                    Arrays.fill(counter, false);
-                    assemblyCounter.put(streamID, counter);
+            long now = System.currentTimeMillis();
+            this.evictExpired(now);
+            if (isBinaryFragment(buffer, packetSize)) {
+                return this.addBinaryFragment(packet, now);
+            }
+            int headerEnd = -1;
+            long[] header = null;
+            int scanLimit = Math.min(packetSize, MAX_HEADER_SIZE);
+            for (int i = 0; i < scanLimit && headerEnd < 0; i++) {
+                if (buffer[i] == SEPARATOR) {
+                    headerEnd = i;
                 }
-                int index = Integer.parseInt(numbers[1]);
-                parts[index-1] = ArrayOperations.suffix(bytesMessage, separatorIndex+1);
-                boolean[] progress = assemblyCounter.get(streamID);
-                progress[index-1] = true;
-                if (ArrayOperations.tautology(progress)) {
-                    ret = streamID;
-                    assemblyCounter.remove(streamID);
+            }
+            if (headerEnd > 0) {
+                header = parseHeader(buffer, headerEnd);
+            }
+            if (header != null) {
+                String streamID = packet.getAddress().getHostAddress() + "/" + header[0];
+                int index = (int) header[1];
+                int total = (int) header[2];
+                int offset = headerEnd + 1;
+                int length = packetSize - offset;
+                if (total == 1) {
+                    ret = Arrays.copyOfRange(buffer, offset, packetSize);
+                }
+                else if (total > maxMessageSize) {
+                    // Every fragment but the last carries at least one byte, so the header is rejected before allocating for it
+                    dropCount++;
+                    Debug.println("UDPReceiver: Fragment count " + total + " exceeds message size limit; dropping fragment of " + streamID, "programming5.net.sockets.UDPReceiver");
+                }
+                else {
+                    Reassembly parts = assembly.get(streamID);
+                    if (parts == null) {
+                        if (assembly.size() >= maxPendingMessages && !assembly.isEmpty()) {
+                            this.evictEldest();
+                        }
+                        parts = new Reassembly(total, now);
+                        assembly.put(streamID, parts);
+                    }
+                    if (parts.total != total) {
+                        this.drop(streamID, "Inconsistent fragment count");
+                    }
+                    else if (!parts.received[index-1]) {
+                        if (!parts.add(index, buffer, offset, length, maxMessageSize)) {
+                            this.drop(streamID, "Inconsistent fragment size");
+                        }
+                        else {
+                            if (parts.pendingLast == buffer) {
+                                buffer = bufferPool.acquire();
+                            }
+                            if (parts.data != null && parts.pendingLast != null) {
+                                bufferPool.release(parts.pendingLast);
+                                parts.pendingLast = null;
+                            }
+                            if (parts.isComplete()) {
+                                assembly.remove(streamID);
+                                ret = parts.assemble();
+                            }
+                        }
+                    }
                 }
             }
             else {
-                int start = (separatorIndex == 0) ? 1 : 0;
-                byte[][] parts = new byte[1][];
-                parts[0] = ArrayOperations.suffix(bytesMessage, start);
-                ret = host.getHostAddress();
-                assembly.put(ret, parts);
+                int start = (headerEnd == 0) ? 1 : 0;
+                ret = Arrays.copyOfRange(buffer, start, packetSize);
             }
         }
         return ret;
     }
 
-    private byte[] assemble(byte[][] parts) {
-        int size = 0;
-        for (byte[] part : parts) {
-            size += part.length;
+    /**
+     *Handles a fragment with a binary header, which gives the fragment's offset and the size of the complete message, so that the 
+     *message array is allocated with its final size when the first fragment arrives
+     *@return the complete message, if this fragment completes it, or null otherwise
+     */
+    private byte[] addBinaryFragment(DatagramPacket packet, long now) {
+        int packetSize = packet.getLength();
+        ByteBuffer header = ByteBuffer.wrap(buffer, 0, UDPClient.BINARY_HEADER_SIZE);
+        header.position(2);
+        long id = header.getLong();
+        int index = header.getInt();
+        int total = header.getInt();
+        int position = header.getInt();
+        int messageLength = header.getInt();
+        int offset = UDPClient.BINARY_HEADER_SIZE;
+        int length = packetSize - offset;
+        byte[] ret = null;
+        if (total == 1) {
+            ret = Arrays.copyOfRange(buffer, offset, packetSize);
         }
-        byte[] ret = new byte[size];
-        int place = 0;
-        for (int i = 0; i < parts.length; i++) {
-            for (int j = 0; j < parts[i].length; j++) {
-                ret[place++] = parts[i][j];
+        else {
+            String streamID = packet.getAddress().getHostAddress() + "#" + id;
+            Reassembly parts = assembly.get(streamID);
+            if (parts == null) {
+                if (messageLength > maxMessageSize) {
+                    dropCount++;
+                    Debug.println("UDPReceiver: Message too large; dropping message " + streamID, "programming5.net.sockets.UDPReceiver");
+                    return null;
+                }
+                if (assembly.size() >= maxPendingMessages && !assembly.isEmpty()) {
+                    this.evictEldest();
+                }
+                parts = new Reassembly(total, messageLength, now);
+                assembly.put(streamID, parts);
+            }
+            if (parts.total != total || parts.data.length != messageLength) {
+                this.drop(streamID, "Inconsistent fragment header");
+            }
+            else if (!parts.received[index-1]) {
+                parts.addAt(index, buffer, offset, length, position);
+                if (parts.isComplete()) {
+                    assembly.remove(streamID);
+                    ret = parts.data;
+                }
             }
         }
         return ret;
     }
 
+    /**
+     *@return true if the packet starts with a well formed binary fragment header, in which the fragment count is consistent with 
+     *the message size (each fragment carries at least one byte), so that it can be trusted once the size has been checked
+     */
+    private static boolean isBinaryFragment(byte[] bytes, int packetSize) {
+        if (packetSize < UDPClient.BINARY_HEADER_SIZE || bytes[0] != UDPClient.FRAGMENT_MAGIC || bytes[1] != UDPClient.FRAGMENT_VERSION) {
+            return false;
+        }
+        ByteBuffer header = ByteBuffer.wrap(bytes, 0, UDPClient.BINARY_HEADER_SIZE);
+        int index = header.getInt(10);
+        int total = header.getInt(14);
+        int position = header.getInt(18);
+        int messageLength = header.getInt(22);
+        int length = packetSize - UDPClient.BINARY_HEADER_SIZE;
+        return total >= 1 && total <= Math.max(1, messageLength) && index >= 1 && index <= total && position >= 0 && messageLength >= 0 
+                && (long) position + length <= messageLength && (total > 1 || length == messageLength);
+    }
+
+    /**
+     *Parses a fragment header of the form id/index/total
+     *@return the three header numbers, or null if the bytes are not a valid header
+     */
+    private static long[] parseHeader(byte[] bytes, int end) {
+        long[] ret = new long[3];
+        int field = 0;
+        boolean negative = false;
+        boolean digits = false;
+        for (int i = 0; i < end; i++) {
+            byte b = bytes[i];
+            if (b >= '0' && b <= '9') {
+                ret[field] = 10 * ret[field] + (b - '0');
+                digits = true;
+            }
+            else if (b == '-' && field == 0 && i == 0) {
+                negative = true;
+            }
+            else if (b == SLASH && digits && field < 2) {
+                field++;
+                digits = false;
+            }
+            else {
+                return null;
+            }
+        }
+        if (field != 2 || !digits || ret[2] < 1 || ret[2] > Integer.MAX_VALUE || ret[1] < 1 || ret[1] > ret[2]) {
+            return null;
+        }
+        if (negative) {
+            ret[0] = -ret[0];
+        }
+        return ret;
+    }
+
+    private void evictExpired(long now) {
+        Iterator<Map.Entry<String, Reassembly>> entries = assembly.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, Reassembly> entry = entries.next();
+            if (now - entry.getValue().created < reassemblyTimeout) {
+                break;
+            }
+            entries.remove();
+            this.discard(entry.getKey(), entry.getValue(), "Reassembly timed out");
+            this.recordEviction();
+        }
+    }
+
+    private void evictEldest() {
+        Iterator<Map.Entry<String, Reassembly>> entries = assembly.entrySet().iterator();
+        Map.Entry<String, Reassembly> eldest = entries.next();
+        entries.remove();
+        this.discard(eldest.getKey(), eldest.getValue(), "Reassembly table full");
+        this.recordEviction();
+    }
+
+    private void recordEviction() {
+        TransportMetrics metrics = transportMetrics;
+        if (metrics != null) {
+            metrics.recordReassemblyEviction();
+        }
+    }
+
+    private void drop(String streamID, String reason) {
+        this.discard(streamID, assembly.remove(streamID), reason);
+    }
+
+    private void discard(String streamID, Reassembly parts, String reason) {
+        dropCount++;
+        bufferPool.release(parts.pendingLast);
+        Debug.println("UDPReceiver: " + reason + "; dropping message " + streamID, "programming5.net.sockets.UDPReceiver");
+    }
+
+    /**
+     *State of a message being reassembled. All fragments but the last have the same size, so each one is copied to its final 
+     *place in the message array as soon as that size is known; a last fragment that arrives before any other keeps the receive 
+     *buffer in which it arrived until then (the receiver replaces its buffer with one from the pool).
+     */
+    private static class Reassembly {
+
+        final int total;
+        final long created;
+        final boolean[] received;
+        int receivedCount = 0;
+        int fragmentSize = -1;
+        int lastLength = -1;
+        byte[] data = null;
+        byte[] pendingLast = null;
+        int pendingOffset;
+
+        Reassembly(int myTotal, long now) {
+            total = myTotal;
+            created = now;
+            received = new boolean[total];
+        }
+
+        /**
+         *Creates the reassembly of a message of known size
+         */
+        Reassembly(int myTotal, int messageLength, long now) {
+            this(myTotal, now);
+            data = new byte[messageLength];
+        }
+
+        /**
+         *Copies a fragment to the given position of a message of known size
+         */
+        void addAt(int index, byte[] bytes, int offset, int length, int position) {
+            System.arraycopy(bytes, offset, data, position, length);
+            received[index - 1] = true;
+            receivedCount++;
+        }
+
+        /**
+         *@return false if the fragment is inconsistent with the others received, or makes the message larger than the given size
+         */
+        boolean add(int index, byte[] bytes, int offset, int length, int maxMessageSize) {
+            if (index < total) {
+                if (fragmentSize < 0) {
+                    if (lastLength > length || (long) total * length > maxMessageSize) {
+                        return false;
+                    }
+                    fragmentSize = length;
+                    data = new byte[total * fragmentSize];
+                    if (pendingLast != null) {
+                        System.arraycopy(pendingLast, pendingOffset, data, (total - 1) * fragmentSize, lastLength);
+                    }
+                }
+                else if (length != fragmentSize) {
+                    return false;
+                }
+                System.arraycopy(bytes, offset, data, (index - 1) * fragmentSize, length);
+            }
+            else {
+                lastLength = length;
+                if (data != null) {
+                    if (length > fragmentSize) {
+                        return false;
+                    }
+                    System.arraycopy(bytes, offset, data, (index - 1) * fragmentSize, length);
+                }
+                else {
+                    pendingLast = bytes;
+                    pendingOffset = offset;
+                }
+            }
+            received[index - 1] = true;
+            receivedCount++;
+            return true;
+        }
+
+        boolean isComplete() {
+            return receivedCount == total;
+        }
+
+        byte[] assemble() {
+            int size = (total - 1) * fragmentSize + lastLength;
+            return (size == data.length) ? data : Arrays.copyOf(data, size);
+        }
+
+    }
+
 }
@@ -32,11 +32,12 @@ import programming5.net.ServiceObjectFactory;
  *@see programming5.net.ServerDaemon
  *@see programming5.net.ServiceObjectFactory
  *@author Andres Quiroz Hernandez
- *@version 6.0
+ *@version 6.19
  */
 public class UDPServerDaemon extends ServerDaemon {
     
     protected UDPClient accepter;
+    protected final TransportMetrics transportMetrics = new TransportMetrics();
     private boolean listening = true;
     private boolean reliable = false;
     private static final int DEFPORT = 4445;
@@ -91,11 +92,13 @@ public class UDPServerDaemon extends ServerDaemon {
                 int clientPort = 0;
                 if (!reliable) {
                     c = new UDPClient(accepter.getHostAddress(), accepter.getHostPort());
+                    ((UDPClient)c).setTransportMetrics(transportMetrics);
                     c.establishConnection();
                     clientPort = ((UDPClient)c).getLocalPort();
                 } 
                 else {
                     c = new ReliableUDPClient(accepter.getHostAddress(), accepter.getHostPort());
+                    ((ReliableUDPClient)c).setTransportMetrics(transportMetrics);
                     c.establishConnection();
                     clientPort = ((ReliableUDPClient)c).getLocalPort();
                 }
@@ -108,6 +111,13 @@ public class UDPServerDaemon extends ServerDaemon {
         }
     }
     
+    /**
+     *@return the metrics of the messages sent and received by the clients created for new connections
+     */
+    public TransportMetrics getTransportMetrics() {
+        return transportMetrics;
+    }
+    
     public void end() {
         listening = false;
         accepter.endConnection();
@@ -0,0 +1,73 @@
+package programming5.collections;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BoundedLongPairSetTest {
+
+    @Test
+    public void testAddAndEvict() {
+        BoundedLongPairSet set = new BoundedLongPairSet(3);
+        assertTrue(set.add(1, 10));
+        assertTrue(set.add(1, 11));
+        assertTrue(set.add(2, 10));
+        assertFalse(set.add(1, 10));
+        assertEquals(3, set.size());
+        assertTrue(set.add(2, 11));
+        assertFalse(set.contains(1, 10));
+        assertTrue(set.contains(1, 11));
+        assertTrue(set.contains(2, 10));
+        assertTrue(set.contains(2, 11));
+        assertEquals(3, set.size());
+    }
+
+    @Test
+    public void testMatchesReferenceSet() {
+        int capacity = 100;
+        BoundedLongPairSet set = new BoundedLongPairSet(capacity);
+        long[][] recent = new long[capacity][];
+        Set<String> reference = new HashSet<String>();
+        Random random = new Random(5);
+        int next = 0;
+        for (int i = 0; i < 20000; i++) {
+            long first = random.nextInt(4);
+            long second = random.nextInt(300);
+            String key = first + "/" + second;
+            assertEquals(!reference.contains(key), set.add(first, second));
+            if (!reference.contains(key)) {
+                if (recent[next] != null) {
+                    reference.remove(recent[next][0] + "/" + recent[next][1]);
+                }
+                recent[next] = new long[] {first, second};
+                next = (next + 1) % capacity;
+                reference.add(key);
+            }
+        }
+        assertEquals(capacity, set.size());
+        for (long[] pair : recent) {
+            assertTrue(set.contains(pair[0], pair[1]));
+        }
+    }
+
+    @Test
+    public void testSetCapacity() {
+        BoundedLongPairSet set = new BoundedLongPairSet(10);
+        for (int i = 0; i < 10; i++) {
+            set.add(0, i);
+        }
+        set.setCapacity(4);
+        assertEquals(4, set.size());
+        assertFalse(set.contains(0, 5));
+        assertTrue(set.contains(0, 6));
+        assertTrue(set.contains(0, 9));
+        set.add(0, 10);
+        assertFalse(set.contains(0, 6));
+    }
+
+}
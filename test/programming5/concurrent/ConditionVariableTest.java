@@ -0,0 +1,133 @@
+package programming5.concurrent;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ConditionVariableTest {
+
+    private static Thread startWaiter(final ConditionVariable variable, final AtomicInteger woken, final CountDownLatch started) {
+        Thread waiter = new Thread() {
+            public void run() {
+                started.countDown();
+                variable.awaitUninterruptibly();
+                woken.incrementAndGet();
+            }
+        };
+        waiter.start();
+        return waiter;
+    }
+
+    private static void awaitWaiting(Thread thread) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (thread.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void testSignalWakesOneWaiter() throws Exception {
+        ConditionVariable variable = new ConditionVariable();
+        AtomicInteger woken = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(3);
+        Thread[] waiters = new Thread[3];
+        for (int i = 0; i < 3; i++) {
+            waiters[i] = startWaiter(variable, woken, started);
+            awaitWaiting(waiters[i]);
+        }
+        variable.signal();
+        waiters[0].join(5000);
+        assertFalse(waiters[0].isAlive());
+        Thread.sleep(50);
+        assertEquals(1, woken.get());
+        assertTrue(variable.isTrue());
+        variable.signalAll();
+        waiters[1].join(5000);
+        waiters[2].join(5000);
+        assertEquals(3, woken.get());
+    }
+
+    @Test
+    public void testTimedWait() throws Exception {
+        ConditionVariable variable = new ConditionVariable();
+        assertFalse(variable.await(50, TimeUnit.MILLISECONDS));
+        assertTrue(variable.getNanosWaited() >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertTrue(variable.getTimeWaited() >= 50);
+        assertTrue(variable.awaitNanos(TimeUnit.MILLISECONDS.toNanos(20)) <= 0);
+        variable.signal();
+        assertTrue(variable.await(1, TimeUnit.SECONDS));
+        assertEquals(0, variable.getNanosWaited());
+        variable.reset();
+        assertFalse(variable.isTrue());
+    }
+
+    @Test
+    public void testInterrupt() throws Exception {
+        final ConditionVariable variable = new ConditionVariable();
+        final AtomicInteger outcome = new AtomicInteger();
+        Thread interruptible = new Thread() {
+            public void run() {
+                try {
+                    variable.await();
+                    outcome.set(1);
+                }
+                catch (InterruptedException ie) {
+                    outcome.set(2);
+                }
+            }
+        };
+        interruptible.start();
+        awaitWaiting(interruptible);
+        interruptible.interrupt();
+        interruptible.join(5000);
+        assertEquals(2, outcome.get());
+
+        Thread uninterruptible = new Thread() {
+            public void run() {
+                variable.awaitUninterruptibly();
+                outcome.set(Thread.currentThread().isInterrupted() ? 3 : 4);
+            }
+        };
+        uninterruptible.start();
+        awaitWaiting(uninterruptible);
+        uninterruptible.interrupt();
+        Thread.sleep(50);
+        assertTrue(uninterruptible.isAlive());
+        variable.signal();
+        uninterruptible.join(5000);
+        assertEquals(3, outcome.get());
+    }
+
+    @Test
+    public void testHandoffWithoutLostWakeups() throws Exception {
+        final ConditionVariable ping = new ConditionVariable();
+        final ConditionVariable pong = new ConditionVariable();
+        final int rounds = 20000;
+        Thread echo = new Thread() {
+            public void run() {
+                for (int i = 0; i < rounds; i++) {
+                    ping.awaitUninterruptibly();
+                    ping.reset();
+                    pong.signal();
+                }
+            }
+        };
+        echo.start();
+        for (int i = 0; i < rounds; i++) {
+            ping.signal();
+            if (!pong.awaitUninterruptibly(5, TimeUnit.SECONDS)) {
+                fail("Wakeup lost in round " + i);
+            }
+            pong.reset();
+        }
+        echo.join(5000);
+        assertFalse(echo.isAlive());
+    }
+
+}
@@ -0,0 +1,108 @@
+package programming5.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MailboxTest {
+
+    @Test
+    public void testOrderAndCapacity() {
+        Mailbox<Integer> mailbox = new Mailbox<Integer>(3, Mailbox.OverflowPolicy.DROP_NEWEST);
+        assertEquals(4, mailbox.capacity());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(mailbox.put(i));
+        }
+        assertFalse(mailbox.put(4));
+        assertEquals(1, mailbox.getDroppedCount());
+        assertEquals(4, mailbox.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(Integer.valueOf(i), mailbox.poll());
+        }
+        assertNull(mailbox.poll());
+        assertEquals(0, mailbox.size());
+    }
+
+    @Test
+    public void testDropOldest() {
+        Mailbox<Integer> mailbox = new Mailbox<Integer>(2, Mailbox.OverflowPolicy.DROP_OLDEST);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(mailbox.put(i));
+        }
+        assertEquals(3, mailbox.getDroppedCount());
+        List<Integer> drained = new ArrayList<Integer>();
+        assertEquals(2, mailbox.drainTo(drained, 10));
+        assertEquals(Integer.valueOf(3), drained.get(0));
+        assertEquals(Integer.valueOf(4), drained.get(1));
+    }
+
+    @Test
+    public void testBlockingConsumer() throws InterruptedException {
+        final Mailbox<String> mailbox = new Mailbox<String>();
+        long start = System.currentTimeMillis();
+        assertNull(mailbox.poll(50, TimeUnit.MILLISECONDS));
+        assertTrue(System.currentTimeMillis() - start >= 45);
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                }
+                catch (InterruptedException ie) {
+                }
+                mailbox.put("a");
+                mailbox.put("b");
+            }
+        }.start();
+        assertEquals("a", mailbox.take());
+        List<String> batch = new ArrayList<String>();
+        assertTrue(mailbox.drainTo(batch, 10, 1, TimeUnit.SECONDS) >= 1);
+        assertEquals("b", batch.get(0));
+    }
+
+    @Test
+    public void testManyProducers() throws InterruptedException {
+        final Mailbox<Integer> mailbox = new Mailbox<Integer>(64, Mailbox.OverflowPolicy.BLOCK);
+        final int producers = 4;
+        final int perProducer = 10000;
+        final CountDownLatch done = new CountDownLatch(producers);
+        for (int p = 0; p < producers; p++) {
+            final int base = p * perProducer;
+            new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        mailbox.put(base + i);
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        int[] last = new int[producers];
+        for (int p = 0; p < producers; p++) {
+            last[p] = -1;
+        }
+        List<Integer> batch = new ArrayList<Integer>();
+        int received = 0;
+        while (received < producers * perProducer) {
+            batch.clear();
+            received += mailbox.drainTo(batch, 32, 5, TimeUnit.SECONDS);
+            for (int item : batch) {
+                int producer = item / perProducer;
+                assertTrue(item % perProducer > last[producer]);
+                last[producer] = item % perProducer;
+            }
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(0, mailbox.getDroppedCount());
+        assertNull(mailbox.poll());
+    }
+
+}
@@ -0,0 +1,204 @@
+package programming5.concurrent;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ThreadPoolTest {
+
+    private static void runAll(ThreadPool pool, int tasks) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(tasks);
+        for (int i = 0; i < tasks; i++) {
+            pool.execute(new Runnable() {
+                public void run() {
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testModes() throws Exception {
+        runAll(new ThreadPool("test-stealing"), 10000);
+        runAll(new ThreadPool("test-bounded", 2, ThreadPool.Mode.BOUNDED), 10000);
+        runAll(new ThreadPool("test-elastic", 4, 1, ThreadPool.Mode.ELASTIC, ThreadPool.RejectionPolicy.CALLER_RUNS), 10000);
+        try {
+            runAll(new ThreadPool("test-virtual", 1, ThreadPool.Mode.VIRTUAL), 1000);
+        }
+        catch (UnsupportedOperationException uoe) {
+            // Platform without virtual threads
+        }
+    }
+
+    @Test
+    public void testNamedDaemonThreads() throws Exception {
+        ThreadPool pool = new ThreadPool("test-named", 2, ThreadPool.Mode.BOUNDED);
+        Future<Thread> thread = pool.submit(new Callable<Thread>() {
+            public Thread call() {
+                return Thread.currentThread();
+            }
+        });
+        assertTrue(thread.get().getName().startsWith("test-named-"));
+        assertTrue(thread.get().isDaemon());
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(1, pool.getCompletedCount());
+    }
+
+    @Test
+    public void testRejectionPolicies() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        Runnable blocker = new Runnable() {
+            public void run() {
+                started.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException ie) {
+                }
+            }
+        };
+        ThreadPool pool = new ThreadPool("test-abort", 1, 2, ThreadPool.Mode.BOUNDED, ThreadPool.RejectionPolicy.ABORT);
+        pool.execute(blocker);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        pool.execute(blocker);
+        pool.execute(blocker);
+        assertEquals(1, pool.getActiveCount());
+        assertEquals(2, pool.getQueueDepth());
+        try {
+            pool.execute(blocker);
+            fail("Task should have been rejected");
+        }
+        catch (RejectedExecutionException ree) {
+            assertEquals(1, pool.getRejectedCount());
+        }
+
+        ThreadPool callerRuns = new ThreadPool("test-caller", 1, 1, ThreadPool.Mode.WORK_STEALING, ThreadPool.RejectionPolicy.CALLER_RUNS);
+        final CountDownLatch callerStarted = new CountDownLatch(1);
+        callerRuns.execute(new Runnable() {
+            public void run() {
+                callerStarted.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException ie) {
+                }
+            }
+        });
+        assertTrue(callerStarted.await(5, TimeUnit.SECONDS));
+        final AtomicReference<Thread> ranOn = new AtomicReference<Thread>();
+        Runnable recorder = new Runnable() {
+            public void run() {
+                ranOn.set(Thread.currentThread());
+            }
+        };
+        callerRuns.execute(recorder);
+        callerRuns.execute(recorder);
+        assertTrue(ranOn.get() == Thread.currentThread());
+
+        ThreadPool discard = new ThreadPool("test-discard", 1, 1, ThreadPool.Mode.BOUNDED, ThreadPool.RejectionPolicy.DISCARD);
+        final AtomicInteger runs = new AtomicInteger();
+        final CountDownLatch discardStarted = new CountDownLatch(1);
+        discard.execute(new Runnable() {
+            public void run() {
+                discardStarted.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException ie) {
+                }
+            }
+        });
+        assertTrue(discardStarted.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 5; i++) {
+            discard.execute(new Runnable() {
+                public void run() {
+                    runs.incrementAndGet();
+                }
+            });
+        }
+        release.countDown();
+        discard.shutdown();
+        assertTrue(discard.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(1, runs.get());
+        assertEquals(4, discard.getRejectedCount());
+    }
+
+    @Test
+    public void testElasticPool() throws Exception {
+        ThreadPool pool = new ThreadPool("test-elastic", 2, ThreadPool.DEF_QUEUE_CAPACITY, ThreadPool.Mode.ELASTIC, ThreadPool.RejectionPolicy.ABORT);
+        // Idle threads are reused
+        for (int i = 0; i < 20; i++) {
+            pool.submit(new Runnable() {
+                public void run() {
+                }
+            }).get(5, TimeUnit.SECONDS);
+            // Lets the thread go back to waiting for a task
+            Thread.sleep(10);
+        }
+        assertEquals(1, pool.getPoolSize());
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(2);
+        Runnable blocker = new Runnable() {
+            public void run() {
+                started.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException ie) {
+                }
+            }
+        };
+        pool.execute(blocker);
+        pool.execute(blocker);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        // Tasks do not wait for a busy thread
+        try {
+            pool.execute(blocker);
+            fail("Task should have been rejected");
+        }
+        catch (RejectedExecutionException ree) {
+            assertEquals(1, pool.getRejectedCount());
+        }
+        assertEquals(2, pool.getPoolSize());
+        assertEquals(0, pool.getQueueDepth());
+        release.countDown();
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testFailingTaskKeepsPool() throws Exception {
+        ThreadPool pool = new ThreadPool("test-failing", 1, ThreadPool.Mode.BOUNDED);
+        pool.execute(new Runnable() {
+            public void run() {
+                throw new IllegalStateException("ThreadPoolTest: Expected failure");
+            }
+        });
+        runAll(pool, 10);
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(11, pool.getCompletedCount());
+        try {
+            pool.execute(new Runnable() {
+                public void run() {
+                }
+            });
+            fail("Task should have been rejected");
+        }
+        catch (RejectedExecutionException ree) {
+        }
+    }
+
+}
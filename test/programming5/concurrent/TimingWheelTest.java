@@ -0,0 +1,113 @@
+package programming5.concurrent;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TimingWheelTest {
+
+    @Test
+    public void testExpiration() throws InterruptedException {
+        TimingWheel wheel = new TimingWheel(5, 8);
+        final CountDownLatch latch = new CountDownLatch(2);
+        final long start = System.currentTimeMillis();
+        final long[] elapsed = new long[2];
+        wheel.schedule(new Runnable() {
+            public void run() {
+                elapsed[0] = System.currentTimeMillis() - start;
+                latch.countDown();
+            }
+        }, 20);
+        // Longer than one turn of the wheel (8 slots of 5 msec)
+        TimingWheel.Timeout late = wheel.schedule(new Runnable() {
+            public void run() {
+                elapsed[1] = System.currentTimeMillis() - start;
+                latch.countDown();
+            }
+        }, 100);
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        assertTrue(elapsed[0] >= 20);
+        assertTrue(elapsed[1] >= 100);
+        assertTrue(late.isExpired());
+        assertEquals(0, wheel.getPendingCount());
+        wheel.stop();
+    }
+
+    @Test
+    public void testCancel() throws InterruptedException {
+        TimingWheel wheel = new TimingWheel(5, 8);
+        final AtomicInteger runs = new AtomicInteger();
+        Runnable task = new Runnable() {
+            public void run() {
+                runs.incrementAndGet();
+            }
+        };
+        TimingWheel.Timeout[] timeouts = new TimingWheel.Timeout[1000];
+        for (int i = 0; i < timeouts.length; i++) {
+            timeouts[i] = wheel.schedule(task, 30);
+        }
+        for (int i = 0; i < timeouts.length; i += 2) {
+            assertTrue(timeouts[i].cancel());
+            assertFalse(timeouts[i].cancel());
+        }
+        assertEquals(500, wheel.getPendingCount());
+        Thread.sleep(200);
+        assertEquals(500, runs.get());
+        assertTrue(timeouts[0].isCancelled());
+        assertFalse(timeouts[1].cancel());
+        wheel.stop();
+    }
+
+    @Test
+    public void testConcurrentFirstSchedule() throws InterruptedException {
+        for (int round = 0; round < 50; round++) {
+            final TimingWheel wheel = new TimingWheel(5, 8);
+            final int threads = 8;
+            final CountDownLatch ready = new CountDownLatch(threads);
+            final CountDownLatch go = new CountDownLatch(1);
+            final CountDownLatch expired = new CountDownLatch(threads);
+            final Runnable task = new Runnable() {
+                public void run() {
+                    expired.countDown();
+                }
+            };
+            for (int i = 0; i < threads; i++) {
+                new Thread(new Runnable() {
+                    public void run() {
+                        ready.countDown();
+                        try {
+                            go.await();
+                        }
+                        catch (InterruptedException ie) {
+                            return;
+                        }
+                        wheel.schedule(task, 10);
+                    }
+                }).start();
+            }
+            ready.await();
+            go.countDown();
+            // Scheduled against a start time that had not been assigned, a task would be due billions of ticks later
+            assertTrue(expired.await(2, TimeUnit.SECONDS));
+            wheel.stop();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testScheduleAfterStop() {
+        TimingWheel wheel = new TimingWheel();
+        wheel.schedule(new Runnable() {
+            public void run() {}
+        }, 10);
+        wheel.stop();
+        wheel.schedule(new Runnable() {
+            public void run() {}
+        }, 10);
+    }
+
+}
@@ -0,0 +1,204 @@
+package programming5.net;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import programming5.concurrent.Mailbox;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FlowBridgeTest {
+
+    static class Recorder implements Flow.Subscriber<MessageArrivedEvent> {
+
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        volatile Flow.Subscription subscription;
+        volatile boolean completed = false;
+        volatile Throwable error = null;
+
+        public void onSubscribe(Flow.Subscription mySubscription) {
+            subscription = mySubscription;
+        }
+
+        public void onNext(MessageArrivedEvent item) {
+            received.add(item.getContent());
+        }
+
+        public void onError(Throwable throwable) {
+            error = throwable;
+        }
+
+        public void onComplete() {
+            completed = true;
+        }
+
+    }
+
+    private static void fire(Publisher<MessageArrivedEvent> publisher, int from, int to) {
+        for (int i = from; i <= to; i++) {
+            publisher.synchronousFireEvent(new MessageArrivedEvent(Integer.toString(i)));
+        }
+    }
+
+    @Test
+    public void testDemandAndDropNewest() {
+        Publisher<MessageArrivedEvent> publisher = new Publisher<MessageArrivedEvent>();
+        Recorder recorder = new Recorder();
+        new FlowPublisher<MessageArrivedEvent>(publisher, 4, Mailbox.OverflowPolicy.DROP_NEWEST).subscribe(recorder);
+        recorder.subscription.request(2);
+        fire(publisher, 1, 7);
+        assertEquals(2, recorder.received.size());
+        assertEquals(1, ((FlowPublisher.FlowSubscription) recorder.subscription).getDroppedCount());
+        recorder.subscription.request(10);
+        assertEquals(6, recorder.received.size());
+        assertEquals("6", recorder.received.get(5));
+        publisher.announceNoMoreEvents();
+        assertTrue(recorder.completed);
+    }
+
+    @Test
+    public void testDropOldest() {
+        Publisher<MessageArrivedEvent> publisher = new Publisher<MessageArrivedEvent>();
+        Recorder recorder = new Recorder();
+        new FlowPublisher<MessageArrivedEvent>(publisher, 2, Mailbox.OverflowPolicy.DROP_OLDEST).subscribe(recorder);
+        fire(publisher, 1, 5);
+        recorder.subscription.request(Long.MAX_VALUE);
+        assertEquals(2, recorder.received.size());
+        assertEquals("4", recorder.received.get(0));
+        assertEquals("5", recorder.received.get(1));
+    }
+
+    @Test
+    public void testDefaultPolicyDropsOldest() {
+        Publisher<MessageArrivedEvent> publisher = new Publisher<MessageArrivedEvent>();
+        Recorder recorder = new Recorder();
+        new FlowPublisher<MessageArrivedEvent>(publisher).subscribe(recorder);
+        fire(publisher, 1, FlowPublisher.DEF_CAPACITY + 10);
+        assertEquals(10, ((FlowPublisher.FlowSubscription) recorder.subscription).getDroppedCount());
+        recorder.subscription.request(Long.MAX_VALUE);
+        assertEquals(FlowPublisher.DEF_CAPACITY, recorder.received.size());
+        assertEquals("11", recorder.received.get(0));
+    }
+
+    @Test
+    public void testBlockHoldsBackDelivery() throws Exception {
+        Publisher<MessageArrivedEvent> publisher = new Publisher<MessageArrivedEvent>();
+        Recorder recorder = new Recorder();
+        new FlowPublisher<MessageArrivedEvent>(publisher, 2, Mailbox.OverflowPolicy.BLOCK).subscribe(recorder);
+        for (int i = 1; i <= 20; i++) {
+            publisher.fireEvent(new MessageArrivedEvent(Integer.toString(i)));
+        }
+        Thread.sleep(100);
+        assertTrue(recorder.received.isEmpty());
+        for (int i = 1; i <= 20; i++) {
+            recorder.subscription.request(1);
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (recorder.received.size() < 20 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(20, recorder.received.size());
+        for (int i = 0; i < 20; i++) {
+            assertEquals(Integer.toString(i + 1), recorder.received.get(i));
+        }
+    }
+
+    @Test
+    public void testCancelAndInvalidRequest() {
+        Publisher<MessageArrivedEvent> publisher = new Publisher<MessageArrivedEvent>();
+        Recorder recorder = new Recorder();
+        new FlowPublisher<MessageArrivedEvent>(publisher).subscribe(recorder);
+        recorder.subscription.request(0);
+        assertTrue(recorder.error instanceof IllegalArgumentException);
+        fire(publisher, 1, 3);
+        assertTrue(recorder.received.isEmpty());
+        Recorder other = new Recorder();
+        new FlowPublisher<MessageArrivedEvent>(publisher).subscribe(other);
+        other.subscription.request(1);
+        other.subscription.cancel();
+        fire(publisher, 1, 3);
+        assertTrue(other.received.isEmpty());
+        assertFalse(other.completed);
+    }
+
+    @Test
+    public void testPullSourceWithDemand() throws Exception {
+        SubmissionPublisher<MessageArrivedEvent> publisher = new SubmissionPublisher<MessageArrivedEvent>();
+        FlowPullSource<MessageArrivedEvent> source = new FlowPullSource<MessageArrivedEvent>(publisher, 16, Mailbox.OverflowPolicy.BLOCK);
+        final SubmissionPublisher<MessageArrivedEvent> submitting = publisher;
+        // Submitting blocks once the publisher's buffer and the requested items are used up
+        Thread producer = new Thread() {
+            public void run() {
+                for (int i = 0; i < 1000; i++) {
+                    submitting.submit(new MessageArrivedEvent(Integer.toString(i)));
+                }
+                submitting.close();
+            }
+        };
+        producer.start();
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(Integer.toString(i), source.generateEvent().getContent());
+        }
+        assertNull(source.generateEvent());
+        assertNull(source.generateEvent());
+        assertTrue(source.isExhausted());
+        assertEquals(0, source.getDroppedCount());
+        assertNull(source.getError());
+        producer.join(5000);
+    }
+
+    @Test
+    public void testPullSourceDropsAndErrors() throws Exception {
+        SubmissionPublisher<MessageArrivedEvent> publisher = new SubmissionPublisher<MessageArrivedEvent>();
+        FlowPullSource<MessageArrivedEvent> source = new FlowPullSource<MessageArrivedEvent>(publisher, 4, Mailbox.OverflowPolicy.DROP_OLDEST);
+        for (int i = 0; i < 100; i++) {
+            publisher.submit(new MessageArrivedEvent(Integer.toString(i)));
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (source.getDroppedCount() < 96 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(96, source.getDroppedCount());
+        publisher.closeExceptionally(new NetworkException("FlowBridgeTest: Failed"));
+        while (source.getError() == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(source.getError() instanceof NetworkException);
+        MessageArrivedEvent last = null;
+        for (MessageArrivedEvent event = source.generateEvent(1000); event != null; event = source.generateEvent(1000)) {
+            last = event;
+        }
+        assertEquals("99", last.getContent());
+        assertTrue(source.isExhausted());
+    }
+
+    @Test
+    public void testClientRoundTrip() throws Exception {
+        Publisher<MessageArrivedEvent> publisher = new Publisher<MessageArrivedEvent>();
+        FlowPullSource<MessageArrivedEvent> source = new FlowPullSource<MessageArrivedEvent>(new FlowPublisher<MessageArrivedEvent>(publisher, FlowPublisher.DEF_CAPACITY, Mailbox.OverflowPolicy.BLOCK), 8, Mailbox.OverflowPolicy.BLOCK);
+        final Publisher<MessageArrivedEvent> firing = publisher;
+        Thread producer = new Thread() {
+            public void run() {
+                for (int i = 0; i < 500; i++) {
+                    firing.fireEvent(new MessageArrivedEvent(Integer.toString(i)));
+                }
+            }
+        };
+        producer.start();
+        for (int i = 0; i < 500; i++) {
+            MessageArrivedEvent event = source.generateEvent(5000);
+            assertEquals(Integer.toString(i), event.getContent());
+        }
+        producer.join(5000);
+        publisher.terminateAllSubscriptions();
+        assertNull(source.generateEvent(5000));
+        assertTrue(source.isExhausted());
+    }
+
+}
@@ -0,0 +1,215 @@
+package programming5.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MessageTest {
+
+    private Message sample() {
+        Message ret = new Message();
+        ret.setHeader("HDR");
+        ret.addMessageItem("a::b:/c:");
+        ret.addMessageItem(-42);
+        ret.addMessageItem(Long.MIN_VALUE);
+        ret.addMessageItem(2.5);
+        ret.addMessageItem(1.25f);
+        ret.addMessageItem(true);
+        ret.addMessageItem(new byte[] {0, (byte) 0xFF, ':', ':', '/'});
+        ret.addMessageItem("");
+        return ret;
+    }
+
+    private void assertSample(Message message) throws MalformedMessageException {
+        assertEquals("HDR", message.getHeader());
+        assertEquals(8, message.getMessageSize());
+        assertEquals("a::b:/c:", message.getMessageItem(0));
+        assertEquals(-42, message.getItemAsInt(1));
+        assertEquals(Long.MIN_VALUE, message.getItemAsLong(2));
+        assertEquals(2.5, message.getItemAsDouble(3), 0);
+        assertEquals(1.25f, message.getItemAsFloat(4), 0);
+        assertTrue(message.getItemAsBoolean(5));
+        assertArrayEquals(new byte[] {0, (byte) 0xFF, ':', ':', '/'}, message.getItemAsByteArray(6));
+        assertEquals("", message.getMessageItem(7));
+    }
+
+    @Test
+    public void testTextRoundTrip() throws MalformedMessageException {
+        Message message = sample();
+        assertSample(new Message(message.getMessageBytes()));
+        assertTrue(message.getMessage().startsWith("HDR:a:/:b://c:/::-42::" + Long.MIN_VALUE + "::2.5::1.25::true::"));
+    }
+
+    @Test
+    public void testBinaryRoundTrip() throws MalformedMessageException {
+        byte[] encoded = sample().getMessageBytes(Message.Encoding.BINARY);
+        assertSample(new Message(encoded));
+        assertEquals(Arrays.toString(sample().getMessageBytes()), Arrays.toString(new Message(encoded).getMessageBytes()));
+    }
+
+    @Test
+    public void testEmptyMessages() throws MalformedMessageException {
+        Message empty = new Message(new Message().getMessageBytes(Message.Encoding.BINARY));
+        assertNull(empty.getHeader());
+        assertEquals(0, empty.getMessageSize());
+        assertEquals(":", new Message().getMessage());
+        Message headerOnly = new Message("H:".getBytes());
+        assertEquals("H", headerOnly.getHeader());
+        assertEquals(1, headerOnly.getMessageSize());
+        assertEquals("", headerOnly.getMessageItem(0));
+    }
+
+    @Test
+    public void testTypeConversions() throws MalformedMessageException {
+        Message message = new Message();
+        message.addMessageItem(7);
+        message.addMessageItem("123");
+        message.addMessageItem(3.0);
+        assertEquals(7L, message.getItemAsLong(0));
+        assertEquals(7.0, message.getItemAsDouble(0), 0);
+        assertEquals("7", message.getMessageItem(0));
+        assertEquals(123, message.getItemAsInt(1));
+        assertEquals("3.0", message.getMessageItem(2));
+        try {
+            message.getItemAsInt(2);
+            fail("Expected MalformedMessageException");
+        }
+        catch (MalformedMessageException mme) {
+        }
+        message.editMessageItem(0, "x");
+        assertEquals("x", new Message(message.getMessageBytes(Message.Encoding.BINARY)).getMessageItem(0));
+    }
+
+    @Test
+    public void testTextSyntaxUnchanged() throws MalformedMessageException {
+        Message message = new Message("T:1::a:/::b:/:c");
+        assertEquals(3, message.getMessageSize());
+        assertEquals(1, message.getItemAsInt(0));
+        assertEquals("a:", message.getMessageItem(1));
+        assertEquals("b::c", message.getMessageItem(2));
+        assertEquals("T:1::a:/::b:/:c", message.getMessage());
+    }
+
+    @Test
+    public void testBinaryVersionAndTruncation() {
+        byte[] encoded = sample().getMessageBytes(Message.Encoding.BINARY);
+        assertEquals((byte) (0x80 | MessageCodec.VERSION), encoded[0]);
+        byte[] unknown = encoded.clone();
+        unknown[0] = (byte) 0x82;
+        try {
+            new Message(unknown);
+            fail("Expected MalformedMessageException");
+        }
+        catch (MalformedMessageException mme) {
+        }
+        try {
+            new Message(Arrays.copyOf(encoded, encoded.length - 1));
+            fail("Expected MalformedMessageException");
+        }
+        catch (MalformedMessageException mme) {
+        }
+        assertFalse(MessageCodec.isBinary(":".getBytes(), 0, 1));
+    }
+
+    @Test
+    public void testViewMatchesMessage() throws MalformedMessageException {
+        for (Message.Encoding encoding : Message.Encoding.values()) {
+            byte[] encoded = sample().getMessageBytes(encoding);
+            MessageView view = new MessageView(encoded);
+            assertEquals(encoding, view.getEncoding());
+            assertTrue(view.hasHeader("HDR"));
+            assertFalse(view.hasHeader("HD"));
+            assertSample(view);
+            assertSample(view.toMessage());
+            assertArrayEquals(encoded, view.getMessageBytes(encoding));
+            assertEquals(sample().getMessage(), view.getMessage());
+        }
+    }
+
+    @Test
+    public void testViewOverRange() throws MalformedMessageException {
+        byte[] buffer = "xxT:12::-34::abc:/:yy".getBytes();
+        MessageView view = new MessageView(buffer, 2, buffer.length - 4);
+        assertEquals("T", view.getHeader());
+        assertEquals(3, view.getMessageSize());
+        assertEquals(12, view.getItemAsInt(0));
+        assertEquals(-34L, view.getItemAsLong(1));
+        assertEquals("abc::", view.getMessageItem(2));
+        try {
+            view.getItemAsLong(2);
+            fail("Expected MalformedMessageException");
+        }
+        catch (MalformedMessageException mme) {
+        }
+        try {
+            new MessageView("T:99999999999".getBytes()).getItemAsInt(0);
+            fail("Expected MalformedMessageException");
+        }
+        catch (MalformedMessageException mme) {
+        }
+        assertEquals(Long.MIN_VALUE, new MessageView(("T:" + Long.MIN_VALUE).getBytes()).getItemAsLong(0));
+    }
+
+    @Test
+    public void testViewIsReadOnly() throws MalformedMessageException {
+        MessageView view = new MessageView("T:1".getBytes());
+        try {
+            view.addMessageItem(2);
+            fail("Expected UnsupportedOperationException");
+        }
+        catch (UnsupportedOperationException uoe) {
+        }
+        assertEquals(1, view.getMessageSize());
+    }
+
+    @Test
+    public void testBackedMessageCopiesOnWrite() throws MalformedMessageException {
+        byte[] encoded = new ReliableProtocolMessage(7, 2).getMessageBytes(Message.Encoding.BINARY);
+        ReliableProtocolMessage ack = new ReliableProtocolMessage(encoded);
+        assertTrue(ack.isAcknowledge());
+        assertEquals(7, ack.getSequence());
+        ack.editMessageItem(1, 3);
+        assertEquals(3, ack.getIndex());
+        assertEquals(7, ack.getSequence());
+        assertEquals(2, new ReliableProtocolMessage(encoded).getIndex());
+    }
+
+    @Test
+    public void testWriteTo() throws IOException, MalformedMessageException {
+        for (Message.Encoding encoding : Message.Encoding.values()) {
+            Message message = sample();
+            byte[] expected = message.getMessageBytes(encoding);
+            assertEquals(expected.length, message.encodedSize(encoding));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            message.writeTo(out, encoding);
+            assertArrayEquals(expected, out.toByteArray());
+            ByteBuffer buffer = ByteBuffer.allocateDirect(expected.length + 3);
+            buffer.put((byte) 1);
+            message.writeTo(buffer, encoding);
+            assertEquals(expected.length + 1, buffer.position());
+            try {
+                message.writeTo(buffer, encoding);
+                fail("Expected BufferOverflowException");
+            }
+            catch (BufferOverflowException boe) {
+            }
+            assertEquals(expected.length + 1, buffer.position());
+            MessageView view = new MessageView(expected);
+            assertEquals(expected.length, view.encodedSize(encoding));
+            out.reset();
+            view.writeTo(out, encoding);
+            assertArrayEquals(expected, out.toByteArray());
+        }
+    }
+
+}
@@ -0,0 +1,231 @@
+package programming5.net;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import programming5.concurrent.ThreadPool;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PublisherTest {
+
+    static class Counter implements TerminationAwareSubscriber<MessageArrivedEvent> {
+
+        final AtomicInteger events = new AtomicInteger();
+        final AtomicInteger terminations = new AtomicInteger();
+
+        public <T extends MessageArrivedEvent> void signalEvent(T event) {
+            events.incrementAndGet();
+        }
+
+        public void noMoreEvents() {
+        }
+
+        public void subscriptionTerminated() {
+            terminations.incrementAndGet();
+        }
+
+    }
+
+    @Test
+    public void testRemoveAndAddWithinDelivery() {
+        final Publisher<MessageArrivedEvent> publisher = new Publisher<MessageArrivedEvent>();
+        final Counter added = new Counter();
+        publisher.addListener(new Subscriber<MessageArrivedEvent>() {
+            public <T extends MessageArrivedEvent> void signalEvent(T event) {
+                publisher.removeListener(this);
+                publisher.addListener(added);
+            }
+        });
+        publisher.synchronousFireEvent(new MessageArrivedEvent("1"));
+        assertEquals(0, added.events.get());
+        publisher.synchronousFireEvent(new MessageArrivedEvent("2"));
+        assertEquals(1, added.events.get());
+        assertEquals(1, publisher.listeners.size());
+    }
+
+    @Test
+    public void testRemoveKeepsOrder() {
+        Publisher<MessageArrivedEvent> publisher = new Publisher<MessageArrivedEvent>();
+        Counter first = new Counter();
+        Counter second = new Counter();
+        Counter third = new Counter();
+        publisher.addListener(first);
+        publisher.addListener(second);
+        publisher.addListener(third);
+        publisher.removeListener(second);
+        publisher.removeListener(new Counter());
+        assertEquals(2, publisher.listeners.size());
+        assertTrue(publisher.listeners.get(0) == first);
+        assertTrue(publisher.listeners.get(1) == third);
+    }
+
+    @Test
+    public void testTerminateAllSubscriptions() {
+        Publisher<MessageArrivedEvent> publisher = new Publisher<MessageArrivedEvent>();
+        Counter first = new Counter();
+        Counter second = new Counter();
+        publisher.addListener(first);
+        publisher.addListener(second);
+        publisher.terminateAllSubscriptions();
+        assertEquals(1, first.terminations.get());
+        assertEquals(1, second.terminations.get());
+        publisher.synchronousFireEvent(new MessageArrivedEvent("1"));
+        assertEquals(0, first.events.get());
+        assertEquals(0, publisher.listeners.size());
+    }
+
+    @Test
+    public void testConcurrentFireWhileSubscribing() throws Exception {
+        final Publisher<MessageArrivedEvent> publisher = new Publisher<MessageArrivedEvent>(new EventDispatcher<MessageArrivedEvent>(EventDispatcher.callerThreadExecutor(), EventDispatcher.DEF_QUEUE_CAPACITY, EventDispatcher.OverflowPolicy.BLOCK));
+        final Counter steady = new Counter();
+        publisher.addListener(steady);
+        final int threads = 4;
+        final int events = 10000;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread() {
+                public void run() {
+                    for (int i = 0; i < events; i++) {
+                        publisher.fireEvent(new MessageArrivedEvent("x"));
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        while (done.getCount() > 0) {
+            Counter passing = new Counter();
+            publisher.addListener(passing);
+            publisher.removeListener(passing);
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(threads * events, steady.events.get());
+        assertEquals(1, publisher.listeners.size());
+    }
+
+    @Test
+    public void testDefaultDispatcherKeepsAllEvents() {
+        EventDispatcher<MessageArrivedEvent> dispatcher = new EventDispatcher<MessageArrivedEvent>(new Executor() {
+            public void execute(Runnable task) {
+                // Never runs the drain task, so the events stay queued
+            }
+        });
+        Counter counter = new Counter();
+        for (int i = 0; i < 5000; i++) {
+            dispatcher.dispatch(counter, new MessageArrivedEvent(Integer.toString(i)));
+        }
+        assertEquals(5000, dispatcher.getQueueDepth(counter));
+        assertEquals(0, dispatcher.getDropCount());
+    }
+
+    @Test
+    public void testDropOldestDoesNotBlockFiringThread() {
+        EventDispatcher<MessageArrivedEvent> dispatcher = new EventDispatcher<MessageArrivedEvent>(new Executor() {
+            public void execute(Runnable task) {
+                // Never runs the drain task, so the queue stays full
+            }
+        }, 4, EventDispatcher.OverflowPolicy.DROP_OLDEST);
+        Counter counter = new Counter();
+        for (int i = 0; i < 10; i++) {
+            dispatcher.dispatch(counter, new MessageArrivedEvent(Integer.toString(i)));
+        }
+        assertEquals(4, dispatcher.getQueueDepth(counter));
+        assertEquals(6, dispatcher.getDropCount());
+    }
+
+    @Test
+    public void testRemovedListenerQueueNotRecreated() {
+        EventDispatcher<MessageArrivedEvent> dispatcher = new EventDispatcher<MessageArrivedEvent>(new Executor() {
+            public void execute(Runnable task) {
+                // Never runs the drain task, so a queue that is kept shows its events
+            }
+        });
+        Publisher<MessageArrivedEvent> publisher = new Publisher<MessageArrivedEvent>(dispatcher);
+        Counter removed = new Counter();
+        Counter kept = new Counter();
+        publisher.addListener(removed);
+        publisher.addListener(kept);
+        // An event fired to a snapshot of the listeners taken before the removal
+        Iterator<Subscriber<MessageArrivedEvent>> snapshot = publisher.listeners.iterator();
+        publisher.removeListener(removed);
+        publisher.dispatchEvent(snapshot, new MessageArrivedEvent("1"));
+        assertEquals(0, dispatcher.getQueueDepth(removed));
+        assertEquals(1, dispatcher.getQueueDepth(kept));
+    }
+
+    @Test
+    public void testRejectedDeliveryNotRunInFiringThread() {
+        final boolean[] reject = new boolean[] {true};
+        final List<Runnable> accepted = new ArrayList<Runnable>();
+        EventDispatcher<MessageArrivedEvent> dispatcher = new EventDispatcher<MessageArrivedEvent>(new Executor() {
+            public void execute(Runnable task) {
+                if (reject[0]) {
+                    throw new RejectedExecutionException();
+                }
+                accepted.add(task);
+            }
+        });
+        Counter counter = new Counter();
+        dispatcher.dispatch(counter, new MessageArrivedEvent("1"));
+        assertEquals(0, counter.events.get());
+        assertEquals(0, dispatcher.getQueueDepth(counter));
+        assertEquals(1, dispatcher.getDropCount());
+        reject[0] = false;
+        dispatcher.dispatch(counter, new MessageArrivedEvent("2"));
+        assertEquals(1, accepted.size());
+        accepted.get(0).run();
+        assertEquals(1, counter.events.get());
+    }
+
+    @Test
+    public void testDefaultExecutorIsBounded() {
+        ThreadPool pool = (ThreadPool) EventDispatcher.getDefaultExecutor();
+        assertTrue(pool != ThreadPool.getDefault());
+        assertEquals(ThreadPool.Mode.BOUNDED, pool.getMode());
+        assertEquals(ThreadPool.RejectionPolicy.ABORT, pool.getRejectionPolicy());
+    }
+
+    @Test
+    public void testInlineExecutorDrainsWithoutNesting() {
+        final int[] depth = new int[1];
+        final int[] maxDepth = new int[1];
+        final EventDispatcher<MessageArrivedEvent> dispatcher = new EventDispatcher<MessageArrivedEvent>(new Executor() {
+            public void execute(Runnable task) {
+                depth[0]++;
+                maxDepth[0] = Math.max(maxDepth[0], depth[0]);
+                try {
+                    task.run();
+                }
+                finally {
+                    depth[0]--;
+                }
+            }
+        }, 100000, EventDispatcher.OverflowPolicy.BLOCK);
+        final List<String> received = new ArrayList<String>();
+        Subscriber<MessageArrivedEvent> subscriber = new Subscriber<MessageArrivedEvent>() {
+            public <T extends MessageArrivedEvent> void signalEvent(T event) {
+                String payload = event.getContent();
+                received.add(payload);
+                if (payload.equals("start")) {
+                    for (int i = 0; i < 50000; i++) {
+                        dispatcher.dispatch(this, new MessageArrivedEvent(Integer.toString(i)));
+                    }
+                }
+            }
+        };
+        dispatcher.dispatch(subscriber, new MessageArrivedEvent("start"));
+        assertEquals(50001, received.size());
+        for (int i = 0; i < 50000; i++) {
+            assertEquals(Integer.toString(i), received.get(i + 1));
+        }
+        assertTrue(maxDepth[0] <= 2);
+    }
+
+}
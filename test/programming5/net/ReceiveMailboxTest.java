@@ -0,0 +1,77 @@
+package programming5.net;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import programming5.concurrent.Mailbox;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ReceiveMailboxTest {
+
+    @Test
+    public void testHoldsOnlyWhenNeeded() throws InterruptedException {
+        ReceiveMailbox mailbox = new ReceiveMailbox();
+        mailbox.deliver("a".getBytes(), false);
+        assertEquals(0, mailbox.size());
+        mailbox.deliver("b".getBytes(), true);
+        assertEquals(1, mailbox.size());
+        assertEquals("b", new String(mailbox.receive(1000)));
+        mailbox.deliver("c".getBytes(), false);
+        assertEquals("c", new String(mailbox.receive(1000)));
+        assertNull(mailbox.receive(10));
+    }
+
+    @Test
+    public void testConfigureKeepsHeldMessages() throws InterruptedException {
+        ReceiveMailbox mailbox = new ReceiveMailbox();
+        for (int i = 0; i < 3; i++) {
+            mailbox.deliver(Integer.toString(i).getBytes(), true);
+        }
+        mailbox.configure(2, Mailbox.OverflowPolicy.DROP_OLDEST);
+        assertEquals(1, mailbox.getDroppedCount());
+        assertEquals("1", new String(mailbox.receive(1000)));
+        assertEquals("2", new String(mailbox.receive(1000)));
+    }
+
+    @Test
+    public void testConfigureDuringDelivery() throws InterruptedException {
+        final ReceiveMailbox mailbox = new ReceiveMailbox();
+        final int producers = 4;
+        final int messages = 20000;
+        final AtomicInteger delivering = new AtomicInteger(producers);
+        // Small blocking mailboxes keep producers waiting to put in mailboxes that are about to be replaced
+        mailbox.configure(64, Mailbox.OverflowPolicy.BLOCK);
+        for (int p = 0; p < producers; p++) {
+            new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < messages; i++) {
+                        mailbox.deliver(new byte[1], true);
+                    }
+                    delivering.decrementAndGet();
+                }
+            }).start();
+        }
+        final AtomicInteger received = new AtomicInteger();
+        Thread consumer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (received.get() < producers * messages) {
+                        received.addAndGet(mailbox.receiveBatch(64, 1).size());
+                    }
+                }
+                catch (InterruptedException ie) {}
+            }
+        });
+        consumer.start();
+        while (delivering.get() > 0) {
+            mailbox.configure(64, Mailbox.OverflowPolicy.BLOCK);
+        }
+        consumer.join(5000);
+        consumer.interrupt();
+        // No message is lost in a replaced mailbox
+        assertEquals(producers * messages, received.get());
+    }
+
+}
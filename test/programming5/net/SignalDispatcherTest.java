@@ -0,0 +1,167 @@
+package programming5.net;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SignalDispatcherTest {
+
+    static class BlockingListener implements Listener {
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+        final AtomicInteger running = new AtomicInteger();
+        volatile boolean overlapped = false;
+
+        public void signal() {
+            if (running.incrementAndGet() > 1) {
+                overlapped = true;
+            }
+            calls.incrementAndGet();
+            started.countDown();
+            try {
+                proceed.await(5, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException ie) {
+            }
+            running.decrementAndGet();
+        }
+
+    }
+
+    private static void awaitCalls(AtomicInteger calls, int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (calls.get() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(50);
+    }
+
+    @Test
+    public void testBurstIsCoalesced() throws Exception {
+        SignalDispatcher dispatcher = new SignalDispatcher(Executors.newFixedThreadPool(4));
+        BlockingListener listener = new BlockingListener();
+        dispatcher.signal(listener);
+        assertTrue(listener.started.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 999; i++) {
+            dispatcher.signal(listener);
+        }
+        listener.proceed.countDown();
+        awaitCalls(listener.calls, 2);
+        assertEquals(2, listener.calls.get());
+        assertEquals(1000, dispatcher.getSignalCount());
+        assertEquals(998, dispatcher.getCoalescedCount());
+        assertFalse(listener.overlapped);
+    }
+
+    @Test
+    public void testReleaseWhileRunning() throws Exception {
+        SignalDispatcher dispatcher = new SignalDispatcher(Executors.newFixedThreadPool(4));
+        BlockingListener listener = new BlockingListener();
+        dispatcher.signal(listener);
+        assertTrue(listener.started.await(5, TimeUnit.SECONDS));
+        // As if removed and added again while being signaled
+        dispatcher.release(listener);
+        dispatcher.signal(listener);
+        dispatcher.signal(listener);
+        assertEquals(1, dispatcher.getListenerCount());
+        listener.proceed.countDown();
+        awaitCalls(listener.calls, 2);
+        assertEquals(2, listener.calls.get());
+        assertFalse(listener.overlapped);
+        assertEquals(0, dispatcher.getListenerCount());
+        dispatcher.signal(listener);
+        awaitCalls(listener.calls, 3);
+        assertEquals(3, listener.calls.get());
+        assertEquals(1, dispatcher.getListenerCount());
+    }
+
+    @Test
+    public void testRejectedSignalNotRunInFiringThread() throws Exception {
+        final boolean[] reject = new boolean[] {true};
+        SignalDispatcher dispatcher = new SignalDispatcher(new Executor() {
+            public void execute(Runnable task) {
+                if (reject[0]) {
+                    throw new RejectedExecutionException();
+                }
+                new Thread(task).start();
+            }
+        });
+        final AtomicInteger calls = new AtomicInteger();
+        Listener listener = new Listener() {
+            public void signal() {
+                calls.incrementAndGet();
+            }
+        };
+        dispatcher.signal(listener);
+        assertEquals(0, calls.get());
+        reject[0] = false;
+        dispatcher.signal(listener);
+        awaitCalls(calls, 1);
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void testNotifierSignalsEachListener() throws Exception {
+        Notifier notifier = new Notifier(new SignalDispatcher(Executors.newFixedThreadPool(4))) {};
+        final AtomicInteger first = new AtomicInteger();
+        final AtomicInteger second = new AtomicInteger();
+        notifier.addListener(new Listener() {
+            public void signal() {
+                first.incrementAndGet();
+            }
+        });
+        Listener removed = new Listener() {
+            public void signal() {
+                second.incrementAndGet();
+            }
+        };
+        notifier.addListener(removed);
+        notifier.fireSignal();
+        awaitCalls(second, 1);
+        notifier.removeListener(removed);
+        notifier.fireSignal();
+        awaitCalls(first, 2);
+        assertEquals(2, first.get());
+        assertEquals(1, second.get());
+    }
+
+    @Test
+    public void testConcurrentSignalsNeverLost() throws Exception {
+        final SignalDispatcher dispatcher = new SignalDispatcher(Executors.newFixedThreadPool(4));
+        final AtomicInteger calls = new AtomicInteger();
+        final Listener listener = new Listener() {
+            public void signal() {
+                calls.incrementAndGet();
+            }
+        };
+        final int threads = 4;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread() {
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        dispatcher.signal(listener);
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (calls.get() + dispatcher.getCoalescedCount() < 40000 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(40000, calls.get() + dispatcher.getCoalescedCount());
+    }
+
+}
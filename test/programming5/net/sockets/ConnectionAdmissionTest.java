@@ -0,0 +1,167 @@
+package programming5.net.sockets;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import programming5.net.PluggableClient;
+import programming5.net.ServiceObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectionAdmissionTest {
+
+    /**
+     *Serves every client until released, as a service that reads from its client for the life of the connection would
+     */
+    static class BlockingService implements ServiceObject {
+
+        final CountDownLatch served;
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<PluggableClient> clients = new ArrayList<PluggableClient>();
+
+        BlockingService(int expected) {
+            served = new CountDownLatch(expected);
+        }
+
+        List<PluggableClient> clients() {
+            synchronized (clients) {
+                return new ArrayList<PluggableClient>(clients);
+            }
+        }
+
+        public void newClient(PluggableClient client) {
+            synchronized (clients) {
+                clients.add(client);
+            }
+            served.countDown();
+            try {
+                release.await();
+            }
+            catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+    }
+
+    private static Socket[] accept(ServerSocket server, List<Socket> remotes) throws Exception {
+        Socket remote = new Socket();
+        remote.connect(new InetSocketAddress("localhost", server.getLocalPort()));
+        remotes.add(remote);
+        return new Socket[] {server.accept(), remote};
+    }
+
+    @Test
+    public void testBlockingServicesDoNotStarveCreation() throws Exception {
+        ServerSocket server = new ServerSocket(0);
+        List<Socket> remotes = new ArrayList<Socket>();
+        int connections = 4;
+        BlockingService service = new BlockingService(connections);
+        ConnectionAdmission admission = new ConnectionAdmission();
+        admission.setExecutor(ConnectionAdmission.newFixedPool(1));
+        try {
+            for (int i = 0; i < connections; i++) {
+                assertTrue(admission.admit(accept(server, remotes)[0], service));
+            }
+            assertTrue(service.served.await(5, TimeUnit.SECONDS));
+            assertEquals(connections, admission.getActiveCount());
+            assertEquals(connections, admission.getAcceptedCount());
+        }
+        finally {
+            service.release.countDown();
+            for (PluggableClient client : service.clients()) {
+                client.endConnection();
+            }
+            for (Socket remote : remotes) {
+                remote.close();
+            }
+            server.close();
+        }
+    }
+
+    @Test
+    public void testConnectionLimit() throws Exception {
+        ServerSocket server = new ServerSocket(0);
+        List<Socket> remotes = new ArrayList<Socket>();
+        BlockingService service = new BlockingService(2);
+        ConnectionAdmission admission = new ConnectionAdmission();
+        admission.setMaxConnections(2);
+        try {
+            assertTrue(admission.admit(accept(server, remotes)[0], service));
+            assertTrue(admission.admit(accept(server, remotes)[0], service));
+            Socket[] third = accept(server, remotes);
+            assertFalse(admission.admit(third[0], service));
+            assertTrue(third[0].isClosed());
+            assertEquals(1, admission.getRejectedCount());
+            assertTrue(service.served.await(5, TimeUnit.SECONDS));
+            service.clients().get(0).endConnection();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (admission.getActiveCount() > 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, admission.getActiveCount());
+            assertTrue(admission.admit(accept(server, remotes)[0], service));
+        }
+        finally {
+            service.release.countDown();
+            for (PluggableClient client : service.clients()) {
+                client.endConnection();
+            }
+            for (Socket remote : remotes) {
+                remote.close();
+            }
+            server.close();
+        }
+    }
+
+    @Test
+    public void testDefaultLimitIsFinite() {
+        ConnectionAdmission admission = new ConnectionAdmission();
+        assertEquals(ConnectionAdmission.DEF_MAX_CONNECTIONS, admission.getMaxConnections());
+        assertTrue(admission.getMaxConnections() != ConnectionAdmission.UNLIMITED);
+    }
+
+    @Test
+    public void testConnectionStormDoesNotGrowThreads() throws Exception {
+        ServerSocket server = new ServerSocket(0, 512);
+        List<Socket> remotes = new ArrayList<Socket>();
+        int limit = 16;
+        int storm = 300;
+        BlockingService service = new BlockingService(limit);
+        ConnectionAdmission admission = new ConnectionAdmission();
+        admission.setMaxConnections(limit);
+        int threadsBefore = Thread.activeCount();
+        try {
+            int admitted = 0;
+            for (int i = 0; i < storm; i++) {
+                if (admission.admit(accept(server, remotes)[0], service)) {
+                    admitted++;
+                }
+            }
+            assertEquals(limit, admitted);
+            assertEquals(storm - limit, admission.getRejectedCount());
+            assertTrue(service.served.await(5, TimeUnit.SECONDS));
+            // A receiver and a service thread per admitted connection, plus the creation pool's threads
+            int grown = Thread.activeCount() - threadsBefore;
+            assertTrue("Threads grew by " + grown, grown <= 2 * limit + ConnectionAdmission.DEF_WORKERS);
+        }
+        finally {
+            service.release.countDown();
+            for (PluggableClient client : service.clients()) {
+                client.endConnection();
+            }
+            for (Socket remote : remotes) {
+                remote.close();
+            }
+            server.close();
+        }
+    }
+
+}
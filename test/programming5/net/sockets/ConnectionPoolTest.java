@@ -0,0 +1,148 @@
+package programming5.net.sockets;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ConnectionPoolTest {
+
+    static class FakeConnection implements ConnectionPool.Connection {
+
+        final String destination;
+        volatile boolean healthy = true;
+        volatile boolean closed = false;
+
+        FakeConnection(String myDestination) {
+            destination = myDestination;
+        }
+
+        public boolean isHealthy() {
+            return healthy && !closed;
+        }
+
+        public void close() {
+            closed = true;
+        }
+
+    }
+
+    static class FakeConnector implements ConnectionPool.Connector<FakeConnection> {
+
+        final AtomicInteger opened = new AtomicInteger();
+
+        public FakeConnection connect(String destination) throws IOException {
+            if (destination.startsWith("bad")) {
+                throw new IOException("Connection refused");
+            }
+            opened.incrementAndGet();
+            return new FakeConnection(destination);
+        }
+
+    }
+
+    @Test
+    public void testReuseAndLimits() throws Exception {
+        FakeConnector connector = new FakeConnector();
+        ConnectionPool<FakeConnection> pool = new ConnectionPool<FakeConnection>(connector);
+        pool.setMaxPerHost(2);
+        FakeConnection a = pool.checkout("a");
+        pool.release("a", a);
+        assertSame(a, pool.checkout("a"));
+        // a is in use, so a second connection is opened, and then the least used one is shared
+        FakeConnection b = pool.checkout("a");
+        assertNotSame(a, b);
+        FakeConnection c = pool.checkout("a");
+        assertTrue(c == a || c == b);
+        assertEquals(2, pool.size());
+        assertNotSame(a, pool.checkout("other"));
+        assertEquals(3, connector.opened.get());
+        // Unhealthy connections are replaced at checkout
+        b.healthy = false;
+        pool.release("a", a);
+        pool.release("a", a);
+        pool.release("a", b);
+        FakeConnection d = pool.checkout("a");
+        assertSame(a, d);
+        assertTrue(b.closed);
+        try {
+            pool.checkout("bad");
+            fail("Expected IOException");
+        }
+        catch (IOException ioe) {
+            assertEquals(2, pool.size());
+        }
+        pool.closeAll();
+        assertEquals(0, pool.size());
+        assertTrue(a.closed);
+    }
+
+    @Test
+    public void testIdleEviction() throws Exception {
+        ConnectionPool<FakeConnection> pool = new ConnectionPool<FakeConnection>(new FakeConnector());
+        pool.setIdleTimeout(200);
+        FakeConnection busy = pool.checkout("busy");
+        FakeConnection idle = pool.checkout("idle");
+        pool.release("idle", idle);
+        Thread.sleep(1000);
+        assertTrue(idle.closed);
+        assertTrue(!busy.closed);
+        assertEquals(1, pool.size());
+        assertEquals(1, pool.getEvictedCount());
+        pool.release("busy", busy);
+        assertNotSame(idle, pool.checkout("idle"));
+        pool.closeAll();
+    }
+
+    @Test
+    public void testConcurrentCheckout() throws Exception {
+        final FakeConnector connector = new FakeConnector();
+        final ConnectionPool<FakeConnection> pool = new ConnectionPool<FakeConnection>(connector);
+        pool.setMaxPerHost(3);
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            final String destination = "host" + (t % 2);
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < 10000; i++) {
+                            FakeConnection connection = pool.checkout(destination);
+                            if (!connection.destination.equals(destination) || connection.closed) {
+                                throw new IllegalStateException("Wrong connection");
+                            }
+                            pool.release(destination, connection);
+                        }
+                    }
+                    catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(errors.isEmpty());
+        assertTrue(connector.opened.get() <= 6);
+        assertEquals(connector.opened.get(), pool.size());
+        pool.closeAll();
+    }
+
+}
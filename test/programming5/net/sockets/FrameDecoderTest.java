@@ -0,0 +1,147 @@
+package programming5.net.sockets;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FrameDecoderTest {
+
+    private static class CollectingHandler implements FrameDecoder.FrameHandler {
+
+        List<byte[]> frames = new ArrayList<>();
+        boolean terminated = false;
+
+        @Override
+        public void frameDecoded(byte[] payload) {
+            frames.add(payload);
+        }
+
+        @Override
+        public void terminationReceived() {
+            terminated = true;
+        }
+    }
+
+    private static ByteBuffer frame(FrameDecoder.Framing framing, byte[] payload) {
+        byte[] header = FrameDecoder.encodeHeader(framing, payload.length);
+        ByteBuffer ret = ByteBuffer.allocate(header.length + payload.length);
+        ret.put(header).put(payload);
+        ret.flip();
+        return ret;
+    }
+
+    @Test
+    public void testAsciiFragmented() throws IOException {
+        CollectingHandler handler = new CollectingHandler();
+        FrameDecoder decoder = new FrameDecoder(handler);
+        ByteBuffer stream = ByteBuffer.allocate(64);
+        stream.put(frame(FrameDecoder.Framing.ASCII, "hello".getBytes()));
+        stream.put(frame(FrameDecoder.Framing.ASCII, "a:b::c".getBytes()));
+        stream.flip();
+        while (stream.hasRemaining()) {
+            ByteBuffer oneByte = stream.duplicate();
+            oneByte.limit(oneByte.position() + 1);
+            decoder.append(oneByte);
+            stream.position(stream.position() + 1);
+        }
+        assertEquals(2, handler.frames.size());
+        assertArrayEquals("hello".getBytes(), handler.frames.get(0));
+        assertArrayEquals("a:b::c".getBytes(), handler.frames.get(1));
+        assertEquals(0, decoder.getBufferedBytes());
+    }
+
+    @Test
+    public void testBinaryLargeFrame() throws IOException {
+        CollectingHandler handler = new CollectingHandler();
+        FrameDecoder decoder = new FrameDecoder(FrameDecoder.Framing.BINARY, handler);
+        byte[] payload = new byte[3 * FrameDecoder.DEF_BUFFER_SIZE + 7];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+        decoder.append(frame(FrameDecoder.Framing.BINARY, payload));
+        assertEquals(1, handler.frames.size());
+        assertArrayEquals(payload, handler.frames.get(0));
+    }
+
+    @Test
+    public void testTermination() throws IOException {
+        CollectingHandler handler = new CollectingHandler();
+        FrameDecoder decoder = new FrameDecoder(handler);
+        decoder.append(frame(FrameDecoder.Framing.ASCII, "last".getBytes()));
+        assertFalse(handler.terminated);
+        decoder.append(ByteBuffer.wrap("-1:EOF".getBytes()));
+        assertTrue(handler.terminated);
+        assertTrue(decoder.isTerminated());
+        assertEquals(1, handler.frames.size());
+    }
+
+    private static void assertCorrupt(FrameDecoder decoder, String input) {
+        try {
+            decoder.append(ByteBuffer.wrap(input.getBytes()));
+            fail("Expected IOException");
+        }
+        catch (IOException ioe) {
+            assertTrue(decoder.isCorrupt());
+        }
+    }
+
+    @Test
+    public void testBadHeaderIsFatal() throws IOException {
+        CollectingHandler handler = new CollectingHandler();
+        FrameDecoder decoder = new FrameDecoder(handler);
+        assertCorrupt(decoder, "x5:hello");
+        // Later input cannot be decoded either, since the frame boundaries are lost
+        assertCorrupt(decoder, "2:ok");
+        assertEquals(0, handler.frames.size());
+    }
+
+    @Test
+    public void testMinusWithoutDigitsRejected() {
+        CollectingHandler handler = new CollectingHandler();
+        FrameDecoder decoder = new FrameDecoder(handler);
+        assertCorrupt(decoder, "-:");
+        assertEquals(0, handler.frames.size());
+        assertFalse(handler.terminated);
+    }
+
+    @Test
+    public void testOversizedHeaderDoesNotGrowBuffer() throws IOException {
+        CollectingHandler handler = new CollectingHandler();
+        FrameDecoder decoder = new FrameDecoder(FrameDecoder.Framing.BINARY, handler);
+        ByteBuffer header = ByteBuffer.allocate(8);
+        header.putInt(Integer.MAX_VALUE - 16).putInt(0);
+        header.flip();
+        try {
+            decoder.append(header);
+            fail("Expected IOException");
+        }
+        catch (IOException ioe) {
+            assertTrue(decoder.isCorrupt());
+        }
+        assertEquals(FrameDecoder.DEF_BUFFER_SIZE, decoder.buffer.capacity());
+        assertEquals(0, handler.frames.size());
+    }
+
+    @Test
+    public void testFrameOverMaxLengthIsFatal() throws IOException {
+        CollectingHandler handler = new CollectingHandler();
+        FrameDecoder decoder = new FrameDecoder(handler);
+        decoder.setMaxFrameLength(8);
+        decoder.append(frame(FrameDecoder.Framing.ASCII, "12345678".getBytes()));
+        assertEquals(1, handler.frames.size());
+        // The rest of the oversized frame must not be parsed as new frames
+        assertCorrupt(decoder, "12:ab");
+        assertCorrupt(decoder, "3:xyz|cd");
+        assertCorrupt(decoder, "2:ok");
+        assertEquals(1, handler.frames.size());
+    }
+
+}
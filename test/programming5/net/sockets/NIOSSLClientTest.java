@@ -0,0 +1,248 @@
+package programming5.net.sockets;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+import programming5.net.MessageArrivedEvent;
+import programming5.net.MessageArrivedListener;
+import programming5.net.MessagingClient;
+import programming5.net.NetworkException;
+import programming5.net.PluggableClient;
+import programming5.net.ServiceObject;
+import programming5.net.ServiceObjectFactory;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NIOSSLClientTest {
+
+    private static final char[] PASSWORD = "changeit".toCharArray();
+
+    /**
+     *Generates a keystore with a self-signed certificate and creates a context that uses it as both key and trust store
+     */
+    private static SSLContext createContext(String protocol) throws Exception {
+        File keystore = File.createTempFile("programming5-test", ".p12");
+        keystore.delete();
+        keystore.deleteOnExit();
+        String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "test", "-keyalg", "RSA", "-keysize", "2048", "-dname", "CN=localhost", "-validity", "1", "-storetype", "PKCS12", "-keystore", keystore.getPath(), "-storepass", new String(PASSWORD), "-keypass", new String(PASSWORD)).redirectErrorStream(true).start();
+        assertEquals(0, process.waitFor());
+        KeyStore store = KeyStore.getInstance("PKCS12");
+        FileInputStream in = new FileInputStream(keystore);
+        try {
+            store.load(in, PASSWORD);
+        }
+        finally {
+            in.close();
+        }
+        KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keys.init(store, PASSWORD);
+        TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trust.init(store);
+        SSLContext ret = SSLContext.getInstance(protocol);
+        ret.init(keys.getKeyManagers(), trust.getTrustManagers(), null);
+        return ret;
+    }
+
+    private static TCPServerDaemon startEchoServer(SSLContext context) throws NetworkException {
+        TCPServerDaemon daemon = new TCPServerDaemon(new ServiceObjectFactory() {
+            public ServiceObject getServiceObject() {
+                return new ServiceObject() {
+                    public void newClient(PluggableClient client) {
+                        final MessagingClient messaging = (MessagingClient) client;
+                        messaging.addListener(new MessageArrivedListener() {
+                            public <T extends MessageArrivedEvent> void signalEvent(T event) {
+                                try {
+                                    messaging.send(event.getContentBytes());
+                                }
+                                catch (NetworkException ne) {
+                                    throw new RuntimeException(ne);
+                                }
+                            }
+                        });
+                        if (messaging instanceof NIOTCPClient) {
+                            for (byte[] held : ((NIOTCPClient) messaging).mailbox.drainHeld()) {
+                                try {
+                                    messaging.send(held);
+                                }
+                                catch (NetworkException ne) {
+                                    throw new RuntimeException(ne);
+                                }
+                            }
+                        }
+                    }
+                };
+            }
+        });
+        daemon.setSSLContext(context);
+        daemon.start();
+        return daemon;
+    }
+
+    private void testEchoAndResumption(String protocol) throws Exception {
+        SSLContext context = createContext(protocol);
+        TCPServerDaemon daemon = startEchoServer(context);
+        try {
+            HandshakeMetrics metrics = new HandshakeMetrics();
+            byte[] large = new byte[100000];
+            Arrays.fill(large, (byte) 'x');
+            for (int i = 0; i < 2; i++) {
+                NIOSSLClient client = new NIOSSLClient(context, "127.0.0.1", daemon.getLocalPort());
+                client.setHandshakeMetrics(metrics);
+                client.establishConnection();
+                // Sent before the handshake completes
+                client.send("hello " + i);
+                client.send(large);
+                assertEquals("hello " + i, client.receive(5000));
+                assertArrayEquals(large, client.receiveBytes(5000));
+                client.endConnection();
+            }
+            assertEquals(2, metrics.getHandshakeCount());
+            assertEquals(1, metrics.getResumedCount());
+            assertEquals(0, metrics.getFailedCount());
+            assertTrue(daemon.getHandshakeMetrics().getHandshakeCount() >= 1);
+        }
+        finally {
+            daemon.end();
+        }
+    }
+
+    @Test
+    public void testTLS12() throws Exception {
+        this.testEchoAndResumption("TLSv1.2");
+    }
+
+    @Test
+    public void testTLS13() throws Exception {
+        this.testEchoAndResumption("TLSv1.3");
+    }
+
+    @Test
+    public void testTaskExecutor() throws Exception {
+        SSLContext context = createContext("TLSv1.3");
+        TCPServerDaemon daemon = startEchoServer(context);
+        try {
+            final AtomicInteger loopTasks = new AtomicInteger();
+            final AtomicInteger tasks = new AtomicInteger();
+            NIOSSLClient client = new NIOSSLClient(context, "127.0.0.1", daemon.getLocalPort());
+            client.setTaskExecutor(new Executor() {
+                public void execute(final Runnable task) {
+                    tasks.incrementAndGet();
+                    if (Thread.currentThread() instanceof SelectorLoop) {
+                        loopTasks.incrementAndGet();
+                    }
+                    new Thread(task).start();
+                }
+            });
+            client.establishConnection();
+            client.send("hello");
+            assertEquals("hello", client.receive(5000));
+            client.endConnection();
+            assertTrue(tasks.get() > 0);
+            // Submitted from the loop, which goes on servicing other channels while the tasks run
+            assertEquals(tasks.get(), loopTasks.get());
+        }
+        finally {
+            daemon.end();
+        }
+    }
+
+    @Test
+    public void testEndpointIdentification() throws Exception {
+        SSLContext context = createContext("TLSv1.3");
+        TCPServerDaemon daemon = startEchoServer(context);
+        try {
+            // The certificate is issued to localhost, so it is not valid for the address
+            NIOSSLClient client = new NIOSSLClient(context, "127.0.0.1", daemon.getLocalPort());
+            HandshakeMetrics metrics = new HandshakeMetrics();
+            client.setHandshakeMetrics(metrics);
+            client.setEndpointIdentificationAlgorithm("HTTPS");
+            client.establishConnection();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (metrics.getFailedCount() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, metrics.getFailedCount());
+            assertEquals(0, metrics.getHandshakeCount());
+            client.endConnection();
+        }
+        finally {
+            daemon.end();
+        }
+    }
+
+    @Test
+    public void testPeerThatDoesNotReadDoesNotSpinLoop() throws Exception {
+        SSLContext context = createContext("TLSv1.3");
+        final SSLServerSocket server = (SSLServerSocket) context.getServerSocketFactory().createServerSocket(0);
+        final CountDownLatch handshaken = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Thread peer = new Thread() {
+            public void run() {
+                try {
+                    SSLSocket socket = (SSLSocket) server.accept();
+                    socket.startHandshake();
+                    handshaken.countDown();
+                    // Stops reading, so the client's writes fill the socket buffers
+                    release.await();
+                    socket.close();
+                }
+                catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        peer.start();
+        SelectorLoop loop = new SelectorLoop();
+        loop.start();
+        final NIOSSLClient client = new NIOSSLClient(context, "127.0.0.1", server.getLocalPort());
+        try {
+            client.setSelectorLoop(loop);
+            client.establishConnection();
+            Thread sender = new Thread() {
+                public void run() {
+                    byte[] chunk = new byte[1024 * 1024];
+                    try {
+                        for (int i = 0; i < 32; i++) {
+                            client.sendAsync(chunk);
+                        }
+                    }
+                    catch (Exception e) {
+                        // Failed when the connection is closed at the end of the test
+                    }
+                }
+            };
+            sender.setDaemon(true);
+            sender.start();
+            assertTrue(handshaken.await(5, TimeUnit.SECONDS));
+            Thread.sleep(500);
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            long cpuStart = threads.getThreadCpuTime(loop.getId());
+            Thread.sleep(1000);
+            long cpuTime = threads.getThreadCpuTime(loop.getId()) - cpuStart;
+            assertTrue("Selector loop used " + (cpuTime / 1000000) + " ms of CPU while the peer was not reading", cpuTime < 200000000L);
+        }
+        finally {
+            release.countDown();
+            client.endConnection();
+            loop.end();
+            server.close();
+        }
+    }
+
+}
@@ -0,0 +1,210 @@
+package programming5.net.sockets;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import programming5.net.MessageArrivedEvent;
+import programming5.net.MessageArrivedListener;
+import programming5.net.MessagingClient;
+import programming5.net.PluggableClient;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class NIOTCPClientTest {
+
+    static class Recorder implements MessageArrivedListener {
+
+        final BlockingQueue<String> messages = new LinkedBlockingQueue<String>();
+
+        public <T extends MessageArrivedEvent> void signalEvent(T event) {
+            messages.add(event.getContent());
+        }
+
+    }
+
+    private static ServerSocketChannel listen() throws Exception {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress("localhost", 0));
+        return server;
+    }
+
+    private static String urlOf(ServerSocketChannel server) {
+        return "//localhost:" + server.socket().getLocalPort();
+    }
+
+    @Test
+    public void testSendOnNewConnectionIsDelivered() throws Exception {
+        ServerSocketChannel server = listen();
+        NIOTCPClient client = new NIOTCPClient();
+        try {
+            CompletableFuture<Void> sent = client.sendAsync("first".getBytes(), urlOf(server));
+            NIOTCPClient accepted = new NIOTCPClient(server.accept());
+            sent.get(5, TimeUnit.SECONDS);
+            client.send("second", urlOf(server));
+            assertEquals("first", accepted.receive(5000));
+            assertEquals("second", accepted.receive(5000));
+            accepted.endConnection();
+        }
+        finally {
+            client.endConnection();
+            server.close();
+        }
+    }
+
+    /**
+     *Sends the start of a frame longer than the given client accepts, followed by bytes that would parse as frames, and checks
+     *that the client closes the connection without publishing any of them
+     */
+    static void assertOversizedFrameClosesConnection(Socket peer, PluggableClient client) throws Exception {
+        OutputStream out = peer.getOutputStream();
+        out.write("12:ab3:xyz|cd2:ok".getBytes());
+        out.flush();
+        peer.setSoTimeout(5000);
+        try {
+            assertEquals(-1, peer.getInputStream().read());
+        }
+        catch (SocketException se) {
+            // Reset by the client, which closed the connection with unread bytes
+        }
+        assertNull(((MessagingClient) client).receive(200));
+    }
+
+    @Test
+    public void testOversizedFrameClosesConnection() throws Exception {
+        ServerSocket server = new ServerSocket(0);
+        NIOTCPClient client = new NIOTCPClient("localhost", server.getLocalPort());
+        try {
+            client.setMaxMessageSize(8);
+            client.establishConnection();
+            Socket peer = server.accept();
+            assertOversizedFrameClosesConnection(peer, client);
+            peer.close();
+        }
+        finally {
+            client.endConnection();
+            server.close();
+        }
+    }
+
+    @Test
+    public void testReceiveTimeout() throws Exception {
+        NIOTCPClient client = new NIOTCPClient();
+        try {
+            assertNull(client.receive(50));
+            assertNull(client.receiveBytes(50));
+            assertEquals(0, client.getDroppedCount());
+        }
+        finally {
+            client.endConnection();
+        }
+    }
+
+    @Test
+    public void testConcurrentSendsShareOneConnection() throws Exception {
+        final ServerSocketChannel server = listen();
+        final NIOTCPClient client = new NIOTCPClient();
+        try {
+            final int senders = 8;
+            final CountDownLatch start = new CountDownLatch(1);
+            final List<CompletableFuture<Void>> sends = new ArrayList<CompletableFuture<Void>>();
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int i = 0; i < senders; i++) {
+                final String payload = Integer.toString(i);
+                Thread sender = new Thread() {
+                    public void run() {
+                        try {
+                            start.await();
+                            CompletableFuture<Void> send = client.sendAsync(payload.getBytes(), urlOf(server));
+                            synchronized (sends) {
+                                sends.add(send);
+                            }
+                        }
+                        catch (Exception e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                };
+                sender.start();
+                threads.add(sender);
+            }
+            start.countDown();
+            for (Thread sender : threads) {
+                sender.join(5000);
+            }
+            assertEquals(senders, sends.size());
+            assertEquals(1, client.getConnectionCount());
+            NIOTCPClient accepted = new NIOTCPClient(server.accept());
+            for (CompletableFuture<Void> send : sends) {
+                send.get(5, TimeUnit.SECONDS);
+            }
+            for (int i = 0; i < senders; i++) {
+                assertTrue(accepted.receive(5000) != null);
+            }
+            server.configureBlocking(false);
+            assertNull(server.accept());
+            accepted.endConnection();
+        }
+        finally {
+            client.endConnection();
+            server.close();
+        }
+    }
+
+    @Test
+    public void testSlowSubscriberDoesNotStallLoop() throws Exception {
+        ServerSocketChannel server = listen();
+        SelectorLoop loop = new SelectorLoop();
+        loop.start();
+        NIOTCPClient slowSender = new NIOTCPClient();
+        NIOTCPClient fastSender = new NIOTCPClient();
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            slowSender.send("hold", urlOf(server));
+            NIOTCPClient slow = new NIOTCPClient(server.accept(), loop);
+            fastSender.send("go", urlOf(server));
+            NIOTCPClient fast = new NIOTCPClient(server.accept(), loop);
+            slow.addListener(new MessageArrivedListener() {
+                public <T extends MessageArrivedEvent> void signalEvent(T event) {
+                    try {
+                        release.await();
+                    }
+                    catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            Recorder recorder = new Recorder();
+            fast.addListener(recorder);
+            for (int i = 0; i < 10; i++) {
+                slowSender.send("more", urlOf(server));
+                fastSender.send(Integer.toString(i), urlOf(server));
+            }
+            for (int i = 0; i < 10; i++) {
+                assertTrue(recorder.messages.poll(5, TimeUnit.SECONDS) != null);
+            }
+            release.countDown();
+        }
+        finally {
+            release.countDown();
+            slowSender.endConnection();
+            fastSender.endConnection();
+            loop.end();
+            server.close();
+        }
+    }
+
+}
@@ -0,0 +1,161 @@
+package programming5.net.sockets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class OutboundQueueTest {
+
+    /**
+     *Records the size of every write call
+     */
+    static class RecordingStream extends ByteArrayOutputStream {
+
+        final List<Integer> writes = new ArrayList<Integer>();
+
+        @Override
+        public synchronized void write(byte[] bytes, int offset, int length) {
+            writes.add(length);
+            super.write(bytes, offset, length);
+        }
+
+    }
+
+    private static ByteBuffer bytes(int length, int seed) {
+        byte[] ret = new byte[length];
+        for (int i = 0; i < length; i++) {
+            ret[i] = (byte) (i + seed);
+        }
+        return ByteBuffer.wrap(ret);
+    }
+
+    @Test
+    public void testStreamCoalescesSmallFrames() throws Exception {
+        OutboundQueue queue = new OutboundQueue();
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        List<CompletableFuture<Void>> sends = new ArrayList<CompletableFuture<Void>>();
+        for (int i = 0; i < 10; i++) {
+            ByteBuffer header = ByteBuffer.wrap(FrameDecoder.encodeHeader(FrameDecoder.Framing.ASCII, 100));
+            ByteBuffer body = bytes(100, i);
+            expected.write(header.array());
+            expected.write(body.array());
+            sends.add(queue.enqueue(header, body));
+        }
+        assertTrue(queue.claimDrain());
+        RecordingStream out = new RecordingStream();
+        queue.writeTo(out);
+        assertEquals(1, out.writes.size());
+        assertArrayEquals(expected.toByteArray(), out.toByteArray());
+        for (CompletableFuture<Void> send : sends) {
+            assertTrue(send.isDone());
+        }
+        assertTrue(queue.isEmpty());
+        assertFalse(queue.claimDrain());
+    }
+
+    @Test
+    public void testStreamWritesLargeBodiesDirectly() throws Exception {
+        OutboundQueue queue = new OutboundQueue();
+        ByteBuffer body = bytes(4 * OutboundQueue.COALESCE_LIMIT, 3);
+        byte[] header = FrameDecoder.encodeHeader(FrameDecoder.Framing.BINARY, body.remaining());
+        queue.enqueue(ByteBuffer.wrap(header), body);
+        queue.enqueue(null, bytes(10, 5));
+        assertTrue(queue.claimDrain());
+        RecordingStream out = new RecordingStream();
+        queue.writeTo(out);
+        assertEquals(3, out.writes.size());
+        assertEquals(header.length, out.writes.get(0).intValue());
+        assertEquals(4 * OutboundQueue.COALESCE_LIMIT, out.writes.get(1).intValue());
+        assertEquals(10, out.writes.get(2).intValue());
+        assertEquals(header.length + 4 * OutboundQueue.COALESCE_LIMIT + 10, out.size());
+    }
+
+    @Test
+    public void testSenderBlocksAboveHighWaterMark() throws Exception {
+        final OutboundQueue queue = new OutboundQueue(100);
+        queue.enqueue(null, bytes(150, 0));
+        final CountDownLatch queued = new CountDownLatch(1);
+        Thread sender = new Thread() {
+            public void run() {
+                queue.enqueue(null, bytes(10, 0));
+                queued.countDown();
+            }
+        };
+        sender.start();
+        assertFalse(queued.await(200, TimeUnit.MILLISECONDS));
+        assertTrue(queue.claimDrain());
+        queue.writeTo(new ByteArrayOutputStream());
+        assertTrue(queued.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testNonBlockingEnqueueAboveHighWaterMark() {
+        OutboundQueue queue = new OutboundQueue(100);
+        queue.enqueue(null, bytes(150, 0));
+        CompletableFuture<Void> send = queue.enqueue(null, bytes(10, 0), false);
+        assertFalse(send.isDone());
+        assertEquals(160, queue.getPendingBytes());
+    }
+
+    @Test
+    public void testWriterThreadNeverBlocks() throws Exception {
+        final OutboundQueue queue = new OutboundQueue(100);
+        final AtomicReference<CompletableFuture<Void>> chained = new AtomicReference<CompletableFuture<Void>>();
+        queue.enqueue(null, bytes(50, 0)).thenRun(new Runnable() {
+            public void run() {
+                // Runs in the writer thread, with the queue above its mark
+                chained.set(queue.enqueue(null, bytes(10, 0)));
+            }
+        });
+        queue.enqueue(null, bytes(200, 0), false);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Thread writer = new Thread() {
+            public void run() {
+                try {
+                    queue.claimDrain();
+                    queue.writeTo(out);
+                }
+                catch (IOException ioe) {
+                    fail(ioe.getMessage());
+                }
+            }
+        };
+        writer.start();
+        writer.join(5000);
+        assertFalse(writer.isAlive());
+        assertTrue(chained.get() != null);
+        assertTrue(chained.get().isDone());
+        assertEquals(260, out.size());
+    }
+
+    @Test
+    public void testFailCompletesQueuedFrames() throws Exception {
+        OutboundQueue queue = new OutboundQueue();
+        CompletableFuture<Void> send = queue.enqueue(null, bytes(10, 0));
+        queue.fail(new IOException("Connection closed"));
+        assertTrue(queue.isFailed());
+        try {
+            send.get();
+            fail("Expected failure");
+        }
+        catch (ExecutionException ee) {
+            assertEquals("Connection closed", ee.getCause().getMessage());
+        }
+        assertTrue(queue.enqueue(null, bytes(10, 0)).isCompletedExceptionally());
+    }
+
+}
@@ -0,0 +1,61 @@
+package programming5.net.sockets;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class RTTEstimatorTest {
+
+    @Test
+    public void testInitialTimeout() {
+        RTTEstimator estimator = new RTTEstimator(1000, 50, 60000);
+        assertEquals(1000, estimator.getRTO());
+        assertEquals(-1, estimator.getSmoothedRTT(), 0);
+    }
+
+    @Test
+    public void testFirstSample() {
+        RTTEstimator estimator = new RTTEstimator(1000, 50, 60000);
+        estimator.sample(100);
+        assertEquals(100, estimator.getSmoothedRTT(), 0);
+        assertEquals(50, estimator.getRTTVariation(), 0);
+        assertEquals(300, estimator.getRTO());
+    }
+
+    @Test
+    public void testSmoothing() {
+        RTTEstimator estimator = new RTTEstimator(1000, 50, 60000);
+        estimator.sample(100);
+        estimator.sample(100);
+        assertEquals(100, estimator.getSmoothedRTT(), 0);
+        assertEquals(37.5, estimator.getRTTVariation(), 0);
+        assertEquals(250, estimator.getRTO());
+        estimator.sample(180);
+        assertEquals(110, estimator.getSmoothedRTT(), 0);
+        assertEquals(48.125, estimator.getRTTVariation(), 0);
+        assertEquals(303, estimator.getRTO());
+    }
+
+    @Test
+    public void testBackoff() {
+        RTTEstimator estimator = new RTTEstimator(1000, 50, 3000);
+        estimator.backoff();
+        assertEquals(2000, estimator.getRTO());
+        estimator.backoff();
+        assertEquals(3000, estimator.getRTO());
+        estimator.sample(100);
+        assertEquals(300, estimator.getRTO());
+    }
+
+    @Test
+    public void testLowerBound() {
+        RTTEstimator estimator = new RTTEstimator(1000, 200, 60000);
+        estimator.sample(10);
+        assertEquals(200, estimator.getRTO());
+        estimator.setMinRTO(1);
+        assertEquals(200, estimator.getRTO());
+        estimator.sample(10);
+        assertEquals(25, estimator.getRTO());
+    }
+
+}
@@ -0,0 +1,525 @@
+package programming5.net.sockets;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import programming5.net.AsynchMessageArrivedEvent;
+import programming5.net.Message;
+import programming5.net.NetworkException;
+import programming5.net.ReliableProtocolMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ReliableUDPClientTest {
+
+    private ReliableUDPClient client;
+    private DatagramSocket peer;
+    private String peerURL;
+
+    @Before
+    public void setUp() throws Exception {
+        client = new ReliableUDPClient();
+        peer = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        peerURL = "//" + peer.getLocalAddress().getHostAddress() + ":" + peer.getLocalPort();
+    }
+
+    @After
+    public void tearDown() {
+        client.endConnection();
+        peer.close();
+    }
+
+    private void receivePart(String payload, long sequence, int index, int total) {
+        ReliableProtocolMessage rpm = new ReliableProtocolMessage(payload.getBytes(), sequence, index, total, peerURL);
+        client.signalEvent(new AsynchMessageArrivedEvent(rpm.getMessageBytes(Message.Encoding.TEXT), peerURL));
+    }
+
+    private void receiveWindowed(String payload, long session, long packetSequence) {
+        ReliableProtocolMessage rpm = ReliableProtocolMessage.createWindowedMessage(payload.getBytes(), packetSequence, 1, 1, session, packetSequence, 0, peerURL);
+        client.signalEvent(new AsynchMessageArrivedEvent(rpm.getMessageBytes(Message.Encoding.TEXT), peerURL));
+    }
+
+    private void sendWindowed(long session, long packetSequence) throws Exception {
+        sendWindowed(session, packetSequence, 0);
+    }
+
+    /**
+     *Sends a windowed packet to the client over the network, from the peer socket
+     */
+    private void sendWindowed(long session, long packetSequence, long base) throws Exception {
+        ReliableProtocolMessage rpm = ReliableProtocolMessage.createWindowedMessage("x".getBytes(), packetSequence, 1, 1, session, packetSequence, base, peerURL);
+        byte[] header = (packetSequence + "/1/1:").getBytes();
+        byte[] body = rpm.getMessageBytes(Message.Encoding.TEXT);
+        byte[] packet = Arrays.copyOf(header, header.length + body.length);
+        System.arraycopy(body, 0, packet, header.length, body.length);
+        peer.send(new DatagramPacket(packet, packet.length, InetAddress.getLoopbackAddress(), client.getLocalPort()));
+    }
+
+    /**
+     *@return the next message received by the peer socket within the given time, or null if none arrives
+     */
+    private ReliableProtocolMessage receiveMessage(int timeoutMillis) throws Exception {
+        byte[] buffer = new byte[65536];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        peer.setSoTimeout(timeoutMillis);
+        try {
+            peer.receive(packet);
+        }
+        catch (SocketTimeoutException ste) {
+            return null;
+        }
+        int start = 0;
+        while (buffer[start] != ':') {
+            start++;
+        }
+        return new ReliableProtocolMessage(Arrays.copyOfRange(buffer, start + 1, packet.getLength()));
+    }
+
+    /**
+     *@return the next acknowledgement received by the peer socket within the given time, or null if none arrives
+     */
+    private ReliableProtocolMessage receiveAck(int timeoutMillis) throws Exception {
+        ReliableProtocolMessage ret = receiveMessage(timeoutMillis);
+        if (ret != null) {
+            assertTrue(ret.isWindowAcknowledge());
+        }
+        return ret;
+    }
+
+    /**
+     *Acknowledges the packets of the given session up to the given sequence to the client, from the peer socket
+     */
+    private void sendAck(long session, long cumulative) throws Exception {
+        byte[] body = ReliableProtocolMessage.createWindowAcknowledge(session, cumulative, 0).getMessageBytes(Message.Encoding.TEXT);
+        byte[] header = "1/1/1:".getBytes();
+        byte[] packet = Arrays.copyOf(header, header.length + body.length);
+        System.arraycopy(body, 0, packet, header.length, body.length);
+        peer.send(new DatagramPacket(packet, packet.length, InetAddress.getLoopbackAddress(), client.getLocalPort()));
+    }
+
+    @Test
+    public void testReassembly() throws Exception {
+        receivePart("world", 7, 2, 2);
+        assertEquals(1, client.getPendingMessageCount());
+        receivePart("hello", 7, 1, 2);
+        assertEquals("helloworld", client.receive(5000));
+        assertEquals(0, client.getPendingMessageCount());
+    }
+
+    @Test
+    public void testPartNumbersOutOfRange() throws Exception {
+        receivePart("a", 1, 0, 2);
+        receivePart("a", 2, 3, 2);
+        receivePart("a", 3, 1, ReliableUDPClient.DEF_MAX_FRAGMENTS + 1);
+        receivePart("a", 4, 1, -1);
+        assertEquals(0, client.getPendingMessageCount());
+        assertEquals(4, client.getReassemblyDropCount());
+    }
+
+    @Test
+    public void testInconsistentPartCount() throws Exception {
+        receivePart("a", 1, 1, 2);
+        receivePart("b", 1, 2, 3);
+        assertEquals(0, client.getPendingMessageCount());
+        assertEquals(1, client.getReassemblyDropCount());
+        assertNull(client.receiveBytes(100));
+    }
+
+    @Test
+    public void testTableFullEviction() throws Exception {
+        client.setMaxPendingMessages(2);
+        receivePart("a", 1, 1, 2);
+        receivePart("b", 2, 1, 2);
+        receivePart("c", 3, 1, 2);
+        assertEquals(2, client.getPendingMessageCount());
+        assertEquals(1, client.getReassemblyDropCount());
+        receivePart("a", 1, 2, 2);
+        receivePart("c", 3, 2, 2);
+        assertEquals("cc", client.receive(5000));
+    }
+
+    @Test
+    public void testReassemblyTimeout() throws Exception {
+        client.setReassemblyTimeout(50);
+        receivePart("a", 1, 1, 2);
+        Thread.sleep(100);
+        receivePart("b", 2, 1, 2);
+        assertEquals(1, client.getPendingMessageCount());
+        assertEquals(1, client.getReassemblyDropCount());
+    }
+
+    @Test
+    public void testStaleSessionIgnored() throws Exception {
+        receiveWindowed("a", 100, 1);
+        receiveWindowed("b", 200, 1);
+        receiveWindowed("c", 100, 2);
+        receiveWindowed("d", 200, 2);
+        assertEquals("a", client.receive(5000));
+        assertEquals("b", client.receive(5000));
+        assertEquals("d", client.receive(5000));
+        assertNull(client.receiveBytes(100));
+    }
+
+    @Test
+    public void testIPv4PeerID() {
+        assertEquals((0x7F000001L << 16) | 5000, ReliableUDPClient.ipv4PeerID("//127.0.0.1:5000"));
+        assertEquals((0xFFFFFFFFL << 16) | 65535, ReliableUDPClient.ipv4PeerID("//255.255.255.255:65535"));
+        assertEquals(-1, ReliableUDPClient.ipv4PeerID("//256.0.0.1:5000"));
+        assertEquals(-1, ReliableUDPClient.ipv4PeerID("//127.0.0.1:70000"));
+        assertEquals(-1, ReliableUDPClient.ipv4PeerID("//127.0.0.1"));
+        assertEquals(-1, ReliableUDPClient.ipv4PeerID("//127.0.1:5000"));
+        assertEquals(-1, ReliableUDPClient.ipv4PeerID("//0:0:0:0:0:0:0:1:5000"));
+        assertEquals(-1, ReliableUDPClient.ipv4PeerID("//localhost:5000"));
+    }
+
+    @Test
+    public void testMappedPeersBounded() throws Exception {
+        client.setReceiveMemory(2);
+        int port = peer.getLocalPort();
+        String[] sources = {"//localhost:" + port, "//LOCALHOST:" + port, "//Localhost:" + port};
+        for (int i = 0; i < sources.length; i++) {
+            ReliableProtocolMessage rpm = new ReliableProtocolMessage(("m" + i).getBytes(), 1, 1, 1, sources[i]);
+            client.signalEvent(new AsynchMessageArrivedEvent(rpm.getMessageBytes(Message.Encoding.TEXT), sources[i]));
+        }
+        assertEquals(2, client.peerIDs.size());
+        assertFalse(client.peerIDs.containsKey(sources[0]));
+        assertEquals(Long.valueOf(ReliableUDPClient.FIRST_MAPPED_PEER + 2), client.peerIDs.get(sources[2]));
+    }
+
+    @Test
+    public void testDuplicateSuppressedPerPeer() throws Exception {
+        receivePart("a", 1, 1, 1);
+        receivePart("a", 1, 1, 1);
+        assertEquals("a", client.receive(5000));
+        assertNull(client.receiveBytes(100));
+        assertTrue(client.peerIDs.isEmpty());
+    }
+
+    @Test
+    public void testAckEveryPackets() throws Exception {
+        client.setAckCoalescing(10000, 16);
+        for (int round = 1; round <= 2; round++) {
+            for (int i = 1; i <= 16; i++) {
+                sendWindowed(5, 16 * (round - 1) + i);
+            }
+            ReliableProtocolMessage ack = receiveAck(5000);
+            assertEquals(16 * round, ack.getCumulativeSequence());
+            assertEquals(0, ack.getSelectiveAcknowledgements());
+        }
+        // One acknowledgement per 16 packets, and none left pending for the transfer
+        assertNull(receiveAck(300));
+    }
+
+    @Test
+    public void testDelayedAck() throws Exception {
+        client.setAckCoalescing(50, 16);
+        for (int i = 1; i <= 3; i++) {
+            sendWindowed(5, i);
+        }
+        ReliableProtocolMessage ack = receiveAck(5000);
+        assertEquals(3, ack.getCumulativeSequence());
+        assertNull(receiveAck(300));
+    }
+
+    @Test
+    public void testOutOfOrderAckedWithoutDelay() throws Exception {
+        client.setAckCoalescing(10000, 16);
+        sendWindowed(5, 1);
+        sendWindowed(5, 3);
+        ReliableProtocolMessage ack = receiveAck(2000);
+        assertEquals(1, ack.getCumulativeSequence());
+        assertEquals(0x1L, ack.getSelectiveAcknowledgements());
+    }
+
+    @Test
+    public void testDuplicateAckedWithoutDelay() throws Exception {
+        client.setAckCoalescing(10000, 16);
+        sendWindowed(5, 1);
+        sendWindowed(5, 1);
+        ReliableProtocolMessage ack = receiveAck(2000);
+        assertEquals(1, ack.getCumulativeSequence());
+    }
+
+    @Test
+    public void testReceiverJoinsSessionMidway() throws Exception {
+        // A receiver that starts over (e.g. restarted on the same port) in the middle of a long session
+        client.setAckCoalescing(50, 16);
+        sendWindowed(5, 5001, 5000);
+        ReliableProtocolMessage ack = receiveAck(5000);
+        assertEquals(5001, ack.getCumulativeSequence());
+        assertEquals(0, ack.getSelectiveAcknowledgements());
+    }
+
+    @Test
+    public void testPendingAckSentOnEnd() throws Exception {
+        client.setAckCoalescing(10000, 16);
+        receiveWindowed("x", 5, 1);
+        client.endConnection();
+        ReliableProtocolMessage ack = receiveAck(2000);
+        assertEquals(1, ack.getCumulativeSequence());
+    }
+
+    @Test
+    public void testSendAfterEndFails() throws Exception {
+        client.endConnection();
+        try {
+            client.send("x", peerURL);
+            fail("Sent after the connection ended");
+        }
+        catch (NetworkException expected) {}
+        client.setSelectiveRepeat(true);
+        try {
+            client.send("x", peerURL);
+            fail("Sent after the connection ended");
+        }
+        catch (NetworkException expected) {}
+    }
+
+    @Test
+    public void testPacketAfterEndIgnored() throws Exception {
+        client.endConnection();
+        receiveWindowed("x", 5, 1);
+        receivePart("y", 7, 1, 1);
+        assertNull(client.receive(50));
+        assertNull(receiveAck(200));
+    }
+
+    private static int wheelThreads() {
+        int ret = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("programming5-wheel-")) {
+                ret++;
+            }
+        }
+        return ret;
+    }
+
+    @Test
+    public void testClientsShareTimingWheel() throws Exception {
+        client.send("x", peerURL);
+        int before = wheelThreads();
+        List<ReliableUDPClient> others = new ArrayList<ReliableUDPClient>();
+        try {
+            for (int i = 0; i < 4; i++) {
+                ReliableUDPClient other = new ReliableUDPClient();
+                others.add(other);
+                other.send("x", peerURL);
+            }
+            assertEquals(before, wheelThreads());
+        }
+        finally {
+            for (ReliableUDPClient other : others) {
+                other.endConnection();
+            }
+        }
+    }
+
+    @Test
+    public void testWindowReceiversBounded() {
+        client.setReceiveMemory(4);
+        for (int i = 0; i < 20; i++) {
+            String source = "//127.0.0.1:" + (40000 + i);
+            ReliableProtocolMessage rpm = ReliableProtocolMessage.createWindowedMessage("x".getBytes(), 1, 1, 1, 5, 1, 0, source);
+            client.signalEvent(new AsynchMessageArrivedEvent(rpm.getMessageBytes(Message.Encoding.TEXT), source));
+        }
+        synchronized (client.windowReceivers) {
+            assertEquals(4, client.windowReceivers.size());
+            assertTrue(client.windowReceivers.containsKey("//127.0.0.1:40019"));
+        }
+    }
+
+    @Test
+    public void testIdleSenderRetired() throws Exception {
+        client.setSelectiveRepeat(true);
+        client.setSenderIdleTimeout(50);
+        client.send("x", peerURL);
+        ReliableProtocolMessage packet = receiveMessage(2000);
+        assertTrue(packet.isWindowedMessage());
+        sendAck(packet.getSession(), packet.getPacketSequence());
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            synchronized (client.windowSenders) {
+                if (client.windowSenders.isEmpty()) {
+                    break;
+                }
+            }
+            Thread.sleep(10);
+        }
+        synchronized (client.windowSenders) {
+            assertTrue(client.windowSenders.isEmpty());
+            assertTrue(client.sessions.isEmpty());
+        }
+        // The next message starts a new session
+        client.send("y", peerURL);
+        ReliableProtocolMessage next = receiveMessage(2000);
+        assertTrue(next.getSession() != packet.getSession());
+        assertEquals(1, next.getPacketSequence());
+    }
+
+    @Test
+    public void testWindowReceiverInOrder() {
+        ReliableUDPClient.WindowReceiver receiver = new ReliableUDPClient.WindowReceiver();
+        assertTrue(receiver.receive(1, 1, 0));
+        assertTrue(receiver.receive(1, 2, 0));
+        assertFalse(receiver.receive(1, 2, 0));
+        assertEquals(2, receiver.cumulative);
+        assertEquals(0, receiver.getSelectiveAcknowledgements());
+    }
+
+    @Test
+    public void testWindowReceiverOutOfOrder() {
+        ReliableUDPClient.WindowReceiver receiver = new ReliableUDPClient.WindowReceiver();
+        assertTrue(receiver.receive(1, 1, 0));
+        assertTrue(receiver.receive(1, 3, 0));
+        assertTrue(receiver.receive(1, 5, 0));
+        assertEquals(1, receiver.cumulative);
+        assertEquals(0x5L, receiver.getSelectiveAcknowledgements());
+        assertTrue(receiver.receive(1, 2, 0));
+        assertEquals(3, receiver.cumulative);
+        assertEquals(0x1L, receiver.getSelectiveAcknowledgements());
+        assertFalse(receiver.receive(1, 3 + ReliableUDPClient.RECEIVE_WINDOW + 1, 0));
+    }
+
+    @Test
+    public void testWindowReceiverBitmapAcrossRing() {
+        ReliableUDPClient.WindowReceiver receiver = new ReliableUDPClient.WindowReceiver();
+        for (long sequence = 1; sequence <= ReliableUDPClient.RECEIVE_WINDOW - 6; sequence++) {
+            assertTrue(receiver.receive(1, sequence, 0));
+        }
+        long cumulative = ReliableUDPClient.RECEIVE_WINDOW - 6;
+        assertEquals(cumulative, receiver.cumulative);
+        // The bitmap starts in the last word of the ring (offset 60) and continues in the first one
+        assertTrue(receiver.receive(1, cumulative + 3, 0));
+        assertTrue(receiver.receive(1, cumulative + 7, 0));
+        assertTrue(receiver.receive(1, cumulative + 65, 0));
+        assertEquals((1L << 1) | (1L << 5) | (1L << 63), receiver.getSelectiveAcknowledgements());
+        assertFalse(receiver.receive(1, cumulative + 7, 0));
+    }
+
+    @Test
+    public void testWindowReceiverCumulativeAcrossRing() {
+        ReliableUDPClient.WindowReceiver receiver = new ReliableUDPClient.WindowReceiver();
+        for (long sequence = 1; sequence <= ReliableUDPClient.RECEIVE_WINDOW - 2; sequence++) {
+            assertTrue(receiver.receive(1, sequence, 0));
+        }
+        long cumulative = ReliableUDPClient.RECEIVE_WINDOW - 2;
+        for (long sequence = cumulative + 2; sequence <= cumulative + 5; sequence++) {
+            assertTrue(receiver.receive(1, sequence, 0));
+        }
+        assertEquals(cumulative, receiver.cumulative);
+        assertEquals(0xFL, receiver.getSelectiveAcknowledgements());
+        assertTrue(receiver.receive(1, cumulative + 1, 0));
+        assertEquals(cumulative + 5, receiver.cumulative);
+        assertEquals(0, receiver.getSelectiveAcknowledgements());
+        // The slots passed by the cumulative sequence are cleared for the next turn of the ring
+        for (long word : receiver.received) {
+            assertEquals(0, word);
+        }
+        assertTrue(receiver.receive(1, cumulative + 5 + ReliableUDPClient.RECEIVE_WINDOW, 0));
+        assertFalse(receiver.receive(1, cumulative + 6 + ReliableUDPClient.RECEIVE_WINDOW, 0));
+    }
+
+    @Test
+    public void testWindowReceiverSkipsToBase() {
+        ReliableUDPClient.WindowReceiver receiver = new ReliableUDPClient.WindowReceiver();
+        assertTrue(receiver.receive(1, 1, 0));
+        assertTrue(receiver.receive(1, 3, 0));
+        // Packet 2 was abandoned by the sender, and packet 5 is still in flight
+        assertTrue(receiver.receive(1, 6, 4));
+        assertEquals(4, receiver.cumulative);
+        assertEquals(0x1L, receiver.getSelectiveAcknowledgements());
+        // A duplicate still moves the cumulative sequence up to its base
+        assertFalse(receiver.receive(1, 6, 5));
+        assertEquals(6, receiver.cumulative);
+        assertEquals(0, receiver.getSelectiveAcknowledgements());
+        assertTrue(receiver.receive(1, 8, 0));
+        assertTrue(receiver.receive(1, 6 + 3 * ReliableUDPClient.RECEIVE_WINDOW, 5 + 3 * ReliableUDPClient.RECEIVE_WINDOW));
+        assertEquals(6 + 3 * ReliableUDPClient.RECEIVE_WINDOW, receiver.cumulative);
+        for (long word : receiver.received) {
+            assertEquals(0, word);
+        }
+    }
+
+    @Test
+    public void testWindowReceiverSessions() {
+        ReliableUDPClient.WindowReceiver receiver = new ReliableUDPClient.WindowReceiver();
+        assertTrue(receiver.receive(1, 1, 0));
+        assertTrue(receiver.receive(1, 2, 0));
+        assertTrue(receiver.receive(2, 1, 0));
+        assertEquals(2, receiver.session);
+        assertEquals(1, receiver.cumulative);
+        assertFalse(receiver.receive(1, 3, 0));
+        assertEquals(2, receiver.session);
+        assertEquals(1, receiver.cumulative);
+        assertTrue(receiver.receive(2, 2, 0));
+    }
+
+    @Test
+    public void testWindowReceiverRetiredSessionLimit() {
+        ReliableUDPClient.WindowReceiver receiver = new ReliableUDPClient.WindowReceiver();
+        for (long session = 0; session <= ReliableUDPClient.RETIRED_SESSIONS + 1; session++) {
+            assertTrue(receiver.receive(session, 1, 0));
+        }
+        assertFalse(receiver.receive(1, 2, 0));
+        assertTrue(receiver.receive(0, 2, 0));
+    }
+
+    @Test
+    public void testWindowSenderFillsWindow() {
+        ReliableUDPClient.WindowSender sender = client.new WindowSender(peerURL);
+        List<ReliableUDPClient.WindowPacket> sent = sender.enqueue(new byte[10][1], 1, 0);
+        assertEquals(ReliableUDPClient.DEF_INITIAL_WINDOW, sent.size());
+        assertEquals(ReliableUDPClient.DEF_INITIAL_WINDOW, sender.getInFlightCount());
+        sent = sender.acknowledge(2, 0, 10);
+        assertEquals(6, sender.getCongestionWindow(), 0);
+        assertEquals(4, sent.size());
+        assertEquals(5, sent.get(0).packetSequence);
+        assertEquals(6, sender.getInFlightCount());
+    }
+
+    @Test
+    public void testWindowSenderFastRetransmit() {
+        ReliableUDPClient.WindowSender sender = client.new WindowSender(peerURL);
+        sender.cwnd = 10;
+        List<ReliableUDPClient.WindowPacket> sent = sender.enqueue(new byte[10][1], 1, 0);
+        assertEquals(10, sent.size());
+        ReliableUDPClient.WindowPacket lost = sent.get(1);
+        sent = sender.acknowledge(1, 0xF, 10);
+        assertSame(lost, sent.get(0));
+        assertEquals(2, lost.sendCount);
+        assertEquals(7.5, sender.getCongestionWindow(), 0);
+        assertEquals(5, sender.getInFlightCount());
+        sent = sender.acknowledge(1, 0xF, 20);
+        assertTrue(sent.isEmpty());
+    }
+
+    @Test
+    public void testWindowSenderDropsMessage() throws Exception {
+        client.setResendLimit(1);
+        ReliableUDPClient.WindowSender sender = client.new WindowSender(peerURL);
+        List<ReliableUDPClient.WindowPacket> sent = sender.enqueue(new byte[6][1], 1, 0);
+        sender.enqueue(new byte[1][1], 2, 0);
+        assertEquals(0, new ReliableProtocolMessage(sent.get(0).bytes).getBaseSequence());
+        sender.expired(sent.get(0));
+        assertEquals(1, sender.getInFlightCount());
+        // The packets after the dropped message tell the receiver not to wait for it
+        sent = sender.enqueue(new byte[1][1], 3, 0);
+        assertEquals(6, new ReliableProtocolMessage(sent.get(0).bytes).getBaseSequence());
+        sent = sender.acknowledge(8, 0, 10);
+        assertTrue(sent.isEmpty());
+        assertEquals(0, sender.getInFlightCount());
+    }
+
+}
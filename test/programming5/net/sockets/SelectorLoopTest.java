@@ -0,0 +1,121 @@
+package programming5.net.sockets;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SelectorLoopTest {
+
+    /**
+     *Returns the two ends of a loopback connection, the first one in non-blocking mode
+     */
+    private static SocketChannel[] connectedPair(ServerSocketChannel server) throws IOException {
+        SocketChannel client = SocketChannel.open(new InetSocketAddress("localhost", server.socket().getLocalPort()));
+        SocketChannel accepted = server.accept();
+        accepted.configureBlocking(false);
+        return new SocketChannel[] {accepted, client};
+    }
+
+    static class ReadHandler implements SelectorLoop.ChannelHandler {
+
+        final CountDownLatch reads = new CountDownLatch(1);
+        final CountDownLatch errors = new CountDownLatch(1);
+        final boolean failing;
+
+        ReadHandler(boolean fail) {
+            failing = fail;
+        }
+
+        public void registered(SelectionKey key) {
+        }
+
+        public void handle(SelectionKey key) throws IOException {
+            ((SocketChannel) key.channel()).read(ByteBuffer.allocate(16));
+            if (failing) {
+                throw new IllegalStateException("Decoding failed");
+            }
+            reads.countDown();
+        }
+
+        public void handleError(SelectionKey key, IOException cause) {
+            try {
+                key.channel().close();
+            }
+            catch (IOException ignored) {}
+            errors.countDown();
+        }
+
+    }
+
+    @Test
+    public void testRuntimeExceptionClosesOnlyOffendingChannel() throws Exception {
+        SelectorLoop loop = new SelectorLoop();
+        loop.start();
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress("localhost", 0));
+        try {
+            SocketChannel[] bad = connectedPair(server);
+            SocketChannel[] good = connectedPair(server);
+            ReadHandler badHandler = new ReadHandler(true);
+            ReadHandler goodHandler = new ReadHandler(false);
+            loop.register(bad[0], SelectionKey.OP_READ, badHandler);
+            loop.register(good[0], SelectionKey.OP_READ, goodHandler);
+            bad[1].write(ByteBuffer.wrap("x".getBytes()));
+            assertTrue(badHandler.errors.await(5, TimeUnit.SECONDS));
+            assertFalse(bad[0].isOpen());
+            good[1].write(ByteBuffer.wrap("y".getBytes()));
+            assertTrue(goodHandler.reads.await(5, TimeUnit.SECONDS));
+            assertTrue(loop.isAlive());
+            assertTrue(good[0].isOpen());
+        }
+        finally {
+            loop.end();
+            server.close();
+        }
+    }
+
+    @Test
+    public void testFailingErrorHandlerStillClosesChannel() throws Exception {
+        SelectorLoop loop = new SelectorLoop();
+        loop.start();
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress("localhost", 0));
+        try {
+            SocketChannel[] pair = connectedPair(server);
+            final CountDownLatch errors = new CountDownLatch(1);
+            loop.register(pair[0], SelectionKey.OP_READ, new SelectorLoop.ChannelHandler() {
+                public void registered(SelectionKey key) {
+                }
+                public void handle(SelectionKey key) throws IOException {
+                    throw new IllegalStateException("Handler failed");
+                }
+                public void handleError(SelectionKey key, IOException cause) {
+                    errors.countDown();
+                    throw new IllegalStateException("Error handler failed");
+                }
+            });
+            pair[1].write(ByteBuffer.wrap("x".getBytes()));
+            assertTrue(errors.await(5, TimeUnit.SECONDS));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (pair[0].isOpen() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertFalse(pair[0].isOpen());
+            assertTrue(loop.isAlive());
+        }
+        finally {
+            loop.end();
+            server.close();
+        }
+    }
+
+}
@@ -0,0 +1,26 @@
+package programming5.net.sockets;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import org.junit.Test;
+
+public class TCPClientTest {
+
+    @Test
+    public void testOversizedFrameClosesConnection() throws Exception {
+        ServerSocket server = new ServerSocket(0);
+        TCPClient client = new TCPClient("localhost", server.getLocalPort());
+        try {
+            client.setMaxMessageSize(8);
+            client.establishConnection();
+            Socket peer = server.accept();
+            NIOTCPClientTest.assertOversizedFrameClosesConnection(peer, client);
+            peer.close();
+        }
+        finally {
+            client.endConnection();
+            server.close();
+        }
+    }
+
+}
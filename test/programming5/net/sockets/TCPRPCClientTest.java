@@ -0,0 +1,249 @@
+package programming5.net.sockets;
+
+import java.io.InvalidClassException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import programming5.net.NetworkException;
+import programming5.net.RPCMessage;
+import programming5.net.ServiceObject;
+import programming5.net.ServiceObjectFactory;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TCPRPCClientTest {
+
+    public static class Base {
+
+        public String inherited() {
+            return "inherited";
+        }
+
+    }
+
+    public interface Adder {
+
+        int add(int a, int b);
+
+    }
+
+    public static class Point implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        final int x;
+        final int y;
+
+        public Point(int myX, int myY) {
+            x = myX;
+            y = myY;
+        }
+
+    }
+
+    public static class Service extends Base implements Adder {
+
+        public int add(int a, int b) {
+            return a + b;
+        }
+
+        public String echo(String s) {
+            return s;
+        }
+
+        public void reject(String reason) {
+            throw new IllegalStateException(reason);
+        }
+
+        public long sleep(long millis) throws InterruptedException {
+            Thread.sleep(millis);
+            return millis;
+        }
+
+        public int norm(Point p) {
+            return Math.abs(p.x) + Math.abs(p.y);
+        }
+
+    }
+
+    private TCPServerDaemon startServer() throws NetworkException {
+        return startServer(new RPCServiceObject(new Service()));
+    }
+
+    private TCPServerDaemon startServer(final RPCServiceObject service) throws NetworkException {
+        TCPServerDaemon daemon = new TCPServerDaemon(new ServiceObjectFactory() {
+            public ServiceObject getServiceObject() {
+                return service;
+            }
+        });
+        daemon.start();
+        return daemon;
+    }
+
+    @Test
+    public void testPipelinedCalls() throws Exception {
+        TCPServerDaemon daemon = startServer();
+        TCPRPCClient client = new TCPRPCClient("127.0.0.1", daemon.getLocalPort());
+        try {
+            List<CompletableFuture<Object>> results = new ArrayList<CompletableFuture<Object>>();
+            // A slow call first: the others must not wait for it
+            CompletableFuture<Object> slow = client.call("sleep", 500L);
+            for (int i = 0; i < 200; i++) {
+                results.add(client.call("add", i, 1));
+            }
+            for (int i = 0; i < 200; i++) {
+                assertEquals(i + 1, results.get(i).get(5, TimeUnit.SECONDS));
+            }
+            assertTrue(!slow.isDone());
+            assertEquals(500L, slow.get(5, TimeUnit.SECONDS));
+            assertEquals("a::b", client.invoke("echo", "a::b"));
+            assertEquals(0, client.getPendingCount());
+        }
+        finally {
+            client.endConnection();
+            daemon.end();
+        }
+    }
+
+    @Test
+    public void testErrorsAndTimeouts() throws Exception {
+        TCPServerDaemon daemon = startServer();
+        TCPRPCClient client = new TCPRPCClient("127.0.0.1", daemon.getLocalPort());
+        try {
+            try {
+                client.call("reject", "no").get(5, TimeUnit.SECONDS);
+                fail("Expected ExecutionException");
+            }
+            catch (ExecutionException ee) {
+                assertTrue(ee.getCause() instanceof IllegalStateException);
+                assertEquals("no", ee.getCause().getMessage());
+            }
+            try {
+                client.invoke("missing");
+                fail("Expected NetworkException");
+            }
+            catch (NetworkException ne) {
+                assertTrue(ne.getCause() instanceof NoSuchMethodException);
+            }
+            try {
+                client.call(50, "sleep", 1000L).get(5, TimeUnit.SECONDS);
+                fail("Expected ExecutionException");
+            }
+            catch (ExecutionException ee) {
+                assertTrue(ee.getCause() instanceof TimeoutException);
+            }
+            assertEquals(3, client.invoke("add", 1, 2));
+        }
+        finally {
+            client.endConnection();
+            daemon.end();
+        }
+        try {
+            client.call("add", 1, 2).get(5, TimeUnit.SECONDS);
+            fail("Expected ExecutionException");
+        }
+        catch (ExecutionException ee) {
+            assertTrue(ee.getCause() instanceof NetworkException);
+        }
+    }
+
+    private static Throwable failure(CompletableFuture<Object> result) throws Exception {
+        try {
+            result.get(5, TimeUnit.SECONDS);
+        }
+        catch (ExecutionException ee) {
+            return ee.getCause();
+        }
+        fail("Expected ExecutionException");
+        return null;
+    }
+
+    @Test
+    public void testExportedMethods() throws Exception {
+        TCPServerDaemon daemon = startServer();
+        TCPRPCClient client = new TCPRPCClient("127.0.0.1", daemon.getLocalPort());
+        try {
+            assertTrue(failure(client.call("inherited")) instanceof NoSuchMethodException);
+            assertTrue(failure(client.call("toString")) instanceof NoSuchMethodException);
+            assertTrue(failure(client.call("wait", 1L)) instanceof NoSuchMethodException);
+            assertEquals("a", client.invoke("echo", "a"));
+        }
+        finally {
+            client.endConnection();
+            daemon.end();
+        }
+        daemon = startServer(new RPCServiceObject(new Service(), RPCServiceObject.getDefaultExecutor(), Adder.class));
+        client = new TCPRPCClient("127.0.0.1", daemon.getLocalPort());
+        try {
+            assertEquals(3, client.invoke("add", 1, 2));
+            assertTrue(failure(client.call("echo", "a")) instanceof NoSuchMethodException);
+        }
+        finally {
+            client.endConnection();
+            daemon.end();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testExportedTypeNotImplemented() {
+        new RPCServiceObject(new Object(), RPCServiceObject.getDefaultExecutor(), Adder.class);
+    }
+
+    @Test
+    public void testDeserializationFilter() throws Exception {
+        RPCServiceObject service = new RPCServiceObject(new Service());
+        TCPServerDaemon daemon = startServer(service);
+        TCPRPCClient client = new TCPRPCClient("127.0.0.1", daemon.getLocalPort());
+        try {
+            Throwable rejected = failure(client.call("norm", new Point(3, -4)));
+            assertTrue(rejected instanceof NetworkException);
+            assertTrue(rejected.getMessage().contains(InvalidClassException.class.getName()));
+            service.setDeserializationFilter(RPCMessage.createFilter(Point.class.getName()));
+            assertEquals(7, client.invoke("norm", new Point(3, -4)));
+        }
+        finally {
+            client.endConnection();
+            daemon.end();
+        }
+    }
+
+    @Test
+    public void testCallsDuringEndConnectionComplete() throws Exception {
+        TCPServerDaemon daemon = startServer();
+        try {
+            for (int round = 0; round < 20; round++) {
+                final TCPRPCClient client = new TCPRPCClient("127.0.0.1", daemon.getLocalPort());
+                client.establishConnection();
+                final List<CompletableFuture<Object>> results = new ArrayList<CompletableFuture<Object>>();
+                Thread caller = new Thread(new Runnable() {
+                    public void run() {
+                        for (int i = 0; i < 200; i++) {
+                            CompletableFuture<Object> result = client.call(0, "sleep", 10000L);
+                            synchronized (results) {
+                                results.add(result);
+                            }
+                        }
+                    }
+                });
+                caller.start();
+                client.endConnection();
+                caller.join();
+                // Calls without a timeout made while the connection ended must not wait forever
+                for (CompletableFuture<Object> result : results) {
+                    assertTrue(failure(result) instanceof NetworkException);
+                }
+            }
+        }
+        finally {
+            daemon.end();
+        }
+    }
+
+}
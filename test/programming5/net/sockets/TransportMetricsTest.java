@@ -0,0 +1,116 @@
+package programming5.net.sockets;
+
+import java.lang.management.ManagementFactory;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import programming5.net.NetworkException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TransportMetricsTest {
+
+    @Test
+    public void testHistogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 1000; value++) {
+            histogram.record(value);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(500.5, snapshot.getMean(), 0.001);
+        assertEquals(1000, snapshot.getMax());
+        // Values are reported within 1/16 of their magnitude
+        assertTrue(Math.abs(snapshot.getPercentile(50) - 500) <= 500 / 16);
+        assertTrue(Math.abs(snapshot.getPercentile(99) - 990) <= 990 / 16);
+        assertEquals(1000, snapshot.getPercentile(100));
+        assertEquals(1, histogram.snapshot().getPercentile(0));
+        histogram.reset();
+        assertEquals(0, histogram.snapshot().getCount());
+        assertEquals(0, histogram.snapshot().getPercentile(99));
+    }
+
+    @Test
+    public void testPeerAndAggregateCounts() {
+        TransportMetrics metrics = new TransportMetrics();
+        metrics.setMaxPeers(2);
+        metrics.recordSent("//a:1", 10);
+        metrics.recordSent("//b:1", 20);
+        metrics.recordSent("//c:1", 30);
+        metrics.recordSent(null, 40);
+        metrics.recordReceived("//a:1", 5);
+        metrics.recordRetransmit("//a:1");
+        metrics.recordDuplicate("//b:1");
+        metrics.recordSendToAck("//a:1", 250);
+        metrics.addGauge("depth", new TransportMetrics.Gauge() {
+            public long getValue() {
+                return 7;
+            }
+        });
+        MetricsSnapshot total = metrics.snapshot();
+        assertEquals(4, total.getMessagesSent());
+        assertEquals(100, total.getBytesSent());
+        assertEquals(1, total.getRetransmits());
+        assertEquals(1, total.getDuplicatesDropped());
+        assertEquals(Long.valueOf(7), total.getGauges().get("depth"));
+        assertEquals(2, total.getPeers().size());
+        MetricsSnapshot a = metrics.snapshot("//a:1");
+        assertEquals(1, a.getMessagesSent());
+        assertEquals(5, a.getBytesReceived());
+        assertEquals(1, a.getSendToAck().getCount());
+        assertNull(metrics.snapshot("//c:1"));
+        metrics.removePeer("//a:1");
+        assertNull(metrics.snapshot("//a:1"));
+        assertEquals(4, metrics.getMessagesSent());
+    }
+
+    @Test
+    public void testJMXRegistration() throws Exception {
+        TransportMetrics metrics = new TransportMetrics();
+        metrics.recordSent("//a:1", 10);
+        metrics.register("test");
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(TransportMetrics.JMX_DOMAIN + ":type=TransportMetrics,name=" + ObjectName.quote("test"));
+            assertEquals(1L, server.getAttribute(name, "MessagesSent"));
+            try {
+                new TransportMetrics().register("test");
+                fail("Registered twice with the same name");
+            }
+            catch (NetworkException expected) {}
+        }
+        finally {
+            metrics.unregister();
+        }
+        metrics.register("test");
+        metrics.unregister();
+    }
+
+    @Test
+    public void testClientRecording() throws Exception {
+        UDPClient receiver = new UDPClient();
+        UDPClient sender = new UDPClient("127.0.0.1", receiver.getLocalPort());
+        try {
+            sender.send("hello");
+            sender.send("world");
+            assertEquals("hello", receiver.receive(5000));
+            assertEquals("world", receiver.receive(5000));
+            assertEquals(2, sender.getTransportMetrics().getMessagesSent());
+            assertEquals(10, sender.getTransportMetrics().getBytesSent());
+            MetricsSnapshot received = receiver.getTransportMetrics().snapshot();
+            assertEquals(2, received.getMessagesReceived());
+            // Messages are dispatched in order by a single thread, so the first has finished its dispatch
+            assertTrue(received.getReceiveToDispatch().getCount() >= 1);
+            assertEquals(1, received.getPeers().size());
+            assertEquals(Long.valueOf(0), received.getGauges().get("heldMessages"));
+        }
+        finally {
+            sender.endConnection();
+            receiver.endConnection();
+        }
+    }
+
+}
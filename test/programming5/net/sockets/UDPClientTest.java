@@ -0,0 +1,101 @@
+package programming5.net.sockets;
+
+import java.util.Arrays;
+import programming5.concurrent.Mailbox;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class UDPClientTest {
+
+    private UDPClient sender;
+    private UDPClient receiver;
+
+    @Before
+    public void setUp() throws Exception {
+        sender = new UDPClient();
+        receiver = new UDPClient();
+    }
+
+    @After
+    public void tearDown() {
+        sender.endConnection();
+        receiver.endConnection();
+    }
+
+    private static byte[] message(int length) {
+        byte[] ret = new byte[length];
+        for (int i = 0; i < length; i++) {
+            ret[i] = (byte) (i * 31 + 7);
+        }
+        return ret;
+    }
+
+    private void roundTrip(byte[] bytesMessage) throws Exception {
+        sender.send(bytesMessage, "localhost", receiver.getLocalPort());
+        byte[] received = receiver.receiveBytes(5000);
+        assertArrayEquals(bytesMessage, received);
+    }
+
+    @Test
+    public void testFragmentSizeBounds() {
+        for (int bad : new int[] {0, -1, UDPClient.MAX_SIZE + 1}) {
+            try {
+                sender.setFragmentSize(bad);
+                fail("Fragment size " + bad + " accepted");
+            }
+            catch (IllegalArgumentException expected) {}
+        }
+        sender.setFragmentSize(1);
+        sender.setFragmentSize(UDPClient.MAX_SIZE);
+        assertEquals(UDPClient.MAX_SIZE, sender.fragmentSize);
+    }
+
+    @Test
+    public void testAsciiFragmentsRoundTrip() throws Exception {
+        sender.setFragmentSize(UDPClient.ETHERNET_FRAGMENT_SIZE);
+        this.roundTrip(message(5 * UDPClient.ETHERNET_FRAGMENT_SIZE + 123));
+        this.roundTrip(message(100));
+    }
+
+    @Test
+    public void testBinaryFragmentsRoundTrip() throws Exception {
+        sender.setFragmentHeader(UDPClient.FragmentHeader.BINARY);
+        sender.setFragmentSize(UDPClient.ETHERNET_FRAGMENT_SIZE);
+        this.roundTrip(message(5 * UDPClient.ETHERNET_FRAGMENT_SIZE + 123));
+        this.roundTrip(message(3 * UDPClient.ETHERNET_FRAGMENT_SIZE));
+        this.roundTrip(message(100));
+    }
+
+    @Test
+    public void testFragmentSizeMultipleRoundTrip() throws Exception {
+        sender.setFragmentSize(1000);
+        byte[] exact = message(4000);
+        this.roundTrip(exact);
+        sender.setFragmentHeader(UDPClient.FragmentHeader.BINARY);
+        this.roundTrip(Arrays.copyOf(exact, 3999));
+    }
+
+    @Test
+    public void testReceiveTimeoutAndDroppedCount() throws Exception {
+        receiver.setReceiveMailbox(2, Mailbox.OverflowPolicy.DROP_OLDEST);
+        assertNull(receiver.receive(50));
+        for (int i = 0; i < 5; i++) {
+            sender.send("m" + i, "localhost", receiver.getLocalPort());
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (receiver.getDroppedCount() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(3, receiver.getDroppedCount());
+        assertEquals("m3", receiver.receive(5000));
+        assertEquals("m4", receiver.receive(5000));
+        assertNull(receiver.receive(50));
+    }
+
+}
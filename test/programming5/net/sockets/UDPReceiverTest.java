@@ -0,0 +1,134 @@
+package programming5.net.sockets;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import programming5.net.EventDispatcher;
+import programming5.net.MessageArrivedEvent;
+import programming5.net.Publisher;
+import programming5.net.Subscriber;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class UDPReceiverTest {
+
+    private DatagramSocket receiveSocket;
+    private DatagramSocket sendSocket;
+    private UDPReceiver receiver;
+    private final BlockingQueue<String> messages = new LinkedBlockingQueue<String>();
+
+    @Before
+    public void setUp() throws Exception {
+        receiveSocket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        sendSocket = new DatagramSocket();
+        Publisher<MessageArrivedEvent> publisher = new Publisher<MessageArrivedEvent>(new EventDispatcher<MessageArrivedEvent>(EventDispatcher.callerThreadExecutor()));
+        publisher.addListener(new Subscriber<MessageArrivedEvent>() {
+            public <T extends MessageArrivedEvent> void signalEvent(T event) {
+                messages.add(event.getContent());
+            }
+        });
+        receiver = new UDPReceiver(publisher, receiveSocket);
+        receiver.start();
+    }
+
+    @After
+    public void tearDown() {
+        receiver.end();
+        receiveSocket.close();
+        sendSocket.close();
+    }
+
+    private void send(byte[] packet) throws Exception {
+        sendSocket.send(new DatagramPacket(packet, packet.length, receiveSocket.getLocalSocketAddress()));
+    }
+
+    private void sendAscii(long id, int index, int total, String payload) throws Exception {
+        this.send((id + "/" + index + "/" + total + ":" + payload).getBytes());
+    }
+
+    private void sendBinary(long id, int index, int total, int position, int messageLength, byte[] payload) throws Exception {
+        ByteBuffer packet = ByteBuffer.allocate(UDPClient.BINARY_HEADER_SIZE + payload.length);
+        packet.put(UDPClient.FRAGMENT_MAGIC).put(UDPClient.FRAGMENT_VERSION).putLong(id).putInt(index).putInt(total).putInt(position).putInt(messageLength);
+        packet.put(payload);
+        this.send(packet.array());
+    }
+
+    /**
+     *Sends a single packet message and waits for it, so that all the packets sent before it have been processed
+     */
+    private void sync() throws Exception {
+        this.send("sync".getBytes());
+        String message;
+        do {
+            message = messages.poll(5, TimeUnit.SECONDS);
+        }
+        while (message != null && !message.equals("sync"));
+        assertEquals("sync", message);
+    }
+
+    @Test
+    public void testReassembly() throws Exception {
+        sendAscii(1, 2, 2, "world");
+        sendAscii(1, 1, 2, "hello");
+        assertEquals("helloworld", messages.poll(5, TimeUnit.SECONDS));
+        sendBinary(2, 2, 2, 3, 5, "lo".getBytes());
+        sendBinary(2, 1, 2, 0, 5, "hel".getBytes());
+        assertEquals("hello", messages.poll(5, TimeUnit.SECONDS));
+        assertEquals(0, receiver.getPendingMessageCount());
+    }
+
+    @Test
+    public void testTableFullEvictsEldest() throws Exception {
+        receiver.setMaxPendingMessages(2);
+        sendAscii(1, 1, 2, "a");
+        sendAscii(2, 1, 2, "b");
+        sendAscii(3, 1, 2, "c");
+        this.sync();
+        assertEquals(2, receiver.getPendingMessageCount());
+        assertEquals(1, receiver.getDropCount());
+        sendAscii(1, 2, 2, "x");
+        sendAscii(3, 2, 2, "z");
+        assertEquals("cz", messages.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testExpiredMessagesEvicted() throws Exception {
+        receiver.setReassemblyTimeout(50);
+        sendAscii(1, 1, 2, "a");
+        this.sync();
+        assertEquals(1, receiver.getPendingMessageCount());
+        Thread.sleep(100);
+        this.sync();
+        assertEquals(0, receiver.getPendingMessageCount());
+        assertEquals(1, receiver.getDropCount());
+    }
+
+    @Test
+    public void testForgedFragmentCountsRejected() throws Exception {
+        receiver.setMaxMessageSize(1024);
+        sendAscii(1, 1, Integer.MAX_VALUE, "a");
+        sendAscii(2, 1, 1025, "a");
+        sendBinary(3, 1, Integer.MAX_VALUE, 0, 10, new byte[1]);
+        sendBinary(4, 1, 2, 0, 2048, new byte[1]);
+        this.sync();
+        assertEquals(0, receiver.getPendingMessageCount());
+        assertEquals(3, receiver.getDropCount());
+    }
+
+    @Test
+    public void testOversizedAsciiMessageDropped() throws Exception {
+        receiver.setMaxMessageSize(8);
+        sendAscii(1, 1, 4, "abc");
+        this.sync();
+        assertEquals(0, receiver.getPendingMessageCount());
+        assertEquals(1, receiver.getDropCount());
+    }
+
+}